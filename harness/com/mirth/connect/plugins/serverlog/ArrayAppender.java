@@ -0,0 +1,50 @@
+package com.mirth.connect.plugins.serverlog;
+
+import java.util.Date;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+
+/**
+ * Stand-in for the appender that feeds the server log of the Mirth administrator dashboard. Like the original, it keeps the most recent entries
+ * in a bounded buffer under a lock and formats them with {@link ServerLogItem#DATE_FORMAT}, so the dashboard costs about as much as in Mirth.<br/>
+ * <br/>
+ * <b>This class is part of the test harness only and must never be packaged with the MetaAppender.</b>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class ArrayAppender extends AbstractAppender {
+
+	// the number of entries the dashboard keeps by default
+	private static final int bufferSize = 50;
+	private final String[] entries = new String[bufferSize];
+	private int nextEntry = 0;
+	private long eventCount = 0;
+
+	public ArrayAppender() {
+		super("ArrayAppender", null, null, false, null);
+	}
+
+	@Override
+	public void append(LogEvent event) {
+		synchronized (entries) {
+			entries[nextEntry] = ServerLogItem.DATE_FORMAT.format(new Date(event.getTimeMillis())) + " " + event.getLevel() + " "
+					+ event.getLoggerName() + ": " + event.getMessage().getFormattedMessage();
+			nextEntry = (nextEntry + 1) % bufferSize;
+			eventCount++;
+		}
+	}
+
+	/**
+	 * Provides the number of entries that have been shown in the dashboard
+	 *
+	 * @return The number of entries
+	 */
+	public long getEventCount() {
+		synchronized (entries) {
+			return eventCount;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.mirth.connect.plugins.serverlog;
+
+import java.text.SimpleDateFormat;
+
+/**
+ * Stand-in for the Mirth class of the same name. The MetaAppender only sets the date format of the dashboard entries.<br/>
+ * <br/>
+ * <b>This class is part of the test harness only and must never be packaged with the MetaAppender.</b>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class ServerLogItem {
+
+	public static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+}
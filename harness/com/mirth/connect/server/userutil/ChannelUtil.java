@@ -0,0 +1,60 @@
+package com.mirth.connect.server.userutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for the Mirth class of the same name, so the MetaAppender can be driven outside of Mirth by the soak test. Only the functions used by
+ * the MetaAppender are provided. The channels are registered by the soak test instead of being deployed by Mirth.<br/>
+ * <br/>
+ * <b>This class is part of the test harness only and must never be packaged with the MetaAppender.</b>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class ChannelUtil {
+
+	// the names of the deployed channels by their ids
+	private static final Map<String, String> deployedChannels = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Simulates the deployment of a channel
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	public static void deploy(String channelId, String channelName) {
+		deployedChannels.put(channelId, channelName);
+	}
+
+	/**
+	 * Simulates the undeployment of a channel
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 */
+	public static void undeploy(String channelId) {
+		deployedChannels.remove(channelId);
+	}
+
+	public static String getChannelName(String channelId) {
+		return (channelId != null) ? deployedChannels.get(channelId) : null;
+	}
+
+	public static String getDeployedChannelName(String channelId) {
+		return getChannelName(channelId);
+	}
+
+	public static List<String> getDeployedChannelIds() {
+		return new ArrayList<String>(deployedChannels.keySet());
+	}
+
+	public static List<String> getDeployedChannelNames() {
+		return new ArrayList<String>(deployedChannels.values());
+	}
+}
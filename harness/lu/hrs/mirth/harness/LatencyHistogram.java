@@ -0,0 +1,140 @@
+package lu.hrs.mirth.harness;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in logarithmic buckets with 32 linear sub-buckets each, so percentiles are accurate to about 3% over the whole range from
+ * nanoseconds to minutes. Each worker thread records into its own histogram; the reporter merges snapshots of all of them.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LatencyHistogram {
+
+	private static final int subBucketBits = 5;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int bucketCount = (64 - subBucketBits) * subBuckets;
+	private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds
+	 */
+	void record(long nanos) {
+		counts.incrementAndGet(toIndex(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Adds the current counts of this histogram to a snapshot
+	 *
+	 * @param snapshot
+	 *            The snapshot (see {@link #newSnapshot()})
+	 */
+	void addTo(long[] snapshot) {
+		for (int index = 0; index < bucketCount; index++) {
+			snapshot[index] += counts.get(index);
+		}
+	}
+
+	/**
+	 * Creates an empty snapshot
+	 *
+	 * @return The snapshot
+	 */
+	static long[] newSnapshot() {
+		return new long[bucketCount];
+	}
+
+	/**
+	 * Determines the difference between two snapshots
+	 *
+	 * @param current
+	 *            The later snapshot
+	 * @param previous
+	 *            The earlier snapshot
+	 * @return The counts recorded in between
+	 */
+	static long[] difference(long[] current, long[] previous) {
+		long[] difference = newSnapshot();
+		for (int index = 0; index < bucketCount; index++) {
+			difference[index] = current[index] - previous[index];
+		}
+		return difference;
+	}
+
+	/**
+	 * Provides the number of latencies in a snapshot
+	 *
+	 * @param snapshot
+	 *            The snapshot
+	 * @return The number of latencies
+	 */
+	static long getCount(long[] snapshot) {
+		long count = 0;
+		for (long bucket : snapshot) {
+			count += bucket;
+		}
+		return count;
+	}
+
+	/**
+	 * Determines a percentile of a snapshot
+	 *
+	 * @param snapshot
+	 *            The snapshot
+	 * @param percentile
+	 *            The percentile, e.g. 99.9
+	 * @return The upper bound of the bucket containing the percentile in nanoseconds (0 if the snapshot is empty)
+	 */
+	static long getPercentile(long[] snapshot, double percentile) {
+		long count = getCount(snapshot);
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int index = 0; index < bucketCount; index++) {
+			seen += snapshot[index];
+			if (seen >= rank) {
+				return (index + 1 < bucketCount) ? toValue(index + 1) - 1 : Long.MAX_VALUE;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Determines the bucket of a latency
+	 *
+	 * @param nanos
+	 *            The latency
+	 * @return The index of the bucket
+	 */
+	private static int toIndex(long nanos) {
+		if (nanos < subBuckets) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - subBucketBits)) & (subBuckets - 1);
+		return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+	}
+
+	/**
+	 * Determines the lowest latency of a bucket
+	 *
+	 * @param index
+	 *            The index of the bucket
+	 * @return The latency
+	 */
+	private static long toValue(int index) {
+		if (index < subBuckets) {
+			return index;
+		}
+		int exponent = index / subBuckets + subBucketBits - 1;
+		long subBucket = index % subBuckets;
+		return (subBuckets + subBucket) << (exponent - subBucketBits);
+	}
+}
@@ -0,0 +1,208 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lu.hrs.mirth.ChannelStatistics;
+import lu.hrs.mirth.MetaAppender;
+
+/**
+ * The measurements and the command line handling shared by the load generators of the harness: throughput, latency percentiles of the logging
+ * calls, garbage collections, heap usage, open file descriptors and the bytes on disk.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LoadReport {
+
+	/**
+	 * Parses command line options of the form --name value or --flag
+	 *
+	 * @param arguments
+	 *            The command line arguments
+	 * @return The values of the options by their names or null if the arguments are invalid or help was requested
+	 */
+	static Map<String, String> parseOptions(String[] arguments) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int index = 0; index < arguments.length; index++) {
+			if (!arguments[index].startsWith("--")) {
+				return null;
+			}
+			String name = arguments[index].substring(2);
+			boolean flag = (index + 1 >= arguments.length) || arguments[index + 1].startsWith("--");
+			options.put(name, flag ? "true" : arguments[++index]);
+		}
+		return options.containsKey("help") ? null : options;
+	}
+
+	/**
+	 * Discards everything written to System.out, as the console appender of log4j writes to it
+	 *
+	 * @return The original stream to which the report is written
+	 */
+	static PrintStream detachConsole() {
+		PrintStream report = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		return report;
+	}
+
+	/**
+	 * Takes a snapshot of all measurements
+	 *
+	 * @param logFolder
+	 *            The log folder whose size is measured
+	 * @param events
+	 *            The number of events logged so far
+	 * @param latencies
+	 *            The latency histograms of all logging threads
+	 * @return The snapshot
+	 */
+	static Snapshot takeSnapshot(File logFolder, long events, List<LatencyHistogram> latencies) {
+		Snapshot snapshot = new Snapshot();
+		snapshot.time = System.currentTimeMillis();
+		snapshot.events = events;
+		for (LatencyHistogram histogram : latencies) {
+			histogram.addTo(snapshot.latencies);
+		}
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			snapshot.collections += Math.max(0, collector.getCollectionCount());
+			snapshot.collectionMillis += Math.max(0, collector.getCollectionTime());
+		}
+		snapshot.heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+		snapshot.openFiles = (system instanceof com.sun.management.UnixOperatingSystemMXBean)
+				? ((com.sun.management.UnixOperatingSystemMXBean) system).getOpenFileDescriptorCount()
+				: -1;
+		measureDisk(logFolder, snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Adds the size of all files of a folder to a snapshot
+	 *
+	 * @param folder
+	 *            The folder
+	 * @param snapshot
+	 *            The snapshot
+	 */
+	private static void measureDisk(File folder, Snapshot snapshot) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				measureDisk(file, snapshot);
+			} else {
+				snapshot.files++;
+				snapshot.diskBytes += file.length();
+			}
+		}
+	}
+
+	/**
+	 * Describes the measurements between two snapshots
+	 *
+	 * @param label
+	 *            A prefix of the description
+	 * @param seconds
+	 *            The seconds since the start
+	 * @param previous
+	 *            The earlier snapshot
+	 * @param current
+	 *            The later snapshot
+	 * @return The description
+	 */
+	static String describe(String label, long seconds, Snapshot previous, Snapshot current) {
+		long[] latencies = LatencyHistogram.difference(current.latencies, previous.latencies);
+		double elapsedSeconds = Math.max(1, current.time - previous.time) / 1000.0;
+		return String.format(Locale.ROOT, "%s%5ds  %,10.0f events/s  p50=%s p99=%s p99.9=%s  gc=%d (%dms)  heap=%s  fds=%d  disk=%s in %d files", label,
+				seconds, (current.events - previous.events) / elapsedSeconds, formatNanos(LatencyHistogram.getPercentile(latencies, 50)),
+				formatNanos(LatencyHistogram.getPercentile(latencies, 99)), formatNanos(LatencyHistogram.getPercentile(latencies, 99.9)),
+				current.collections - previous.collections, current.collectionMillis - previous.collectionMillis, formatBytes(current.heapBytes),
+				current.openFiles, formatBytes(current.diskBytes), current.files);
+	}
+
+	/**
+	 * Describes the channel statistics of the MetaAppender
+	 *
+	 * @param snapshot
+	 *            The last snapshot
+	 * @return The description
+	 */
+	static String describeStatistics(Snapshot snapshot) {
+		long shed = 0, sampledOut = 0, redacted = 0, compressed = 0, retentionDeleted = 0, maxQueued = 0, dropped = 0, buffers = 0;
+		String writerMode = "SYNC";
+		for (ChannelStatistics statistics : MetaAppender.getStatistics().values()) {
+			if (!statistics.getWriterMode().equals(writerMode)) {
+				writerMode = statistics.getWriterMode();
+			}
+			maxQueued = Math.max(maxQueued, statistics.getMaxQueuedEvents());
+			dropped += statistics.getDroppedEvents();
+			buffers += statistics.getBufferSize();
+			shed += statistics.getShedEvents();
+			sampledOut += statistics.getSampledOutEvents();
+			redacted += statistics.getRedactedEvents();
+			compressed += statistics.getCompressedFiles();
+			retentionDeleted += statistics.getRetentionDeletedFiles();
+		}
+		String forwarding = MetaAppender.getForwarding();
+		return String.format(Locale.ROOT,
+				"%,d events logged, %,d shed, %,d sampled out, %,d redacted, %,d files compressed, %,d files deleted by retention, "
+						+ "writer %s (max queue depth %d, %,d dropped), buffers %s",
+				snapshot.events, shed, sampledOut, redacted, compressed, retentionDeleted, writerMode, maxQueued, dropped, formatBytes(buffers))
+				+ ((forwarding != null) ? ", forwarding " + forwarding : "");
+	}
+
+	static String formatNanos(long nanos) {
+		if (nanos < 1000) {
+			return nanos + "ns";
+		} else if (nanos < 1000000) {
+			return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+		} else if (nanos < 1000000000) {
+			return String.format(Locale.ROOT, "%.1fms", nanos / 1000000.0);
+		}
+		return String.format(Locale.ROOT, "%.2fs", nanos / 1000000000.0);
+	}
+
+	static String formatBytes(long bytes) {
+		if (bytes < 1024 * 1024) {
+			return (bytes / 1024) + "KB";
+		} else if (bytes < 1024L * 1024 * 1024) {
+			return (bytes / (1024 * 1024)) + "MB";
+		}
+		return String.format(Locale.ROOT, "%.2fGB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	/**
+	 * The measurements at a point in time
+	 */
+	static class Snapshot {
+		long time;
+		long events;
+		private long[] latencies = LatencyHistogram.newSnapshot();
+		private long collections;
+		private long collectionMillis;
+		private long heapBytes;
+		private long openFiles;
+		private long diskBytes;
+		private long files;
+	}
+}
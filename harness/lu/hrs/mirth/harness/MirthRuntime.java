@@ -0,0 +1,150 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+import java.util.Map;
+
+import lu.hrs.mirth.MetaAppender;
+
+/**
+ * The simulated Mirth server of the harness: the log4j configuration resembles the one shipped with Mirth (a rolling file appender for mirth.log, a
+ * console appender and the appender of the dashboard) and the MetaAppender is activated on top of it. Like the MetaAppender itself, the log4j
+ * version is chosen by the classes on the classpath, so both appenders can be compared by running the harness once with each version.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+abstract class MirthRuntime {
+
+	static final int TRACE = 0;
+	static final int DEBUG = 1;
+	static final int INFO = 2;
+	static final int WARN = 3;
+	static final int ERROR = 4;
+	static final int FATAL = 5;
+	private static final String[] levelNames = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL" };
+
+	/**
+	 * Configures log4j like Mirth does and activates the MetaAppender
+	 *
+	 * @param logFolder
+	 *            The folder of mirth.log
+	 * @param maxFileSize
+	 *            The size at which mirth.log is rolled over, e.g. "500KB"
+	 * @param maxBackups
+	 *            The number of rolled files of mirth.log
+	 * @return The runtime for the present log4j version
+	 */
+	static MirthRuntime start(File logFolder, String maxFileSize, int maxBackups) {
+		boolean log4Jv2 = true;
+		try {
+			// the same check as done by the MetaAppender
+			Class.forName("org.apache.logging.log4j.core.appender.RollingFileAppender");
+		} catch (ClassNotFoundException e) {
+			log4Jv2 = false;
+		}
+
+		MirthRuntime runtime = log4Jv2 ? new MirthRuntimeLog4J2() : new MirthRuntimeLog4J1();
+		runtime.configure(new File(logFolder, "mirth.log"), maxFileSize, maxBackups);
+		MetaAppender.activate(logFolder.getPath());
+		runtime.activated();
+		return runtime;
+	}
+
+	/**
+	 * Activates the MetaAppender features requested by the command line options
+	 *
+	 * @param options
+	 *            The command line options
+	 */
+	static void configureMetaAppender(Map<String, String> options) {
+		if (options.containsKey("mmap")) {
+			MetaAppender.setMemoryMappedChannels(options.get("mmap"));
+		}
+		if (options.containsKey("binary")) {
+			MetaAppender.setBinaryChannels(options.get("binary"));
+		}
+		if (options.containsKey("json")) {
+			MetaAppender.setJsonOutput(true);
+		}
+		if (options.containsKey("compress")) {
+			MetaAppender.setCompression(true);
+		}
+		if (options.containsKey("payload-threshold")) {
+			MetaAppender.setPayloadThreshold(options.get("payload-threshold"));
+		}
+		if (options.containsKey("load-shedding")) {
+			MetaAppender.setLoadShedding(Integer.valueOf(options.get("load-shedding")), null);
+		}
+		if (options.containsKey("async")) {
+			MetaAppender.setAsyncWriting(options.get("async"));
+		}
+		if (options.containsKey("buffering")) {
+			MetaAppender.setAdaptiveBuffering(options.get("buffering"));
+		}
+		if (options.containsKey("redact")) {
+			MetaAppender.setRedaction(true, null, null);
+		}
+		if (options.containsKey("forward")) {
+			MetaAppender.setForwarding(options.get("forward"), null, options.get("framing"));
+		}
+		if (options.containsKey("capture")) {
+			MetaAppender.setWorkloadCapture(options.get("capture"), options.containsKey("full-messages"), null);
+		}
+	}
+
+	/**
+	 * Resolves the name of a log level
+	 *
+	 * @param levelName
+	 *            The name of the level, e.g. "WARN"
+	 * @return The level (INFO if the name is unknown)
+	 */
+	static int toLevel(String levelName) {
+		for (int level = TRACE; level <= FATAL; level++) {
+			if (levelNames[level].equals(levelName)) {
+				return level;
+			}
+		}
+		return INFO;
+	}
+
+	/**
+	 * Configures the appenders of the root logger
+	 *
+	 * @param mainLog
+	 *            The file of mirth.log
+	 * @param maxFileSize
+	 *            The size at which mirth.log is rolled over
+	 * @param maxBackups
+	 *            The number of rolled files of mirth.log
+	 */
+	abstract void configure(File mainLog, String maxFileSize, int maxBackups);
+
+	/**
+	 * Called once the MetaAppender has taken over the appenders of the root logger
+	 */
+	void activated() {
+	}
+
+	/**
+	 * Provides the name of the log4j version
+	 *
+	 * @return The name, e.g. "log4j2"
+	 */
+	abstract String getName();
+
+	/**
+	 * Logs an event like a Mirth script does
+	 *
+	 * @param loggerName
+	 *            The name of the logger
+	 * @param level
+	 *            The level (see {@link #TRACE} till {@link #FATAL})
+	 * @param message
+	 *            The message
+	 * @param throwable
+	 *            The attached exception (OPTIONAL)
+	 */
+	abstract void log(String loggerName, int level, String message, Throwable throwable);
+}
@@ -0,0 +1,92 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.RollingFileAppender;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.mirth.connect.plugins.serverlog.ServerLogItem;
+
+/**
+ * The simulated Mirth server for log4j 1.2 (Mirth 3.x). It is used if the log4j2 classes are not on the classpath.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class MirthRuntimeLog4J1 extends MirthRuntime {
+
+	private static final Level[] levels = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL };
+
+	@Override
+	void configure(File mainLog, String maxFileSize, int maxBackups) {
+		PatternLayout layout = new PatternLayout("%-5p %d [%t] %c: %m%n");
+		Logger root = Logger.getRootLogger();
+		root.setLevel(Level.TRACE);
+		root.addAppender(new ConsoleAppender(layout));
+
+		try {
+			RollingFileAppender fileAppender = new RollingFileAppender(layout, mainLog.getPath());
+			fileAppender.setMaxFileSize(maxFileSize);
+			fileAppender.setMaxBackupIndex(maxBackups);
+			root.addAppender(fileAppender);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to open " + mainLog, e);
+		}
+
+		// the dashboard appender of Mirth has no name
+		root.addAppender(new DashboardAppender());
+	}
+
+	@Override
+	void activated() {
+		// the MetaAppender raises the level of the root logger to INFO - the levels are left to the workload
+		Logger.getRootLogger().setLevel(Level.TRACE);
+	}
+
+	@Override
+	String getName() {
+		return "log4j1";
+	}
+
+	@Override
+	void log(String loggerName, int level, String message, Throwable throwable) {
+		Logger.getLogger(loggerName).log(levels[level], message, throwable);
+	}
+
+	/**
+	 * Stand-in for the appender that feeds the server log of the Mirth administrator dashboard (see the log4j2 ArrayAppender of the harness)
+	 */
+	private static class DashboardAppender extends AppenderSkeleton {
+
+		// the number of entries the dashboard keeps by default
+		private static final int bufferSize = 50;
+		private final String[] entries = new String[bufferSize];
+		private int nextEntry = 0;
+
+		@Override
+		protected void append(LoggingEvent event) {
+			synchronized (entries) {
+				entries[nextEntry] = ServerLogItem.DATE_FORMAT.format(new Date(event.getTimeStamp())) + " " + event.getLevel() + " "
+						+ event.getLoggerName() + ": " + event.getRenderedMessage();
+				nextEntry = (nextEntry + 1) % bufferSize;
+			}
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
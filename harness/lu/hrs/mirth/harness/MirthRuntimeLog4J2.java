@@ -0,0 +1,58 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.api.LayoutComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+
+import com.mirth.connect.plugins.serverlog.ArrayAppender;
+
+/**
+ * The simulated Mirth server for log4j2 (Mirth 4.x)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class MirthRuntimeLog4J2 extends MirthRuntime {
+
+	private static final Level[] levels = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL };
+
+	@Override
+	void configure(File mainLog, String maxFileSize, int maxBackups) {
+		ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+		builder.setStatusLevel(Level.ERROR);
+		LayoutComponentBuilder layout = builder.newLayout("PatternLayout").addAttribute("pattern", "%-5p %d [%t] %c: %m%n");
+
+		builder.add(builder.newAppender("stdout", "Console").add(layout));
+		builder.add(builder.newAppender("fs", "RollingFile").addAttribute("fileName", mainLog.getPath())
+				.addAttribute("filePattern", mainLog.getPath() + ".%i").add(layout)
+				.addComponent(builder.newComponent("Policies")
+						.addComponent(builder.newComponent("SizeBasedTriggeringPolicy").addAttribute("size", maxFileSize)))
+				.addComponent(builder.newComponent("DefaultRolloverStrategy").addAttribute("max", maxBackups)));
+		builder.add(builder.newRootLogger(Level.TRACE).add(builder.newAppenderRef("stdout")).add(builder.newAppenderRef("fs")));
+		LoggerContext loggerContext = Configurator.initialize(builder.build());
+
+		// the dashboard appender is a plugin of Mirth that is not known to the configuration builder
+		ArrayAppender dashboard = new ArrayAppender();
+		dashboard.start();
+		loggerContext.getConfiguration().getRootLogger().addAppender(dashboard, null, null);
+		loggerContext.updateLoggers();
+	}
+
+	@Override
+	String getName() {
+		return "log4j2";
+	}
+
+	@Override
+	void log(String loggerName, int level, String message, Throwable throwable) {
+		LogManager.getLogger(loggerName).log(levels[level], message, throwable);
+	}
+}
@@ -0,0 +1,194 @@
+package lu.hrs.mirth.harness;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for a local log shipper (e.g. Fluent Bit or Vector) that receives the entries forwarded via MetaAppender.setForwarding() on a TCP port
+ * of localhost. It counts the received entries and bytes and reports the rate in regular intervals. Stopping and restarting the stub during a
+ * {@link SoakTest} shows the spooling and the reconnecting of the forwarding.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class ShipperStub {
+
+	private static final String usage = "Options:\n" //
+			+ "  --port <n>               port on localhost (default 24224)\n" //
+			+ "  --framing <framing>      LINES for newline-delimited or LENGTH for length-prefixed entries (default LINES)\n" //
+			+ "  --interval <seconds>     interval of the reports (default 10)\n" //
+			+ "  --print                  print the received entries";
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final boolean lengthPrefixed;
+	private final boolean print;
+	private final PrintStream report;
+
+	/**
+	 * Creates a stub
+	 *
+	 * @param lengthPrefixed
+	 *            If this flag is set, each entry is expected to be prefixed by its length, otherwise to be terminated by a line break
+	 * @param print
+	 *            If this flag is set, the received entries are printed
+	 * @param report
+	 *            The stream to which the report is written
+	 */
+	ShipperStub(boolean lengthPrefixed, boolean print, PrintStream report) {
+		this.lengthPrefixed = lengthPrefixed;
+		this.print = print;
+		this.report = report;
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		Map<String, String> options = LoadReport.parseOptions(arguments);
+		if (options == null) {
+			System.out.println(usage);
+			return;
+		}
+
+		int port = options.containsKey("port") ? Integer.parseInt(options.get("port")) : 24224;
+		long intervalMillis = Math.max(1, options.containsKey("interval") ? Integer.parseInt(options.get("interval")) : 10) * 1000L;
+		final ShipperStub stub = new ShipperStub("LENGTH".equalsIgnoreCase(options.get("framing")), options.containsKey("print"), System.out);
+
+		final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("Shipper stub listening on " + server.getLocalSocketAddress());
+		Thread acceptor = new Thread("acceptor") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						stub.receive(server.accept());
+					}
+				} catch (IOException e) {
+					System.out.println("Stopped accepting connections: " + e);
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long start = System.currentTimeMillis();
+		long previousEntries = 0;
+		while (true) {
+			Thread.sleep(intervalMillis);
+			long receivedEntries = stub.entries.get();
+			System.out.println(String.format(Locale.ROOT, "[%4ds] %,d entries/s, %,d entries and %s received in total",
+					(System.currentTimeMillis() - start) / 1000, (receivedEntries - previousEntries) * 1000 / intervalMillis, receivedEntries,
+					LoadReport.formatBytes(stub.bytes.get())));
+			previousEntries = receivedEntries;
+		}
+	}
+
+	/**
+	 * Receives the entries of a connection on a thread of its own
+	 *
+	 * @param socket
+	 *            The connection
+	 */
+	void receive(final Socket socket) {
+		report.println("Connection from " + socket.getRemoteSocketAddress());
+		Thread receiver = new Thread("receiver " + socket.getRemoteSocketAddress()) {
+			@Override
+			public void run() {
+				try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+					if (lengthPrefixed) {
+						receiveFrames(in);
+					} else {
+						receiveLines(in);
+					}
+				} catch (IOException e) {
+					// the connection has been reset
+				}
+				report.println("Connection from " + socket.getRemoteSocketAddress() + " closed");
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Receives length-prefixed entries
+	 *
+	 * @param in
+	 *            The stream of the connection
+	 * @throws IOException
+	 *             If the connection has been reset
+	 */
+	private void receiveFrames(DataInputStream in) throws IOException {
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return;
+			}
+			byte[] entry = new byte[length];
+			in.readFully(entry);
+			received(entry, 0, length, length + 4);
+		}
+	}
+
+	/**
+	 * Receives newline-delimited entries
+	 *
+	 * @param in
+	 *            The stream of the connection
+	 * @throws IOException
+	 *             If the connection has been reset
+	 */
+	private void receiveLines(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int start = 0;
+		int end = 0;
+		int read;
+		while ((read = in.read(buffer, end, buffer.length - end)) >= 0) {
+			end += read;
+			for (int position = start; position < end; position++) {
+				if (buffer[position] == '\n') {
+					received(buffer, start, position + 1 - start, position + 1 - start);
+					start = position + 1;
+				}
+			}
+			// keep the incomplete entry at the start of the buffer
+			if (start == end) {
+				start = end = 0;
+			} else if (end == buffer.length) {
+				if (start == 0) {
+					// an entry larger than the buffer is counted in pieces
+					received(buffer, 0, end, end);
+					end = 0;
+				} else {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts a received entry and prints it if requested
+	 */
+	private void received(byte[] buffer, int offset, int length, int receivedBytes) {
+		entries.incrementAndGet();
+		bytes.addAndGet(receivedBytes);
+		if (print) {
+			report.print(new String(buffer, offset, length, StandardCharsets.UTF_8));
+			if (lengthPrefixed) {
+				report.println();
+			}
+		}
+	}
+}
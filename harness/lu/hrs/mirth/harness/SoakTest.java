@@ -0,0 +1,306 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mirth.connect.server.userutil.ChannelUtil;
+
+import lu.hrs.mirth.MetaAppender;
+import lu.hrs.mirth.harness.LoadReport.Snapshot;
+
+/**
+ * Soak test and load generator for the MetaAppender. It drives the real appender with a simulated Mirth deployment: the Mirth classes used by
+ * the appender are replaced by the stubs of this harness, the log4j configuration resembles the one shipped with Mirth (see {@link MirthRuntime})
+ * and N channels are deployed, each with M worker threads named like Mirth names its channel threads (i.e. containing the channel id). A few
+ * system threads log entries that do not belong to a channel or reference the channel by the logger name only.<br/>
+ * <br/>
+ * The workers log a realistic mix: about 2% TRACE, 25% DEBUG, 60% INFO, 9% WARN and 4% ERROR (with a stack trace), 1% each with the special
+ * instructions #FO:, #DO: and #CO:, and payloads of which 90% are short (one in ten with an MRN), 8% are 2KB and 2% are 32KB HL7 messages.<br/>
+ * <br/>
+ * Every interval, and at the end, it reports throughput, the p50/p99/p99.9 latency of a logging call, garbage collections, open file descriptors
+ * and the bytes on disk. Run it without arguments for the list of options.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class SoakTest {
+
+	private static final String[] scriptLoggers = { "transformer", "filter", "preprocessor", "postprocessor", "response", "js-connector" };
+	private static final String[] channelPrefixes = { "ADT_In", "ORU_Out", "LAB_Results", "Billing", "Scheduling", "RAD_Orders", "Pharmacy" };
+	private static final String usage = "Options (all optional):\n" //
+			+ "  --channels <n>           number of deployed channels (default 50)\n" //
+			+ "  --threads <n>            worker threads per channel (default 2)\n" //
+			+ "  --system-threads <n>     threads logging entries that do not belong to a channel thread (default 2)\n" //
+			+ "  --rate <n>               events per second per worker thread, 0 for as fast as possible (default 200)\n" //
+			+ "  --duration <seconds>     duration of the measurement (default 300)\n" //
+			+ "  --warmup <seconds>       duration of the warmup, not included in the final report (default 30)\n" //
+			+ "  --interval <seconds>     interval of the intermediate reports (default 10)\n" //
+			+ "  --dir <path>             log folder (default ./soak-logs)\n" //
+			+ "  --max-file-size <size>   size at which log files are rolled over (default 500KB like Mirth)\n" //
+			+ "  --max-backups <n>        rolled files kept per log (default 20 like Mirth)\n" //
+			+ "  --mmap <pattern>         channels written to memory-mapped files\n" //
+			+ "  --binary <pattern>       channels written to binary log files\n" //
+			+ "  --json                   write JSON lines\n" //
+			+ "  --compress               compress rolled files\n" //
+			+ "  --payload-threshold <s>  move larger messages to side files\n" //
+			+ "  --async <mode>           write the log files in the background: VIRTUAL, POOL or AUTO\n" //
+			+ "  --buffering <size>       adaptive output buffers within this memory limit\n" //
+			+ "  --bind                   system threads reference channels via MetaAppender.bindChannel() instead of the logger name\n" //
+			+ "  --redact                 mask patient identifiers (10% of the short messages carry an MRN)\n" //
+			+ "  --forward <address>      forward the channel entries to a log shipper, e.g. tcp://localhost:24224 (see ShipperStub)\n" //
+			+ "  --framing <framing>      framing of the forwarded entries: LINES or LENGTH (default LINES)\n" //
+			+ "  --load-shedding <n>      shed load above n events per second\n" //
+			+ "  --reconfigure <size>     change the size at which log files are rolled over halfway through the measurement\n" //
+			+ "  --capture <file>         capture the workload in a trace for the WorkloadReplay\n" //
+			+ "  --full-messages          capture the full messages instead of their length and hash";
+	private final Map<String, String> options;
+	private final PrintStream report;
+	private final File logFolder;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	// system threads reference channels by a binding instead of the logger name
+	private final boolean bindChannels;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a soak test
+	 *
+	 * @param options
+	 *            The command line options
+	 * @param report
+	 *            The stream to which the report is written (the console of log4j is discarded)
+	 */
+	SoakTest(Map<String, String> options, PrintStream report) {
+		this.options = options;
+		this.report = report;
+		this.logFolder = new File(getOption("dir", "soak-logs")).getAbsoluteFile();
+		this.bindChannels = options.containsKey("bind");
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		Map<String, String> options = LoadReport.parseOptions(arguments);
+		if (options == null) {
+			System.out.println(usage);
+			return;
+		}
+
+		// the console appender of log4j writes to System.out - the report goes to the original stream
+		new SoakTest(options, LoadReport.detachConsole()).run();
+		System.exit(0);
+	}
+
+	/**
+	 * Sets up the simulated Mirth deployment, runs the workers and reports the results
+	 *
+	 * @throws Exception
+	 *             If the test could not be set up
+	 */
+	void run() throws Exception {
+		int channelCount = getOption("channels", 50);
+		int threadsPerChannel = getOption("threads", 2);
+		int systemThreads = getOption("system-threads", 2);
+		int rate = getOption("rate", 200);
+		long warmupMillis = getOption("warmup", 30) * 1000L;
+		long durationMillis = getOption("duration", 300) * 1000L;
+		long intervalMillis = Math.max(1, getOption("interval", 10)) * 1000L;
+
+		Files.createDirectories(logFolder.toPath());
+		MirthRuntime runtime = MirthRuntime.start(logFolder, getOption("max-file-size", "500KB"), getOption("max-backups", 20));
+		MirthRuntime.configureMetaAppender(options);
+
+		// deploy the channels
+		List<String> channelIds = new ArrayList<String>();
+		for (int channel = 0; channel < channelCount; channel++) {
+			String channelId = UUID.randomUUID().toString();
+			String channelName = String.format("%s_%03d", channelPrefixes[channel % channelPrefixes.length], channel);
+			ChannelUtil.deploy(channelId, channelName);
+			MetaAppender.onChannelDeploy(channelId);
+			channelIds.add(channelId);
+
+			for (int thread = 0; thread < threadsPerChannel; thread++) {
+				workers.add(new Worker("Channel Dispatch Thread on " + channelName + " (" + channelId + ") < pool-" + (channel + 1) + "-thread-"
+						+ (thread + 1), channelId, rate));
+			}
+		}
+		for (int thread = 0; thread < systemThreads; thread++) {
+			workers.add(new Worker("qtp" + (1000 + thread) + "-" + thread, null, rate));
+		}
+		for (Worker worker : workers) {
+			worker.channelIds = channelIds;
+			worker.runtime = runtime;
+			worker.start();
+		}
+
+		report.println(String.format("Soak test (%s): %d channels x %d threads + %d system threads, %s per thread, log folder %s", runtime.getName(),
+				channelCount, threadsPerChannel, systemThreads, (rate > 0) ? rate + " events/s" : "unthrottled", logFolder));
+
+		// warmup
+		long start = System.currentTimeMillis();
+		Snapshot previous = takeSnapshot();
+		Snapshot baseline = null;
+		long end = start + warmupMillis + durationMillis;
+		// the configuration might be changed under load, which must neither pause the workers nor lose events
+		long reconfiguration = options.containsKey("reconfigure") ? start + warmupMillis + (durationMillis / 2) : Long.MAX_VALUE;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.min(intervalMillis, Math.max(1, Math.min(end, reconfiguration) - System.currentTimeMillis())));
+			if (System.currentTimeMillis() >= reconfiguration) {
+				report.println("Reconfigured: " + MetaAppender.reconfigure(null, options.get("reconfigure"), null, null, null));
+				reconfiguration = Long.MAX_VALUE;
+			}
+			Snapshot current = takeSnapshot();
+			boolean warm = current.time - start >= warmupMillis;
+			report.println(LoadReport.describe((warm && (baseline != null)) ? "" : "warmup ", (current.time - start) / 1000, previous, current));
+			if (warm && (baseline == null)) {
+				baseline = current;
+			}
+			previous = current;
+		}
+
+		running = false;
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		Snapshot last = takeSnapshot();
+		if (baseline == null) {
+			baseline = new Snapshot();
+		}
+		report.println();
+		report.println(LoadReport.describe("TOTAL ", (last.time - baseline.time) / 1000, baseline, last));
+		report.println(LoadReport.describeStatistics(last));
+	}
+
+	/**
+	 * Takes a snapshot of all measurements
+	 *
+	 * @return The snapshot
+	 */
+	private Snapshot takeSnapshot() {
+		long events = 0;
+		List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>();
+		for (Worker worker : workers) {
+			events += worker.events.get();
+			latencies.add(worker.latencies);
+		}
+		return LoadReport.takeSnapshot(logFolder, events, latencies);
+	}
+
+	private String getOption(String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private int getOption(String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	/**
+	 * Builds an HL7 message of about the requested size
+	 *
+	 * @param size
+	 *            The size in characters
+	 * @return The message
+	 */
+	private static String createPayload(int size) {
+		StringBuilder payload = new StringBuilder(size + 100);
+		payload.append("MSH|^~\\&|LAB|HOSPITAL|HIS|HOSPITAL|20240131100200||ORU^R01|MSG00001|P|2.5\r");
+		payload.append("PID|1||123456^^^HOSPITAL^PI||DOE^JOHN||19700101|M\r");
+		int observation = 1;
+		while (payload.length() < size) {
+			payload.append("OBX|").append(observation).append("|NM|2345-7^GLUCOSE^LN||").append(80 + (observation % 40))
+					.append("|mg/dL|70-110|N|||F\r");
+			observation++;
+		}
+		return payload.toString();
+	}
+
+	/**
+	 * A thread that logs like a channel (or like Mirth itself if it does not belong to a channel)
+	 */
+	private class Worker extends Thread {
+
+		private final String channelId;
+		private final long pauseNanos;
+		private final AtomicLong events = new AtomicLong();
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private List<String> channelIds;
+		private MirthRuntime runtime;
+
+		Worker(String threadName, String channelId, int rate) {
+			super(threadName);
+			this.channelId = channelId;
+			this.pauseNanos = (rate > 0) ? 1000000000L / rate : 0;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			String mediumPayload = createPayload(2 * 1024);
+			String largePayload = createPayload(32 * 1024);
+			Exception[] exceptions = { new IOException("Connection reset by peer"), new IllegalStateException("Unexpected segment ZXY"),
+					new RuntimeException("Transformer failed", new NumberFormatException("For input string: \"N/A\"")) };
+			long next = System.nanoTime();
+			long sequence = 0;
+
+			while (running) {
+				// the logger is named like a script - a system thread might also reference a channel by the logger name or by a binding
+				String loggerName = scriptLoggers[random.nextInt(scriptLoggers.length)];
+				String boundChannelId = null;
+				if (channelId == null) {
+					if (random.nextInt(4) != 0) {
+						loggerName = "com.mirth.connect.server.controllers.DonkeyEngineController";
+					} else if (bindChannels) {
+						boundChannelId = channelIds.get(random.nextInt(channelIds.size()));
+					} else {
+						loggerName = loggerName + "-" + channelIds.get(random.nextInt(channelIds.size()));
+					}
+				}
+				// the message
+				int kind = random.nextInt(100);
+				String message = (kind < 2) ? largePayload
+						: ((kind < 10) ? mediumPayload : "Processed message " + sequence + ((kind < 20) ? " of MRN " + (100000 + random.nextInt(900000)) : "")
+								+ " in " + random.nextInt(250) + "ms");
+				int instruction = random.nextInt(100);
+				if (instruction < 3) {
+					message = ((instruction == 0) ? "#FO: " : ((instruction == 1) ? "#DO: " : "#CO: ")) + message;
+				}
+
+				int level = random.nextInt(100);
+				level = (level < 2) ? MirthRuntime.TRACE
+						: ((level < 27) ? MirthRuntime.DEBUG : ((level < 87) ? MirthRuntime.INFO : ((level < 96) ? MirthRuntime.WARN : MirthRuntime.ERROR)));
+				Exception exception = (level == MirthRuntime.ERROR) ? exceptions[random.nextInt(exceptions.length)] : null;
+				long start = System.nanoTime();
+				if (boundChannelId != null) {
+					MetaAppender.bindChannel(boundChannelId);
+					runtime.log(loggerName, level, message, exception);
+					MetaAppender.unbindChannel();
+				} else {
+					runtime.log(loggerName, level, message, exception);
+				}
+				latencies.record(System.nanoTime() - start);
+				events.incrementAndGet();
+				sequence++;
+
+				// keep the rate
+				if (pauseNanos > 0) {
+					next += pauseNanos;
+					long pause = next - System.nanoTime();
+					if (pause > 0) {
+						LockSupport.parkNanos(pause);
+					} else if (pause < -1000000000L) {
+						// do not try to catch up after a stall
+						next = System.nanoTime();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package lu.hrs.mirth.harness;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mirth.connect.server.userutil.ChannelUtil;
+
+import lu.hrs.mirth.MetaAppender;
+import lu.hrs.mirth.WorkloadTrace;
+import lu.hrs.mirth.harness.LoadReport.Snapshot;
+
+/**
+ * Replays a workload trace captured in production via MetaAppender.setWorkloadCapture() against the simulated Mirth deployment of the harness (see
+ * {@link MirthRuntime}). The channels of the trace are deployed with their original ids and names, and each event is logged from a thread that
+ * carries the original thread name, so it is routed like the original one. The events of a thread are replayed in their original order.<br/>
+ * <br/>
+ * The trace is replayed at its original speed, accelerated by a factor or as fast as possible. If the trace only contains the length and the hash
+ * of the messages, messages of the same length are synthesized. Running the same trace with different options (or with log4j 1.2 instead of
+ * log4j2 on the classpath) allows a side-by-side comparison of configurations. The report is the same as the one of the {@link SoakTest}.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class WorkloadReplay {
+
+	private static final String usage = "Options (--trace is mandatory):\n" //
+			+ "  --trace <file>           workload trace captured by MetaAppender.setWorkloadCapture()\n" //
+			+ "  --speed <factor>         1 for the original speed, e.g. 10 for ten times faster, 0 for as fast as possible (default 1)\n" //
+			+ "  --threads <n>            threads replaying the events, the events of a thread are always replayed by the same one (default 16)\n" //
+			+ "  --interval <seconds>     interval of the intermediate reports (default 10)\n" //
+			+ "  --dir <path>             log folder (default ./replay-logs)\n" //
+			+ "  --max-file-size <size>   size at which log files are rolled over (default 500KB like Mirth)\n" //
+			+ "  --max-backups <n>        rolled files kept per log (default 20 like Mirth)\n" //
+			+ "  --mmap <pattern>         channels written to memory-mapped files\n" //
+			+ "  --binary <pattern>       channels written to binary log files\n" //
+			+ "  --json                   write JSON lines\n" //
+			+ "  --compress               compress rolled files\n" //
+			+ "  --payload-threshold <s>  move larger messages to side files\n" //
+			+ "  --async <mode>           write the log files in the background: VIRTUAL, POOL or AUTO\n" //
+			+ "  --buffering <size>       adaptive output buffers within this memory limit\n" //
+			+ "  --redact                 mask patient identifiers\n" //
+			+ "  --forward <address>      forward the channel entries to a log shipper, e.g. tcp://localhost:24224 (see ShipperStub)\n" //
+			+ "  --framing <framing>      framing of the forwarded entries: LINES or LENGTH (default LINES)\n" //
+			+ "  --load-shedding <n>      shed load above n events per second";
+	// the number of events that may be queued per replaying thread - the reader waits if a thread falls behind
+	private static final int queueSize = 1024;
+	private final Map<String, String> options;
+	private final PrintStream report;
+	private final File logFolder;
+	private final List<Replayer> replayers = new ArrayList<Replayer>();
+
+	/**
+	 * Creates a replay
+	 *
+	 * @param options
+	 *            The command line options
+	 * @param report
+	 *            The stream to which the report is written (the console of log4j is discarded)
+	 */
+	WorkloadReplay(Map<String, String> options, PrintStream report) {
+		this.options = options;
+		this.report = report;
+		this.logFolder = new File(getOption("dir", "replay-logs")).getAbsoluteFile();
+	}
+
+	public static void main(String[] arguments) throws Exception {
+		Map<String, String> options = LoadReport.parseOptions(arguments);
+		if ((options == null) || !options.containsKey("trace")) {
+			System.out.println(usage);
+			return;
+		}
+
+		// the console appender of log4j writes to System.out - the report goes to the original stream
+		new WorkloadReplay(options, LoadReport.detachConsole()).run();
+		System.exit(0);
+	}
+
+	/**
+	 * Sets up the simulated Mirth deployment, replays the trace and reports the results
+	 *
+	 * @throws Exception
+	 *             If the trace could not be read or the replay could not be set up
+	 */
+	void run() throws Exception {
+		File traceFile = new File(options.get("trace"));
+		double speed = Double.parseDouble(getOption("speed", "1"));
+		int threads = Math.max(1, getOption("threads", 16));
+		long intervalMillis = Math.max(1, getOption("interval", 10)) * 1000L;
+
+		Files.createDirectories(logFolder.toPath());
+		MirthRuntime runtime = MirthRuntime.start(logFolder, getOption("max-file-size", "500KB"), getOption("max-backups", 20));
+		MirthRuntime.configureMetaAppender(options);
+
+		for (int thread = 0; thread < threads; thread++) {
+			Replayer replayer = new Replayer(thread, runtime);
+			replayers.add(replayer);
+			replayer.start();
+		}
+
+		try (WorkloadTrace trace = new WorkloadTrace(traceFile)) {
+			report.println(String.format("Workload replay (%s): %s, %s, %s, %d threads, log folder %s", runtime.getName(), traceFile,
+					trace.hasFullMessages() ? "full messages" : "synthesized messages", (speed > 0) ? "speed x" + speed : "as fast as possible",
+					threads, logFolder));
+
+			long start = System.currentTimeMillis();
+			long startNanos = System.nanoTime();
+			long nextReport = start + intervalMillis;
+			Snapshot first = takeSnapshot();
+			Snapshot previous = first;
+			int deployedChannels = 0;
+			long firstTimeStamp = -1;
+
+			while (trace.next()) {
+				// the channels are deployed before their first event
+				Map<String, String> channels = trace.getChannels();
+				if (channels.size() > deployedChannels) {
+					Iterator<Map.Entry<String, String>> channel = channels.entrySet().iterator();
+					for (int skip = 0; skip < deployedChannels; skip++) {
+						channel.next();
+					}
+					while (channel.hasNext()) {
+						Map.Entry<String, String> deployed = channel.next();
+						ChannelUtil.deploy(deployed.getKey(), deployed.getValue());
+						MetaAppender.onChannelDeploy(deployed.getKey());
+					}
+					deployedChannels = channels.size();
+				}
+
+				if (firstTimeStamp < 0) {
+					firstTimeStamp = trace.getTimeStamp();
+				}
+				ReplayedEvent event = new ReplayedEvent();
+				event.threadName = trace.getThreadName();
+				event.loggerName = trace.getLoggerName();
+				event.level = MirthRuntime.toLevel(trace.getLevel());
+				event.message = trace.getMessage();
+				event.throwable = trace.hasThrowable();
+				event.boundChannelId = trace.getBoundChannelId();
+				event.due = (speed > 0) ? startNanos + (long) ((trace.getTimeStamp() - firstTimeStamp) * 1000000 / speed) : 0;
+
+				// the events of a thread are always replayed by the same replayer, so their order is kept
+				String threadName = (event.threadName != null) ? event.threadName : "";
+				replayers.get((threadName.hashCode() & Integer.MAX_VALUE) % threads).queue.put(event);
+
+				if (System.currentTimeMillis() >= nextReport) {
+					Snapshot current = takeSnapshot();
+					report.println(LoadReport.describe("", (current.time - start) / 1000, previous, current));
+					previous = current;
+					nextReport = current.time + intervalMillis;
+				}
+			}
+
+			// drain the queues
+			for (Replayer replayer : replayers) {
+				replayer.queue.put(ReplayedEvent.end);
+			}
+			for (Replayer replayer : replayers) {
+				replayer.join();
+			}
+			Snapshot last = takeSnapshot();
+			report.println();
+			report.println(LoadReport.describe("TOTAL ", (last.time - start) / 1000, first, last));
+			report.println(LoadReport.describeStatistics(last) + String.format(", %d ms behind schedule at most", getMaxDelayMillis()));
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all measurements
+	 *
+	 * @return The snapshot
+	 */
+	private Snapshot takeSnapshot() {
+		long events = 0;
+		List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>();
+		for (Replayer replayer : replayers) {
+			events += replayer.events.get();
+			latencies.add(replayer.latencies);
+		}
+		return LoadReport.takeSnapshot(logFolder, events, latencies);
+	}
+
+	/**
+	 * Determines how far the replay fell behind the schedule of the trace
+	 *
+	 * @return The maximum delay of an event in milliseconds
+	 */
+	private long getMaxDelayMillis() {
+		long maxDelay = 0;
+		for (Replayer replayer : replayers) {
+			maxDelay = Math.max(maxDelay, replayer.maxDelay.get());
+		}
+		return TimeUnit.NANOSECONDS.toMillis(maxDelay);
+	}
+
+	private String getOption(String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private int getOption(String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	/**
+	 * An event of the trace that is waiting to be replayed
+	 */
+	private static class ReplayedEvent {
+
+		// tells a replayer that the trace has been read completely
+		private static final ReplayedEvent end = new ReplayedEvent();
+		private String threadName;
+		private String loggerName;
+		private int level;
+		private String message;
+		private boolean throwable;
+		// the channel to which the original thread was bound (null if it was not bound)
+		private String boundChannelId;
+		// the point in time (System.nanoTime()) at which the event has to be logged, 0 for immediately
+		private long due;
+	}
+
+	/**
+	 * A thread that logs the events of the recorded threads assigned to it, each under the original thread name
+	 */
+	private static class Replayer extends Thread {
+
+		private final BlockingQueue<ReplayedEvent> queue = new ArrayBlockingQueue<ReplayedEvent>(queueSize);
+		private final MirthRuntime runtime;
+		private final AtomicLong events = new AtomicLong();
+		private final AtomicLong maxDelay = new AtomicLong();
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		Replayer(int number, MirthRuntime runtime) {
+			super("replayer-" + number);
+			this.runtime = runtime;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			// the exception attached to replayed errors
+			Exception exception = new RuntimeException("Replayed exception");
+			try {
+				while (true) {
+					ReplayedEvent event = queue.take();
+					if (event == ReplayedEvent.end) {
+						return;
+					}
+
+					// keep the schedule of the trace
+					if (event.due > 0) {
+						long pause = event.due - System.nanoTime();
+						if (pause > 0) {
+							LockSupport.parkNanos(pause);
+						} else if (-pause > maxDelay.get()) {
+							maxDelay.set(-pause);
+						}
+					}
+
+					// the channel is recognized by the thread name
+					if ((event.threadName != null) && !event.threadName.equals(getName())) {
+						setName(event.threadName);
+					}
+					long start = System.nanoTime();
+					if (event.boundChannelId != null) {
+						MetaAppender.bindChannel(event.boundChannelId);
+						runtime.log(event.loggerName, event.level, event.message, event.throwable ? exception : null);
+						MetaAppender.unbindChannel();
+					} else {
+						runtime.log(event.loggerName, event.level, event.message, event.throwable ? exception : null);
+					}
+					latencies.record(System.nanoTime() - start);
+					events.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// the replay has been aborted
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package lu.hrs.mirth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Counts the events that are being written to each log4j appender, so an appender that has been replaced by a reconfiguration is closed right after
+ * the last event that is still being written to it - and not while it is in use. An appender has to be entered while holding the lock under which
+ * it is looked up and removed from the cache of the appenders, so it cannot be retired between being looked up and being entered.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * @param <A>
+ *            The appender type of the log4j version
+ */
+abstract class AppenderTracker<A> {
+
+	// the number of events being written per appender (appenders do not necessarily implement equals)
+	private final IdentityHashMap<A, Integer> activeAppends = new IdentityHashMap<A, Integer>();
+	// the appenders that are closed by their last active event
+	private final IdentityHashMap<A, Boolean> retired = new IdentityHashMap<A, Boolean>();
+
+	/**
+	 * Registers an event that is about to be written to an appender
+	 *
+	 * @param appender
+	 *            The appender
+	 * @return The appender
+	 */
+	synchronized A enter(A appender) {
+		Integer count = activeAppends.get(appender);
+		activeAppends.put(appender, (count != null) ? count + 1 : 1);
+		return appender;
+	}
+
+	/**
+	 * Unregisters an event that has been written to an appender. If the appender has been retired meanwhile and this was its last event, it is closed.
+	 *
+	 * @param appender
+	 *            The appender
+	 */
+	void leave(A appender) {
+		synchronized (this) {
+			int count = activeAppends.get(appender) - 1;
+			if (count > 0) {
+				activeAppends.put(appender, count);
+				return;
+			}
+			activeAppends.remove(appender);
+			if (retired.remove(appender) == null) {
+				return;
+			}
+		}
+		close(appender);
+	}
+
+	/**
+	 * Retires appenders that have been removed from the cache. Idle appenders are closed right away, all others by their last active event.
+	 *
+	 * @param appenders
+	 *            The appenders that are no longer used for new events
+	 */
+	void retire(Collection<A> appenders) {
+		List<A> idle = new ArrayList<A>();
+		synchronized (this) {
+			for (A appender : appenders) {
+				if (activeAppends.containsKey(appender)) {
+					retired.put(appender, Boolean.TRUE);
+				} else {
+					idle.add(appender);
+				}
+			}
+		}
+		for (A appender : idle) {
+			close(appender);
+		}
+	}
+
+	/**
+	 * Closes an appender that is no longer used
+	 *
+	 * @param appender
+	 *            The appender
+	 */
+	abstract void close(A appender);
+}
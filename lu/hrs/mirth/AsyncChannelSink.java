@@ -0,0 +1,148 @@
+package lu.hrs.mirth;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A channel sink that hands the log events of a channel over to a background writer instead of writing them on the logging thread. Each channel
+ * has a bounded queue that is drained by at most one writer at a time, so the order of the events is kept and a slow log file only delays its own
+ * channel. If the queue of a channel is full, the event is dropped and counted in the statistics of the channel - waiting for room would stall
+ * all loggers, as log4j 1.2 calls the appender under a lock.<br/>
+ * <br/>
+ * Events that are written as text are encoded on the logging thread before they are queued, so the layout is never used by several writers at
+ * the same time and the encoded entry can be shared with the forwarding. A failure of the background writer is reported with the next log event of
+ * the channel.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class AsyncChannelSink implements ChannelSink {
+
+	// the number of events that may be waiting per channel
+	static final int queueCapacity = 1024;
+	private final ChannelSink sink;
+	private final SinkExecutor executor;
+	private final ChannelStatistics statistics;
+	private final boolean encodedOnQueuing;
+	private final BlockingQueue<ChannelEvent> queue = new ArrayBlockingQueue<ChannelEvent>(queueCapacity);
+	// set while a writer is scheduled or running
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				drain();
+				scheduled.set(false);
+				// an event might have been queued after the queue has been drained but before the flag was reset
+			} while (!closed && !queue.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+	};
+	private volatile IOException failure = null;
+	private volatile boolean closed = false;
+	// set once the queue has been drained for the last time (guarded by the monitor of the sink)
+	private boolean sinkClosed = false;
+
+	/**
+	 * Creates a sink that writes in the background
+	 *
+	 * @param sink
+	 *            The sink that actually writes the log file
+	 * @param executor
+	 *            The executor that runs the writer
+	 * @param statistics
+	 *            The statistics of the channel, which track the queue depth and the dropped events
+	 * @param encodedOnQueuing
+	 *            true, if the sink writes the encoded events (false for binary log files, which do not use the layout)
+	 */
+	AsyncChannelSink(ChannelSink sink, SinkExecutor executor, ChannelStatistics statistics, boolean encodedOnQueuing) {
+		this.sink = sink;
+		this.executor = executor;
+		this.statistics = statistics;
+		this.encodedOnQueuing = encodedOnQueuing;
+	}
+
+	@Override
+	public void write(ChannelEvent event) throws IOException {
+		if (closed) {
+			throw new IOException("The sink has already been closed");
+		}
+
+		// the layouts of log4j 1.2 are not thread-safe - encoding here is serialized by the appender
+		if (encodedOnQueuing) {
+			event.getEncoded();
+		}
+
+		// counted in advance, as the writer might take the event before this thread continues
+		statistics.eventQueued();
+		if (!queue.offer(event)) {
+			// the writer does not keep up with the channel - it must not hold up the logging threads of all channels
+			statistics.eventDequeued();
+			statistics.eventDropped();
+			return;
+		}
+		// the sink might have been closed meanwhile - if the event has not been written by the final drain, the caller gets it back
+		if (closed && queue.remove(event)) {
+			statistics.eventDequeued();
+			throw new IOException("The sink has already been closed");
+		}
+
+		if (scheduled.compareAndSet(false, true) && !executor.execute(writer)) {
+			// the executor is shutting down - the event is written right away
+			writer.run();
+		}
+
+		IOException previousFailure = failure;
+		if (previousFailure != null) {
+			failure = null;
+			throw previousFailure;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		drain();
+		sink.flush();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		drain();
+		sinkClosed = true;
+		sink.close();
+	}
+
+	/**
+	 * Provides the sink that actually writes the log file
+	 *
+	 * @return The sink
+	 */
+	ChannelSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Writes all queued events
+	 */
+	private synchronized void drain() {
+		if (sinkClosed) {
+			// events queued after closing are taken back by their logging threads
+			return;
+		}
+		ChannelEvent event;
+		while ((event = queue.poll()) != null) {
+			statistics.eventDequeued();
+			try {
+				sink.write(event);
+			} catch (IOException e) {
+				// only the first failure is kept till it is reported
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package lu.hrs.mirth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A channel sink that writes log events in the compact binary format (see {@link BinaryLogFormat}) instead of rendering them through the pattern
+ * layout. This saves the formatting effort for very chatty channels and results in considerably smaller files, especially for DEBUG-heavy
+ * channels. The log files are rendered to text on demand by the {@link BinaryLogDecoder}.<br/>
+ * <br/>
+ * Binary log files are rolled over like regular ones. They are not indexed and cannot be read via tail(), read() or readMessage(), which work on
+ * the text log files.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class BinaryFileSink implements ChannelSink {
+
+	private final File file;
+	private final long maxFileSize;
+	private final LogFileRoller roller;
+	private final String conversionPattern;
+	// the records of an event are collected, so they are written with a single system call
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+	private final Map<String, Integer> names = new HashMap<String, Integer>();
+	// the names defined by the record being encoded - they are part of the dictionary once the record has been written
+	private final List<String> newNames = new ArrayList<String>();
+	private FileOutputStream out = null;
+	private long size = 0;
+	// the size at which the file is rolled over (beyond the maximum size while a failed rollover is postponed)
+	private long rollSize;
+	// set by close() - the file is also closed (without this flag) if a record could not be written or the file could not be reopened
+	private boolean closed = false;
+	private boolean hasEvents = false;
+	private long lastTimeStamp = 0;
+
+	/**
+	 * Creates a sink that writes to a binary log file. If the file already exists and has been written with the same conversion pattern, new events
+	 * are appended to it. Otherwise it is rolled over first.
+	 *
+	 * @param roller
+	 *            The roller of the log file
+	 * @param maxFileSize
+	 *            The maximum size of a log file until it is rolled over
+	 * @param conversionPattern
+	 *            The conversion pattern that is stored in the header for rendering the log entries
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	BinaryFileSink(LogFileRoller roller, long maxFileSize, String conversionPattern) throws IOException {
+		this.file = roller.getFile();
+		this.maxFileSize = maxFileSize;
+		this.rollSize = maxFileSize;
+		this.roller = roller;
+		this.conversionPattern = conversionPattern;
+		open();
+	}
+
+	@Override
+	public synchronized void write(ChannelEvent event) throws IOException {
+		if (closed) {
+			throw new IOException("The log file " + file + " has already been closed");
+		}
+		if (out == null) {
+			// the file is reopened after a failure, which also drops a partially written record
+			open();
+		}
+
+		encode(event);
+
+		// start a new file if the event would exceed the maximum file size
+		IOException rollFailure = null;
+		if (hasEvents && (size + record.size() > rollSize)) {
+			rollFailure = roll();
+			// the new (or reopened) file has its own dictionary
+			encode(event);
+		}
+
+		try {
+			record.writeTo(out);
+		} catch (IOException e) {
+			// the dictionary of the file would be unknown - it is restored by reopening the file with the next event
+			closeFile();
+			throw e;
+		}
+		for (String name : newNames) {
+			names.put(name, names.size() + 1);
+		}
+		lastTimeStamp = event.getTimeStamp();
+		size += record.size();
+		hasEvents = true;
+
+		if (rollFailure != null) {
+			throw new IOException("The log file " + file + " could not be rolled over and is continued", rollFailure);
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (out == null) {
+			return;
+		}
+		try {
+			closeFile();
+		} catch (IOException e) {
+			// nothing that could be done about it anymore
+		}
+	}
+
+	/**
+	 * Encodes an event including the dictionary entries of names that are not yet known. The dictionary and the time stamp the next event refers to
+	 * are only updated once the record has been written.
+	 *
+	 * @param event
+	 *            The event
+	 * @throws IOException
+	 *             If the event could not be encoded
+	 */
+	private void encode(ChannelEvent event) throws IOException {
+		record.reset();
+		newNames.clear();
+		String loggerName = event.getLoggerName();
+		String threadName = event.getThreadName();
+		int loggerReference = getReference(loggerName);
+		int threadReference = getReference(threadName);
+
+		record.write(BinaryLogFormat.recordEvent);
+		BinaryLogFormat.writeNumber(record, BinaryLogFormat.toZigZag(event.getTimeStamp() - lastTimeStamp));
+		record.write(event.getLevel());
+		BinaryLogFormat.writeNumber(record, loggerReference);
+		if (loggerReference == 0) {
+			BinaryLogFormat.writeText(record, loggerName);
+		}
+		BinaryLogFormat.writeNumber(record, threadReference);
+		if (threadReference == 0) {
+			BinaryLogFormat.writeText(record, threadName);
+		}
+		BinaryLogFormat.writeText(record, event.getRenderedMessage());
+		BinaryLogFormat.writeText(record, event.getThrowableText());
+	}
+
+	/**
+	 * Provides the dictionary reference of a name. Unknown names are added to the dictionary as long as it is not full.
+	 *
+	 * @param name
+	 *            The logger or thread name
+	 * @return The reference or 0 if the name has to be written inline
+	 * @throws IOException
+	 *             If the dictionary entry could not be encoded
+	 */
+	private int getReference(String name) throws IOException {
+		if (name == null) {
+			name = "";
+		}
+		Integer reference = names.get(name);
+		if (reference != null) {
+			return reference;
+		}
+		// logger and thread might have the same name
+		int newIndex = newNames.indexOf(name);
+		if (newIndex >= 0) {
+			return names.size() + newIndex + 1;
+		}
+		if (names.size() + newNames.size() >= BinaryLogFormat.maxDictionarySize) {
+			return 0;
+		}
+
+		record.write(BinaryLogFormat.recordName);
+		BinaryLogFormat.writeText(record, name);
+		newNames.add(name);
+		return names.size() + newNames.size();
+	}
+
+	/**
+	 * Rolls over the log file and opens a new one. If the rollover fails, the current file is continued (like the log4j appenders do) and the
+	 * rollover is retried once another maximum file size has been written, so the channel keeps logging without retrying it for each event.
+	 *
+	 * @return null, if the file has been rolled over, otherwise the reason why the current file is continued
+	 * @throws IOException
+	 *             If neither a new file nor the current one could be opened
+	 */
+	private IOException roll() throws IOException {
+		IOException failure = null;
+		try {
+			closeFile();
+			roller.roll();
+		} catch (IOException e) {
+			failure = e;
+		}
+		open();
+		rollSize = (failure == null) ? maxFileSize : size + maxFileSize;
+		return failure;
+	}
+
+	/**
+	 * Opens the active log file for appending. The dictionary and the last time stamp are restored from an existing file and a partially written
+	 * record at its end (e.g. after a crash) is dropped.
+	 *
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	private void open() throws IOException {
+		names.clear();
+		lastTimeStamp = 0;
+		hasEvents = false;
+		long dataEnd = 0;
+
+		if (file.length() > 0) {
+			try (BinaryLogDecoder decoder = new BinaryLogDecoder(file)) {
+				if (conversionPattern.equals(decoder.getConversionPattern())) {
+					try {
+						while (decoder.next()) {
+							lastTimeStamp = decoder.getTimeStamp();
+							hasEvents = true;
+						}
+					} catch (IOException e) {
+						// a corrupted record - continue after the last valid one
+					}
+					List<String> knownNames = decoder.getNames();
+					for (int index = 0; index < knownNames.size(); index++) {
+						names.put(knownNames.get(index), index + 1);
+					}
+					dataEnd = decoder.getPosition();
+				}
+			} catch (IOException e) {
+				// not a binary log file
+				dataEnd = 0;
+			}
+
+			if (dataEnd == 0) {
+				// a file with a different layout (or an unreadable one) is kept as backup
+				names.clear();
+				lastTimeStamp = 0;
+				hasEvents = false;
+				roller.roll();
+			} else {
+				try (RandomAccessFile existing = new RandomAccessFile(file, "rw")) {
+					existing.setLength(dataEnd);
+				}
+			}
+		}
+
+		out = new FileOutputStream(file, true);
+		size = dataEnd;
+		if (size == 0) {
+			// a new file starts with the header
+			record.reset();
+			record.write(BinaryLogFormat.magic);
+			record.write(BinaryLogFormat.version);
+			BinaryLogFormat.writeText(record, conversionPattern);
+			record.writeTo(out);
+			size = record.size();
+		}
+	}
+
+	/**
+	 * Closes the active log file
+	 *
+	 * @throws IOException
+	 *             If the log file could not be closed
+	 */
+	private void closeFile() throws IOException {
+		try {
+			out.close();
+		} finally {
+			out = null;
+		}
+	}
+}
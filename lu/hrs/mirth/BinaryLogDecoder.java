@@ -0,0 +1,337 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the log events of a binary channel log file (see {@link BinaryLogFormat}) and renders them to text. It can also be used from the command
+ * line, e.g. to inspect the binary log of a channel:<br/>
+ * <br/>
+ * <code>java -cp &lt;MetaAppender jar&gt; lu.hrs.mirth.BinaryLogDecoder /opt/mirth/logs/Lab_In.blog.1.gz /opt/mirth/logs/Lab_In.blog</code>
+ * <br/>
+ * <br/>
+ * Options:
+ * <ul>
+ * <li>-pattern &lt;log pattern&gt; - The log pattern for rendering the log entries (default: the pattern stored in each file)</li>
+ * <li>-charset &lt;charset&gt; - The character set of the output (default: platform default)</li>
+ * </ul>
+ * The remaining arguments are the binary log files (compressed or not), which are decoded in the provided order.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class BinaryLogDecoder implements Closeable {
+
+	private static final String usage = "Usage: java -cp <MetaAppender jar> lu.hrs.mirth.BinaryLogDecoder [-pattern <log pattern>] [-charset <charset>] "
+			+ "<binary log file> [<binary log file> ...]";
+	// protects against allocating huge arrays for a corrupted length
+	private static final long maxTextLength = 256L * 1024 * 1024;
+	private final CountingInputStream in;
+	private final String conversionPattern;
+	private final List<String> names = new ArrayList<String>();
+	private long position = 0;
+	// the current event
+	private long timeStamp = 0;
+	private int level = ChannelEvent.TRACE;
+	private String loggerName = null;
+	private String threadName = null;
+	private String message = null;
+	private String throwable = null;
+
+	/**
+	 * Opens a binary log file and reads its header
+	 *
+	 * @param file
+	 *            The binary log file (compressed or not)
+	 * @throws IOException
+	 *             If the file could not be read or is not a binary log file
+	 */
+	BinaryLogDecoder(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(LogFileRoller.compressedExtension)) {
+				stream = new GZIPInputStream(stream, LogReader.blockSize);
+			}
+			this.in = new CountingInputStream(new BufferedInputStream(stream, LogReader.blockSize));
+
+			byte[] header = new byte[BinaryLogFormat.magic.length];
+			for (int index = 0; index < header.length; index++) {
+				header[index] = (byte) BinaryLogFormat.readByte(in);
+			}
+			if (!Arrays.equals(header, BinaryLogFormat.magic)) {
+				throw new IOException(file + " is not a binary log file");
+			}
+			int version = BinaryLogFormat.readByte(in);
+			if (version != BinaryLogFormat.version) {
+				throw new IOException(file + " has the unsupported binary log version " + version);
+			}
+			this.conversionPattern = BinaryLogFormat.readText(in, maxTextLength);
+			this.position = in.count;
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next log event
+	 *
+	 * @return true, if there was another complete log event, false if the end of the file has been reached
+	 * @throws IOException
+	 *             If the file could not be read or is corrupted
+	 */
+	boolean next() throws IOException {
+		try {
+			return readRecords();
+		} catch (EOFException e) {
+			// the last record is incomplete (it is still being written or the writer crashed)
+			return false;
+		}
+	}
+
+	/**
+	 * Reads records till the next log event
+	 *
+	 * @return true, if there was another log event, false if the end of the file has been reached
+	 * @throws IOException
+	 *             If the file could not be read or is corrupted
+	 */
+	private boolean readRecords() throws IOException {
+		while (true) {
+			int recordType = in.read();
+			if (recordType < 0) {
+				return false;
+			}
+
+			switch (recordType) {
+			case BinaryLogFormat.recordName:
+				names.add(BinaryLogFormat.readText(in, maxTextLength));
+				position = in.count;
+				break;
+			case BinaryLogFormat.recordEvent:
+				// the fields are only taken over if the record is complete
+				long difference = BinaryLogFormat.fromZigZag(BinaryLogFormat.readNumber(in));
+				int eventLevel = BinaryLogFormat.readByte(in);
+				String eventLoggerName = readName();
+				String eventThreadName = readName();
+				String eventMessage = BinaryLogFormat.readText(in, maxTextLength);
+				String eventThrowable = BinaryLogFormat.readText(in, maxTextLength);
+				timeStamp += difference;
+				level = eventLevel;
+				loggerName = eventLoggerName;
+				threadName = eventThreadName;
+				message = eventMessage;
+				throwable = eventThrowable;
+				position = in.count;
+				return true;
+			default:
+				throw new IOException("Unknown record type " + recordType + " at position " + (in.count - 1));
+			}
+		}
+	}
+
+	/**
+	 * Reads a logger or thread name
+	 *
+	 * @return The name
+	 * @throws IOException
+	 *             If the name could not be read
+	 */
+	private String readName() throws IOException {
+		long reference = BinaryLogFormat.readNumber(in);
+		if (reference == 0) {
+			// the name has not been added to the dictionary
+			return BinaryLogFormat.readText(in, maxTextLength);
+		}
+		if (reference > names.size()) {
+			throw new IOException("Unknown name reference " + reference + " at position " + in.count);
+		}
+		return names.get((int) reference - 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Provides the conversion pattern stored in the header of the file
+	 *
+	 * @return The conversion pattern of the layout that should be used for rendering
+	 */
+	String getConversionPattern() {
+		return conversionPattern;
+	}
+
+	/**
+	 * Provides the end of the last complete record that has been read
+	 *
+	 * @return The position in the (uncompressed) file
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Provides the name dictionary read so far
+	 *
+	 * @return The names in the order of their definition
+	 */
+	List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * Provides the time stamp of the current event
+	 *
+	 * @return The time stamp in milliseconds since epoch
+	 */
+	long getTimeStamp() {
+		return timeStamp;
+	}
+
+	/**
+	 * Renders the current event
+	 *
+	 * @param renderer
+	 *            The renderer of the layout
+	 * @return The log entry including the line separator
+	 */
+	String render(PatternRenderer renderer) {
+		return renderer.render(timeStamp, ChannelEvent.getLevelName(level), loggerName, threadName, message, throwable);
+	}
+
+	/**
+	 * Decodes a binary log file
+	 *
+	 * @param file
+	 *            The binary log file (compressed or not)
+	 * @param out
+	 *            The destination of the rendered log entries
+	 * @param conversionPattern
+	 *            The pattern for rendering the log entries or null to use the one stored in the file
+	 * @return The number of log entries that have been decoded
+	 * @throws IOException
+	 *             If the file could not be read or the text not be written
+	 */
+	static long decode(File file, Writer out, String conversionPattern) throws IOException {
+		long count = 0;
+		try (BinaryLogDecoder decoder = new BinaryLogDecoder(file)) {
+			PatternRenderer renderer = new PatternRenderer((conversionPattern != null) ? conversionPattern : decoder.getConversionPattern());
+			while (decoder.next()) {
+				out.write(decoder.render(renderer));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Prints the decoded log files to the standard output
+	 *
+	 * @param arguments
+	 *            The command line arguments
+	 * @throws IOException
+	 *             If a file could not be read
+	 */
+	public static void main(String[] arguments) throws IOException {
+		String pattern = null;
+		Charset charset = Charset.defaultCharset();
+		List<File> files = new ArrayList<File>();
+
+		for (int index = 0; index < arguments.length; index++) {
+			String argument = arguments[index];
+			if (argument.startsWith("-") && (index + 1 >= arguments.length)) {
+				fail("Missing value of option " + argument);
+			}
+
+			switch (argument) {
+			case "-pattern":
+				pattern = arguments[++index];
+				break;
+			case "-charset":
+				charset = Charset.forName(arguments[++index]);
+				break;
+			default:
+				if (argument.startsWith("-")) {
+					fail("Unknown option " + argument);
+				}
+				files.add(new File(argument));
+				break;
+			}
+		}
+
+		if (files.isEmpty()) {
+			fail("No binary log file specified");
+		}
+
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, charset))) {
+			for (File file : files) {
+				decode(file, out, pattern);
+			}
+		}
+	}
+
+	/**
+	 * Reports a wrong invocation and terminates
+	 *
+	 * @param reason
+	 *            The reason
+	 */
+	private static void fail(String reason) {
+		System.err.println(reason);
+		System.err.println(usage);
+		System.exit(1);
+	}
+
+	/**
+	 * Keeps track of the number of bytes read, so the end of the last complete record is known
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value >= 0) {
+				count++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long length) throws IOException {
+			long skipped = super.skip(length);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
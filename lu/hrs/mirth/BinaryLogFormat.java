@@ -0,0 +1,169 @@
+package lu.hrs.mirth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary format of channel log files (&lt;name&gt;.blog). Instead of rendering each log event through the pattern layout, only its raw
+ * fields are stored. The text is rendered on demand by the {@link BinaryLogDecoder}.<br/>
+ * <br/>
+ * A file starts with a self-describing header: the magic bytes "MABL", a format version and the conversion pattern of the layout that should be used
+ * to render the log entries. It is followed by a sequence of records, each starting with a record type:
+ * <ul>
+ * <li>Name: The next entry of the name dictionary (logger and thread names). Names are numbered in the order of their definition, starting with 1.
+ * </li>
+ * <li>Event: The difference to the time stamp of the previous event, the level, the dictionary references of logger and thread name (0 = the name
+ * follows inline), the message and the stack trace (empty if there is none).</li>
+ * </ul>
+ * Numbers are stored as variable-length integers (7 bits per byte), time stamp differences are zig-zag encoded as concurrently logged events might
+ * arrive slightly out of order. Texts are stored as UTF-8 bytes prefixed by their length. Each file has its own dictionary, so it can be decoded
+ * without its predecessors.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class BinaryLogFormat {
+
+	static final String extension = ".blog";
+	static final byte[] magic = { 'M', 'A', 'B', 'L' };
+	static final int version = 1;
+	static final int recordName = 1;
+	static final int recordEvent = 2;
+	// thread names might contain message ids - so the dictionary is limited
+	static final int maxDictionarySize = 4096;
+	// used if the layout of the channel log files is not a pattern layout
+	static final String defaultConversionPattern = "%d %-5p [%t] %c: %m%n";
+	static final Charset charset = StandardCharsets.UTF_8;
+
+	/**
+	 * Writes a variable-length integer
+	 *
+	 * @param out
+	 *            The destination
+	 * @param value
+	 *            The value (not negative)
+	 * @throws IOException
+	 *             If the value could not be written
+	 */
+	static void writeNumber(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Writes a text prefixed by its length
+	 *
+	 * @param out
+	 *            The destination
+	 * @param text
+	 *            The text (null is written as empty text)
+	 * @throws IOException
+	 *             If the text could not be written
+	 */
+	static void writeText(OutputStream out, String text) throws IOException {
+		if ((text == null) || text.isEmpty()) {
+			out.write(0);
+			return;
+		}
+		byte[] bytes = text.getBytes(charset);
+		writeNumber(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Encodes a signed difference, so small negative values also need only a few bytes
+	 *
+	 * @param value
+	 *            The signed value
+	 * @return The zig-zag encoded value
+	 */
+	static long toZigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Decodes a zig-zag encoded difference
+	 *
+	 * @param value
+	 *            The zig-zag encoded value
+	 * @return The signed value
+	 */
+	static long fromZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads a single byte
+	 *
+	 * @param in
+	 *            The source
+	 * @return The byte
+	 * @throws IOException
+	 *             If the end of the data has been reached prematurely
+	 */
+	static int readByte(InputStream in) throws IOException {
+		int value = in.read();
+		if (value < 0) {
+			throw new EOFException();
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a variable-length integer
+	 *
+	 * @param in
+	 *            The source
+	 * @return The value
+	 * @throws IOException
+	 *             If the end of the data has been reached prematurely or the value is invalid
+	 */
+	static long readNumber(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int part = readByte(in);
+			value |= (long) (part & 0x7F) << shift;
+			if ((part & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid number in binary log");
+	}
+
+	/**
+	 * Reads a text prefixed by its length
+	 *
+	 * @param in
+	 *            The source
+	 * @param maxLength
+	 *            The maximum plausible length of the text
+	 * @return The text
+	 * @throws IOException
+	 *             If the end of the data has been reached prematurely or the length is invalid
+	 */
+	static String readText(InputStream in, long maxLength) throws IOException {
+		long length = readNumber(in);
+		if (length > maxLength) {
+			throw new IOException("Invalid text length in binary log");
+		}
+
+		byte[] bytes = new byte[(int) length];
+		int offset = 0;
+		while (offset < bytes.length) {
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			offset += read;
+		}
+		return new String(bytes, charset);
+	}
+}
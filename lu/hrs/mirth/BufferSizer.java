@@ -0,0 +1,232 @@
+package lu.hrs.mirth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the output buffers of the channel log files according to the observed write rate of each channel. A moving average of the bytes written
+ * per second is kept per log file. Busy channels get a buffer that holds about a quarter of a second of output (up to 1MB), so they need only a few
+ * system calls per second. Channels that have gone quiet lose their buffer and write directly again. The buffers of all channels together never
+ * exceed a global memory limit - the busiest channels are served first.<br/>
+ * <br/>
+ * Buffered log entries are written to the file at the latest after the flush interval of the channel, which is derived from its buffer size and
+ * write rate (between 100ms and 1s).
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class BufferSizer {
+
+	static final int minBufferSize = 8 * 1024;
+	static final int maxBufferSize = 1024 * 1024;
+	// the buffer should hold the output of this part of a second
+	private static final int bufferedFractionOfSecond = 4;
+	// channels writing less are not buffered at all
+	private static final long quietBytesPerSecond = 4 * 1024;
+	private static final long minFlushIntervalMillis = 100;
+	private static final long maxFlushIntervalMillis = 1000;
+	// the buffers are checked for due flushes every tick and are resized every second
+	private static final long tickMillis = 100;
+	private static final int ticksPerSizing = (int) (1000 / tickMillis);
+	// the weight of the last second in the moving average
+	private static final double smoothing = 0.3;
+	private final Map<FileSink, WriteRate> sinks = new ConcurrentHashMap<FileSink, WriteRate>();
+	private ScheduledExecutorService scheduler = null;
+	private volatile long maxTotalBytes = 0;
+	private int ticks = 0;
+
+	/**
+	 * Defines the memory limit for all buffers together and starts or stops the sizing accordingly. Buffers are only assigned to log files that are
+	 * opened afterwards.
+	 *
+	 * @param maxTotalBytes
+	 *            The maximum number of bytes all buffers may occupy together (0 deactivates the buffering)
+	 */
+	synchronized void setMaxTotalBytes(long maxTotalBytes) {
+		this.maxTotalBytes = Math.max(0, maxTotalBytes);
+
+		if (this.maxTotalBytes == 0) {
+			stop();
+		} else if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "MetaAppender Buffer Sizer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flushAndResize(System.currentTimeMillis());
+					} catch (RuntimeException e) {
+						// try again next time
+					}
+				}
+			}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Checks if the log files are buffered
+	 *
+	 * @return true, if new log files get an adaptive buffer, false otherwise
+	 */
+	boolean isEnabled() {
+		return maxTotalBytes > 0;
+	}
+
+	/**
+	 * Stops the sizing. The log files that are still registered keep their buffers till they are closed.
+	 */
+	synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Starts sizing the buffer of a log file
+	 *
+	 * @param sink
+	 *            The sink writing the log file
+	 * @param statistics
+	 *            The statistics of the channel owning the file, which show the sizing decisions
+	 */
+	void register(FileSink sink, ChannelStatistics statistics) {
+		sinks.put(sink, new WriteRate(statistics));
+	}
+
+	/**
+	 * Stops sizing the buffer of a log file (e.g. because it has been closed)
+	 *
+	 * @param sink
+	 *            The sink writing the log file
+	 */
+	void unregister(FileSink sink) {
+		WriteRate rate = sinks.remove(sink);
+		if (rate != null) {
+			rate.statistics.setBuffering(0, 0, 0);
+		}
+	}
+
+	/**
+	 * Flushes the buffers that are due and resizes all buffers once per second
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 */
+	private synchronized void flushAndResize(long now) {
+		for (FileSink sink : sinks.keySet()) {
+			sink.flushIfDue(now);
+		}
+
+		if (++ticks >= ticksPerSizing) {
+			ticks = 0;
+			resize();
+		}
+	}
+
+	/**
+	 * Updates the write rates and assigns the buffers within the memory limit, busiest channels first
+	 */
+	private void resize() {
+		List<Map.Entry<FileSink, WriteRate>> ranking = new ArrayList<Map.Entry<FileSink, WriteRate>>(sinks.entrySet());
+		for (Map.Entry<FileSink, WriteRate> entry : ranking) {
+			entry.getValue().update(entry.getKey().getBytesWritten());
+		}
+		Collections.sort(ranking, new Comparator<Map.Entry<FileSink, WriteRate>>() {
+			@Override
+			public int compare(Map.Entry<FileSink, WriteRate> first, Map.Entry<FileSink, WriteRate> second) {
+				return Double.compare(second.getValue().bytesPerSecond, first.getValue().bytesPerSecond);
+			}
+		});
+
+		long remainingBytes = maxTotalBytes;
+		for (Map.Entry<FileSink, WriteRate> entry : ranking) {
+			WriteRate rate = entry.getValue();
+			int bufferSize = 0;
+			long flushIntervalMillis = 0;
+			if (rate.bytesPerSecond >= quietBytesPerSecond) {
+				// a power of two, so the size does not change on every small fluctuation of the rate
+				long wanted = (long) rate.bytesPerSecond / bufferedFractionOfSecond;
+				bufferSize = (int) Math.min(maxBufferSize, Math.max(minBufferSize, Long.highestOneBit(wanted) << 1));
+				while ((bufferSize > remainingBytes) && (bufferSize >= minBufferSize)) {
+					bufferSize >>= 1;
+				}
+				if (bufferSize < minBufferSize) {
+					// the memory limit has been reached
+					bufferSize = 0;
+				} else {
+					remainingBytes -= bufferSize;
+					// the buffer should rather be written when full than by the interval
+					flushIntervalMillis = Math.max(minFlushIntervalMillis,
+							Math.min(maxFlushIntervalMillis, (long) (bufferSize * 1000 / rate.bytesPerSecond)));
+				}
+			}
+
+			entry.getKey().resize(bufferSize, flushIntervalMillis);
+			rate.statistics.setBuffering(bufferSize, flushIntervalMillis, (long) rate.bytesPerSecond);
+		}
+	}
+
+	/**
+	 * Describes the buffering
+	 *
+	 * @return The memory limit and the memory currently assigned to buffers
+	 */
+	String getDescription() {
+		long assignedBytes = 0;
+		int bufferedFiles = 0;
+		for (WriteRate rate : sinks.values()) {
+			int bufferSize = rate.statistics.getBufferSize();
+			if (bufferSize > 0) {
+				assignedBytes += bufferSize;
+				bufferedFiles++;
+			}
+		}
+		return "maxTotalBytes=" + maxTotalBytes + ", assignedBytes=" + assignedBytes + ", bufferedFiles=" + bufferedFiles;
+	}
+
+	/**
+	 * The moving average of the write rate of a log file
+	 */
+	private static class WriteRate {
+
+		private final ChannelStatistics statistics;
+		private long lastBytesWritten = -1;
+		private double bytesPerSecond = 0;
+
+		WriteRate(ChannelStatistics statistics) {
+			this.statistics = statistics;
+		}
+
+		/**
+		 * Adds the bytes written during the last second to the average
+		 *
+		 * @param bytesWritten
+		 *            The number of bytes written so far
+		 */
+		void update(long bytesWritten) {
+			if (lastBytesWritten >= 0) {
+				bytesPerSecond = (smoothing * (bytesWritten - lastBytesWritten)) + ((1 - smoothing) * bytesPerSecond);
+			} else {
+				// a busy channel should not wait for several seconds until the average has caught up
+				bytesPerSecond = bytesWritten;
+			}
+			lastBytesWritten = bytesWritten;
+		}
+	}
+}
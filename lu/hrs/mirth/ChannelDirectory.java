@@ -0,0 +1,219 @@
+package lu.hrs.mirth;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.mirth.connect.server.userutil.ChannelUtil;
+
+/**
+ * Keeps track of the deployed channels and resolves channel ids to channel names without querying Mirth for each log event. The directory is
+ * updated by explicit deploy/undeploy notifications and reconciled with the deployed channels of Mirth in the background. Thus renamed and
+ * undeployed channels are detected even if the channel scripts do not notify the MetaAppender.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class ChannelDirectory {
+
+	/**
+	 * Is informed about changes of the deployed channels
+	 */
+	interface Listener {
+
+		/**
+		 * A channel has been deployed
+		 *
+		 * @param channelId
+		 *            The id of the channel
+		 * @param channelName
+		 *            The name of the channel
+		 */
+		void channelDeployed(String channelId, String channelName);
+
+		/**
+		 * A channel has been undeployed
+		 *
+		 * @param channelId
+		 *            The id of the channel
+		 * @param channelName
+		 *            The name of the channel
+		 */
+		void channelUndeployed(String channelId, String channelName);
+
+		/**
+		 * A channel has been renamed
+		 *
+		 * @param channelId
+		 *            The id of the channel
+		 * @param oldName
+		 *            The previous name of the channel
+		 * @param newName
+		 *            The new name of the channel
+		 */
+		void channelRenamed(String channelId, String oldName, String newName);
+	}
+
+	// ids that did not belong to a channel are asked again after this time (the channel might just be deploying)
+	private static final long unresolvedExpiryMillis = 1000;
+	private static final long reconcileIntervalSeconds = 30;
+	private final ConcurrentHashMap<String, String> channelNames = new ConcurrentHashMap<String, String>();
+	// ids that could not be resolved and when they expire
+	private final ConcurrentHashMap<String, Long> unresolvedIds = new ConcurrentHashMap<String, Long>();
+	private final Listener listener;
+	private ScheduledExecutorService scheduler = null;
+
+	/**
+	 * Creates a channel directory
+	 *
+	 * @param listener
+	 *            The listener that is informed about deployments, undeployments and renamings
+	 */
+	ChannelDirectory(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Resolves a channel id to the channel name
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 * @return The name of the channel or null if the id does not belong to a channel
+	 */
+	String getChannelName(String channelId) {
+		String channelName = channelNames.get(channelId);
+		if (channelName != null) {
+			return channelName;
+		}
+
+		// an id that could not be resolved a moment ago is not asked for each event
+		Long expiry = unresolvedIds.get(channelId);
+		long now = System.currentTimeMillis();
+		if ((expiry != null) && (now < expiry)) {
+			return null;
+		}
+
+		// not yet known - ask Mirth
+		channelName = ChannelUtil.getChannelName(channelId);
+		if (channelName == null) {
+			unresolvedIds.put(channelId, now + unresolvedExpiryMillis);
+			return null;
+		}
+		unresolvedIds.remove(channelId);
+		String knownName = channelNames.putIfAbsent(channelId, channelName);
+		return (knownName != null) ? knownName : channelName;
+	}
+
+	/**
+	 * Registers a deployed channel. If the channel is already known under a different name, it is treated as renamed.
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 * @return The name of the channel or null if the id does not belong to a channel
+	 */
+	String deployed(String channelId) {
+		String channelName = ChannelUtil.getChannelName(channelId);
+		if (channelName == null) {
+			return null;
+		}
+
+		unresolvedIds.remove(channelId);
+		String previousName = channelNames.put(channelId, channelName);
+		if ((previousName != null) && !previousName.equals(channelName)) {
+			listener.channelRenamed(channelId, previousName, channelName);
+		}
+		listener.channelDeployed(channelId, channelName);
+
+		return channelName;
+	}
+
+	/**
+	 * Unregisters an undeployed channel
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 * @return The name of the channel or null if the channel was not known
+	 */
+	String undeployed(String channelId) {
+		String channelName = channelNames.remove(channelId);
+		if (channelName == null) {
+			return null;
+		}
+
+		listener.channelUndeployed(channelId, channelName);
+		return channelName;
+	}
+
+	/**
+	 * Starts the periodic reconciliation with the channels deployed in Mirth
+	 */
+	synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "MetaAppender Channel Directory");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconcile();
+				} catch (RuntimeException e) {
+					// Mirth might not be ready yet - try again next time
+				}
+			}
+		}, reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic reconciliation
+	 */
+	synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Compares the known channels with the channels that are actually deployed in Mirth and reports all differences to the listener
+	 */
+	void reconcile() {
+		List<String> deployedIds = ChannelUtil.getDeployedChannelIds();
+		if (deployedIds == null) {
+			return;
+		}
+		Set<String> deployed = new HashSet<String>(deployedIds);
+
+		// forget expired unresolved ids, so arbitrary ids do not accumulate
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> entry : unresolvedIds.entrySet()) {
+			if (now >= entry.getValue()) {
+				unresolvedIds.remove(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (Map.Entry<String, String> entry : channelNames.entrySet()) {
+			String channelId = entry.getKey();
+			if (!deployed.contains(channelId)) {
+				undeployed(channelId);
+			} else if (!entry.getValue().equals(ChannelUtil.getChannelName(channelId))) {
+				deployed(channelId);
+			}
+		}
+	}
+}
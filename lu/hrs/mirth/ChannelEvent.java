@@ -0,0 +1,205 @@
+package lu.hrs.mirth;
+
+/**
+ * Version-neutral view onto a log event that is written to a channel sink. The log4j-specific appenders wrap their native events in a subclass of
+ * this one and provide the encoding of the event according to the configured log layout.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+abstract class ChannelEvent {
+
+	static final int TRACE = 0;
+	static final int DEBUG = 1;
+	static final int INFO = 2;
+	static final int WARN = 3;
+	static final int ERROR = 4;
+	static final int FATAL = 5;
+	private static final String[] levelNames = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL" };
+	private String channelName = null;
+	private String channelId = null;
+	private long messageId = MessageIndex.noMessage;
+	private JsonLineEncoder jsonEncoder = null;
+	private byte[] encoded = null;
+
+	/**
+	 * Resolves the name of a log level to its version-neutral value
+	 *
+	 * @param levelName
+	 *            The name of the level (e.g. "WARN")
+	 * @param defaultLevel
+	 *            The level that is returned if the name is unknown
+	 * @return The version-neutral value of the level
+	 */
+	static int toLevel(String levelName, int defaultLevel) {
+		if (levelName != null) {
+			for (int level = TRACE; level <= FATAL; level++) {
+				if (levelNames[level].equalsIgnoreCase(levelName.trim())) {
+					return level;
+				}
+			}
+		}
+		return defaultLevel;
+	}
+
+	/**
+	 * Provides the name of a version-neutral log level
+	 *
+	 * @param level
+	 *            The version-neutral value of the level
+	 * @return The name of the level
+	 */
+	static String getLevelName(int level) {
+		return levelNames[Math.max(TRACE, Math.min(FATAL, level))];
+	}
+
+	/**
+	 * Provides the point in time at which the event was created
+	 *
+	 * @return The event timestamp in milliseconds since epoch
+	 */
+	abstract long getTimeStamp();
+
+	/**
+	 * Provides the severity of the event
+	 *
+	 * @return The version-neutral log level (see {@link #TRACE} till {@link #FATAL})
+	 */
+	abstract int getLevel();
+
+	/**
+	 * Provides the event in the format in which it is written to a log file
+	 *
+	 * @return The log entry created by the configured layout or the JSON line (including the line separator)
+	 */
+	byte[] getEncoded() {
+		// the event is encoded only once, no matter how many sinks need it
+		if (encoded == null) {
+			encoded = (jsonEncoder != null) ? jsonEncoder.encode(this) : encode();
+		}
+		return encoded;
+	}
+
+	/**
+	 * Renders the event by the configured layout
+	 *
+	 * @return The log entry (including the line separator)
+	 */
+	abstract byte[] encode();
+
+	/**
+	 * Defines that the event is written as JSON line instead of being rendered by the layout
+	 *
+	 * @param jsonEncoder
+	 *            The encoder for JSON lines or null to use the layout
+	 */
+	void setJsonEncoder(JsonLineEncoder jsonEncoder) {
+		this.jsonEncoder = jsonEncoder;
+	}
+
+	/**
+	 * Provides the name of the logger that created the event
+	 *
+	 * @return The logger name
+	 */
+	abstract String getLoggerName();
+
+	/**
+	 * Provides the name of the thread that created the event
+	 *
+	 * @return The thread name
+	 */
+	abstract String getThreadName();
+
+	/**
+	 * Provides the log message without any layout
+	 *
+	 * @return The formatted log message
+	 */
+	abstract String getRenderedMessage();
+
+	/**
+	 * Provides the stack trace of the exception attached to the event
+	 *
+	 * @return The stack trace (each line terminated by a line separator) or null if there is no exception
+	 */
+	abstract String getThrowableText();
+
+	/**
+	 * Checks if an exception is attached to the event without rendering its stack trace
+	 *
+	 * @return true, if there is an exception, false otherwise
+	 */
+	abstract boolean hasThrowable();
+
+	/**
+	 * Provides a value of the diagnostic context (MDC) of the event
+	 *
+	 * @param key
+	 *            The key of the value
+	 * @return The value or null if the context does not contain it
+	 */
+	abstract Object getContextValue(String key);
+
+	/**
+	 * Creates a copy of the event with a different logger name and message. Time stamp, level, thread, context and exception are kept.
+	 *
+	 * @param loggerName
+	 *            The name of the logger of the copy
+	 * @param message
+	 *            The log message of the copy
+	 * @return The copy (without the assignment to a channel or message)
+	 */
+	abstract ChannelEvent derive(String loggerName, String message);
+
+	/**
+	 * Assigns the event to the Mirth message during whose processing it was logged
+	 *
+	 * @param channelName
+	 *            The name of the channel that processed the message
+	 * @param messageId
+	 *            The id of the message
+	 */
+	void setMessage(String channelName, long messageId) {
+		this.channelName = channelName;
+		this.messageId = messageId;
+	}
+
+	/**
+	 * Defines the id of the channel that logged the event
+	 *
+	 * @param channelId
+	 *            The channel id
+	 */
+	void setChannelId(String channelId) {
+		this.channelId = channelId;
+	}
+
+	/**
+	 * Provides the id of the channel that logged the event
+	 *
+	 * @return The channel id or null if it is not known
+	 */
+	String getChannelId() {
+		return channelId;
+	}
+
+	/**
+	 * Provides the name of the channel that processed the message of the event
+	 *
+	 * @return The name of the channel or null if the event is not assigned to a message
+	 */
+	String getChannelName() {
+		return channelName;
+	}
+
+	/**
+	 * Provides the id of the Mirth message during whose processing the event was logged
+	 *
+	 * @return The message id or {@link MessageIndex#noMessage} if the event is not assigned to a message
+	 */
+	long getMessageId() {
+		return messageId;
+	}
+}
@@ -0,0 +1,1185 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.mirth.connect.server.userutil.ChannelUtil;
+
+/**
+ * The version-neutral core of the MetaAppender. It decides for each log event to which channel it belongs and where it is written: the log file of
+ * the channel, the main log, the error log, the console and the dashboard. It also implements all functions provided to the scripts.<br/>
+ * <br/>
+ * The log4j appenders of both log4j versions are thin adapters: they wrap their log events in {@link ChannelEvent}s and provide the
+ * {@link Output} to the log4j appenders taken over from the Mirth configuration. Thus every improvement of the routing applies to both versions.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class ChannelRouter implements MetaAppenderBase, ChannelDirectory.Listener, LoadShedder.Listener {
+
+	/**
+	 * The log4j appenders to which the router writes the events that are not written by a channel sink. It is implemented by the appender of each
+	 * log4j version.
+	 */
+	interface Output {
+
+		/**
+		 * Writes an event via a log4j appender
+		 *
+		 * @param appenderName
+		 *            The name of the log file of a channel or one of the reserved names for the main log, the error log, the console and the
+		 *            dashboard. The appenders of channel log files are created on demand.
+		 * @param event
+		 *            The event
+		 */
+		void append(String appenderName, ChannelEvent event);
+
+		/**
+		 * Creates the appender of a channel log file in advance, so the first log event of the channel does not have to
+		 *
+		 * @param appenderName
+		 *            The name of the log file
+		 */
+		void open(String appenderName);
+
+		/**
+		 * Closes the appender of a channel log file. It will be recreated by the next log event written to the file.
+		 *
+		 * @param appenderName
+		 *            The name of the log file or the reserved name of the error log
+		 */
+		void release(String appenderName);
+
+		/**
+		 * Checks if there is an appender for a channel log file
+		 *
+		 * @param appenderName
+		 *            The name of the log file
+		 * @return true, if the appender exists, false otherwise
+		 */
+		boolean hasAppender(String appenderName);
+
+		/**
+		 * Provides the names of the appenders of all channel log files
+		 *
+		 * @return The names (without the reserved appenders)
+		 */
+		List<String> getAppenderNames();
+
+		/**
+		 * Creates a log event of the MetaAppender itself
+		 *
+		 * @param loggerName
+		 *            The name of the logger
+		 * @param level
+		 *            The version-neutral level
+		 * @param message
+		 *            The log message
+		 * @return The event
+		 */
+		ChannelEvent createEvent(String loggerName, int level, String message);
+
+		/**
+		 * Converts a size like "10MB" to a number of bytes the same way log4j does
+		 *
+		 * @param size
+		 *            The size
+		 * @return The number of bytes or 0 if the size is invalid
+		 */
+		long toFileSize(String size);
+
+		/**
+		 * Sets a value of the diagnostic context (MDC/ThreadContext) of the current thread
+		 *
+		 * @param key
+		 *            The key of the value
+		 * @param value
+		 *            The value (null removes it)
+		 */
+		void setContextValue(String key, String value);
+
+		/**
+		 * Applies a new configuration of the log files. The appenders of the log files are recreated with the new configuration by their next
+		 * event. The replaced appenders are closed once the events that are being written to them are done.
+		 *
+		 * @param configuration
+		 *            The new configuration
+		 */
+		void reconfigure(LogConfiguration configuration);
+
+		/**
+		 * Reports a problem of the MetaAppender via the error handling of log4j
+		 *
+		 * @param message
+		 *            The description of the problem
+		 * @param event
+		 *            The event that was processed (OPTIONAL)
+		 * @param e
+		 *            The cause
+		 */
+		void error(String message, ChannelEvent event, Exception e);
+	}
+
+	static final String mainLogAppenderName = "mirth";
+	static final String errorAppenderName = "mirthErrors";
+	static final String consoleAppenderName = "console";
+	static final String dashboardAppenderName = "mirthDashboard";
+	// the key of the diagnostic context value that binds the events of a thread to a channel
+	static final String contextKeyChannelId = "channelId";
+	private static final Pattern patternUuid = Pattern.compile("([a-f0-9]{8}(-[a-f0-9]{4}){4}[a-f0-9]{8})");
+	// marks thread and logger names that do not contain a channel id
+	private static final String noChannelId = "";
+	// thread and logger names are limited, but just in case they contain changing parts
+	private static final int maxKnownNames = 4096;
+	private final Output output;
+	private final ChannelSinkManager channelSinks;
+	private final RecentEvents recentEvents;
+	private final LoadShedder loadShedder;
+	private final LogSampler logSampler;
+	private final LogReader logReader;
+	private final ChannelDirectory channelDirectory;
+	// location, size, backups and layout of the log files - replaced as a whole by a reconfiguration
+	private volatile LogConfiguration configuration;
+	// the channel ids contained in thread and logger names, so they are not searched for each event
+	private final ConcurrentHashMap<String, String> channelIds = new ConcurrentHashMap<String, String>();
+	private volatile String focusedChannelName = null;
+	private volatile String filteredChannelName = null;
+	// the capture of the received events (inactive till configured)
+	private volatile WorkloadRecorder workloadRecorder = null;
+	// the forwarding of channel events to a local log shipper (inactive till configured)
+	private volatile LogForwarder logForwarder = null;
+	// the masking of patient identifiers and sensitive terms (inactive till configured)
+	private volatile Redactor redactor = null;
+
+	/**
+	 * Creates the router and starts tracking the channel deployments
+	 *
+	 * @param output
+	 *            The log4j appenders of the Mirth configuration
+	 * @param logLocation
+	 *            The folder of the log files
+	 * @param maxFileSize
+	 *            The maximum size of a log file until it is rolled over
+	 * @param maxBackupIndex
+	 *            The maximum number of rolled log files per channel
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout of the channel log files (OPTIONAL)
+	 * @param charset
+	 *            The character set of the channel log files
+	 * @param logAllToMainLog
+	 *            If this flag is set, channel-specific log entries are also written to the main log
+	 */
+	ChannelRouter(Output output, String logLocation, long maxFileSize, int maxBackupIndex, String conversionPattern, Charset charset,
+			boolean logAllToMainLog) {
+		this.output = output;
+		this.configuration = new LogConfiguration(logLocation, maxFileSize, maxBackupIndex, conversionPattern, logAllToMainLog);
+		// the sinks for channels that are not handled by log4j appenders
+		this.channelSinks = new ChannelSinkManager(this.configuration);
+		// the recent events of each channel that can be inspected from scripts (inactive till configured)
+		this.recentEvents = new RecentEvents(charset);
+		// drops DEBUG and INFO entries of the noisiest channels if logging exceeds its budget (inactive till configured)
+		this.loadShedder = new LoadShedder(this.channelSinks, this);
+		// writes only samples of the events of chatty channels (inactive till configured)
+		this.logSampler = new LogSampler(this.channelSinks);
+		// the reader for scripts that inspect the channel log files
+		this.logReader = new LogReader(this.configuration.getLogFolder(), conversionPattern, charset);
+		// keep track of channel deployments
+		this.channelDirectory = new ChannelDirectory(this);
+		this.channelDirectory.start();
+	}
+
+	/**
+	 * Writes a log event to all its destinations
+	 *
+	 * @param event
+	 *            The event as received by the log4j appender
+	 */
+	void route(ChannelEvent event) {
+		// the time spent on writing the event is measured for the load shedding
+		long start = System.nanoTime();
+
+		/** Check if the log message is only determined for a specific log location */
+
+		// get the log message
+		String message = event.getRenderedMessage();
+		if (message == null) {
+			message = "";
+		}
+
+		// a script might have assigned the event to a Mirth message
+		long messageId = MessageIndex.noMessage;
+		Matcher markerMatcher = MessageIndex.matchMarker(message);
+		if (markerMatcher != null) {
+			messageId = MessageIndex.parse(markerMatcher.group(1));
+			// the marker is not part of the log message
+			message = message.substring(markerMatcher.end());
+		} else if (this.channelSinks.isMessageIndexed()) {
+			// otherwise the message might be known from the context
+			messageId = MessageIndex.extract(event.getContextValue(MessageIndex.contextKey), event.getThreadName());
+		}
+
+		boolean fileOnly, dashboardOnly, consoleOnly;
+		fileOnly = dashboardOnly = consoleOnly = false;
+
+		// check log message for special instructions (only messages starting with '#' are inspected any further)
+		if ((message.length() > 3) && (message.charAt(0) == '#') && (message.charAt(3) == ':')) {
+			if (message.regionMatches(true, 1, "FO", 0, 2)) {
+				// log only to log file
+				fileOnly = true;
+			} else if (message.regionMatches(true, 1, "DO", 0, 2)) {
+				// log only to the mirth administrator dashboard
+				dashboardOnly = true;
+			} else if (message.regionMatches(true, 1, "CO", 0, 2)) {
+				// log only to the console
+				consoleOnly = true;
+			}
+
+			if (fileOnly || dashboardOnly || consoleOnly) {
+				// flag was understood & set - remove the instruction from the log message
+				int begin = 4;
+				while ((begin < message.length()) && Character.isWhitespace(message.charAt(begin))) {
+					begin++;
+				}
+				message = message.substring(begin);
+			}
+		}
+
+		/** Try to determine channel name */
+
+		String channelName = null;
+		// get logger name
+		String loggerName = event.getLoggerName();
+
+		// a thread might have been bound to a channel explicitly
+		String channelId = null;
+		Object boundChannelId = event.getContextValue(contextKeyChannelId);
+		if (boundChannelId != null) {
+			channelId = boundChannelId.toString();
+			channelName = this.channelDirectory.getChannelName(channelId);
+		}
+		// otherwise (or if the bound id is not a known channel) the channel from which the appender was called is referenced by the thread name or by
+		// the logger name
+		if (channelName == null) {
+			channelId = getChannelId(event.getThreadName());
+			if (channelId == null) {
+				channelId = getChannelId(loggerName);
+			}
+			if (channelId != null) {
+				channelName = this.channelDirectory.getChannelName(channelId);
+			}
+		}
+
+		if (channelName != null) {
+			// adapt the logger name to reflect the channel name as well
+			loggerName = channelName + "-" + removeChannelId(loggerName, channelId);
+		} else {
+			// there is no trace of a channel or the id does not belong to one
+			channelId = null;
+		}
+
+		// a running capture records the event as received, so it can be replayed offline
+		WorkloadRecorder recorder = this.workloadRecorder;
+		if (recorder != null) {
+			recordWorkload(recorder, event, channelId, channelName);
+		}
+
+		// during incident storms, DEBUG and INFO entries of the noisiest channels might be dropped
+		int level = event.getLevel();
+		if (!this.loadShedder.accept(channelName, level)) {
+			return;
+		}
+
+		// chatty channels might only log samples - they tell how many similar events have been skipped since the previous sample
+		long skipped = this.logSampler.sample(channelName, level, loggerName, message);
+		if (skipped < 0) {
+			return;
+		} else if (skipped > 0) {
+			message = message + " [" + skipped + " similar skipped]";
+		}
+
+		// patient identifiers are masked once for all destinations (and before a payload is moved to a side file)
+		Redactor activeRedactor = this.redactor;
+		if (activeRedactor != null) {
+			String redacted = activeRedactor.redact(message);
+			if (redacted != message) {
+				message = redacted;
+				if (channelName != null) {
+					this.channelSinks.getStatistics(channelName).eventRedacted();
+				}
+			}
+		}
+
+		// an oversized payload is moved to a side file, so the log files, the dashboard and the console only carry a reference
+		PayloadSpiller payloadSpiller = this.channelSinks.getPayloadSpiller();
+		if (payloadSpiller != null) {
+			try {
+				String reference = payloadSpiller.spill(message);
+				if (reference != null) {
+					message = reference;
+				}
+			} catch (IOException e) {
+				// the payload is logged as it is
+				this.output.error("Unable to write the payload of a log message to a side file", event, e);
+			}
+		}
+
+		/** Log to the channel-specific log file */
+
+		// a reconfiguration might take place meanwhile - the event is written according to a single configuration
+		LogConfiguration currentConfiguration = this.configuration;
+
+		// the event is encoded at most once for the recent events and the channel sink
+		ChannelEvent channelEvent = event.derive(loggerName, message);
+		channelEvent.setMessage(channelName, messageId);
+		channelEvent.setChannelId(channelId);
+		// in JSON mode, the event is not rendered by the layout
+		JsonLineEncoder jsonEncoder = this.channelSinks.getJsonEncoder();
+		channelEvent.setJsonEncoder(jsonEncoder);
+
+		// keep the event in memory, so scripts can inspect the recent events of the channel
+		if ((channelName != null) && this.recentEvents.isEnabled()) {
+			this.recentEvents.add(channelName, channelEvent);
+		}
+
+		// if a channel was identified
+		if ((channelName != null) && !dashboardOnly && !consoleOnly) {
+			// channels of a group share the log file of the group
+			String fileName = this.channelSinks.getFileName(channelName);
+			ChannelEvent fileEvent = channelEvent;
+			// if the channel name would not be visible in a shared file, it is added to the message (a JSON line always contains it)
+			if (!currentConfiguration.layoutShowsLogger() && (jsonEncoder == null) && !fileName.equals(channelName)) {
+				fileEvent = event.derive(loggerName, "[" + channelName + "] " + message);
+				fileEvent.setMessage(channelName, messageId);
+			}
+
+			if (!appendToSink(fileName, fileEvent)) {
+				// call the right appender dependent on the channel
+				this.output.append(fileName, fileEvent);
+			}
+
+			// a local log shipper might receive the events of the channel as well, so it does not have to tail the log files
+			LogForwarder forwarder = this.logForwarder;
+			if ((forwarder != null) && forwarder.accepts(channelName)) {
+				forwarder.forward(channelEvent.getEncoded());
+			}
+		}
+
+		// if the log message is not channel-specific or if user configured to log all messages also to the main log file
+		if ((currentConfiguration.isLogAllToMainLog() || (channelName == null)) && (!dashboardOnly && !consoleOnly)) {
+			// log event also to the main log file
+			this.output.append(mainLogAppenderName, channelEvent);
+		}
+
+		// all events that are logged as error
+		if (level == ChannelEvent.ERROR) {
+			// are also accumulated in a specific log (which is written by a sink in JSON mode)
+			if ((jsonEncoder == null) || !appendToSink(errorAppenderName, channelEvent)) {
+				this.output.append(errorAppenderName, channelEvent);
+			}
+		}
+
+		// the log files are what turns into the bottleneck during incident storms
+		this.loadShedder.record(channelName, System.nanoTime() - start);
+
+		// if a special mode has been activated to focus on a channel in the dashboard and/or to omit logging of a channel from the dashboard
+		// add a special prefix to all dashboard log messages to indicate this situation
+		String focusedChannel = this.focusedChannelName;
+		String filteredChannel = this.filteredChannelName;
+		ChannelEvent dashboardEvent = channelEvent;
+		if ((focusedChannel != null) || (filteredChannel != null)) {
+			String loggerPrefix = "";
+
+			// if the both, focusing and filtering, are activated, indicate it to the user
+			if ((focusedChannel != null) && (filteredChannel != null)) {
+				// set the logger prefix to focused and filtered
+				loggerPrefix = "FOCUSED & FILTERED: ";
+			} else if ((focusedChannel != null) && isKnownChannel(channelName)) {
+				// if a channel is focused and actually deployed (or was at least deployed once)
+
+				// but the current event was caused by a different channel
+				if (!focusedChannel.equals(channelName)) {
+					// omit logging to dashboard and console for this event
+					return;
+				}
+				// set the logger prefix to focused
+				loggerPrefix = "FOCUSED: ";
+			} else if ((filteredChannel != null) && isKnownChannel(channelName)) {
+				// if a channel is filtered and actually deployed (or was at least deployed once)
+
+				// and the current event was caused by the filtered channel
+				if (filteredChannel.equals(channelName)) {
+					// omit logging to dashboard and console for this event
+					return;
+				}
+				// set the logger prefix to filtered
+				loggerPrefix = "FILTERED: ";
+			}
+
+			// adapt the logging event in order to include channel name in component description
+			dashboardEvent = event.derive(loggerPrefix + loggerName, message);
+		}
+
+		if (!fileOnly && !dashboardOnly) {
+			// and write the event to the console
+			this.output.append(consoleAppenderName, dashboardEvent);
+		}
+		if (!fileOnly && !consoleOnly) {
+			// and also to the dashboard
+			this.output.append(dashboardAppenderName, dashboardEvent);
+		}
+	}
+
+	/**
+	 * Records an event in the workload trace. The capture is ended if the trace could not be written.
+	 *
+	 * @param recorder
+	 *            The capture
+	 * @param event
+	 *            The event as received by the log4j appender
+	 * @param channelId
+	 *            The id of the channel that logged the event (null if it does not belong to a channel)
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	private void recordWorkload(WorkloadRecorder recorder, ChannelEvent event, String channelId, String channelName) {
+		try {
+			recorder.record(event, channelId, channelName, this.redactor);
+		} catch (IOException e) {
+			synchronized (this) {
+				// the capture might already have been replaced
+				if (this.workloadRecorder == recorder) {
+					this.workloadRecorder = null;
+				}
+			}
+			this.output.error("Unable to write the workload trace - the capture has ended", event, e);
+		}
+	}
+
+	/**
+	 * Provides the channel id contained in a thread or logger name
+	 *
+	 * @param name
+	 *            The thread or logger name
+	 * @return The channel id or null if the name does not contain one
+	 */
+	private String getChannelId(String name) {
+		if (name == null) {
+			return null;
+		}
+
+		String channelId = this.channelIds.get(name);
+		if (channelId == null) {
+			Matcher uuidMatcher = patternUuid.matcher(name);
+			channelId = uuidMatcher.find() ? uuidMatcher.group() : noChannelId;
+			if (this.channelIds.size() >= maxKnownNames) {
+				this.channelIds.clear();
+			}
+			this.channelIds.put(name, channelId);
+		}
+		return channelId.isEmpty() ? null : channelId;
+	}
+
+	/**
+	 * Removes a channel id and a directly following dash from a logger name
+	 *
+	 * @param loggerName
+	 *            The name of the logger
+	 * @param channelId
+	 *            The id of the channel
+	 * @return The logger name without the channel id
+	 */
+	private static String removeChannelId(String loggerName, String channelId) {
+		int begin = loggerName.indexOf(channelId);
+		if (begin < 0) {
+			return loggerName;
+		}
+		int end = begin + channelId.length();
+		if ((end < loggerName.length()) && (loggerName.charAt(end) == '-')) {
+			end++;
+		}
+		return loggerName.substring(0, begin) + loggerName.substring(end);
+	}
+
+	/**
+	 * Writes an event to the sink of a channel, if the channel is not handled by a log4j appender
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @param event
+	 *            The event that should be logged
+	 * @return true, if the channel is served by a sink, false if the log4j appender of the channel has to be used
+	 */
+	private boolean appendToSink(String channelName, ChannelEvent event) {
+		try {
+			ChannelSink sink = this.channelSinks.getSink(channelName);
+			if (sink == null) {
+				return false;
+			}
+
+			while (true) {
+				try {
+					sink.write(event);
+					break;
+				} catch (IOException e) {
+					// the sink might have been closed by a reconfiguration in the meantime - the event is written by its successor then
+					ChannelSink successor = this.channelSinks.getSink(channelName);
+					if (successor == null) {
+						// the channel is served by a log4j appender now
+						return false;
+					} else if (successor == sink) {
+						throw e;
+					}
+					sink = successor;
+				}
+			}
+		} catch (IOException e) {
+			this.output.error("Unable to write to the log file of channel " + channelName, event, e);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if a channel has already logged something (to its appender or its sink)
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if the channel is known, false otherwise
+	 */
+	private boolean isKnownChannel(String channelName) {
+		if (channelName == null) {
+			return false;
+		}
+		String fileName = this.channelSinks.getFileName(channelName);
+		return this.output.hasAppender(fileName) || this.channelSinks.hasSink(fileName);
+	}
+
+	/**
+	 * Checks if a name is one of the appenders taken over from the mirth configuration
+	 *
+	 * @param appenderName
+	 *            The name of the appender
+	 * @return true, if it is not a channel appender, false otherwise
+	 */
+	static boolean isReservedAppender(String appenderName) {
+		return appenderName.equals(mainLogAppenderName) || appenderName.equals(errorAppenderName) || appenderName.equals(consoleAppenderName)
+				|| appenderName.equals(dashboardAppenderName);
+	}
+
+	@Override
+	public String setFocus(String identifier) {
+		// check parameter
+		if ((identifier == null) || identifier.trim().isEmpty()) {
+			return null;
+		}
+
+		// resolve the channel id to the channel name, if the provided identifier is a channel name
+		String channelName = ChannelUtil.getChannelName(identifier.trim());
+		// determine the name of the channel that should be focused and set it as focused channel.
+		this.focusedChannelName = (channelName != null) ? channelName : identifier.trim();
+
+		// assure that a channel is not focused and filtered at the same time
+		if (this.focusedChannelName.equals(this.filteredChannelName)) {
+			this.filteredChannelName = null;
+		}
+
+		// indicate the name of the focused channel to the user
+		return this.focusedChannelName;
+	}
+
+	@Override
+	public String removeFocus() {
+		// read the name of the currently focused channel
+		String focusedChannel = this.focusedChannelName;
+		// remove focus
+		this.focusedChannelName = null;
+
+		// and indicate the name of the channel from which the focus has been removed to the user
+		return focusedChannel;
+	}
+
+	@Override
+	public String setFilter(String identifier) {
+		// check parameter
+		if ((identifier == null) || identifier.trim().isEmpty()) {
+			return null;
+		}
+
+		// resolve the channel id to the channel name, if the provided identifier is a channel name
+		String channelName = ChannelUtil.getChannelName(identifier.trim());
+		// determine the name of the channel that should be filtered and set it as filtered channel.
+		this.filteredChannelName = (channelName != null) ? channelName : identifier.trim();
+
+		// assure that a channel is not focused and filtered at the same time
+		if (this.filteredChannelName.equals(this.focusedChannelName)) {
+			this.focusedChannelName = null;
+		}
+
+		// indicate the name of the filtered channel to the user
+		return this.filteredChannelName;
+	}
+
+	@Override
+	public String removeFilter() {
+		// read the name of the currently filtered channel
+		String filteredChannel = this.filteredChannelName;
+		// remove filter
+		this.filteredChannelName = null;
+
+		// and indicate the name of the channel from which the filter has been removed to the user
+		return filteredChannel;
+	}
+
+	@Override
+	public String onChannelDeploy(String channelId) {
+		return ((channelId == null) || channelId.trim().isEmpty()) ? null : this.channelDirectory.deployed(channelId.trim());
+	}
+
+	@Override
+	public String onChannelUndeploy(String channelId) {
+		return ((channelId == null) || channelId.trim().isEmpty()) ? null : this.channelDirectory.undeployed(channelId.trim());
+	}
+
+	@Override
+	public String setMemoryMappedChannels(String channelNamePattern) {
+		Pattern pattern = ((channelNamePattern == null) || channelNamePattern.trim().isEmpty()) ? null : Pattern.compile(channelNamePattern.trim());
+
+		synchronized (this) {
+			this.channelSinks.setMemoryMappedChannels(pattern);
+			releaseSinkChannelAppenders();
+		}
+
+		return (pattern != null) ? pattern.pattern() : null;
+	}
+
+	@Override
+	public String setBinaryChannels(String channelNamePattern) {
+		Pattern pattern = ((channelNamePattern == null) || channelNamePattern.trim().isEmpty()) ? null : Pattern.compile(channelNamePattern.trim());
+
+		synchronized (this) {
+			this.channelSinks.setBinaryChannels(pattern);
+			releaseSinkChannelAppenders();
+		}
+
+		return (pattern != null) ? pattern.pattern() : null;
+	}
+
+	@Override
+	public String setChannelGroup(String groupName, String channelNamePattern) {
+		if ((groupName == null) || groupName.trim().isEmpty() || isReservedAppender(groupName.trim())) {
+			return null;
+		}
+		groupName = groupName.trim();
+		Pattern pattern = ((channelNamePattern == null) || channelNamePattern.trim().isEmpty()) ? null : Pattern.compile(channelNamePattern.trim());
+
+		synchronized (this) {
+			this.channelSinks.setChannelGroup(groupName, pattern);
+
+			// the dedicated files of the channels that now log to the group file are not needed anymore
+			for (String appenderName : this.output.getAppenderNames()) {
+				if (!appenderName.equals(groupName) && this.channelSinks.isGrouped(appenderName)) {
+					this.output.release(appenderName);
+				}
+			}
+		}
+
+		return (pattern != null) ? groupName : null;
+	}
+
+	@Override
+	public boolean setCompression(Boolean compressRolledFiles) {
+		synchronized (this) {
+			this.channelSinks.setCompression((compressRolledFiles != null) && compressRolledFiles);
+			releaseSinkChannelAppenders();
+		}
+
+		return this.channelSinks.isCompressionEnabled();
+	}
+
+	@Override
+	public boolean setDatePartitioning(Boolean partitionByDate) {
+		synchronized (this) {
+			this.channelSinks.setDatePartitioning((partitionByDate != null) && partitionByDate);
+			releaseSinkChannelAppenders();
+		}
+
+		return this.channelSinks.isDatePartitioned();
+	}
+
+	@Override
+	public int purgeLogsBefore(String day) {
+		return ((day == null) || day.trim().isEmpty()) ? 0 : this.channelSinks.purgeDaysBefore(day.trim());
+	}
+
+	@Override
+	public String setRetention(String maxTotalSize, Integer maxAgeDays) {
+		long maxTotalBytes = ((maxTotalSize == null) || maxTotalSize.trim().isEmpty()) ? 0 : this.output.toFileSize(maxTotalSize.trim());
+		long maxAgeMillis = (maxAgeDays != null) ? TimeUnit.DAYS.toMillis(maxAgeDays) : 0;
+		this.channelSinks.setRetention(maxTotalBytes, maxAgeMillis);
+
+		return "maxTotalBytes=" + maxTotalBytes + ", maxAgeDays=" + ((maxAgeDays != null) ? maxAgeDays : 0);
+	}
+
+	@Override
+	public Map<String, ChannelStatistics> getStatistics() {
+		return this.channelSinks.getStatistics();
+	}
+
+	@Override
+	public String setRecentEvents(Integer eventsPerChannel, String maxTotalSize) {
+		long maxTotalBytes = ((maxTotalSize == null) || maxTotalSize.trim().isEmpty()) ? 0 : this.output.toFileSize(maxTotalSize.trim());
+		int events = (eventsPerChannel != null) ? eventsPerChannel : 0;
+		this.recentEvents.configure(events, maxTotalBytes);
+
+		return "eventsPerChannel=" + events + ", maxTotalBytes=" + maxTotalBytes;
+	}
+
+	@Override
+	public String[] getRecent(String channel, Integer count, String minLevel) {
+		// the channel can be referenced by its name or its id
+		String channelName = resolveChannelName(channel);
+		if ((channelName == null) || (count == null)) {
+			return new String[0];
+		}
+
+		return this.recentEvents.getRecent(channelName, count, ChannelEvent.toLevel(minLevel, ChannelEvent.TRACE));
+	}
+
+	@Override
+	public long setIndexing(String interval) {
+		long indexInterval = ((interval == null) || interval.trim().isEmpty()) ? 0 : this.output.toFileSize(interval.trim());
+		synchronized (this) {
+			this.channelSinks.setIndexInterval(indexInterval);
+			releaseSinkChannelAppenders();
+		}
+		this.logReader.setIndexInterval(indexInterval);
+
+		return this.channelSinks.getIndexInterval();
+	}
+
+	@Override
+	public boolean setMessageIndexing(Boolean indexMessages) {
+		synchronized (this) {
+			this.channelSinks.setMessageIndexing((indexMessages != null) && indexMessages);
+			releaseSinkChannelAppenders();
+		}
+
+		return this.channelSinks.isMessageIndexed();
+	}
+
+	@Override
+	public boolean setJsonOutput(Boolean writeJsonLines) {
+		boolean jsonOutput = (writeJsonLines != null) && writeJsonLines;
+		synchronized (this) {
+			this.channelSinks.setJsonOutput(jsonOutput);
+			releaseSinkChannelAppenders();
+
+			// the error log is written by a sink in JSON mode and by its appender otherwise
+			if (jsonOutput) {
+				this.output.release(errorAppenderName);
+			} else {
+				this.channelSinks.closeSink(errorAppenderName);
+			}
+		}
+		this.logReader.setJsonLines(jsonOutput);
+
+		return this.channelSinks.getJsonEncoder() != null;
+	}
+
+	@Override
+	public int setPayloadThreshold(String maxMessageSize) {
+		long threshold = ((maxMessageSize == null) || maxMessageSize.trim().isEmpty()) ? 0 : this.output.toFileSize(maxMessageSize.trim());
+		this.channelSinks.setPayloadThreshold((int) Math.min(threshold, Integer.MAX_VALUE));
+
+		PayloadSpiller payloadSpiller = this.channelSinks.getPayloadSpiller();
+		return (payloadSpiller != null) ? payloadSpiller.getThreshold() : 0;
+	}
+
+	@Override
+	public String setLoadShedding(Integer maxEventsPerSecond, Integer maxAppendMillisPerSecond) {
+		long events = (maxEventsPerSecond != null) ? maxEventsPerSecond : 0;
+		long millis = (maxAppendMillisPerSecond != null) ? maxAppendMillisPerSecond : 0;
+		this.loadShedder.configure(events, millis);
+
+		return "maxEventsPerSecond=" + Math.max(0, events) + ", maxAppendMillisPerSecond=" + Math.max(0, millis);
+	}
+
+	@Override
+	public String setSampling(String channelNamePattern, String level, String rate, String keyedBy) {
+		if ((channelNamePattern != null) && !channelNamePattern.trim().isEmpty()) {
+			int sampledLevel = ChannelEvent.toLevel(level, -1);
+			if (sampledLevel < 0) {
+				throw new IllegalArgumentException("Invalid level: " + level);
+			}
+			this.logSampler.setRule(Pattern.compile(channelNamePattern.trim()), sampledLevel,
+					((rate == null) || rate.trim().isEmpty()) ? null : rate.trim(), keyedBy);
+		}
+
+		return this.logSampler.getDescription();
+	}
+
+	@Override
+	public String setAsyncWriting(String mode) {
+		String writerMode = ((mode == null) || mode.trim().isEmpty()) ? ChannelStatistics.writerSynchronous : mode.trim().toUpperCase();
+		if (!writerMode.equals(ChannelStatistics.writerSynchronous) && !writerMode.equals(SinkExecutor.modeVirtual)
+				&& !writerMode.equals(SinkExecutor.modePool) && !writerMode.equals(SinkExecutor.modeAuto)) {
+			throw new IllegalArgumentException("Invalid writer mode: " + mode);
+		}
+
+		synchronized (this) {
+			String description = this.channelSinks.setWriterMode(writerMode.equals(ChannelStatistics.writerSynchronous) ? null : writerMode);
+			// channels that switch between log4j appenders and sinks have to be reopened
+			releaseSinkChannelAppenders();
+			return description;
+		}
+	}
+
+	@Override
+	public String setAdaptiveBuffering(String maxTotalSize) {
+		long maxTotalBytes = ((maxTotalSize == null) || maxTotalSize.trim().isEmpty()) ? 0 : this.output.toFileSize(maxTotalSize.trim());
+		synchronized (this) {
+			String description = this.channelSinks.setBuffering(maxTotalBytes);
+			// channels that switch between log4j appenders and sinks have to be reopened
+			releaseSinkChannelAppenders();
+			return description;
+		}
+	}
+
+	@Override
+	public String setWorkloadCapture(String fileName, Boolean fullMessages, String maxSize) {
+		WorkloadRecorder recorder = null;
+		if ((fileName != null) && !fileName.trim().isEmpty()) {
+			File file = new File(fileName.trim());
+			if (!file.isAbsolute()) {
+				file = new File(this.configuration.getLogFolder(), fileName.trim());
+			}
+			long maxBytes = ((maxSize == null) || maxSize.trim().isEmpty()) ? WorkloadRecorder.defaultMaxSize : this.output.toFileSize(maxSize.trim());
+			try {
+				recorder = new WorkloadRecorder(file, (fullMessages != null) && fullMessages, maxBytes);
+			} catch (IOException e) {
+				this.output.error("Unable to create the workload trace " + file, null, e);
+			}
+		}
+
+		// a running capture is ended
+		WorkloadRecorder previous;
+		synchronized (this) {
+			previous = this.workloadRecorder;
+			this.workloadRecorder = recorder;
+		}
+		if (previous != null) {
+			previous.close();
+		}
+
+		return (recorder != null) ? recorder.getDescription() : null;
+	}
+
+	@Override
+	public void bindChannel(String channelId) {
+		if ((channelId == null) || !patternUuid.matcher(channelId.trim()).matches()) {
+			throw new IllegalArgumentException("Invalid channel id: " + channelId);
+		}
+		this.output.setContextValue(contextKeyChannelId, channelId.trim());
+	}
+
+	@Override
+	public void unbindChannel() {
+		this.output.setContextValue(contextKeyChannelId, null);
+	}
+
+	@Override
+	public String setRedaction(Boolean identifiers, String terms, String pattern) {
+		List<String> literals = new ArrayList<String>();
+		if (terms != null) {
+			for (String term : terms.split(",")) {
+				if (!term.trim().isEmpty()) {
+					literals.add(term.trim());
+				}
+			}
+		}
+		Pattern masked = ((pattern == null) || pattern.trim().isEmpty()) ? null : Pattern.compile(pattern.trim());
+		boolean redactIdentifiers = (identifiers != null) && identifiers;
+
+		Redactor activeRedactor = (redactIdentifiers || !literals.isEmpty() || (masked != null)) ? new Redactor(redactIdentifiers, literals, masked)
+				: null;
+		this.redactor = activeRedactor;
+
+		return (activeRedactor != null) ? activeRedactor.getDescription() : null;
+	}
+
+	@Override
+	public String setForwarding(String address, String channelNamePattern, String framing) {
+		LogForwarder forwarder = null;
+		if ((address != null) && !address.trim().isEmpty()) {
+			Pattern channels = ((channelNamePattern == null) || channelNamePattern.trim().isEmpty()) ? null
+					: Pattern.compile(channelNamePattern.trim());
+			String frames = ((framing == null) || framing.trim().isEmpty()) ? LogForwarder.framingLines : framing.trim().toUpperCase();
+			forwarder = new LogForwarder(address.trim(), channels, frames, new File(this.configuration.getLogFolder(), LogForwarder.spoolFileName));
+		}
+
+		// a running forwarding is ended after its queued events have been sent or spooled
+		LogForwarder previous;
+		synchronized (this) {
+			previous = this.logForwarder;
+			this.logForwarder = forwarder;
+		}
+		if (previous != null) {
+			previous.close();
+		}
+
+		return (forwarder != null) ? forwarder.getDescription() : null;
+	}
+
+	@Override
+	public String getForwarding() {
+		LogForwarder forwarder = this.logForwarder;
+		return (forwarder != null) ? forwarder.getDescription() : null;
+	}
+
+	@Override
+	public String reconfigure(String customLogPath, String customMaxFileSize, Integer customMaxBackupIndex, String customLogPattern,
+			Boolean logAllToMainLog) {
+		String logLocation = null;
+		if ((customLogPath != null) && !customLogPath.trim().isEmpty()) {
+			logLocation = new File(customLogPath.trim()).getAbsolutePath();
+			try {
+				// assure that the path actually exists before anything is written to it
+				Files.createDirectories(Paths.get(logLocation));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Unable to create the log folder " + logLocation, e);
+			}
+		}
+		Long maxFileSize = null;
+		if ((customMaxFileSize != null) && !customMaxFileSize.trim().isEmpty()) {
+			maxFileSize = this.output.toFileSize(customMaxFileSize.trim());
+			if (maxFileSize <= 0) {
+				throw new IllegalArgumentException("Invalid file size: " + customMaxFileSize);
+			}
+		}
+		if ((customMaxBackupIndex != null) && (customMaxBackupIndex < 0)) {
+			throw new IllegalArgumentException("Invalid number of backups: " + customMaxBackupIndex);
+		}
+		String conversionPattern = ((customLogPattern != null) && !customLogPattern.trim().isEmpty()) ? customLogPattern : null;
+
+		synchronized (this) {
+			LogConfiguration updated = this.configuration.derive(logLocation, maxFileSize, customMaxBackupIndex, conversionPattern, logAllToMainLog);
+			// appenders and sinks are reopened with the new configuration by the next event of their channel - there is no pause for the others
+			this.output.reconfigure(updated);
+			this.channelSinks.reconfigure(updated);
+			this.logReader.configure(updated.getLogFolder(), updated.getConversionPattern());
+			this.configuration = updated;
+			return updated.getDescription();
+		}
+	}
+
+	@Override
+	public String[] readMessage(String channel, Long messageId) {
+		String channelName = resolveChannelName(channel);
+		if ((channelName == null) || (messageId == null)) {
+			return new String[0];
+		}
+
+		try {
+			return this.logReader.readMessage(flushLogFile(channelName), channelName, messageId);
+		} catch (IOException e) {
+			this.output.error("Unable to read the log of channel " + channelName, null, e);
+			return new String[0];
+		}
+	}
+
+	@Override
+	public MergedLogLines readMerged(String channels, String from, String to, String minLevel, String filter) {
+		long fromTime = ((from == null) || from.trim().isEmpty()) ? 0 : LogReader.parseTime(from);
+		long toTime = ((to == null) || to.trim().isEmpty()) ? Long.MAX_VALUE : LogReader.parseTime(to);
+		if ((channels == null) || (fromTime < 0) || (toTime < 0)) {
+			return null;
+		}
+
+		Pattern filterPattern = null;
+		if ((filter != null) && !filter.isEmpty()) {
+			try {
+				filterPattern = Pattern.compile(filter);
+			} catch (PatternSyntaxException e) {
+				return null;
+			}
+		}
+
+		// channels of a group are read from the shared log file
+		List<String> fileNames = new ArrayList<String>();
+		for (String channel : channels.split(",")) {
+			String channelName = resolveChannelName(channel);
+			if (channelName != null) {
+				fileNames.add(flushLogFile(channelName));
+			}
+		}
+
+		return this.logReader.readMerged(fileNames, fromTime, toTime, ChannelEvent.toLevel(minLevel, ChannelEvent.TRACE), filterPattern);
+	}
+
+	@Override
+	public String[] tail(String channel, Integer lineCount) {
+		String channelName = resolveChannelName(channel);
+		if ((channelName == null) || (lineCount == null) || (lineCount < 1)) {
+			return new String[0];
+		}
+
+		try {
+			return this.logReader.tail(flushLogFile(channelName), lineCount);
+		} catch (IOException e) {
+			this.output.error("Unable to read the log of channel " + channelName, null, e);
+			return new String[0];
+		}
+	}
+
+	@Override
+	public LogLines read(String channel, String from, String to) {
+		String channelName = resolveChannelName(channel);
+		long fromTime = ((from == null) || from.trim().isEmpty()) ? 0 : LogReader.parseTime(from);
+		long toTime = ((to == null) || to.trim().isEmpty()) ? Long.MAX_VALUE : LogReader.parseTime(to);
+		if ((channelName == null) || (fromTime < 0) || (toTime < 0)) {
+			return null;
+		}
+
+		return this.logReader.read(flushLogFile(channelName), fromTime, toTime);
+	}
+
+	/**
+	 * Writes the buffered and queued log entries of a channel to its log file before it is read
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return The name of the log file of the channel (which is the group name if the channel belongs to a group)
+	 */
+	private String flushLogFile(String channelName) {
+		String fileName = this.channelSinks.getFileName(channelName);
+		this.channelSinks.flushSink(fileName);
+		return fileName;
+	}
+
+	/**
+	 * Resolves a channel reference provided by a script
+	 *
+	 * @param channel
+	 *            The name or id of a channel
+	 * @return The name of the channel or null if no channel was referenced
+	 */
+	private String resolveChannelName(String channel) {
+		if ((channel == null) || channel.trim().isEmpty()) {
+			return null;
+		}
+
+		String channelName = channel.trim();
+		if (patternUuid.matcher(channelName).matches()) {
+			String resolvedName = this.channelDirectory.getChannelName(channelName);
+			if (resolvedName != null) {
+				channelName = resolvedName;
+			}
+		}
+		return channelName;
+	}
+
+	/**
+	 * Releases the file appenders of all channels that are now served by a sink, as both would write to the same file
+	 */
+	private void releaseSinkChannelAppenders() {
+		for (String appenderName : this.output.getAppenderNames()) {
+			if (this.channelSinks.isSinkChannel(appenderName)) {
+				this.output.release(appenderName);
+			}
+		}
+	}
+
+	@Override
+	public void channelDeployed(String channelId, String channelName) {
+		// open the log file of the channel in advance, so its first log event does not have to
+		String fileName = this.channelSinks.getFileName(channelName);
+		if (this.channelSinks.isSinkChannel(fileName)) {
+			try {
+				this.channelSinks.getSink(fileName);
+			} catch (IOException e) {
+				this.output.error("Unable to open the log file of channel " + channelName, null, e);
+			}
+		} else {
+			this.output.open(fileName);
+		}
+	}
+
+	@Override
+	public void channelUndeployed(String channelId, String channelName) {
+		// an undeployed channel does not need a file handle anymore
+		releaseChannel(channelName);
+		// nor a share of the memory for recent events
+		this.recentEvents.remove(channelName);
+		// nor its load
+		this.loadShedder.remove(channelName);
+	}
+
+	@Override
+	public void channelRenamed(String channelId, String oldName, String newName) {
+		// logging of the channel continues in the file named like the new channel name (unless the channel logs to a group file)
+		if (!this.channelSinks.isGrouped(oldName) && !this.channelSinks.isGrouped(newName)) {
+			releaseChannel(oldName);
+			this.channelSinks.moveActiveFile(oldName, newName);
+		}
+
+		// focus, filter and the recent events follow the channel
+		this.recentEvents.rename(oldName, newName);
+		this.loadShedder.remove(oldName);
+		if (oldName.equals(this.focusedChannelName)) {
+			this.focusedChannelName = newName;
+		}
+		if (oldName.equals(this.filteredChannelName)) {
+			this.filteredChannelName = newName;
+		}
+	}
+
+	@Override
+	public void loadSheddingChanged(String channelName, boolean raised, String announcement) {
+		// the adjustment is announced in the main log, so it is obvious why log entries are missing
+		this.output.append(mainLogAppenderName, this.output.createEvent("MetaAppender", raised ? ChannelEvent.WARN : ChannelEvent.INFO, announcement));
+	}
+
+	/**
+	 * Closes the log file of a channel. It will be reopened by the next log event of the channel.
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	private void releaseChannel(String channelName) {
+		// the shared file of a group stays open for the other channels of the group
+		if (isReservedAppender(channelName) || this.channelSinks.isGrouped(channelName)) {
+			return;
+		}
+
+		this.output.release(channelName);
+		this.channelSinks.closeSink(channelName);
+	}
+
+	/**
+	 * Stops tracking the channel deployments, closes all channel sinks and ends a running workload capture and forwarding
+	 */
+	void close() {
+		this.channelDirectory.stop();
+		this.channelSinks.close();
+		WorkloadRecorder recorder = this.workloadRecorder;
+		if (recorder != null) {
+			recorder.close();
+		}
+		LogForwarder forwarder = this.logForwarder;
+		if (forwarder != null) {
+			forwarder.close();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package lu.hrs.mirth;
+
+import java.io.IOException;
+
+/**
+ * A log destination for channel-specific log entries that is managed by the MetaAppender itself instead of a log4j appender.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+interface ChannelSink {
+
+	/**
+	 * Writes a log event to the sink
+	 *
+	 * @param event
+	 *            The event that should be written
+	 * @throws IOException
+	 *             If the event could not be written
+	 */
+	void write(ChannelEvent event) throws IOException;
+
+	/**
+	 * Assures that all events written so far have been handed over to the storage
+	 *
+	 * @throws IOException
+	 *             If the data could not be flushed
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Releases all resources held by the sink. Subsequent writes will fail.
+	 */
+	void close();
+}
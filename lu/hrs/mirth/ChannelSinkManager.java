@@ -0,0 +1,744 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the channel sinks that are handled by the MetaAppender itself instead of a log4j appender. It decides which channels are served by such
+ * a sink and caches the sink of each of these channels. Memory-mapped and binary channels are always served by a sink. If rolled files should be
+ * compressed or the log files should be partitioned by date, all other channels are served by a sink as well, as the log4j appenders are not able
+ * to rotate compressed backups or to place files in day folders.<br/>
+ * <br/>
+ * Channels can be assigned to groups. All channels of a group share a single log file named like the group. Thus sinks (and log4j appenders) are
+ * kept per log file name rather than per channel name.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class ChannelSinkManager {
+
+	private final ConcurrentHashMap<String, ChannelSink> sinks = new ConcurrentHashMap<String, ChannelSink>();
+	// sinks replaced by a reconfiguration that might still be writing their pending events - their successors wait for them
+	private final ConcurrentHashMap<String, ChannelSink> replacedSinks = new ConcurrentHashMap<String, ChannelSink>();
+	private final ConcurrentHashMap<String, ChannelStatistics> statistics = new ConcurrentHashMap<String, ChannelStatistics>();
+	private final ConcurrentHashMap<String, String> fileNames = new ConcurrentHashMap<String, String>();
+	// one roller per log file (by absolute path) - it outlives the sinks, so a reopened sink continues generation and lock of pending compressions
+	private final Map<String, LogFileRoller> rollers = new HashMap<String, LogFileRoller>();
+	private static final Pattern patternDayFolder = Pattern.compile(DatePartitionedSink.dayFolderPattern);
+	private final LogCompressor compressor = new LogCompressor();
+	private final LogJanitor janitor;
+	private final BufferSizer bufferSizer = new BufferSizer();
+	// location, size and backups of the log files - replaced as a whole by a reconfiguration
+	private volatile LogConfiguration configuration;
+	private volatile Pattern memoryMappedChannels = null;
+	private volatile Pattern binaryChannels = null;
+	private volatile boolean datePartitioned = false;
+	private volatile long indexInterval = 0;
+	private volatile boolean messageIndexed = false;
+	private volatile JsonLineEncoder jsonEncoder = null;
+	private volatile PayloadSpiller payloadSpiller = null;
+	private volatile Map<String, Pattern> channelGroups = new LinkedHashMap<String, Pattern>();
+	// runs the background writers if the log files are written asynchronously
+	private volatile SinkExecutor sinkExecutor = null;
+
+	/**
+	 * Creates a sink manager
+	 *
+	 * @param configuration
+	 *            The folder in which the log files are placed, their maximum size and the number of backups that are kept per log file
+	 */
+	ChannelSinkManager(LogConfiguration configuration) {
+		this.configuration = configuration;
+		this.janitor = new LogJanitor(configuration.getLogFolder(), this);
+	}
+
+	/**
+	 * Applies a new configuration of the log files. All sinks are replaced and reopened with the new configuration by the next event of their
+	 * channel. The replaced sinks are closed (after writing their pending events) outside the lock, so only the channel whose sink is still being
+	 * closed waits for it. Retention and payload side files follow a new log folder.
+	 *
+	 * @param configuration
+	 *            The new configuration
+	 */
+	void reconfigure(LogConfiguration configuration) {
+		Map<String, ChannelSink> replaced = new LinkedHashMap<String, ChannelSink>();
+		synchronized (sinks) {
+			boolean moved = !configuration.getLogLocation().equals(this.configuration.getLogLocation());
+			this.configuration = configuration;
+			if (moved) {
+				janitor.setFolder(configuration.getLogFolder());
+				PayloadSpiller spiller = this.payloadSpiller;
+				if (spiller != null) {
+					this.payloadSpiller = new PayloadSpiller(configuration.getLogFolder(), spiller.getThreshold());
+				}
+			}
+			replaced.putAll(sinks);
+			replacedSinks.putAll(sinks);
+			sinks.clear();
+		}
+
+		for (Map.Entry<String, ChannelSink> entry : replaced.entrySet()) {
+			closeReplacedSink(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Closes a sink that has been replaced by a reconfiguration unless this has already been done by its successor
+	 *
+	 * @param channelName
+	 *            The name of the channel (or group) of the sink
+	 * @param sink
+	 *            The replaced sink
+	 */
+	private void closeReplacedSink(String channelName, ChannelSink sink) {
+		// closing is idempotent and waits for a concurrent closing of the same sink
+		sink.close();
+		replacedSinks.remove(channelName, sink);
+	}
+
+	/**
+	 * Defines the channels that are logged to memory-mapped log files. Sinks of channels that are now served differently are closed.
+	 *
+	 * @param channelNamePattern
+	 *            A pattern matching the names of the channels that should use memory-mapped log files or null if no channel should use them
+	 */
+	void setMemoryMappedChannels(Pattern channelNamePattern) {
+		synchronized (sinks) {
+			this.memoryMappedChannels = channelNamePattern;
+			closeSinks(true);
+		}
+	}
+
+	/**
+	 * Defines the channels that are logged to binary log files (&lt;name&gt;.blog) instead of text log files. All sinks are closed, so the change
+	 * becomes effective immediately.
+	 *
+	 * @param channelNamePattern
+	 *            A pattern matching the names of the channels that should use binary log files or null if no channel should use them
+	 */
+	void setBinaryChannels(Pattern channelNamePattern) {
+		synchronized (sinks) {
+			this.binaryChannels = channelNamePattern;
+			closeSinks(false);
+		}
+	}
+
+	/**
+	 * Checks if a channel is logged to a binary log file
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if the channel is logged in the binary format, false otherwise
+	 */
+	boolean isBinary(String channelName) {
+		Pattern pattern = this.binaryChannels;
+		return (pattern != null) && (channelName != null) && pattern.matcher(channelName).matches();
+	}
+
+	/**
+	 * Provides the active log file of a channel
+	 *
+	 * @param folder
+	 *            The folder containing the log file
+	 * @param channelName
+	 *            The name of the channel or group owning the file
+	 * @return The log file, which has the extension of the binary format if the channel is logged in the binary format
+	 */
+	File getLogFile(File folder, String channelName) {
+		return new File(folder, channelName + (isBinary(channelName) ? BinaryLogFormat.extension : ".log"));
+	}
+
+	/**
+	 * Activates or deactivates the background compression of rolled log files
+	 *
+	 * @param compress
+	 *            true, if rolled log files should be compressed
+	 */
+	void setCompression(boolean compress) {
+		synchronized (sinks) {
+			compressor.setEnabled(compress);
+			// channels that switch between log4j appenders and sinks have to be reopened
+			closeSinks(true);
+		}
+	}
+
+	/**
+	 * Checks if rolled log files are compressed
+	 *
+	 * @return true, if compression is active, false otherwise
+	 */
+	boolean isCompressionEnabled() {
+		return compressor.isEnabled();
+	}
+
+	/**
+	 * Defines if the channel log files get a time index. As only sinks write indexes, all channels are served by sinks while indexing is active.
+	 * All sinks are reopened, so the change becomes effective immediately.
+	 *
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded in the index of a log file (0 for no index)
+	 */
+	void setIndexInterval(long interval) {
+		synchronized (sinks) {
+			this.indexInterval = Math.max(0, interval);
+			closeSinks(false);
+		}
+	}
+
+	/**
+	 * Provides the number of bytes after which another entry is recorded in the index of a log file
+	 *
+	 * @return The interval or 0 if log files are not indexed
+	 */
+	long getIndexInterval() {
+		return indexInterval;
+	}
+
+	/**
+	 * Defines if the log entries of Mirth messages are recorded in a message index next to each channel log file. As only sinks write indexes, all
+	 * channels are served by sinks while message indexing is active.
+	 *
+	 * @param indexed
+	 *            true, if the log entries of messages should be indexed
+	 */
+	void setMessageIndexing(boolean indexed) {
+		synchronized (sinks) {
+			this.messageIndexed = indexed;
+			closeSinks(false);
+		}
+	}
+
+	/**
+	 * Checks if the log entries of Mirth messages are indexed
+	 *
+	 * @return true, if message indexing is active, false otherwise
+	 */
+	boolean isMessageIndexed() {
+		return messageIndexed;
+	}
+
+	/**
+	 * Defines if the log entries are written as JSON lines instead of being rendered by the layout. As only sinks write JSON lines, all channels
+	 * (and the error log) are served by sinks while JSON output is active. Binary log files are not affected.
+	 *
+	 * @param jsonOutput
+	 *            true, if the log entries should be written as JSON lines
+	 */
+	void setJsonOutput(boolean jsonOutput) {
+		synchronized (sinks) {
+			// the encoder caches the encoded channel fields, so it is kept as long as JSON output is active
+			if (jsonOutput && (this.jsonEncoder == null)) {
+				this.jsonEncoder = new JsonLineEncoder();
+			} else if (!jsonOutput) {
+				this.jsonEncoder = null;
+			}
+		}
+	}
+
+	/**
+	 * Provides the encoder for JSON lines
+	 *
+	 * @return The encoder or null if the log entries are rendered by the layout
+	 */
+	JsonLineEncoder getJsonEncoder() {
+		return jsonEncoder;
+	}
+
+	/**
+	 * Defines the size above which log messages are moved to side files in the folder "payloads" of the log folder
+	 *
+	 * @param threshold
+	 *            The number of characters above which a message is moved to a side file (0 to log all messages as they are)
+	 */
+	void setPayloadThreshold(int threshold) {
+		this.payloadSpiller = (threshold > 0) ? new PayloadSpiller(configuration.getLogFolder(), threshold) : null;
+	}
+
+	/**
+	 * Provides the spiller for oversized log messages
+	 *
+	 * @return The spiller or null if all messages are logged as they are
+	 */
+	PayloadSpiller getPayloadSpiller() {
+		return payloadSpiller;
+	}
+
+	/**
+	 * Defines a group of channels that share a single log file. Sinks of channels that now belong to the group are closed.
+	 *
+	 * @param groupName
+	 *            The name of the group, which is also the name of the shared log file
+	 * @param channelNamePattern
+	 *            A pattern matching the names of the channels of the group or null to dissolve the group
+	 */
+	void setChannelGroup(String groupName, Pattern channelNamePattern) {
+		synchronized (sinks) {
+			// groups are replaced as a whole, so readers never see a partial update. The first matching group wins.
+			Map<String, Pattern> groups = new LinkedHashMap<String, Pattern>(this.channelGroups);
+			if (channelNamePattern != null) {
+				groups.put(groupName, channelNamePattern);
+			} else {
+				groups.remove(groupName);
+			}
+			this.channelGroups = groups;
+			fileNames.clear();
+
+			// the dedicated sinks of the channels of the group are not needed anymore
+			if (channelNamePattern != null) {
+				Iterator<Map.Entry<String, ChannelSink>> iterator = sinks.entrySet().iterator();
+				while (iterator.hasNext()) {
+					Map.Entry<String, ChannelSink> entry = iterator.next();
+					if (!entry.getKey().equals(groupName) && channelNamePattern.matcher(entry.getKey()).matches()) {
+						entry.getValue().close();
+						iterator.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Provides the name of the log file (without extension) to which a channel logs
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return The name of the group of the channel or the channel name itself, if the channel does not belong to a group
+	 */
+	String getFileName(String channelName) {
+		String fileName = fileNames.get(channelName);
+		if (fileName == null) {
+			fileName = channelName;
+			for (Map.Entry<String, Pattern> group : channelGroups.entrySet()) {
+				if (group.getValue().matcher(channelName).matches()) {
+					fileName = group.getKey();
+					break;
+				}
+			}
+			fileNames.put(channelName, fileName);
+		}
+		return fileName;
+	}
+
+	/**
+	 * Checks if a log layout pattern renders the logger name (which contains the channel name)
+	 *
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout
+	 * @return true, if the logger name is part of each log entry, false otherwise
+	 */
+	static boolean showsLoggerName(String conversionPattern) {
+		return (conversionPattern != null) && Pattern.compile("%-?\\d*(\\.\\d+)?(c|logger)(\\W|$)").matcher(conversionPattern).find();
+	}
+
+	/**
+	 * Checks if a channel logs to the shared log file of a group
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if the channel belongs to a group, false otherwise
+	 */
+	boolean isGrouped(String channelName) {
+		return !getFileName(channelName).equals(channelName);
+	}
+
+	/**
+	 * Activates or deactivates the placement of the channel log files in a folder per day
+	 *
+	 * @param partitioned
+	 *            true, if the channel log files should be partitioned by date
+	 */
+	void setDatePartitioning(boolean partitioned) {
+		synchronized (sinks) {
+			this.datePartitioned = partitioned;
+			closeSinks(true);
+		}
+	}
+
+	/**
+	 * Checks if the channel log files are partitioned by date
+	 *
+	 * @return true, if there is a folder per day, false otherwise
+	 */
+	boolean isDatePartitioned() {
+		return datePartitioned;
+	}
+
+	/**
+	 * Drops all day folders of days before the provided one
+	 *
+	 * @param day
+	 *            The first day that is kept (yyyy-MM-dd)
+	 * @return The number of day folders that have been deleted
+	 */
+	int purgeDaysBefore(String day) {
+		return janitor.purgeDayFoldersBefore(day);
+	}
+
+	/**
+	 * Defines the global retention limits for all log files in the log folder
+	 *
+	 * @param maxTotalBytes
+	 *            The maximum number of bytes all log files may occupy together (0 for no limit)
+	 * @param maxAgeMillis
+	 *            The maximum age of a rolled log file in milliseconds (0 for no limit)
+	 */
+	void setRetention(long maxTotalBytes, long maxAgeMillis) {
+		janitor.setLimits(maxTotalBytes, maxAgeMillis);
+	}
+
+	/**
+	 * Defines if the log files are written by background writers instead of the logging threads. As only sinks can be written in the background,
+	 * all channels are served by a sink in this case. All sinks are closed (after writing their queued events), so the change becomes effective
+	 * immediately.
+	 *
+	 * @param mode
+	 *            {@link SinkExecutor#modeVirtual}, {@link SinkExecutor#modePool}, {@link SinkExecutor#modeAuto} or null for writing on the logging
+	 *            threads
+	 * @return A description of the writer mode that is now active
+	 */
+	String setWriterMode(String mode) {
+		SinkExecutor previous;
+		SinkExecutor executor = (mode != null) ? SinkExecutor.create(mode) : null;
+		synchronized (sinks) {
+			previous = this.sinkExecutor;
+			this.sinkExecutor = executor;
+			closeSinks(false);
+		}
+		if (previous != null) {
+			previous.shutdown();
+		}
+
+		return (executor != null) ? executor.getMode() + " (" + executor.getDescription() + ")" : ChannelStatistics.writerSynchronous;
+	}
+
+	/**
+	 * Defines the memory limit for the adaptive output buffers of the log files (see {@link BufferSizer}). As log4j appenders cannot be buffered
+	 * adaptively, all channels are served by a sink while the buffering is active. All sinks are closed (which writes their buffers), so the change
+	 * becomes effective immediately.
+	 *
+	 * @param maxTotalBytes
+	 *            The maximum number of bytes all buffers may occupy together (0 deactivates the buffering)
+	 * @return A description of the buffering
+	 */
+	String setBuffering(long maxTotalBytes) {
+		synchronized (sinks) {
+			bufferSizer.setMaxTotalBytes(maxTotalBytes);
+			closeSinks(false);
+		}
+		return bufferSizer.getDescription();
+	}
+
+	/**
+	 * Writes the pending log entries of a channel to its log file, so they can be read
+	 *
+	 * @param channelName
+	 *            The name of the channel or group owning the file
+	 */
+	void flushSink(String channelName) {
+		ChannelSink sink = sinks.get(channelName);
+		if (sink != null) {
+			try {
+				sink.flush();
+			} catch (IOException e) {
+				// the log file is read as it is
+			}
+		}
+	}
+
+	/**
+	 * Checks if a channel is served by a MetaAppender sink instead of a log4j appender
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if the channel is served by a sink, false otherwise
+	 */
+	boolean isSinkChannel(String channelName) {
+		return compressor.isEnabled() || datePartitioned || (indexInterval > 0) || messageIndexed || (jsonEncoder != null) || (sinkExecutor != null)
+				|| bufferSizer.isEnabled() || isMemoryMapped(channelName) || isBinary(channelName);
+	}
+
+	/**
+	 * Checks if a channel is logged to a memory-mapped log file
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if the channel is logged to a memory-mapped file, false otherwise
+	 */
+	boolean isMemoryMapped(String channelName) {
+		Pattern pattern = this.memoryMappedChannels;
+		return (pattern != null) && (channelName != null) && pattern.matcher(channelName).matches();
+	}
+
+	/**
+	 * Checks if a sink is currently open for a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if there is a sink for the channel, false otherwise
+	 */
+	boolean hasSink(String channelName) {
+		return (channelName != null) && sinks.containsKey(channelName);
+	}
+
+	/**
+	 * Provides the sink of a channel or channel group. It is created if not yet existing.
+	 *
+	 * @param channelName
+	 *            The name of the channel or, if the channel belongs to a group, the name of the group (see {@link #getFileName(String)})
+	 * @return The sink of the channel or null if the channel is not served by a MetaAppender sink but by a log4j appender
+	 * @throws IOException
+	 *             If the sink could not be created
+	 */
+	ChannelSink getSink(String channelName) throws IOException {
+		// usually the sink is already in the cache
+		ChannelSink sink = sinks.get(channelName);
+		if ((sink != null) || !isSinkChannel(channelName)) {
+			return sink;
+		}
+
+		while (true) {
+			// the sink replaced by a reconfiguration has to be closed first, as it might still be writing the same file
+			ChannelSink replaced = replacedSinks.get(channelName);
+			if (replaced != null) {
+				closeReplacedSink(channelName, replaced);
+			}
+
+			synchronized (sinks) {
+				// it might have been created in the meantime
+				sink = sinks.get(channelName);
+				if (sink != null) {
+					return sink;
+				}
+				// unless another reconfiguration has taken place in the meantime
+				if (!replacedSinks.containsKey(channelName)) {
+					File logFolder = configuration.getLogFolder();
+					sink = datePartitioned ? new DatePartitionedSink(this, logFolder, channelName, isMemoryMapped(channelName))
+							: createFileSink(getLogFile(logFolder, channelName), channelName, isMemoryMapped(channelName));
+					// the log file might be written in the background
+					SinkExecutor executor = this.sinkExecutor;
+					ChannelStatistics channelStatistics = getStatistics(channelName);
+					if (executor != null) {
+						sink = new AsyncChannelSink(sink, executor, channelStatistics, !isBinary(channelName));
+					}
+					channelStatistics.setWriterMode((executor != null) ? executor.getMode() : ChannelStatistics.writerSynchronous);
+					sinks.put(channelName, sink);
+					return sink;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a sink writing to a specific log file
+	 *
+	 * @param file
+	 *            The active log file
+	 * @param channelName
+	 *            The name of the channel owning the file
+	 * @param memoryMapped
+	 *            true, if the file should be memory-mapped (not applicable to binary log files)
+	 * @return The sink
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	ChannelSink createFileSink(File file, String channelName, boolean memoryMapped) throws IOException {
+		LogConfiguration current = this.configuration;
+		LogFileRoller roller = getRoller(file, current.getMaxBackupIndex(), channelName);
+		if (isBinary(channelName)) {
+			// the layout is stored in each binary log file, so it can be rendered without the Mirth configuration
+			return new BinaryFileSink(roller, current.getMaxFileSize(),
+					(current.getConversionPattern() != null) ? current.getConversionPattern() : BinaryLogFormat.defaultConversionPattern);
+		}
+		return memoryMapped ? new MappedFileSink(roller, current.getMaxFileSize(), indexInterval, messageIndexed)
+				: new FileSink(roller, current.getMaxFileSize(), indexInterval, messageIndexed, bufferSizer.isEnabled() ? bufferSizer : null,
+						getStatistics(channelName));
+	}
+
+	/**
+	 * Provides the roller of a log file. It is created with the first sink of the file and reused by all later ones, so rollovers of a reopened sink
+	 * and compressions that are still pending from a previous one share the generation and the lock.
+	 *
+	 * @param file
+	 *            The active log file
+	 * @param maxBackupIndex
+	 *            The maximum number of backups of the current configuration
+	 * @param channelName
+	 *            The name of the channel owning the file
+	 * @return The roller
+	 */
+	private LogFileRoller getRoller(File file, int maxBackupIndex, String channelName) {
+		String path = file.getAbsolutePath();
+		synchronized (rollers) {
+			LogFileRoller roller = rollers.get(path);
+			if (roller != null) {
+				roller.setMaxBackupIndex(maxBackupIndex);
+				return roller;
+			}
+
+			dropPastRollers();
+			roller = new LogFileRoller(file, maxBackupIndex, compressor, getStatistics(channelName));
+			rollers.put(path, roller);
+			return roller;
+		}
+	}
+
+	/**
+	 * Drops the idle rollers of day folders that can no longer be written (before yesterday), so date partitioning does not accumulate a roller per
+	 * channel and day. Must be called while holding the lock of the rollers.
+	 */
+	private void dropPastRollers() {
+		String firstActiveDay = new SimpleDateFormat(DatePartitionedSink.dayFolderFormat)
+				.format(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+		for (Iterator<LogFileRoller> iterator = rollers.values().iterator(); iterator.hasNext();) {
+			LogFileRoller roller = iterator.next();
+			String folderName = roller.getFile().getAbsoluteFile().getParentFile().getName();
+			if (patternDayFolder.matcher(folderName).matches() && (folderName.compareTo(firstActiveDay) < 0) && roller.isIdle()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Closes the sink of a channel (e.g. because the channel has been undeployed). It is reopened with the next log event of the channel.
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	void closeSink(String channelName) {
+		synchronized (sinks) {
+			ChannelSink sink = sinks.remove(channelName);
+			if (sink != null) {
+				sink.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the active log file of a renamed channel to the new name, so logging continues in the same file. The sink of the channel has to be
+	 * closed before. Backups keep their previous name. If a log file with the new name already exists, nothing is moved.
+	 *
+	 * @param oldName
+	 *            The previous name of the channel
+	 * @param newName
+	 *            The new name of the channel
+	 * @return true, if the file has been moved, false otherwise
+	 */
+	boolean moveActiveFile(String oldName, String newName) {
+		File logFolder = configuration.getLogFolder();
+		File oldFile = getLogFile(logFolder, oldName);
+		File newFile = getLogFile(logFolder, newName);
+		// a binary log file must not continue as text log file and vice versa
+		if (datePartitioned || (isBinary(oldName) != isBinary(newName)) || !oldFile.exists() || newFile.exists() || !oldFile.renameTo(newFile)) {
+			return false;
+		}
+
+		// the indexes belong to the file
+		File oldIndex = LogIndex.getIndexFile(oldFile);
+		if (oldIndex.exists() && !oldIndex.renameTo(LogIndex.getIndexFile(newFile))) {
+			oldIndex.delete();
+		}
+		File oldMessageIndex = MessageIndex.getIndexFile(oldFile);
+		if (oldMessageIndex.exists() && !oldMessageIndex.renameTo(MessageIndex.getIndexFile(newFile))) {
+			oldMessageIndex.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Provides the statistics of a channel. They are created if not yet existing.
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return The statistics of the channel
+	 */
+	ChannelStatistics getStatistics(String channelName) {
+		ChannelStatistics channelStatistics = statistics.get(channelName);
+		if (channelStatistics == null) {
+			statistics.putIfAbsent(channelName, new ChannelStatistics(channelName));
+			channelStatistics = statistics.get(channelName);
+		}
+		return channelStatistics;
+	}
+
+	/**
+	 * Provides the statistics of all channels
+	 *
+	 * @return The statistics per channel name in alphabetical order
+	 */
+	Map<String, ChannelStatistics> getStatistics() {
+		return new TreeMap<String, ChannelStatistics>(statistics);
+	}
+
+	/**
+	 * Checks if an existing sink matches the current configuration of its channel
+	 *
+	 * @param sink
+	 *            The sink
+	 * @param channelName
+	 *            The name of the channel owning the sink
+	 * @return true, if the sink can still be used, false if it has to be replaced
+	 */
+	private boolean isSuitable(ChannelSink sink, String channelName) {
+		if (sink instanceof AsyncChannelSink) {
+			sink = ((AsyncChannelSink) sink).getSink();
+		}
+		if (sink instanceof DatePartitionedSink) {
+			return datePartitioned && (((DatePartitionedSink) sink).isMemoryMapped() == isMemoryMapped(channelName));
+		}
+		if (isBinary(channelName)) {
+			return !datePartitioned && (sink instanceof BinaryFileSink);
+		}
+		return !datePartitioned && !(sink instanceof BinaryFileSink) && ((sink instanceof MappedFileSink) == isMemoryMapped(channelName));
+	}
+
+	/**
+	 * Closes sinks
+	 *
+	 * @param obsoleteOnly
+	 *            If true, only the sinks of channels that are not served by the same kind of sink anymore are closed. Otherwise all sinks are
+	 *            closed.
+	 */
+	private void closeSinks(boolean obsoleteOnly) {
+		Iterator<Map.Entry<String, ChannelSink>> iterator = sinks.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, ChannelSink> entry = iterator.next();
+			String channelName = entry.getKey();
+			ChannelSink sink = entry.getValue();
+			if (!obsoleteOnly || !isSinkChannel(channelName) || !isSuitable(sink, channelName)) {
+				// removed first, so a writer that finds the sink closed gets its successor
+				iterator.remove();
+				sink.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes all sinks
+	 */
+	void close() {
+		synchronized (sinks) {
+			closeSinks(false);
+		}
+		for (Map.Entry<String, ChannelSink> entry : replacedSinks.entrySet()) {
+			closeReplacedSink(entry.getKey(), entry.getValue());
+		}
+		janitor.stop();
+		bufferSizer.stop();
+		compressor.shutdown();
+		SinkExecutor executor = this.sinkExecutor;
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package lu.hrs.mirth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime statistics of the log files of a channel. An instance is kept per channel and can be obtained via {@link MetaAppender#getStatistics()}.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class ChannelStatistics {
+
+	static final String writerSynchronous = "SYNC";
+	private final String channelName;
+	private final AtomicLong compressedFiles = new AtomicLong();
+	private final AtomicLong compressionBytesSaved = new AtomicLong();
+	private final AtomicLong compressionTimeNanos = new AtomicLong();
+	private final AtomicLong retentionDeletedFiles = new AtomicLong();
+	private final AtomicLong retentionDeletedBytes = new AtomicLong();
+	private final AtomicLong shedEvents = new AtomicLong();
+	private final AtomicLong sampledOutEvents = new AtomicLong();
+	private final AtomicLong redactedEvents = new AtomicLong();
+	private final AtomicInteger queuedEvents = new AtomicInteger();
+	private final AtomicInteger maxQueuedEvents = new AtomicInteger();
+	private final AtomicLong droppedEvents = new AtomicLong();
+	private volatile int loadSheddingStep = LoadShedder.stepNone;
+	private volatile String writerMode = writerSynchronous;
+	private volatile int bufferSize = 0;
+	private volatile long flushIntervalMillis = 0;
+	private volatile long writeBytesPerSecond = 0;
+
+	/**
+	 * Creates the statistics of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	ChannelStatistics(String channelName) {
+		this.channelName = channelName;
+	}
+
+	/**
+	 * Records a finished compression of a rolled log file
+	 *
+	 * @param bytesSaved
+	 *            The difference between the uncompressed and the compressed file size
+	 * @param nanos
+	 *            The time it took to compress the file
+	 */
+	void compressionFinished(long bytesSaved, long nanos) {
+		compressedFiles.incrementAndGet();
+		compressionBytesSaved.addAndGet(bytesSaved);
+		compressionTimeNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records the deletion of a rolled log file by the retention
+	 *
+	 * @param bytes
+	 *            The size of the deleted file
+	 */
+	void retentionDeleted(long bytes) {
+		retentionDeletedFiles.incrementAndGet();
+		retentionDeletedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records a log event that has been dropped by the load shedding
+	 */
+	void eventShed() {
+		shedEvents.incrementAndGet();
+	}
+
+	/**
+	 * Records a log event that has been skipped by a sampling rule
+	 */
+	void eventSampledOut() {
+		sampledOutEvents.incrementAndGet();
+	}
+
+	/**
+	 * Records a log event whose message has been redacted
+	 */
+	void eventRedacted() {
+		redactedEvents.incrementAndGet();
+	}
+
+	/**
+	 * Records an adjustment of the threshold by the load shedding
+	 *
+	 * @param step
+	 *            The current step of the load shedding
+	 */
+	void setLoadSheddingStep(int step) {
+		loadSheddingStep = step;
+	}
+
+	/**
+	 * Records how the log file of the channel is written
+	 *
+	 * @param mode
+	 *            {@link #writerSynchronous}, {@link SinkExecutor#modeVirtual} or {@link SinkExecutor#modePool}
+	 */
+	void setWriterMode(String mode) {
+		writerMode = mode;
+	}
+
+	/**
+	 * Records a sizing decision for the output buffer of the log file
+	 *
+	 * @param bufferSize
+	 *            The size of the buffer in bytes (0 if the log file is not buffered)
+	 * @param flushIntervalMillis
+	 *            The maximum time a log entry stays in the buffer
+	 * @param bytesPerSecond
+	 *            The moving average of the write rate on which the decision is based
+	 */
+	void setBuffering(int bufferSize, long flushIntervalMillis, long bytesPerSecond) {
+		this.bufferSize = bufferSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.writeBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Records a log event that is waiting for the background writer
+	 */
+	void eventQueued() {
+		int depth = queuedEvents.incrementAndGet();
+		int max = maxQueuedEvents.get();
+		while ((depth > max) && !maxQueuedEvents.compareAndSet(max, depth)) {
+			max = maxQueuedEvents.get();
+		}
+	}
+
+	/**
+	 * Records a log event that has been taken over by the background writer
+	 */
+	void eventDequeued() {
+		queuedEvents.decrementAndGet();
+	}
+
+	/**
+	 * Records a log event that has been dropped because the queue of the background writer was full
+	 */
+	void eventDropped() {
+		droppedEvents.incrementAndGet();
+	}
+
+	/**
+	 * @return The name of the channel
+	public String getChannelName() {
+		return channelName;
+	}
+
+	/**
+	 * @return The number of rolled log files that have been compressed
+	 */
+	public long getCompressedFiles() {
+		return compressedFiles.get();
+	}
+
+	/**
+	 * @return The number of bytes that have been saved by compressing rolled log files
+	 */
+	public long getCompressionBytesSaved() {
+		return compressionBytesSaved.get();
+	}
+
+	/**
+	 * @return The total time spent on compressing rolled log files in milliseconds
+	 */
+	public long getCompressionTimeMillis() {
+		return compressionTimeNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return The number of rolled log files that have been deleted to enforce the global disk budget or maximum age
+	 */
+	public long getRetentionDeletedFiles() {
+		return retentionDeletedFiles.get();
+	}
+
+	/**
+	 * @return The number of bytes that have been freed to enforce the global disk budget or maximum age
+	 */
+	public long getRetentionDeletedBytes() {
+		return retentionDeletedBytes.get();
+	}
+
+	/**
+	 * @return The number of log events that have been dropped by the load shedding
+	 */
+	public long getShedEvents() {
+		return shedEvents.get();
+	}
+
+	/**
+	 * @return The current step of the load shedding: NONE, DEBUG_OFF or INFO_SAMPLED
+	 */
+	public String getLoadShedding() {
+		return LoadShedder.getStepName(loadSheddingStep);
+	}
+
+	/**
+	 * @return The number of log events that have been skipped by sampling rules
+	 */
+	public long getSampledOutEvents() {
+		return sampledOutEvents.get();
+	}
+
+	/**
+	 * @return The number of log events whose message contained patient identifiers or other sensitive terms that have been masked
+	 */
+	public long getRedactedEvents() {
+		return redactedEvents.get();
+	}
+
+	/**
+	 * @return How the log file is written: SYNC (by the logging thread), VIRTUAL (by a virtual thread) or POOL (by a pool of background threads)
+	 */
+	public String getWriterMode() {
+		return writerMode;
+	}
+
+	/**
+	 * @return The number of log events that are currently waiting for the background writer
+	 */
+	public int getQueuedEvents() {
+		return queuedEvents.get();
+	}
+
+	/**
+	 * @return The highest number of log events that have been waiting for the background writer at the same time
+	 */
+	public int getMaxQueuedEvents() {
+		return maxQueuedEvents.get();
+	}
+
+	/**
+	 * @return The number of log events that have been dropped because the queue of the background writer was full
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * @return The size of the output buffer of the log file in bytes (0 if it is not buffered)
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return The maximum time in milliseconds a log entry stays in the output buffer before it is written to the log file
+	 */
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	/**
+	 * @return The moving average of the bytes written to the log file per second, as observed by the buffer sizing
+	 */
+	public long getWriteBytesPerSecond() {
+		return writeBytesPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		return channelName + " [compressedFiles=" + getCompressedFiles() + ", compressionBytesSaved=" + getCompressionBytesSaved()
+				+ ", compressionTimeMillis=" + getCompressionTimeMillis() + ", retentionDeletedFiles=" + getRetentionDeletedFiles()
+				+ ", retentionDeletedBytes=" + getRetentionDeletedBytes() + ", loadShedding=" + getLoadShedding() + ", shedEvents=" + getShedEvents()
+				+ ", sampledOutEvents=" + getSampledOutEvents() + ", redactedEvents=" + getRedactedEvents() + ", writerMode=" + getWriterMode()
+				+ ", queuedEvents=" + getQueuedEvents() + ", maxQueuedEvents=" + getMaxQueuedEvents() + ", droppedEvents=" + getDroppedEvents()
+				+ ", bufferSize=" + getBufferSize()
+				+ ", flushIntervalMillis=" + getFlushIntervalMillis() + ", writeBytesPerSecond=" + getWriteBytesPerSecond() + "]";
+	}
+}
@@ -0,0 +1,123 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * A channel sink that places the log files of a channel in a folder per day (&lt;log folder&gt;/&lt;yyyy-MM-dd&gt;/&lt;channel&gt;.log). A new
+ * file is started at midnight. Within a day, the file is rolled over by size like a regular log file.<br/>
+ * <br/>
+ * As all log files of a day are located in the same folder, purging logs by age just means dropping whole day folders and finding the logs of a
+ * specific day does not require scanning all log files.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class DatePartitionedSink implements ChannelSink {
+
+	static final String dayFolderFormat = "yyyy-MM-dd";
+	static final String dayFolderPattern = "\\d{4}-\\d{2}-\\d{2}";
+	private final SimpleDateFormat dayFormat = new SimpleDateFormat(dayFolderFormat);
+	private final ChannelSinkManager sinkManager;
+	private final File logLocation;
+	private final String channelName;
+	private final boolean memoryMapped;
+	private ChannelSink currentSink = null;
+	private long nextDayStart = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates a date-partitioned sink for a channel
+	 *
+	 * @param sinkManager
+	 *            The sink manager creating the sink of each day
+	 * @param logLocation
+	 *            The folder containing the day folders
+	 * @param channelName
+	 *            The name of the channel
+	 * @param memoryMapped
+	 *            true, if the files of each day should be memory-mapped
+	 */
+	DatePartitionedSink(ChannelSinkManager sinkManager, File logLocation, String channelName, boolean memoryMapped) {
+		this.sinkManager = sinkManager;
+		this.logLocation = logLocation;
+		this.channelName = channelName;
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Checks if the files of each day are memory-mapped
+	 *
+	 * @return true, if memory-mapped files are used, false otherwise
+	 */
+	boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	@Override
+	public synchronized void write(ChannelEvent event) throws IOException {
+		if (closed) {
+			throw new IOException("The log of channel " + channelName + " has already been closed");
+		}
+
+		// events that arrive slightly late around midnight are written to the new day - a day is never reopened
+		if ((currentSink == null) || (event.getTimeStamp() >= nextDayStart)) {
+			startDay(event.getTimeStamp());
+		}
+
+		currentSink.write(event);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (currentSink != null) {
+			currentSink.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (currentSink != null) {
+			currentSink.close();
+			currentSink = null;
+		}
+		closed = true;
+	}
+
+	/**
+	 * Closes the log file of the previous day and opens the one of the day to which the provided point in time belongs
+	 *
+	 * @param timeStamp
+	 *            A point in time of the new day
+	 * @throws IOException
+	 *             If the new log file could not be opened
+	 */
+	private void startDay(long timeStamp) throws IOException {
+		if (currentSink != null) {
+			currentSink.close();
+			currentSink = null;
+		}
+
+		// determine the boundaries of the day
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timeStamp);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		Date dayStart = calendar.getTime();
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		nextDayStart = calendar.getTimeInMillis();
+
+		// assure that the day folder exists
+		File dayFolder = new File(logLocation, dayFormat.format(dayStart));
+		Files.createDirectories(dayFolder.toPath());
+
+		currentSink = sinkManager.createFileSink(sinkManager.getLogFile(dayFolder, channelName), channelName, memoryMapped);
+	}
+}
@@ -0,0 +1,273 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A channel sink that appends log entries to a regular log file. It behaves like a log4j rolling file appender but leaves the rotation of the log
+ * file to a {@link LogFileRoller}, which is able to handle compressed backups.<br/>
+ * <br/>
+ * If adaptive buffering is active, the log entries are collected in an output buffer whose size and flush interval are adjusted to the write rate
+ * of the channel by the {@link BufferSizer}. Otherwise each log entry is written right away.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class FileSink implements ChannelSink {
+
+	private final File file;
+	private final long maxFileSize;
+	private final LogFileRoller roller;
+	private final long indexInterval;
+	private final boolean messageIndexed;
+	private final BufferSizer bufferSizer;
+	private FileOutputStream out = null;
+	private LogIndex index = null;
+	private MessageIndex messageIndex = null;
+	private long size = 0;
+	// the size at which the file is rolled over (beyond the maximum size while a failed rollover is postponed)
+	private long rollSize;
+	// set by close() - the file is also closed (without this flag) if it could not be reopened after a rollover
+	private boolean closed = false;
+	// the output buffer (null if the log entries are written right away)
+	private byte[] buffer = null;
+	private int buffered = 0;
+	private long flushIntervalMillis = 0;
+	private long lastFlush = 0;
+	private long bytesWritten = 0;
+
+	/**
+	 * Creates a sink that writes to a log file. If the file already exists, new entries are appended to it.
+	 *
+	 * @param roller
+	 *            The roller of the log file
+	 * @param maxFileSize
+	 *            The maximum size of a log file until it is rolled over
+	 * @param indexInterval
+	 *            The number of bytes after which another entry is recorded in the index of the log file (0 for no index)
+	 * @param messageIndexed
+	 *            true, if the log entries should be recorded in a message index
+	 * @param bufferSizer
+	 *            The sizer of the output buffer (null if the log entries should be written right away)
+	 * @param statistics
+	 *            The statistics of the channel owning the file (only needed with a buffer sizer)
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	FileSink(LogFileRoller roller, long maxFileSize, long indexInterval, boolean messageIndexed, BufferSizer bufferSizer, ChannelStatistics statistics)
+			throws IOException {
+		this.file = roller.getFile();
+		this.maxFileSize = maxFileSize;
+		this.rollSize = maxFileSize;
+		this.roller = roller;
+		this.indexInterval = indexInterval;
+		this.messageIndexed = messageIndexed;
+		this.bufferSizer = bufferSizer;
+		open();
+		if (bufferSizer != null) {
+			bufferSizer.register(this, statistics);
+		}
+	}
+
+	@Override
+	public synchronized void write(ChannelEvent event) throws IOException {
+		if (closed) {
+			throw new IOException("The log file " + file + " has already been closed");
+		}
+		if (out == null) {
+			// the file could not be reopened after a rollover - try again
+			open();
+		}
+
+		byte[] entry = event.getEncoded();
+
+		// start a new file if the entry would exceed the maximum file size
+		IOException rollFailure = null;
+		if ((size > 0) && (size + entry.length > rollSize)) {
+			rollFailure = roll();
+		}
+
+		if (index != null) {
+			index.add(event.getTimeStamp(), size);
+		}
+		if ((messageIndex != null) && (event.getMessageId() != MessageIndex.noMessage)) {
+			messageIndex.add(event.getMessageId(), event.getChannelName(), size, entry.length);
+		}
+		if ((buffer != null) && (entry.length <= buffer.length)) {
+			if (buffered + entry.length > buffer.length) {
+				flushBuffer();
+			}
+			System.arraycopy(entry, 0, buffer, buffered, entry.length);
+			buffered += entry.length;
+		} else {
+			// the order of the entries has to be kept
+			flushBuffer();
+			out.write(entry);
+		}
+		size += entry.length;
+		bytesWritten += entry.length;
+
+		if (rollFailure != null) {
+			throw new IOException("The log file " + file + " could not be rolled over and is continued", rollFailure);
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (out != null) {
+			flushBuffer();
+			out.flush();
+			if (index != null) {
+				index.flush();
+			}
+			if (messageIndex != null) {
+				messageIndex.flush();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (bufferSizer != null) {
+			bufferSizer.unregister(this);
+		}
+		if (out == null) {
+			return;
+		}
+		try {
+			closeFiles();
+		} catch (IOException e) {
+			// nothing that could be done about it anymore
+		}
+	}
+
+	/**
+	 * Writes the buffered log entries to the file if they have been buffered for the flush interval
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 */
+	synchronized void flushIfDue(long now) {
+		if ((out != null) && (buffered > 0) && (now - lastFlush >= flushIntervalMillis)) {
+			try {
+				flushBuffer();
+			} catch (IOException e) {
+				// the entries are written with the next log entry
+			}
+		}
+	}
+
+	/**
+	 * Adjusts the output buffer. The buffered log entries are written first.
+	 *
+	 * @param bufferSize
+	 *            The new size of the buffer (0 for writing the log entries right away)
+	 * @param flushIntervalMillis
+	 *            The maximum time a log entry stays in the buffer
+	 */
+	synchronized void resize(int bufferSize, long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+		if (((buffer != null) ? buffer.length : 0) == bufferSize) {
+			return;
+		}
+		if (out != null) {
+			try {
+				flushBuffer();
+			} catch (IOException e) {
+				// the buffer is kept till it could be written
+				return;
+			}
+		}
+		buffer = (bufferSize > 0) ? new byte[bufferSize] : null;
+	}
+
+	/**
+	 * Provides the number of bytes written since the sink has been created
+	 *
+	 * @return The number of bytes
+	 */
+	synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Writes the buffered log entries to the file
+	 *
+	 * @throws IOException
+	 *             If the entries could not be written
+	 */
+	private void flushBuffer() throws IOException {
+		lastFlush = System.currentTimeMillis();
+		if (buffered > 0) {
+			out.write(buffer, 0, buffered);
+			buffered = 0;
+		}
+	}
+
+	/**
+	 * Rolls over the log file and opens a new one. If the rollover fails, the current file is continued (like the log4j appenders do) and the
+	 * rollover is retried once another maximum file size has been written, so the channel keeps logging without retrying it for each entry.
+	 *
+	 * @return null, if the file has been rolled over, otherwise the reason why the current file is continued
+	 * @throws IOException
+	 *             If neither a new file nor the current one could be opened
+	 */
+	private IOException roll() throws IOException {
+		IOException failure = null;
+		try {
+			closeFiles();
+			roller.roll();
+		} catch (IOException e) {
+			failure = e;
+		}
+		open();
+		rollSize = (failure == null) ? maxFileSize : size + maxFileSize;
+		return failure;
+	}
+
+	/**
+	 * Opens the active log file for appending
+	 *
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	private void open() throws IOException {
+		out = new FileOutputStream(file, true);
+		size = file.length();
+		index = (indexInterval > 0) ? new LogIndex(file, size, indexInterval) : null;
+		messageIndex = messageIndexed ? new MessageIndex(file, size) : null;
+	}
+
+	/**
+	 * Closes the active log file and its indexes
+	 *
+	 * @throws IOException
+	 *             If the log file could not be closed
+	 */
+	private void closeFiles() throws IOException {
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+		if (messageIndex != null) {
+			messageIndex.close();
+			messageIndex = null;
+		}
+		try {
+			flushBuffer();
+		} finally {
+			buffered = 0;
+			try {
+				out.close();
+			} finally {
+				out = null;
+			}
+		}
+	}
+}
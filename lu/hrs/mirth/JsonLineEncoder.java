@@ -0,0 +1,274 @@
+package lu.hrs.mirth;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes log events as JSON Lines, so log shippers do not have to parse the text of the pattern layout. Each event becomes a single line:<br/>
+ * <br/>
+ * <code>{"timestamp":"2024-01-31T10:02:00.123+01:00","level":"WARN","channel":"Lab_In","channelId":"...","logger":"...","thread":"...","message":"...","exception":"..."}</code><br/>
+ * <br/>
+ * Channel and exception are omitted if the event has none. The encoder writes the UTF-8 bytes directly without intermediate objects. The fragment
+ * containing the channel name and id is escaped only once per channel and the date part of the time stamp only once per second.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class JsonLineEncoder {
+
+	// the format of the time stamps as understood by the TimeStampParser
+	static final String timeStampFormat = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+	private static final byte[] hexDigits = "0123456789abcdef".getBytes();
+	private static final byte[] fieldTimeStamp = "{\"timestamp\":\"".getBytes();
+	private static final byte[] fieldLevel = "\",\"level\":\"".getBytes();
+	private static final byte[] fieldChannel = "\"channel\":\"".getBytes();
+	private static final byte[] fieldChannelId = "\",\"channelId\":\"".getBytes();
+	private static final byte[] fragmentEnd = "\",".getBytes();
+	private static final byte[] fieldLogger = "\"logger\":\"".getBytes();
+	private static final byte[] fieldThread = "\",\"thread\":\"".getBytes();
+	private static final byte[] fieldMessage = "\",\"message\":\"".getBytes();
+	private static final byte[] fieldException = "\",\"exception\":\"".getBytes();
+	private static final byte[] lineEnd = "\"}\n".getBytes();
+	private static final byte[][] levels = new byte[ChannelEvent.FATAL + 1][];
+	private final ConcurrentHashMap<String, ChannelFragment> channelFragments = new ConcurrentHashMap<String, ChannelFragment>();
+	private volatile SecondFragment currentSecond = null;
+
+	static {
+		for (int level = ChannelEvent.TRACE; level <= ChannelEvent.FATAL; level++) {
+			levels[level] = (ChannelEvent.getLevelName(level) + "\",").getBytes();
+		}
+	}
+
+	/**
+	 * Encodes a log event
+	 *
+	 * @param event
+	 *            The event
+	 * @return The JSON line including the line feed
+	 */
+	byte[] encode(ChannelEvent event) {
+		String message = event.getRenderedMessage();
+		String exception = event.getThrowableText();
+		Buffer buffer = new Buffer(256 + ((message != null) ? message.length() : 0) + ((exception != null) ? exception.length() : 0));
+
+		buffer.append(fieldTimeStamp);
+		appendTimeStamp(buffer, event.getTimeStamp());
+		buffer.append(fieldLevel);
+		buffer.append(levels[Math.max(ChannelEvent.TRACE, Math.min(ChannelEvent.FATAL, event.getLevel()))]);
+		if (event.getChannelName() != null) {
+			buffer.append(getChannelFragment(event.getChannelName(), event.getChannelId()));
+		}
+		buffer.append(fieldLogger);
+		buffer.appendEscaped(event.getLoggerName());
+		buffer.append(fieldThread);
+		buffer.appendEscaped(event.getThreadName());
+		buffer.append(fieldMessage);
+		buffer.appendEscaped(message);
+		if (exception != null) {
+			buffer.append(fieldException);
+			buffer.appendEscaped(exception);
+		}
+		buffer.append(lineEnd);
+
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Provides the pre-encoded fields of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @param channelId
+	 *            The id of the channel (OPTIONAL)
+	 * @return The channel and channel id fields including the trailing comma
+	 */
+	private byte[] getChannelFragment(String channelName, String channelId) {
+		ChannelFragment fragment = channelFragments.get(channelName);
+		// the fragment has to be refreshed if the id has become known or a channel has been recreated with the same name
+		if ((fragment == null) || ((channelId != null) && !channelId.equals(fragment.channelId))) {
+			Buffer buffer = new Buffer(64 + channelName.length());
+			buffer.append(fieldChannel);
+			buffer.appendEscaped(channelName);
+			if (channelId != null) {
+				buffer.append(fieldChannelId);
+				buffer.appendEscaped(channelId);
+			}
+			buffer.append(fragmentEnd);
+			fragment = new ChannelFragment(channelId, buffer.toByteArray());
+			channelFragments.put(channelName, fragment);
+		}
+		return fragment.encoded;
+	}
+
+	/**
+	 * Adds a time stamp in ISO8601 format with the offset of the local time zone
+	 *
+	 * @param buffer
+	 *            The destination
+	 * @param timeStamp
+	 *            The time stamp in milliseconds since epoch
+	 */
+	private void appendTimeStamp(Buffer buffer, long timeStamp) {
+		long second = Math.floorDiv(timeStamp, 1000);
+		SecondFragment fragment = currentSecond;
+		if ((fragment == null) || (fragment.second != second)) {
+			// date, time and offset only change once per second
+			fragment = new SecondFragment(second);
+			currentSecond = fragment;
+		}
+
+		buffer.append(fragment.dateTime);
+		int millis = Math.floorMod((int) (timeStamp % 1000), 1000);
+		buffer.append((byte) ('0' + millis / 100));
+		buffer.append((byte) ('0' + (millis / 10) % 10));
+		buffer.append((byte) ('0' + millis % 10));
+		buffer.append(fragment.offset);
+	}
+
+	/**
+	 * The encoded fields of a channel
+	 */
+	private static class ChannelFragment {
+		private final String channelId;
+		private final byte[] encoded;
+
+		ChannelFragment(String channelId, byte[] encoded) {
+			this.channelId = channelId;
+			this.encoded = encoded;
+		}
+	}
+
+	/**
+	 * The encoded date and time of a second (without milliseconds) and the offset of the time zone at that point in time
+	 */
+	private static class SecondFragment {
+		private final long second;
+		private final byte[] dateTime;
+		private final byte[] offset;
+
+		SecondFragment(long second) {
+			this.second = second;
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(second * 1000);
+			this.dateTime = String.format("%04d-%02d-%02dT%02d:%02d:%02d.", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+					calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND))
+					.getBytes();
+
+			int offsetMinutes = TimeZone.getDefault().getOffset(second * 1000) / 60000;
+			this.offset = (offsetMinutes == 0) ? "Z".getBytes()
+					: String.format("%s%02d:%02d", (offsetMinutes < 0) ? "-" : "+", Math.abs(offsetMinutes) / 60, Math.abs(offsetMinutes) % 60).getBytes();
+		}
+	}
+
+	/**
+	 * A growing byte array that escapes text according to JSON and encodes it in UTF-8
+	 */
+	private static class Buffer {
+		private byte[] bytes;
+		private int length = 0;
+
+		Buffer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void append(byte value) {
+			ensureCapacity(1);
+			bytes[length++] = value;
+		}
+
+		void append(byte[] values) {
+			ensureCapacity(values.length);
+			System.arraycopy(values, 0, bytes, length, values.length);
+			length += values.length;
+		}
+
+		/**
+		 * Adds the content of a JSON string
+		 *
+		 * @param text
+		 *            The text (null is added as empty text)
+		 */
+		void appendEscaped(String text) {
+			if (text == null) {
+				return;
+			}
+			// most characters need a single byte - more room is made when needed
+			ensureCapacity(text.length());
+
+			for (int index = 0; index < text.length(); index++) {
+				char character = text.charAt(index);
+				if ((character >= 0x20) && (character < 0x80) && (character != '"') && (character != '\\')) {
+					ensureCapacity(1);
+					bytes[length++] = (byte) character;
+				} else if (character < 0x80) {
+					appendEscapedAscii(character);
+				} else if (character < 0x800) {
+					ensureCapacity(2);
+					bytes[length++] = (byte) (0xC0 | (character >> 6));
+					bytes[length++] = (byte) (0x80 | (character & 0x3F));
+				} else if (Character.isHighSurrogate(character) && (index + 1 < text.length()) && Character.isLowSurrogate(text.charAt(index + 1))) {
+					int codePoint = Character.toCodePoint(character, text.charAt(++index));
+					ensureCapacity(4);
+					bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+					bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(character)) {
+					// a broken surrogate pair cannot be encoded in UTF-8
+					append((byte) '?');
+				} else {
+					ensureCapacity(3);
+					bytes[length++] = (byte) (0xE0 | (character >> 12));
+					bytes[length++] = (byte) (0x80 | ((character >> 6) & 0x3F));
+					bytes[length++] = (byte) (0x80 | (character & 0x3F));
+				}
+			}
+		}
+
+		/**
+		 * Adds a quote, a backslash or a control character as escape sequence
+		 *
+		 * @param character
+		 *            The character
+		 */
+		private void appendEscapedAscii(char character) {
+			ensureCapacity(6);
+			bytes[length++] = '\\';
+			switch (character) {
+			case '"':
+			case '\\':
+				bytes[length++] = (byte) character;
+				break;
+			case '\n':
+				bytes[length++] = 'n';
+				break;
+			case '\r':
+				bytes[length++] = 'r';
+				break;
+			case '\t':
+				bytes[length++] = 't';
+				break;
+			default:
+				bytes[length++] = 'u';
+				bytes[length++] = '0';
+				bytes[length++] = '0';
+				bytes[length++] = hexDigits[character >> 4];
+				bytes[length++] = hexDigits[character & 0xF];
+				break;
+			}
+		}
+
+		private void ensureCapacity(int additional) {
+			if (length + additional > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+			}
+		}
+
+		byte[] toByteArray() {
+			return (length == bytes.length) ? bytes : Arrays.copyOf(bytes, length);
+		}
+	}
+}
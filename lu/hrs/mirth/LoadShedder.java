@@ -0,0 +1,293 @@
+package lu.hrs.mirth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects message processing from being slowed down by logging during incident storms. The number of log events and the time spent on appending
+ * them are measured per second. If a budget is exceeded, the threshold of the noisiest channel is raised by one step:
+ * <ol>
+ * <li>DEBUG and TRACE entries are dropped</li>
+ * <li>additionally, only one of {@value #infoSamplingRate} INFO entries is kept</li>
+ * </ol>
+ * This is repeated each second until the load is within the budget again. WARN, ERROR and FATAL entries are never dropped. Once the load has stayed
+ * below half of the budget for {@value #recoverySeconds} seconds, the channels get back their regular thresholds one step at a time.<br/>
+ * <br/>
+ * Each adjustment is reported to the listener and counted in the {@link ChannelStatistics} of the channel.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LoadShedder {
+
+	/**
+	 * Is informed about adjustments of the thresholds
+	 */
+	interface Listener {
+
+		/**
+		 * The threshold of a channel has been adjusted
+		 *
+		 * @param channelName
+		 *            The name of the channel
+		 * @param raised
+		 *            true, if more log entries of the channel are dropped now, false if fewer are dropped
+		 * @param announcement
+		 *            A description of the adjustment for the main log
+		 */
+		void loadSheddingChanged(String channelName, boolean raised, String announcement);
+	}
+
+	static final int stepNone = 0;
+	static final int stepDebugOff = 1;
+	static final int stepInfoSampled = 2;
+	static final int infoSamplingRate = 10;
+	static final int recoverySeconds = 10;
+	private static final long windowMillis = 1000;
+	// a channel has to cause at least 1/minShare of the load to be limited
+	private static final int minShare = 10;
+	private static final String[] stepDescriptions = { "all log entries are written", "DEBUG and TRACE entries are dropped",
+			"DEBUG and TRACE entries are dropped, only 1 of " + infoSamplingRate + " INFO entries is written" };
+	private final ConcurrentHashMap<String, ChannelLoad> loads = new ConcurrentHashMap<String, ChannelLoad>();
+	private final ChannelSinkManager sinkManager;
+	private final Listener listener;
+	private final AtomicLong windowEvents = new AtomicLong();
+	private final AtomicLong windowNanos = new AtomicLong();
+	private final AtomicBoolean evaluating = new AtomicBoolean(false);
+	private volatile long windowStart = System.currentTimeMillis();
+	private volatile long maxEventsPerSecond = 0;
+	private volatile long maxAppendNanosPerSecond = 0;
+	// only accessed by the thread that evaluates the window
+	private long quietMillis = 0;
+
+	/**
+	 * Creates an inactive load shedder
+	 *
+	 * @param sinkManager
+	 *            The sink manager keeping the statistics of the channels
+	 * @param listener
+	 *            The listener that is informed about adjustments
+	 */
+	LoadShedder(ChannelSinkManager sinkManager, Listener listener) {
+		this.sinkManager = sinkManager;
+		this.listener = listener;
+	}
+
+	/**
+	 * Defines the budget for logging. Changing the budget restores the regular thresholds of all channels.
+	 *
+	 * @param maxEventsPerSecond
+	 *            The maximum number of log events per second (0 for no limit)
+	 * @param maxAppendMillisPerSecond
+	 *            The maximum time all threads together may spend on appending log events per second (0 for no limit)
+	 */
+	void configure(long maxEventsPerSecond, long maxAppendMillisPerSecond) {
+		this.maxEventsPerSecond = Math.max(0, maxEventsPerSecond);
+		this.maxAppendNanosPerSecond = Math.max(0, maxAppendMillisPerSecond) * 1000000;
+
+		for (Map.Entry<String, ChannelLoad> entry : loads.entrySet()) {
+			if (entry.getValue().step != stepNone) {
+				setStep(entry.getKey(), entry.getValue(), stepNone, "the log budget has been changed");
+			}
+		}
+		loads.clear();
+	}
+
+	/**
+	 * Checks if a budget has been defined
+	 *
+	 * @return true, if the load is watched, false otherwise
+	 */
+	boolean isEnabled() {
+		return (maxEventsPerSecond > 0) || (maxAppendNanosPerSecond > 0);
+	}
+
+	/**
+	 * Decides if a log event is written or dropped
+	 *
+	 * @param channelName
+	 *            The name of the channel that has caused the event (OPTIONAL)
+	 * @param level
+	 *            The level of the event
+	 * @return true, if the event should be written, false if it is dropped
+	 */
+	boolean accept(String channelName, int level) {
+		if ((channelName == null) || (level >= ChannelEvent.WARN) || !isEnabled()) {
+			return true;
+		}
+		ChannelLoad load = loads.get(channelName);
+		if ((load == null) || (load.step == stepNone)) {
+			return true;
+		}
+
+		// INFO entries are sampled in the highest step
+		if ((level == ChannelEvent.INFO) && ((load.step < stepInfoSampled) || (load.infoEvents.getAndIncrement() % infoSamplingRate == 0))) {
+			return true;
+		}
+		sinkManager.getStatistics(channelName).eventShed();
+		return false;
+	}
+
+	/**
+	 * Records a log event that has been written. Once per second, the load is compared to the budget.
+	 *
+	 * @param channelName
+	 *            The name of the channel that has caused the event (OPTIONAL)
+	 * @param nanos
+	 *            The time it took to append the event
+	 */
+	void record(String channelName, long nanos) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		windowEvents.incrementAndGet();
+		windowNanos.addAndGet(nanos);
+		if (channelName != null) {
+			ChannelLoad load = loads.get(channelName);
+			if (load == null) {
+				loads.putIfAbsent(channelName, new ChannelLoad());
+				load = loads.get(channelName);
+			}
+			load.events.incrementAndGet();
+			load.nanos.addAndGet(nanos);
+		}
+
+		// only a single thread evaluates the finished window - all others continue logging
+		long now = System.currentTimeMillis();
+		if ((now - windowStart >= windowMillis) && evaluating.compareAndSet(false, true)) {
+			try {
+				evaluate(now);
+			} finally {
+				evaluating.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the load of a channel, e.g. because it has been undeployed
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	void remove(String channelName) {
+		ChannelLoad load = loads.remove(channelName);
+		if ((load != null) && (load.step != stepNone)) {
+			sinkManager.getStatistics(channelName).setLoadSheddingStep(stepNone);
+		}
+	}
+
+	/**
+	 * Compares the load of the finished window to the budget and adjusts the thresholds of the channels
+	 *
+	 * @param now
+	 *            The end of the window
+	 */
+	private void evaluate(long now) {
+		long elapsedMillis = Math.max(1, now - windowStart);
+		windowStart = now;
+		// the load is normalized to a second, as there might have been a pause without any events
+		long eventsPerSecond = windowEvents.getAndSet(0) * 1000 / elapsedMillis;
+		long nanosPerSecond = windowNanos.getAndSet(0) * 1000 / elapsedMillis;
+		boolean eventsExceeded = (maxEventsPerSecond > 0) && (eventsPerSecond > maxEventsPerSecond);
+		boolean timeExceeded = (maxAppendNanosPerSecond > 0) && (nanosPerSecond > maxAppendNanosPerSecond);
+		boolean quiet = ((maxEventsPerSecond == 0) || (eventsPerSecond * 2 < maxEventsPerSecond))
+				&& ((maxAppendNanosPerSecond == 0) || (nanosPerSecond * 2 < maxAppendNanosPerSecond));
+
+		// determine the noisiest channel that can still be limited further and the most limited one
+		String noisiestName = null;
+		ChannelLoad noisiest = null;
+		long noisiestValue = -1;
+		String mostLimitedName = null;
+		ChannelLoad mostLimited = null;
+		long totalValue = 0;
+		for (Map.Entry<String, ChannelLoad> entry : loads.entrySet()) {
+			ChannelLoad load = entry.getValue();
+			long events = load.events.getAndSet(0);
+			long nanos = load.nanos.getAndSet(0);
+			// the channel is ranked by the measure that exceeds the budget
+			long value = timeExceeded ? nanos : events;
+			totalValue += value;
+			if ((load.step < stepInfoSampled) && (value > noisiestValue)) {
+				noisiestName = entry.getKey();
+				noisiest = load;
+				noisiestValue = value;
+			}
+			if ((load.step > stepNone) && ((mostLimited == null) || (load.step > mostLimited.step))) {
+				mostLimitedName = entry.getKey();
+				mostLimited = load;
+			}
+		}
+
+		if (eventsExceeded || timeExceeded) {
+			quietMillis = 0;
+			// a channel that hardly contributes to the load is not limited
+			if ((noisiest != null) && (noisiestValue > 0) && (noisiestValue * minShare >= totalValue)) {
+				setStep(noisiestName, noisiest, noisiest.step + 1,
+						"logging exceeds its budget (" + eventsPerSecond + " events/s, " + (nanosPerSecond / 1000000) + " ms/s appending)");
+			}
+		} else if (quiet && (mostLimited != null)) {
+			quietMillis += elapsedMillis;
+			if (quietMillis >= recoverySeconds * 1000) {
+				quietMillis = 0;
+				setStep(mostLimitedName, mostLimited, mostLimited.step - 1,
+						"logging is within its budget again (" + eventsPerSecond + " events/s, " + (nanosPerSecond / 1000000) + " ms/s appending)");
+			}
+		} else {
+			quietMillis = 0;
+		}
+	}
+
+	/**
+	 * Adjusts the threshold of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @param load
+	 *            The load of the channel
+	 * @param step
+	 *            The new step
+	 * @param reason
+	 *            The reason of the adjustment
+	 */
+	private void setStep(String channelName, ChannelLoad load, int step, String reason) {
+		boolean raised = step > load.step;
+		load.step = step;
+		sinkManager.getStatistics(channelName).setLoadSheddingStep(step);
+		if (listener != null) {
+			listener.loadSheddingChanged(channelName, raised,
+					"Load shedding: " + reason + " - channel " + channelName + ": " + stepDescriptions[step]);
+		}
+	}
+
+	/**
+	 * Provides a description of a step
+	 *
+	 * @param step
+	 *            The step
+	 * @return The description
+	 */
+	static String getStepName(int step) {
+		switch (step) {
+		case stepDebugOff:
+			return "DEBUG_OFF";
+		case stepInfoSampled:
+			return "INFO_SAMPLED";
+		default:
+			return "NONE";
+		}
+	}
+
+	/**
+	 * The load caused by a single channel in the current window and its current step
+	 */
+	private static class ChannelLoad {
+		private final AtomicLong events = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+		private final AtomicLong infoEvents = new AtomicLong();
+		private volatile int step = stepNone;
+	}
+}
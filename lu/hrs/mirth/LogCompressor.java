@@ -0,0 +1,147 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses rolled log files in the background. The compression runs on a small pool of low-priority threads with a bounded queue, so it never
+ * delays the threads that are logging. If the queue is full, rolled files are simply kept uncompressed.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogCompressor {
+
+	private static final int maxThreads = 2;
+	private static final int maxQueuedFiles = 1000;
+	private static final int bufferSize = 65536;
+	private final ThreadPoolExecutor executor;
+	private volatile boolean enabled = false;
+
+	/**
+	 * Creates a compressor. Its threads are only started when there is something to compress.
+	 */
+	LogCompressor() {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueuedFiles),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "MetaAppender Compressor " + threadNumber.incrementAndGet());
+						// compression must never compete with message processing
+						thread.setPriority(Thread.MIN_PRIORITY);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// do not keep idle threads
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Checks if rolled files should be compressed
+	 *
+	 * @return true, if compression is active, false otherwise
+	 */
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Activates or deactivates the compression of rolled files. Compressions that are already queued are still executed.
+	 *
+	 * @param enabled
+	 *            true, if rolled files should be compressed
+	 */
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Queues a rolled log file for compression
+	 *
+	 * @param source
+	 *            The rolled file. It is deleted once it has been compressed.
+	 * @param roller
+	 *            The roller of the log file to which the compressed file is handed back
+	 * @param generation
+	 *            The rollover generation of the file
+	 * @param statistics
+	 *            The statistics of the channel owning the log file (OPTIONAL)
+	 * @return true, if the file has been queued, false if the queue is full
+	 */
+	boolean compress(final File source, final LogFileRoller roller, final long generation, final ChannelStatistics statistics) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					long originalSize = source.length();
+					File target = new File(source.getPath() + LogFileRoller.compressedExtension);
+
+					try {
+						gzip(source, target);
+					} catch (IOException e) {
+						// keep the uncompressed file instead
+						target.delete();
+						roller.placeRolledFile(source, generation);
+						return;
+					}
+
+					// record the effort
+					if (statistics != null) {
+						statistics.compressionFinished(originalSize - target.length(), System.nanoTime() - start);
+					}
+					// hand the result back to the rotation
+					source.delete();
+					roller.placeRolledFile(target, generation);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops the compressor after all queued files have been processed
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Compresses a file using gzip
+	 *
+	 * @param source
+	 *            The file that should be compressed
+	 * @param target
+	 *            The compressed file
+	 * @throws IOException
+	 *             If the compression failed
+	 */
+	private static void gzip(File source, File target) throws IOException {
+		byte[] buffer = new byte[bufferSize];
+		try (InputStream in = new FileInputStream(source); OutputStream out = new GZIPOutputStream(new FileOutputStream(target), bufferSize)) {
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				out.write(buffer, 0, length);
+			}
+		}
+		// the compressed file keeps the age of the original one
+		target.setLastModified(source.lastModified());
+	}
+}
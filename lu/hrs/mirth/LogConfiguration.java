@@ -0,0 +1,115 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+
+/**
+ * The configuration of the log files that is defined by the activation and can be changed at runtime: location, size, number of backups, layout
+ * and whether channel entries are also written to the main log. A configuration is immutable - a reconfiguration publishes a new snapshot, so a log
+ * event never sees a mix of the old and the new values.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogConfiguration {
+
+	private final String logLocation;
+	private final long maxFileSize;
+	private final int maxBackupIndex;
+	private final String conversionPattern;
+	private final boolean logAllToMainLog;
+	private final boolean layoutShowsLogger;
+
+	/**
+	 * Creates a configuration
+	 *
+	 * @param logLocation
+	 *            The folder of the log files
+	 * @param maxFileSize
+	 *            The maximum size of a log file until it is rolled over
+	 * @param maxBackupIndex
+	 *            The maximum number of rolled log files per channel
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout of the channel log files (OPTIONAL)
+	 * @param logAllToMainLog
+	 *            If this flag is set, channel-specific log entries are also written to the main log
+	 */
+	LogConfiguration(String logLocation, long maxFileSize, int maxBackupIndex, String conversionPattern, boolean logAllToMainLog) {
+		this.logLocation = logLocation;
+		this.maxFileSize = maxFileSize;
+		this.maxBackupIndex = maxBackupIndex;
+		this.conversionPattern = conversionPattern;
+		this.logAllToMainLog = logAllToMainLog;
+		// the channel name has to be added to shared log files if the layout does not show it
+		this.layoutShowsLogger = ChannelSinkManager.showsLoggerName(conversionPattern);
+	}
+
+	/**
+	 * Derives a configuration that differs in the provided values
+	 *
+	 * @param logLocation
+	 *            The folder of the log files (null keeps the current one)
+	 * @param maxFileSize
+	 *            The maximum size of a log file (null keeps the current one)
+	 * @param maxBackupIndex
+	 *            The maximum number of rolled log files per channel (null keeps the current one)
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout (null keeps the current one)
+	 * @param logAllToMainLog
+	 *            If channel-specific log entries are also written to the main log (null keeps the current value)
+	 * @return The new configuration
+	 */
+	LogConfiguration derive(String logLocation, Long maxFileSize, Integer maxBackupIndex, String conversionPattern, Boolean logAllToMainLog) {
+		return new LogConfiguration((logLocation != null) ? logLocation : this.logLocation, (maxFileSize != null) ? maxFileSize : this.maxFileSize,
+				(maxBackupIndex != null) ? maxBackupIndex : this.maxBackupIndex, (conversionPattern != null) ? conversionPattern : this.conversionPattern,
+				(logAllToMainLog != null) ? logAllToMainLog : this.logAllToMainLog);
+	}
+
+	String getLogLocation() {
+		return logLocation;
+	}
+
+	File getLogFolder() {
+		return new File(logLocation);
+	}
+
+	long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	int getMaxBackupIndex() {
+		return maxBackupIndex;
+	}
+
+	/**
+	 * Provides the conversion pattern of the layout of the channel log files
+	 *
+	 * @return The pattern or null if the layout of the Mirth configuration is not a pattern layout
+	 */
+	String getConversionPattern() {
+		return conversionPattern;
+	}
+
+	boolean isLogAllToMainLog() {
+		return logAllToMainLog;
+	}
+
+	/**
+	 * Checks if the layout renders the logger name (which contains the channel name)
+	 *
+	 * @return true, if the channel name is part of each log entry, false otherwise
+	 */
+	boolean layoutShowsLogger() {
+		return layoutShowsLogger;
+	}
+
+	/**
+	 * Describes the configuration
+	 *
+	 * @return All values of the configuration
+	 */
+	String getDescription() {
+		return "logLocation=" + logLocation + ", maxFileSize=" + maxFileSize + ", maxBackupIndex=" + maxBackupIndex + ", conversionPattern="
+				+ conversionPattern + ", logAllToMainLog=" + logAllToMainLog;
+	}
+}
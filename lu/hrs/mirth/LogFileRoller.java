@@ -0,0 +1,266 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Implements the round-robin rotation of a log file that is written by a MetaAppender sink. The naming scheme is the same as the one of the log4j
+ * rolling file appenders: the active file is called &lt;name&gt;.log, the backups are called &lt;name&gt;.log.1 (newest) till
+ * &lt;name&gt;.log.&lt;maxBackupIndex&gt; (oldest). Compressed backups carry an additional .gz extension.<br/>
+ * <br/>
+ * If compression is active, a rolled file is first renamed to &lt;name&gt;.log.pending-&lt;generation&gt; and then compressed in the background.
+ * Each rollover increases the generation, so once the compression has finished, the compressed file is placed at the backup position that
+ * corresponds to the number of rollovers that happened in the meantime. Thus there is a single roller per log file that outlives the sinks
+ * writing the file - a new one would start with another generation and lock.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogFileRoller {
+
+	static final String compressedExtension = ".gz";
+	static final String pendingInfix = ".pending-";
+	private final File file;
+	private final LogCompressor compressor;
+	private final ChannelStatistics statistics;
+	private int maxBackupIndex;
+	private long generation = 0;
+	// the rolled files that are being compressed and have not yet been placed
+	private int compressionsInProgress = 0;
+
+	/**
+	 * Creates the roller for a log file
+	 *
+	 * @param file
+	 *            The active log file
+	 * @param maxBackupIndex
+	 *            The maximum number of backups that are kept. If it is 0, the active file is simply deleted on rollover.
+	 * @param compressor
+	 *            The compressor for rolled files (OPTIONAL)
+	 * @param statistics
+	 *            The statistics of the channel owning the log file (OPTIONAL)
+	 */
+	LogFileRoller(File file, int maxBackupIndex, LogCompressor compressor, ChannelStatistics statistics) {
+		this.file = file;
+		this.maxBackupIndex = maxBackupIndex;
+		this.compressor = compressor;
+		this.statistics = statistics;
+		recoverPendingFiles();
+	}
+
+	/**
+	 * Provides the active log file
+	 *
+	 * @return The active log file
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Changes the number of backups that are kept (e.g. after a reconfiguration). Surplus backups are left to the retention.
+	 *
+	 * @param maxBackupIndex
+	 *            The maximum number of backups that are kept
+	 */
+	synchronized void setMaxBackupIndex(int maxBackupIndex) {
+		this.maxBackupIndex = maxBackupIndex;
+	}
+
+	/**
+	 * Checks if all rolled files have been placed at their backup position
+	 *
+	 * @return true, if no rolled file is being compressed, false otherwise
+	 */
+	synchronized boolean isIdle() {
+		return compressionsInProgress == 0;
+	}
+
+	/**
+	 * Moves the active log file to the first backup position. All existing backups are shifted by one position and the oldest one is dropped. The
+	 * file must not be open while it is rolled.
+	 *
+	 * @throws IOException
+	 *             If a file could not be moved or deleted
+	 */
+	synchronized void roll() throws IOException {
+		generation++;
+
+		// no backups wanted - just start from scratch
+		if (maxBackupIndex < 1) {
+			Files.deleteIfExists(file.toPath());
+			Files.deleteIfExists(LogIndex.getIndexFile(file).toPath());
+			Files.deleteIfExists(MessageIndex.getIndexFile(file).toPath());
+			return;
+		}
+
+		// drop the oldest backup
+		Files.deleteIfExists(getBackupFile(file, maxBackupIndex).toPath());
+		Files.deleteIfExists(getCompressedBackupFile(file, maxBackupIndex).toPath());
+		Files.deleteIfExists(LogIndex.getIndexFile(getBackupFile(file, maxBackupIndex)).toPath());
+		Files.deleteIfExists(MessageIndex.getIndexFile(getBackupFile(file, maxBackupIndex)).toPath());
+
+		// shift all remaining backups by one position - no matter if they have already been compressed or not
+		for (int index = maxBackupIndex - 1; index > 0; index--) {
+			move(getBackupFile(file, index), getBackupFile(file, index + 1));
+			move(getCompressedBackupFile(file, index), getCompressedBackupFile(file, index + 1));
+			// the index of an uncompressed backup moves along with it
+			move(LogIndex.getIndexFile(getBackupFile(file, index)), LogIndex.getIndexFile(getBackupFile(file, index + 1)));
+			// the message index moves along with the backup in any case
+			move(MessageIndex.getIndexFile(getBackupFile(file, index)), MessageIndex.getIndexFile(getBackupFile(file, index + 1)));
+		}
+
+		if (!file.exists()) {
+			Files.deleteIfExists(LogIndex.getIndexFile(file).toPath());
+			Files.deleteIfExists(MessageIndex.getIndexFile(file).toPath());
+			return;
+		}
+
+		// if rolled files should be compressed
+		if ((compressor != null) && compressor.isEnabled()) {
+			// compressed files cannot be searched - so their index is of no use
+			Files.deleteIfExists(LogIndex.getIndexFile(file).toPath());
+			// park the file under a name that does not interfere with the rotation
+			File pendingFile = new File(file.getPath() + pendingInfix + generation);
+			move(file, pendingFile);
+			move(MessageIndex.getIndexFile(file), MessageIndex.getIndexFile(pendingFile));
+			// and hand it over to the background compression
+			if (compressor.compress(pendingFile, this, generation, statistics)) {
+				compressionsInProgress++;
+				return;
+			}
+			// the compression queue is full - keep the file uncompressed
+			move(pendingFile, getBackupFile(file, 1));
+			move(MessageIndex.getIndexFile(pendingFile), MessageIndex.getIndexFile(getBackupFile(file, 1)));
+		} else {
+			// make the active file the newest backup
+			move(file, getBackupFile(file, 1));
+			move(LogIndex.getIndexFile(file), LogIndex.getIndexFile(getBackupFile(file, 1)));
+			move(MessageIndex.getIndexFile(file), MessageIndex.getIndexFile(getBackupFile(file, 1)));
+		}
+	}
+
+	/**
+	 * Places a rolled file at its backup position once its background compression has finished (or failed). This is called by the compressor.
+	 *
+	 * @param rolledFile
+	 *            The compressed file or the uncompressed one if it could not be compressed
+	 * @param fileGeneration
+	 *            The generation of the rollover that created the file
+	 */
+	synchronized void placeRolledFile(File rolledFile, long fileGeneration) {
+		compressionsInProgress--;
+		place(rolledFile, fileGeneration);
+	}
+
+	/**
+	 * Places a rolled file at the backup position that corresponds to its generation or at the next free one
+	 *
+	 * @param rolledFile
+	 *            The rolled file (compressed or not)
+	 * @param fileGeneration
+	 *            The generation of the rollover that created the file
+	 */
+	private void place(File rolledFile, long fileGeneration) {
+		boolean compressed = rolledFile.getName().endsWith(compressedExtension);
+		try {
+			// determine the position of the file considering the rollovers that happened in the meantime
+			long index = 1 + generation - fileGeneration;
+
+			// look for a free position (which is always the case unless pending files of a previous run have been recovered)
+			while ((index <= maxBackupIndex)
+					&& (getBackupFile(file, (int) index).exists() || getCompressedBackupFile(file, (int) index).exists())) {
+				index++;
+			}
+
+			if (index > maxBackupIndex) {
+				// the file has already been rotated out
+				Files.deleteIfExists(rolledFile.toPath());
+				Files.deleteIfExists(MessageIndex.getIndexFile(rolledFile).toPath());
+			} else {
+				move(rolledFile, compressed ? getCompressedBackupFile(file, (int) index) : getBackupFile(file, (int) index));
+				move(MessageIndex.getIndexFile(rolledFile), MessageIndex.getIndexFile(getBackupFile(file, (int) index)));
+			}
+		} catch (IOException e) {
+			// the file will be picked up by the retention
+		}
+	}
+
+	/**
+	 * Hands over files to the compressor whose compression was interrupted by a shutdown or crash
+	 */
+	private synchronized void recoverPendingFiles() {
+		File folder = file.getAbsoluteFile().getParentFile();
+		final String prefix = file.getName() + pendingInfix;
+		File[] pendingFiles = (folder != null) ? folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix);
+			}
+		}) : null;
+		if (pendingFiles == null) {
+			return;
+		}
+
+		for (File pendingFile : pendingFiles) {
+			if (pendingFile.getName().endsWith(MessageIndex.extension)) {
+				// the message index is placed together with its log file
+				continue;
+			} else if (pendingFile.getName().endsWith(compressedExtension)) {
+				// a partially written result - the source still exists
+				pendingFile.delete();
+			} else if ((compressor != null) && compressor.compress(pendingFile, this, generation, statistics)) {
+				compressionsInProgress++;
+			} else {
+				// no compression available - put it back into the rotation as is
+				place(pendingFile, generation);
+			}
+		}
+	}
+
+	/**
+	 * Moves a file if it exists
+	 *
+	 * @param source
+	 *            The file that should be moved
+	 * @param target
+	 *            The new location of the file
+	 * @throws IOException
+	 *             If the file could not be moved
+	 */
+	private static void move(File source, File target) throws IOException {
+		if (source.exists()) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Provides the backup file of a log file at a specific position
+	 *
+	 * @param file
+	 *            The active log file
+	 * @param index
+	 *            The backup position (1 is the newest)
+	 * @return The backup file (which does not necessarily exist)
+	 */
+	static File getBackupFile(File file, int index) {
+		return new File(file.getPath() + "." + index);
+	}
+
+	/**
+	 * Provides the compressed backup file of a log file at a specific position
+	 *
+	 * @param file
+	 *            The active log file
+	 * @param index
+	 *            The backup position (1 is the newest)
+	 * @return The compressed backup file (which does not necessarily exist)
+	 */
+	static File getCompressedBackupFile(File file, int index) {
+		return new File(file.getPath() + "." + index + compressedExtension);
+	}
+}
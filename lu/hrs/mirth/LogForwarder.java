@@ -0,0 +1,367 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards the log entries of channels to a local log shipper (e.g. Fluent Bit or Vector) listening on a TCP port of localhost or on a Unix domain
+ * socket. The entries are sent in batches over a single persistent connection by a background thread, so the logging threads never wait for the
+ * shipper. Each entry is either terminated by a line break (as rendered by the layout or as JSON line) or prefixed by its length (4 bytes, big
+ * endian).<br/>
+ * <br/>
+ * If the shipper is not reachable, the batches are appended to a spool file in the log folder and the connection is retried with an increasing
+ * delay (1s up to 30s). After reconnecting, the spool file is sent first, so the order of the entries is kept. Entries are delivered at least
+ * once - a batch that was interrupted by a lost connection might be sent again. If the queue or the spool file is full, entries are dropped (and
+ * counted); they are still written to the channel log files.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogForwarder implements Runnable {
+
+	static final String framingLines = "LINES";
+	static final String framingLength = "LENGTH";
+	static final String spoolFileName = "forwarding.spool";
+	private static final int queueCapacity = 65536;
+	private static final int maxBatchEntries = 1024;
+	private static final long maxSpoolBytes = 256L * 1024 * 1024;
+	private static final int connectTimeoutMillis = 2000;
+	private static final long minReconnectDelayMillis = 1000;
+	private static final long maxReconnectDelayMillis = 30000;
+	private final String address;
+	private final String unixSocketPath;
+	private final String host;
+	private final int port;
+	private final Pattern channelNamePattern;
+	private final boolean lengthPrefixed;
+	private final File spoolFile;
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+	private final Thread thread;
+	private final AtomicLong sentEntries = new AtomicLong();
+	private final AtomicLong spooledEntries = new AtomicLong();
+	private final AtomicLong droppedEntries = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile boolean connected = false;
+	// only used by the forwarding thread
+	private SocketChannel channel = null;
+	private long nextConnect = 0;
+	private long reconnectDelayMillis = minReconnectDelayMillis;
+
+	/**
+	 * Starts forwarding
+	 *
+	 * @param address
+	 *            The address of the shipper: "tcp://localhost:&lt;port&gt;" or "unix:&lt;socket path&gt;"
+	 * @param channelNamePattern
+	 *            A pattern matching the names of the channels whose entries are forwarded (null for all channels)
+	 * @param framing
+	 *            {@link #framingLines} or {@link #framingLength}
+	 * @param spoolFile
+	 *            The file that keeps the entries while the shipper is not reachable
+	 * @throws IllegalArgumentException
+	 *             If the address or the framing is invalid or Unix domain sockets are not supported by the Java runtime
+	 */
+	LogForwarder(String address, Pattern channelNamePattern, String framing, File spoolFile) {
+		this.address = address;
+		this.channelNamePattern = channelNamePattern;
+		this.spoolFile = spoolFile;
+
+		if (framingLength.equals(framing)) {
+			this.lengthPrefixed = true;
+		} else if (framingLines.equals(framing)) {
+			this.lengthPrefixed = false;
+		} else {
+			throw new IllegalArgumentException("Invalid framing: " + framing);
+		}
+
+		if (address.startsWith("unix:")) {
+			this.unixSocketPath = address.substring("unix:".length());
+			this.host = null;
+			this.port = 0;
+			try {
+				// only available since Java 16 - the MetaAppender has to run on Java 8 as well
+				Class.forName("java.net.UnixDomainSocketAddress");
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("Unix domain sockets are not supported by this Java runtime");
+			}
+		} else if (address.startsWith("tcp://") && (address.lastIndexOf(':') > "tcp://".length())) {
+			this.unixSocketPath = null;
+			this.host = address.substring("tcp://".length(), address.lastIndexOf(':'));
+			try {
+				this.port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid port: " + address);
+			}
+		} else {
+			throw new IllegalArgumentException("Invalid address (expected tcp://<host>:<port> or unix:<path>): " + address);
+		}
+
+		this.thread = new Thread(this, "MetaAppender Forwarder");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Checks if the entries of a channel are forwarded
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return true, if they are forwarded, false otherwise
+	 */
+	boolean accepts(String channelName) {
+		return (channelNamePattern == null) || channelNamePattern.matcher(channelName).matches();
+	}
+
+	/**
+	 * Hands a log entry over to the forwarding thread. The calling thread never waits.
+	 *
+	 * @param entry
+	 *            The log entry as written to the log file
+	 */
+	void forward(byte[] entry) {
+		if (!queue.offer(entry)) {
+			droppedEntries.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void run() {
+		List<byte[]> batch = new ArrayList<byte[]>(maxBatchEntries);
+		while (running || !queue.isEmpty()) {
+			try {
+				byte[] entry = queue.poll(1, TimeUnit.SECONDS);
+				if (entry == null) {
+					// a spooled backlog is sent as soon as the shipper is reachable again
+					if (spoolFile.length() > 0) {
+						connect();
+					}
+					continue;
+				}
+				batch.add(entry);
+			} catch (InterruptedException e) {
+				running = false;
+				continue;
+			}
+
+			queue.drainTo(batch, maxBatchEntries - batch.size());
+			ByteBuffer frames = encode(batch);
+			if (!send(frames)) {
+				spool(frames, batch.size());
+			} else {
+				sentEntries.addAndGet(batch.size());
+			}
+			batch.clear();
+		}
+		disconnect();
+	}
+
+	/**
+	 * Frames the entries of a batch
+	 *
+	 * @param batch
+	 *            The entries
+	 * @return The framed entries
+	 */
+	private ByteBuffer encode(List<byte[]> batch) {
+		int size = 0;
+		for (byte[] entry : batch) {
+			size += entry.length + (lengthPrefixed ? 4 : 0);
+		}
+		ByteBuffer frames = ByteBuffer.allocate(size);
+		for (byte[] entry : batch) {
+			if (lengthPrefixed) {
+				frames.putInt(entry.length);
+			}
+			frames.put(entry);
+		}
+		frames.flip();
+		return frames;
+	}
+
+	/**
+	 * Sends framed entries to the shipper
+	 *
+	 * @param frames
+	 *            The framed entries
+	 * @return true, if they have been sent, false if the shipper is not reachable
+	 */
+	private boolean send(ByteBuffer frames) {
+		if (!connect()) {
+			return false;
+		}
+		try {
+			while (frames.hasRemaining()) {
+				channel.write(frames);
+			}
+			return true;
+		} catch (IOException e) {
+			disconnect();
+			frames.rewind();
+			return false;
+		}
+	}
+
+	/**
+	 * Connects to the shipper, if not yet connected and the reconnect delay has passed. The spool file is sent right after connecting.
+	 *
+	 * @return true, if the connection is established and the spool file is empty, false otherwise
+	 */
+	private boolean connect() {
+		if (channel == null) {
+			long now = System.currentTimeMillis();
+			if (now < nextConnect) {
+				return false;
+			}
+			try {
+				channel = open();
+				connected = true;
+				reconnectDelayMillis = minReconnectDelayMillis;
+			} catch (IOException e) {
+				nextConnect = now + reconnectDelayMillis;
+				reconnectDelayMillis = Math.min(maxReconnectDelayMillis, reconnectDelayMillis * 2);
+				return false;
+			}
+		}
+
+		return sendSpool();
+	}
+
+	/**
+	 * Opens a connection to the shipper
+	 *
+	 * @return The connected channel
+	 * @throws IOException
+	 *             If the shipper is not reachable
+	 */
+	private SocketChannel open() throws IOException {
+		if (unixSocketPath == null) {
+			SocketChannel socketChannel = SocketChannel.open();
+			try {
+				socketChannel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+				return socketChannel;
+			} catch (IOException e) {
+				socketChannel.close();
+				throw e;
+			}
+		}
+
+		SocketChannel socketChannel;
+		SocketAddress socketAddress;
+		try {
+			// the Unix domain socket API is only available since Java 16
+			socketChannel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+					StandardProtocolFamily.valueOf("UNIX"));
+			socketAddress = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null,
+					unixSocketPath);
+		} catch (Exception e) {
+			throw new IOException("Unable to create a Unix domain socket", e);
+		}
+		try {
+			socketChannel.connect(socketAddress);
+			return socketChannel;
+		} catch (IOException e) {
+			socketChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the spooled entries and empties the spool file
+	 *
+	 * @return true, if the spool file is empty now, false if the connection has been lost
+	 */
+	private boolean sendSpool() {
+		if (spoolFile.length() == 0) {
+			return true;
+		}
+
+		try (FileChannel spool = new FileInputStream(spoolFile).getChannel()) {
+			long position = 0;
+			long size = spool.size();
+			while (position < size) {
+				position += spool.transferTo(position, size - position, channel);
+			}
+		} catch (IOException e) {
+			// the spool file is sent again with the next connection
+			disconnect();
+			return false;
+		}
+		spoolFile.delete();
+		return true;
+	}
+
+	/**
+	 * Appends framed entries to the spool file
+	 *
+	 * @param frames
+	 *            The framed entries
+	 * @param entryCount
+	 *            The number of entries
+	 */
+	private void spool(ByteBuffer frames, int entryCount) {
+		if (spoolFile.length() + frames.remaining() > maxSpoolBytes) {
+			droppedEntries.addAndGet(entryCount);
+			return;
+		}
+		try (FileOutputStream out = new FileOutputStream(spoolFile, true)) {
+			out.write(frames.array(), frames.position(), frames.remaining());
+			spooledEntries.addAndGet(entryCount);
+		} catch (IOException e) {
+			droppedEntries.addAndGet(entryCount);
+		}
+	}
+
+	/**
+	 * Closes the connection to the shipper
+	 */
+	private void disconnect() {
+		connected = false;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing that could be done about it anymore
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Stops forwarding. The queued entries are sent (or spooled) first.
+	 */
+	void close() {
+		running = false;
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Describes the forwarding
+	 *
+	 * @return The address, the state of the connection and the number of sent, spooled and dropped entries
+	 */
+	String getDescription() {
+		return address + (connected ? " (connected)" : " (not connected)") + ": sentEntries=" + sentEntries.get() + ", spooledEntries="
+				+ spooledEntries.get() + ", droppedEntries=" + droppedEntries.get() + ", spoolBytes=" + spoolFile.length();
+	}
+}
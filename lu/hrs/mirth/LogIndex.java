@@ -0,0 +1,295 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A sparse index of a log file that maps the time stamps of log entries to their position in the file. It is stored next to the log file
+ * (&lt;name&gt;.log.idx) and rolled over together with it. An entry (time stamp and position, 8 bytes each) is recorded for the first log entry
+ * after every interval of N bytes, so finding a point in time in a large log file just means searching the small index and reading at most N bytes
+ * of the log file.<br/>
+ * <br/>
+ * The index is only a hint: the time stamps of the entries never decrease and each position is the start of a log entry. If an index violates this
+ * (e.g. after a crash), it is truncated to its valid part or rebuilt from the log file.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogIndex {
+
+	static final String extension = ".idx";
+	private static final int entrySize = 16;
+	private final long interval;
+	private DataOutputStream out = null;
+	private long nextPosition = 0;
+	private long lastTimeStamp = 0;
+
+	/**
+	 * Opens the index of a log file for appending. Entries that do not match the log file anymore are dropped.
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @param dataEnd
+	 *            The end of the data in the log file
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded
+	 * @throws IOException
+	 *             If the index could not be opened
+	 */
+	LogIndex(File logFile, long dataEnd, long interval) throws IOException {
+		this.interval = Math.max(1, interval);
+		File indexFile = getIndexFile(logFile);
+
+		// keep the entries that are still valid
+		long[][] entries = load(indexFile, dataEnd);
+		int validEntries = (entries != null) ? entries[0].length : 0;
+		try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+			index.setLength(validEntries * (long) entrySize);
+		}
+		if (validEntries > 0) {
+			lastTimeStamp = entries[0][validEntries - 1];
+			nextPosition = entries[1][validEntries - 1] + this.interval;
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+	}
+
+	/**
+	 * Records a log entry, if it is the first one after the current interval
+	 *
+	 * @param timeStamp
+	 *            The time stamp of the log entry
+	 * @param position
+	 *            The position of the log entry in the log file
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	void add(long timeStamp, long position) throws IOException {
+		if (position < nextPosition) {
+			return;
+		}
+
+		// concurrently logged events might arrive slightly out of order - the index must not go back in time
+		lastTimeStamp = Math.max(lastTimeStamp, timeStamp);
+		out.writeLong(lastTimeStamp);
+		out.writeLong(position);
+		nextPosition = position + interval;
+	}
+
+	/**
+	 * Writes all recorded entries to the index file
+	 *
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Closes the index file
+	 */
+	void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// the index is just a hint - it will be repaired when it is opened again
+		}
+	}
+
+	/**
+	 * Provides the index file of a log file
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @return The index file (which does not necessarily exist)
+	 */
+	static File getIndexFile(File logFile) {
+		return new File(logFile.getPath() + extension);
+	}
+
+	/**
+	 * Narrows down the part of a log file that contains the first log entry which is not older than a point in time
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @param reader
+	 *            The reader for the log file
+	 * @param dataEnd
+	 *            The end of the data in the log file
+	 * @param from
+	 *            The point in time
+	 * @return The start (inclusive) and end (exclusive) of the part or null if there is no valid index
+	 * @throws IOException
+	 *             If the log file could not be read
+	 */
+	static long[] lookup(File logFile, LogReader.BlockReader reader, long dataEnd, long from) throws IOException {
+		long[][] entries = load(getIndexFile(logFile), dataEnd);
+		if (entries == null) {
+			return null;
+		}
+		long[] timeStamps = entries[0];
+		long[] positions = entries[1];
+
+		// find the first index entry that is not older than the point in time
+		int low = 0;
+		int high = timeStamps.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timeStamps[middle] >= from) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+
+		long start = (low > 0) ? positions[low - 1] : 0;
+		long end = (low < positions.length) ? positions[low] : dataEnd;
+		// the positions must point to the start of log entries - otherwise the index does not belong to this file
+		if (!isLineStart(reader, start) || ((end < dataEnd) && !isLineStart(reader, end))) {
+			return null;
+		}
+
+		return new long[] { start, end };
+	}
+
+	/**
+	 * Builds the index of a log file from scratch
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @param dataEnd
+	 *            The end of the data in the log file
+	 * @param parser
+	 *            The parser for the time stamps of the log entries
+	 * @param charset
+	 *            The character set of the log file
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded
+	 * @return true, if the index has been built, false otherwise
+	 */
+	static boolean rebuild(File logFile, long dataEnd, TimeStampParser parser, Charset charset, long interval) {
+		File indexFile = getIndexFile(logFile);
+		File temporaryFile = new File(indexFile.getPath() + ".tmp");
+		long nextPosition = 0;
+		long lastTimeStamp = 0;
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(logFile), LogReader.blockSize);
+				DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+			byte[] line = new byte[256];
+			long position = 0;
+
+			while (position < dataEnd) {
+				// only the start of a line is needed to find its time stamp
+				long lineStart = position;
+				int length = 0;
+				int character;
+				while (((character = in.read()) >= 0) && (character != '\n')) {
+					if (length < line.length) {
+						line[length++] = (byte) character;
+					}
+					position++;
+				}
+				position++;
+
+				if (lineStart >= nextPosition) {
+					long timeStamp = parser.getTimeStamp(new String(line, 0, length, charset));
+					if (timeStamp >= 0) {
+						lastTimeStamp = Math.max(lastTimeStamp, timeStamp);
+						index.writeLong(lastTimeStamp);
+						index.writeLong(lineStart);
+						nextPosition = lineStart + interval;
+					}
+				}
+				if (character < 0) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			temporaryFile.delete();
+			return false;
+		}
+
+		try {
+			Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			temporaryFile.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the valid entries of an index
+	 *
+	 * @param indexFile
+	 *            The index file
+	 * @param dataEnd
+	 *            The end of the data in the log file
+	 * @return The time stamps and positions of the entries up to the first invalid one or null if there are no valid entries
+	 * @throws IOException
+	 *             If the index could not be read
+	 */
+	private static long[][] load(File indexFile, long dataEnd) throws IOException {
+		if (!indexFile.exists()) {
+			return null;
+		}
+
+		int entryCount = (int) Math.min(Integer.MAX_VALUE, indexFile.length() / entrySize);
+		long[] timeStamps = new long[entryCount];
+		long[] positions = new long[entryCount];
+		int validEntries = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			while (validEntries < entryCount) {
+				long timeStamp = in.readLong();
+				long position = in.readLong();
+				// stop at the first entry that does not fit to its predecessor or the log file
+				if ((position >= dataEnd) || ((validEntries > 0)
+						&& ((position <= positions[validEntries - 1]) || (timeStamp < timeStamps[validEntries - 1])))) {
+					break;
+				}
+				timeStamps[validEntries] = timeStamp;
+				positions[validEntries] = position;
+				validEntries++;
+			}
+		} catch (EOFException e) {
+			// the index has been truncated - use what is there
+		}
+
+		if (validEntries == 0) {
+			return null;
+		}
+		return new long[][] { Arrays.copyOf(timeStamps, validEntries), Arrays.copyOf(positions, validEntries) };
+	}
+
+	/**
+	 * Checks if a position is the start of a line
+	 *
+	 * @param reader
+	 *            The reader for the log file
+	 * @param position
+	 *            The position
+	 * @return true, if the position is the start of the file or follows a line break
+	 * @throws IOException
+	 *             If the log file could not be read
+	 */
+	private static boolean isLineStart(LogReader.BlockReader reader, long position) throws IOException {
+		return (position == 0) || (reader.byteAt(position - 1, false) == '\n');
+	}
+
+}
@@ -0,0 +1,446 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Enforces a global disk budget and a maximum age for all log files in the log folder. The janitor runs periodically in the background and keeps
+ * an index of the log files. The folder is only listed again if files have been created, renamed or deleted in the meantime - otherwise just the
+ * sizes of the active files are refreshed.<br/>
+ * <br/>
+ * Only rolled files (&lt;name&gt;.log.N and &lt;name&gt;.log.N.gz or the same for binary .blog files) are deleted - active log files are never
+ * touched. If the budget is exceeded, the oldest rolled file of the channel that currently occupies the most disk space with rolled files is
+ * deleted first. Thus a noisy channel cannot push out the history of all other channels.<br/>
+ * <br/>
+ * If the log files are partitioned by date, whole day folders are dropped instead. The folders of the current and the previous day are never
+ * dropped as they may still contain active files.<br/>
+ * <br/>
+ * Side files of oversized log messages (see {@link PayloadSpiller}) are deleted once they have not been referenced within the maximum age. They do
+ * not count towards the disk budget.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogJanitor {
+
+	private static final Pattern patternLogFile = Pattern.compile("(.+)\\.b?log(\\.(\\d+)(\\.gz)?)?");
+	private static final long runIntervalSeconds = 60;
+	private static final Pattern patternDayFolder = Pattern.compile(DatePartitionedSink.dayFolderPattern);
+	private final Map<String, IndexedFile> index = new HashMap<String, IndexedFile>();
+	private final Map<String, Long> dayFolderSizes = new HashMap<String, Long>();
+	private File folder;
+	private final ChannelSinkManager sinkManager;
+	private ScheduledExecutorService scheduler = null;
+	private long indexedFolderModified = 0;
+	private volatile long maxTotalBytes = 0;
+	private volatile long maxAgeMillis = 0;
+
+	/**
+	 * Creates a janitor for a log folder. It does not do anything before a budget or maximum age has been set.
+	 *
+	 * @param folder
+	 *            The log folder
+	 * @param sinkManager
+	 *            The sink manager keeping the statistics of the channels
+	 */
+	LogJanitor(File folder, ChannelSinkManager sinkManager) {
+		this.folder = folder;
+		this.sinkManager = sinkManager;
+	}
+
+	/**
+	 * Defines the retention limits and starts or stops the background enforcement accordingly
+	 *
+	 * @param maxTotalBytes
+	 *            The maximum number of bytes all log files may occupy together (0 for no limit)
+	 * @param maxAgeMillis
+	 *            The maximum age of a rolled log file in milliseconds (0 for no limit)
+	 */
+	synchronized void setLimits(long maxTotalBytes, long maxAgeMillis) {
+		this.maxTotalBytes = Math.max(0, maxTotalBytes);
+		this.maxAgeMillis = Math.max(0, maxAgeMillis);
+
+		if ((this.maxTotalBytes == 0) && (this.maxAgeMillis == 0)) {
+			// nothing to enforce
+			stop();
+		} else if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "MetaAppender Janitor");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						enforce();
+					} catch (RuntimeException e) {
+						// try again next time
+					}
+				}
+			}, 0, runIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Moves the enforcement to another log folder (e.g. after a reconfiguration). The files of the previous folder are not touched anymore.
+	 *
+	 * @param folder
+	 *            The new log folder
+	 */
+	synchronized void setFolder(File folder) {
+		this.folder = folder;
+		// the index is built again from the new folder
+		index.clear();
+		dayFolderSizes.clear();
+		indexedFolderModified = 0;
+	}
+
+	/**
+	 * Stops the background enforcement
+	 */
+	synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Updates the index and deletes rolled files till all limits are met
+	 */
+	synchronized void enforce() {
+		updateIndex();
+
+		long oldestAllowed = (maxAgeMillis > 0) ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+		// payloads that have not been referenced within the maximum age are not needed anymore
+		PayloadSpiller payloadSpiller = sinkManager.getPayloadSpiller();
+		if ((payloadSpiller != null) && (maxAgeMillis > 0)) {
+			payloadSpiller.purgeOlderThan(oldestAllowed);
+		}
+		// day folders are dropped as a whole
+		long totalBytes = enforceDayFolders(oldestAllowed);
+		// the rolled files per channel
+		Map<String, ChannelFiles> channels = new HashMap<String, ChannelFiles>();
+
+		for (IndexedFile indexedFile : new ArrayList<IndexedFile>(index.values())) {
+			// rolled files that are too old are removed in any case
+			if (indexedFile.rolled && (indexedFile.lastModified < oldestAllowed)) {
+				delete(indexedFile);
+				continue;
+			}
+
+			totalBytes += indexedFile.size;
+			if (indexedFile.rolled) {
+				ChannelFiles channelFiles = channels.get(indexedFile.channelName);
+				if (channelFiles == null) {
+					channelFiles = new ChannelFiles();
+					channels.put(indexedFile.channelName, channelFiles);
+				}
+				channelFiles.add(indexedFile);
+			}
+		}
+
+		if ((maxTotalBytes == 0) || (totalBytes <= maxTotalBytes)) {
+			return;
+		}
+
+		// oldest files first
+		for (ChannelFiles channelFiles : channels.values()) {
+			channelFiles.sort();
+		}
+
+		// the channel with the most history gives up its oldest file till the budget is met
+		while (totalBytes > maxTotalBytes) {
+			ChannelFiles largest = null;
+			for (ChannelFiles channelFiles : channels.values()) {
+				if (!channelFiles.files.isEmpty() && ((largest == null) || (channelFiles.bytes > largest.bytes))) {
+					largest = channelFiles;
+				}
+			}
+			if (largest == null) {
+				// only active files are left
+				return;
+			}
+
+			IndexedFile victim = largest.removeOldest();
+			if (delete(victim)) {
+				totalBytes -= victim.size;
+			}
+		}
+	}
+
+	/**
+	 * Drops all day folders of days before the provided one
+	 *
+	 * @param day
+	 *            The first day that is kept (yyyy-MM-dd)
+	 * @return The number of day folders that have been deleted
+	 */
+	synchronized int purgeDayFoldersBefore(String day) {
+		int purged = 0;
+		for (String dayFolder : listDayFolders()) {
+			// the folder names sort chronologically
+			if ((dayFolder.compareTo(day) < 0) && deleteDayFolder(dayFolder)) {
+				purged++;
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * Drops day folders that are too old or exceed the disk budget
+	 *
+	 * @param oldestAllowed
+	 *            The oldest point in time for which logs are kept
+	 * @return The number of bytes used by the remaining day folders
+	 */
+	private long enforceDayFolders(long oldestAllowed) {
+		List<String> dayFolders = listDayFolders();
+		if (dayFolders.isEmpty()) {
+			return 0;
+		}
+
+		// the folders of today and yesterday might still contain active files
+		SimpleDateFormat dayFormat = new SimpleDateFormat(DatePartitionedSink.dayFolderFormat);
+		String firstProtectedDay = dayFormat.format(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+		String firstAllowedDay = (oldestAllowed > 0) ? dayFormat.format(new Date(oldestAllowed)) : "";
+
+		long totalBytes = 0;
+		List<String> droppable = new ArrayList<String>();
+		for (String dayFolder : dayFolders) {
+			boolean isProtected = dayFolder.compareTo(firstProtectedDay) >= 0;
+			if (!isProtected && (dayFolder.compareTo(firstAllowedDay) < 0)) {
+				// too old
+				deleteDayFolder(dayFolder);
+				continue;
+			}
+
+			// past days do not change anymore, so their size is only determined once
+			Long size = isProtected ? null : dayFolderSizes.get(dayFolder);
+			if (size == null) {
+				size = folderSize(new File(folder, dayFolder));
+				if (!isProtected) {
+					dayFolderSizes.put(dayFolder, size);
+				}
+			}
+			totalBytes += size;
+			if (!isProtected) {
+				droppable.add(dayFolder);
+			}
+		}
+
+		// the oldest days go first if the budget is exceeded
+		for (String dayFolder : droppable) {
+			if ((maxTotalBytes == 0) || (totalBytes <= maxTotalBytes)) {
+				break;
+			}
+			long size = dayFolderSizes.get(dayFolder);
+			if (deleteDayFolder(dayFolder)) {
+				totalBytes -= size;
+			}
+		}
+
+		return totalBytes;
+	}
+
+	/**
+	 * Lists the day folders within the log folder
+	 *
+	 * @return The names of the day folders in chronological order
+	 */
+	private List<String> listDayFolders() {
+		List<String> dayFolders = new ArrayList<String>();
+		String[] names = folder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (patternDayFolder.matcher(name).matches()) {
+					dayFolders.add(name);
+				}
+			}
+		}
+		Collections.sort(dayFolders);
+		return dayFolders;
+	}
+
+	/**
+	 * Deletes a day folder including all log files it contains
+	 *
+	 * @param dayFolder
+	 *            The name of the day folder
+	 * @return true, if the folder has been deleted, false otherwise
+	 */
+	private boolean deleteDayFolder(String dayFolder) {
+		dayFolderSizes.remove(dayFolder);
+		File dayFolderFile = new File(folder, dayFolder);
+		File[] files = dayFolderFile.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long size = file.length();
+				Matcher matcher = patternLogFile.matcher(file.getName());
+				if (file.delete() && (sinkManager != null) && matcher.matches()) {
+					sinkManager.getStatistics(matcher.group(1)).retentionDeleted(size);
+				}
+			}
+		}
+		return dayFolderFile.delete();
+	}
+
+	/**
+	 * Determines the size of all files in a folder
+	 *
+	 * @param dayFolder
+	 *            The folder
+	 * @return The size of the files in bytes
+	 */
+	private static long folderSize(File dayFolder) {
+		long size = 0;
+		File[] files = dayFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Synchronizes the index with the content of the log folder
+	 */
+	private void updateIndex() {
+		long folderModified = folder.lastModified();
+
+		// if the content of the folder did not change
+		if ((folderModified != 0) && (folderModified == indexedFolderModified)) {
+			// only the active files could have grown
+			for (IndexedFile indexedFile : index.values()) {
+				if (!indexedFile.rolled) {
+					indexedFile.refresh();
+				}
+			}
+			return;
+		}
+
+		String[] names = folder.list();
+		if (names == null) {
+			return;
+		}
+		indexedFolderModified = folderModified;
+
+		Set<String> present = new HashSet<String>();
+		for (String name : names) {
+			Matcher matcher = patternLogFile.matcher(name);
+			if (!matcher.matches()) {
+				// not a log file (e.g. a file that is currently compressed)
+				continue;
+			}
+			present.add(name);
+
+			IndexedFile indexedFile = index.get(name);
+			if (indexedFile == null) {
+				indexedFile = new IndexedFile(new File(folder, name), matcher.group(1), matcher.group(2) != null);
+				index.put(name, indexedFile);
+			} else {
+				// the file might have been replaced by a rollover
+				indexedFile.refresh();
+			}
+		}
+
+		// forget about files that have been removed by the rotation
+		index.keySet().retainAll(present);
+	}
+
+	/**
+	 * Deletes a rolled file, if it has not been changed since it was indexed (i.e. it has not been replaced by a rollover in the meantime)
+	 *
+	 * @param indexedFile
+	 *            The file that should be deleted
+	 * @return true, if the file has been deleted, false otherwise
+	 */
+	private boolean delete(IndexedFile indexedFile) {
+		File file = indexedFile.file;
+		boolean deleted = (file.lastModified() == indexedFile.lastModified) && file.delete();
+		index.remove(file.getName());
+		if (deleted) {
+			// the indexes of the file are of no use anymore
+			LogIndex.getIndexFile(file).delete();
+			MessageIndex.getIndexFile(file).delete();
+		}
+
+		if (deleted && (sinkManager != null)) {
+			sinkManager.getStatistics(indexedFile.channelName).retentionDeleted(indexedFile.size);
+		}
+		return deleted;
+	}
+
+	/**
+	 * A log file known to the janitor
+	 */
+	private static class IndexedFile {
+		private final File file;
+		private final String channelName;
+		private final boolean rolled;
+		private long size;
+		private long lastModified;
+
+		IndexedFile(File file, String channelName, boolean rolled) {
+			this.file = file;
+			this.channelName = channelName;
+			this.rolled = rolled;
+			refresh();
+		}
+
+		void refresh() {
+			size = file.length();
+			lastModified = file.lastModified();
+		}
+	}
+
+	/**
+	 * The rolled files of a channel
+	 */
+	private static class ChannelFiles {
+		private final List<IndexedFile> files = new ArrayList<IndexedFile>();
+		private long bytes = 0;
+
+		void add(IndexedFile file) {
+			files.add(file);
+			bytes += file.size;
+		}
+
+		void sort() {
+			Collections.sort(files, new Comparator<IndexedFile>() {
+				@Override
+				public int compare(IndexedFile file1, IndexedFile file2) {
+					return Long.compare(file1.lastModified, file2.lastModified);
+				}
+			});
+		}
+
+		IndexedFile removeOldest() {
+			IndexedFile oldest = files.remove(0);
+			bytes -= oldest.size;
+			return oldest;
+		}
+	}
+}
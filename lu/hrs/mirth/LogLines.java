@@ -0,0 +1,180 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The lines of a channel log within a time range. The lines are read on demand, so also large ranges can be processed without loading them into
+ * memory:<br/>
+ * <br/>
+ * <code>
+ * var lines = Packages.lu.hrs.mirth.MetaAppender.read(channelId, '10:02', '10:05');<br/>
+ * try {<br/>
+ * &nbsp;&nbsp;while (lines.hasNext()) {<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;logger.info(lines.next());<br/>
+ * &nbsp;&nbsp;}<br/>
+ * } finally {<br/>
+ * &nbsp;&nbsp;lines.close();<br/>
+ * }
+ * </code><br/>
+ * <br/>
+ * The last open file is closed automatically once all lines have been read.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class LogLines implements Iterator<String>, Closeable {
+
+	private final LogReader logReader;
+	private final Iterator<File> files;
+	private final long from;
+	private final long to;
+	private final TimeStampParser parser;
+	private BufferedReader reader = null;
+	private String nextLine = null;
+	private long nextTimeStamp = -1;
+	private boolean nextStartsEntry = false;
+	private long timeStamp = -1;
+	private boolean startsEntry = false;
+	// the log entry to which the current line belongs is part of the time range
+	private boolean inRange = false;
+	private boolean finished = false;
+
+	/**
+	 * Creates the lines of a time range
+	 *
+	 * @param logReader
+	 *            The reader of the log files
+	 * @param files
+	 *            The log files that might contain lines of the time range, oldest first
+	 * @param from
+	 *            The start of the time range in milliseconds (inclusive)
+	 * @param to
+	 *            The end of the time range in milliseconds (inclusive)
+	 * @param parser
+	 *            The parser for the time stamps of the log entries
+	 */
+	LogLines(LogReader logReader, List<File> files, long from, long to, TimeStampParser parser) {
+		this.logReader = logReader;
+		this.files = files.iterator();
+		this.from = from;
+		this.to = to;
+		this.parser = parser;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if ((nextLine == null) && !finished) {
+			try {
+				nextLine = readNextLine();
+			} catch (IOException e) {
+				close();
+				throw new IllegalStateException("Unable to read the log: " + e.getMessage(), e);
+			}
+		}
+		return nextLine != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String line = nextLine;
+		nextLine = null;
+		timeStamp = nextTimeStamp;
+		startsEntry = nextStartsEntry;
+		return line;
+	}
+
+	/**
+	 * Provides the time stamp of the log entry to which the line last returned by {@link #next()} belongs
+	 *
+	 * @return The time stamp in milliseconds
+	 */
+	long getTimeStamp() {
+		return timeStamp;
+	}
+
+	/**
+	 * Checks if the line last returned by {@link #next()} is the first line of a log entry
+	 *
+	 * @return true, if the line starts a log entry, false if it continues the previous one (e.g. a stack trace)
+	 */
+	boolean startsEntry() {
+		return startsEntry;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		finished = true;
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+			reader = null;
+		}
+	}
+
+	/**
+	 * Reads the next line that belongs to the time range
+	 *
+	 * @return The line or null if there are no more lines in the time range
+	 * @throws IOException
+	 *             If a log file could not be read
+	 */
+	private String readNextLine() throws IOException {
+		while (true) {
+			if (reader == null) {
+				if (!files.hasNext()) {
+					close();
+					return null;
+				}
+				reader = logReader.open(files.next(), from, parser);
+				inRange = false;
+			}
+
+			String line = reader.readLine();
+			if (line == null) {
+				// continue with the next file
+				reader.close();
+				reader = null;
+				continue;
+			}
+			// skip the padding of memory-mapped files
+			if (!line.isEmpty() && (line.charAt(0) == '\0')) {
+				continue;
+			}
+
+			long lineTimeStamp = parser.getTimeStamp(line);
+			nextStartsEntry = lineTimeStamp >= 0;
+			if (nextStartsEntry) {
+				if (lineTimeStamp > to) {
+					// all further entries are even newer
+					close();
+					return null;
+				}
+				inRange = lineTimeStamp >= from;
+				nextTimeStamp = lineTimeStamp;
+			}
+
+			// lines without time stamp belong to the preceding entry
+			if (inRange) {
+				return line;
+			}
+		}
+	}
+}
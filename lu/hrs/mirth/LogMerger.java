@@ -0,0 +1,132 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool that prints the chronological merge of several channel logs, e.g. on a server on which Mirth is not running anymore or in a
+ * copy of the log folder:<br/>
+ * <br/>
+ * <code>java -cp &lt;MetaAppender jar&gt; lu.hrs.mirth.LogMerger -folder /opt/mirth/logs -from "2024-01-31 10:02" -to "2024-01-31 10:05" -level WARN Router Lab_Out</code>
+ * <br/>
+ * <br/>
+ * Options:
+ * <ul>
+ * <li>-folder &lt;log folder&gt; - The folder containing the channel logs (default: current folder)</li>
+ * <li>-from &lt;time&gt; / -to &lt;time&gt; - The time range (default: whole logs)</li>
+ * <li>-level &lt;level&gt; - The minimum level of the log entries (default: all)</li>
+ * <li>-grep &lt;regex&gt; - A regular expression that must be found in a log entry (default: all)</li>
+ * <li>-pattern &lt;log pattern&gt; - The log pattern that was used to write the logs (default: "%d", i.e. an ISO8601 time stamp)</li>
+ * <li>-charset &lt;charset&gt; - The character set of the logs (default: platform default)</li>
+ * </ul>
+ * The remaining arguments are the names of the channels (or groups) whose logs should be merged.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class LogMerger {
+
+	private static final String usage = "Usage: java -cp <MetaAppender jar> lu.hrs.mirth.LogMerger [-folder <log folder>] [-from <time>] [-to <time>] "
+			+ "[-level <min level>] [-grep <regex>] [-pattern <log pattern>] [-charset <charset>] <channel> [<channel> ...]";
+
+	/**
+	 * Prints the merged logs to the standard output
+	 *
+	 * @param arguments
+	 *            The command line arguments
+	 * @throws IOException
+	 *             If a log could not be read
+	 */
+	public static void main(String[] arguments) throws IOException {
+		String folder = ".";
+		String from = null;
+		String to = null;
+		String level = null;
+		String grep = null;
+		String pattern = "%d";
+		Charset charset = Charset.defaultCharset();
+		List<String> channels = new ArrayList<String>();
+
+		for (int index = 0; index < arguments.length; index++) {
+			String argument = arguments[index];
+			if (argument.startsWith("-") && (index + 1 >= arguments.length)) {
+				fail("Missing value of option " + argument);
+			}
+
+			switch (argument) {
+			case "-folder":
+				folder = arguments[++index];
+				break;
+			case "-from":
+				from = arguments[++index];
+				break;
+			case "-to":
+				to = arguments[++index];
+				break;
+			case "-level":
+				level = arguments[++index];
+				break;
+			case "-grep":
+				grep = arguments[++index];
+				break;
+			case "-pattern":
+				pattern = arguments[++index];
+				break;
+			case "-charset":
+				charset = Charset.forName(arguments[++index]);
+				break;
+			default:
+				if (argument.startsWith("-")) {
+					fail("Unknown option " + argument);
+				}
+				channels.add(argument);
+				break;
+			}
+		}
+
+		if (channels.isEmpty()) {
+			fail("No channel specified");
+		}
+		long fromTime = (from != null) ? LogReader.parseTime(from) : 0;
+		long toTime = (to != null) ? LogReader.parseTime(to) : Long.MAX_VALUE;
+		if ((fromTime < 0) || (toTime < 0)) {
+			fail("Unable to interpret the time range");
+		}
+
+		LogReader reader = new LogReader(new File(folder), pattern, charset);
+		MergedLogLines lines = reader.readMerged(channels, fromTime, toTime, ChannelEvent.toLevel(level, ChannelEvent.TRACE),
+				(grep != null) ? Pattern.compile(grep) : null);
+		if (lines == null) {
+			fail("The log pattern does not contain a date (%d)");
+		}
+
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, charset))) {
+			while (lines.hasNext()) {
+				out.write(lines.next());
+				out.write(System.lineSeparator());
+			}
+		} finally {
+			lines.close();
+		}
+	}
+
+	/**
+	 * Reports a wrong invocation and terminates
+	 *
+	 * @param reason
+	 *            The reason
+	 */
+	private static void fail(String reason) {
+		System.err.println(reason);
+		System.err.println(usage);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,660 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the log files of a channel - the active one as well as the rolled (and maybe compressed) ones, no matter if they are located directly in
+ * the log folder or in day folders.<br/>
+ * <br/>
+ * The tail of a log is read backwards in blocks from the end of the files. Time ranges are located by a binary search over the time stamps of the
+ * log entries and streamed from there. In both cases only the requested lines are held in memory. Compressed files cannot be searched and are
+ * read sequentially.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogReader {
+
+	static final int blockSize = 16384;
+	private static final String[] timeFormats = { "yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+	private static final String[] timeOfDayFormats = { "HH:mm:ss.SSS", "HH:mm:ss", "HH:mm" };
+	private volatile File logLocation;
+	private volatile String conversionPattern;
+	private final Charset charset;
+	private volatile long indexInterval = 0;
+	private volatile boolean jsonLines = false;
+
+	/**
+	 * Creates a reader for the log files in a log folder
+	 *
+	 * @param logLocation
+	 *            The log folder
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout that was used to write the log files
+	 * @param charset
+	 *            The character set of the log files
+	 */
+	LogReader(File logLocation, String conversionPattern, Charset charset) {
+		this.logLocation = logLocation;
+		this.conversionPattern = conversionPattern;
+		this.charset = charset;
+	}
+
+	/**
+	 * Reads the log files of another log folder or layout (e.g. after a reconfiguration). The log files that remain in a previous folder are not
+	 * read anymore.
+	 *
+	 * @param logLocation
+	 *            The log folder
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout that is used to write the log files
+	 */
+	void configure(File logLocation, String conversionPattern) {
+		this.logLocation = logLocation;
+		this.conversionPattern = conversionPattern;
+	}
+
+	/**
+	 * Defines if missing or corrupt time indexes of rolled log files are rebuilt when a time range is read
+	 *
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded in a rebuilt index (0 for no rebuilding)
+	 */
+	void setIndexInterval(long interval) {
+		this.indexInterval = Math.max(0, interval);
+	}
+
+	/**
+	 * Defines if the log files are written as JSON lines instead of being rendered by the layout
+	 *
+	 * @param jsonLines
+	 *            true, if the time stamps have to be taken from JSON lines
+	 */
+	void setJsonLines(boolean jsonLines) {
+		this.jsonLines = jsonLines;
+	}
+
+	/**
+	 * Provides the last lines of a log
+	 *
+	 * @param fileName
+	 *            The name of the log file without extension (channel or group name)
+	 * @param lineCount
+	 *            The maximum number of lines
+	 * @return The lines, oldest first
+	 * @throws IOException
+	 *             If a log file could not be read
+	 */
+	String[] tail(String fileName, int lineCount) throws IOException {
+		LinkedList<String> lines = new LinkedList<String>();
+		List<File> files = getLogFiles(fileName);
+
+		// start with the newest file and continue with older ones till enough lines have been collected
+		for (int index = files.size() - 1; (index >= 0) && (lines.size() < lineCount); index--) {
+			File file = files.get(index);
+			if (file.getName().endsWith(LogFileRoller.compressedExtension)) {
+				tailCompressed(file, lineCount - lines.size(), lines);
+			} else {
+				tailPlain(file, lineCount - lines.size(), lines);
+			}
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Provides all lines of a log that belong to log entries of a time range. Lines without time stamp (e.g. stack traces) belong to the preceding
+	 * log entry.
+	 *
+	 * @param fileName
+	 *            The name of the log file without extension (channel or group name)
+	 * @param from
+	 *            The start of the time range in milliseconds (inclusive)
+	 * @param to
+	 *            The end of the time range in milliseconds (inclusive)
+	 * @return The lines that are read on demand or null if the log layout does not contain time stamps with date
+	 */
+	LogLines read(String fileName, long from, long to) {
+		// the time stamp of a JSON line is always in the same format
+		TimeStampParser parser = jsonLines ? new TimeStampParser(JsonLineEncoder.timeStampFormat) : TimeStampParser.forLayout(conversionPattern);
+		if (parser == null) {
+			return null;
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (File file : getLogFiles(fileName)) {
+			// files that have not been written since the start of the range cannot contain any relevant entries
+			if (file.lastModified() >= from) {
+				files.add(file);
+			}
+		}
+
+		return new LogLines(this, files, from, to, parser);
+	}
+
+	/**
+	 * Provides the chronological merge of several logs within a time range
+	 *
+	 * @param fileNames
+	 *            The names of the log files without extension (channel or group names)
+	 * @param from
+	 *            The start of the time range in milliseconds (inclusive)
+	 * @param to
+	 *            The end of the time range in milliseconds (inclusive)
+	 * @param minLevel
+	 *            The minimum level of the log entries (see {@link ChannelEvent#TRACE} till {@link ChannelEvent#FATAL})
+	 * @param filter
+	 *            A pattern that must be found in a log entry (OPTIONAL)
+	 * @return The merged lines, each prefixed by the name of its log, or null if the log layout does not contain time stamps with date
+	 */
+	MergedLogLines readMerged(Collection<String> fileNames, long from, long to, int minLevel, Pattern filter) {
+		Map<String, LogLines> logs = new LinkedHashMap<String, LogLines>();
+		for (String fileName : fileNames) {
+			if (!logs.containsKey(fileName)) {
+				LogLines lines = read(fileName, from, to);
+				if (lines == null) {
+					return null;
+				}
+				logs.put(fileName, lines);
+			}
+		}
+
+		return new MergedLogLines(logs, minLevel, filter);
+	}
+
+	/**
+	 * Provides all log entries that have been written during the processing of a Mirth message
+	 *
+	 * @param fileName
+	 *            The name of the log file without extension (channel or group name)
+	 * @param channelName
+	 *            The name of the channel that processed the message
+	 * @param messageId
+	 *            The id of the message
+	 * @return The lines of the log entries, oldest first
+	 * @throws IOException
+	 *             If a log file could not be read
+	 */
+	String[] readMessage(String fileName, String channelName, long messageId) throws IOException {
+		List<String> lines = new ArrayList<String>();
+
+		for (File file : getLogFiles(fileName)) {
+			List<long[]> entries = MessageIndex.find(file, messageId, channelName);
+			if (entries.isEmpty()) {
+				continue;
+			}
+
+			if (file.getName().endsWith(LogFileRoller.compressedExtension)) {
+				// compressed files can only be read sequentially - but at least the decompressed data does not have to be inspected
+				try (InputStream in = new GZIPInputStream(new FileInputStream(file), blockSize)) {
+					long position = 0;
+					for (long[] entry : entries) {
+						position += skip(in, entry[0] - position);
+						byte[] data = new byte[(int) entry[1]];
+						int length = 0;
+						int read;
+						while ((length < data.length) && ((read = in.read(data, length, data.length - length)) > 0)) {
+							length += read;
+						}
+						position += length;
+						addLines(data, length, lines);
+					}
+				}
+			} else {
+				try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+					for (long[] entry : entries) {
+						byte[] data = new byte[(int) entry[1]];
+						input.seek(entry[0]);
+						int length = Math.max(0, input.read(data));
+						addLines(data, length, lines);
+					}
+				}
+			}
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Skips a number of bytes of a stream
+	 *
+	 * @param in
+	 *            The stream
+	 * @param count
+	 *            The number of bytes to skip
+	 * @return The number of bytes that have actually been skipped
+	 * @throws IOException
+	 *             If the stream could not be read
+	 */
+	private static long skip(InputStream in, long count) throws IOException {
+		long skipped = 0;
+		while (skipped < count) {
+			long step = in.skip(count - skipped);
+			if (step <= 0) {
+				break;
+			}
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Splits a log entry into lines
+	 *
+	 * @param entry
+	 *            The log entry
+	 * @param length
+	 *            The length of the log entry
+	 * @param lines
+	 *            The list to which the lines are added
+	 */
+	private void addLines(byte[] entry, int length, List<String> lines) {
+		int lineStart = 0;
+		for (int position = 0; position <= length; position++) {
+			if ((position == length) || (entry[position] == '\n')) {
+				// the line break at the end of the entry does not start another line
+				if ((position < length) || (position > lineStart)) {
+					lines.add(decode(Arrays.copyOfRange(entry, lineStart, position)));
+				}
+				lineStart = position + 1;
+			}
+		}
+	}
+
+	/**
+	 * Provides all files of a log, oldest first
+	 *
+	 * @param fileName
+	 *            The name of the log file without extension (channel or group name)
+	 * @return The active and the rolled log files
+	 */
+	List<File> getLogFiles(String fileName) {
+		final Pattern logFilePattern = Pattern.compile(Pattern.quote(fileName + ".log") + "(?:\\.(\\d+))?(?:" + Pattern.quote(LogFileRoller.compressedExtension)
+				+ ")?");
+		FilenameFilter filter = new FilenameFilter() {
+			@Override
+			public boolean accept(File folder, String name) {
+				return logFilePattern.matcher(name).matches();
+			}
+		};
+
+		// the files might be located directly in the log folder as well as in day folders
+		List<File> folders = new ArrayList<File>();
+		File logFolder = this.logLocation;
+		folders.add(logFolder);
+		File[] dayFolders = logFolder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File folder, String name) {
+				return name.matches(DatePartitionedSink.dayFolderPattern);
+			}
+		});
+		if (dayFolders != null) {
+			Collections.addAll(folders, dayFolders);
+		}
+
+		final List<File> files = new ArrayList<File>();
+		for (File folder : folders) {
+			File[] folderFiles = folder.listFiles(filter);
+			if (folderFiles != null) {
+				Collections.addAll(files, folderFiles);
+			}
+		}
+
+		// a file is older than all files that have been written after it - within the same second, the higher backup index is the older file
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				int result = Long.compare(file1.lastModified(), file2.lastModified());
+				return (result != 0) ? result : Integer.compare(getBackupIndex(file2, logFilePattern), getBackupIndex(file1, logFilePattern));
+			}
+		});
+
+		return files;
+	}
+
+	/**
+	 * Determines the backup index of a log file
+	 *
+	 * @param file
+	 *            The log file
+	 * @param logFilePattern
+	 *            The pattern of the log file names
+	 * @return The backup index or 0 for the active file
+	 */
+	private static int getBackupIndex(File file, Pattern logFilePattern) {
+		Matcher matcher = logFilePattern.matcher(file.getName());
+		return (matcher.matches() && (matcher.group(1) != null)) ? Integer.parseInt(matcher.group(1)) : 0;
+	}
+
+	/**
+	 * Collects the last lines of an uncompressed log file by reading it backwards in blocks
+	 *
+	 * @param file
+	 *            The log file
+	 * @param lineCount
+	 *            The maximum number of lines that should be collected
+	 * @param lines
+	 *            The lines collected so far - the lines of the file are inserted at the beginning
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	private void tailPlain(File file, int lineCount, LinkedList<String> lines) throws IOException {
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			BlockReader reader = new BlockReader(input);
+			// memory-mapped files might be padded at the end
+			long lineEnd = MappedFileSink.findEndOfData(input.getChannel());
+			// a trailing line break does not start another line
+			if ((lineEnd > 0) && (reader.byteAt(lineEnd - 1, true) == '\n')) {
+				lineEnd--;
+			}
+
+			int collected = 0;
+			for (long position = lineEnd - 1; (position >= -1) && (collected < lineCount); position--) {
+				if ((position < 0) || (reader.byteAt(position, true) == '\n')) {
+					lines.addFirst(decode(reader.read(position + 1, lineEnd)));
+					collected++;
+					lineEnd = position;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the last lines of a compressed log file. As compressed files cannot be read backwards, the whole file is read and only the last
+	 * lines are kept.
+	 *
+	 * @param file
+	 *            The compressed log file
+	 * @param lineCount
+	 *            The maximum number of lines that should be collected
+	 * @param lines
+	 *            The lines collected so far - the lines of the file are inserted at the beginning
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	private void tailCompressed(File file, int lineCount, LinkedList<String> lines) throws IOException {
+		ArrayDeque<String> lastLines = new ArrayDeque<String>(lineCount);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), blockSize), charset))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (lastLines.size() == lineCount) {
+					lastLines.removeFirst();
+				}
+				lastLines.addLast(line);
+			}
+		}
+
+		while (!lastLines.isEmpty()) {
+			lines.addFirst(lastLines.removeLast());
+		}
+	}
+
+	/**
+	 * Opens a log file for sequential reading. Uncompressed files are positioned at the first log entry of the time range.
+	 *
+	 * @param file
+	 *            The log file
+	 * @param from
+	 *            The start of the time range in milliseconds
+	 * @param parser
+	 *            The parser for the time stamps of the log entries
+	 * @return A reader for the lines of the file
+	 * @throws IOException
+	 *             If the file could not be opened
+	 */
+	BufferedReader open(File file, long from, TimeStampParser parser) throws IOException {
+		if (file.getName().endsWith(LogFileRoller.compressedExtension)) {
+			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), blockSize), charset));
+		}
+
+		long start;
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			BlockReader reader = new BlockReader(input);
+			long end = MappedFileSink.findEndOfData(input.getChannel());
+
+			// the time index narrows down the part of the file that has to be searched
+			long[] bounds = LogIndex.lookup(file, reader, end, from);
+			if ((bounds == null) && (indexInterval > 0) && (end > indexInterval) && file.getName().matches(".*\\.log\\.\\d+")) {
+				// the index of a rolled file is missing or corrupt - as the file does not change anymore, the effort pays off
+				if (LogIndex.rebuild(file, end, parser, charset, indexInterval)) {
+					bounds = LogIndex.lookup(file, reader, end, from);
+				}
+			}
+
+			start = (bounds != null) ? findFirstEntry(reader, bounds[0], bounds[1], from, parser) : findFirstEntry(reader, 0, end, from, parser);
+		}
+
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			stream.getChannel().position(start);
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		return new BufferedReader(new InputStreamReader(stream, charset), blockSize);
+	}
+
+	/**
+	 * Locates the first log entry that is not older than a point in time by a binary search over the time stamps of the log entries
+	 *
+	 * @param reader
+	 *            The reader for the log file
+	 * @param start
+	 *            The start of the part of the log file that contains the log entry (a line start)
+	 * @param end
+	 *            The end of the part of the log file that contains the log entry
+	 * @param from
+	 *            The point in time
+	 * @param parser
+	 *            The parser for the time stamps of the log entries
+	 * @return The position of the log entry or the end of the part if there is no such entry
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	long findFirstEntry(BlockReader reader, long start, long end, long from, TimeStampParser parser) throws IOException {
+		long low = start;
+		long high = end;
+
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			long[] entry = findEntryAfter(reader, middle, end, parser);
+			if ((entry == null) || (entry[1] >= from)) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+
+		long[] entry = findEntryAfter(reader, low, end, parser);
+		return (entry != null) ? entry[0] : end;
+	}
+
+	/**
+	 * Finds the first log entry that starts at or after a position
+	 *
+	 * @param reader
+	 *            The reader for the log file
+	 * @param position
+	 *            The position
+	 * @param end
+	 *            The end of the data in the log file
+	 * @param parser
+	 *            The parser for the time stamps of the log entries
+	 * @return The position and time stamp of the log entry or null if there is no such entry
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	private long[] findEntryAfter(BlockReader reader, long position, long end, TimeStampParser parser) throws IOException {
+		// move to the start of the next line
+		long lineStart = position;
+		if (lineStart > 0) {
+			while ((lineStart < end) && (reader.byteAt(lineStart - 1, false) != '\n')) {
+				lineStart++;
+			}
+		}
+
+		while (lineStart < end) {
+			long lineEnd = lineStart;
+			while ((lineEnd < end) && (reader.byteAt(lineEnd, false) != '\n')) {
+				lineEnd++;
+			}
+
+			// the time stamp is located at the start of the line
+			long timeStamp = parser.getTimeStamp(decode(reader.read(lineStart, Math.min(lineEnd, lineStart + 256))));
+			if (timeStamp >= 0) {
+				return new long[] { lineStart, timeStamp };
+			}
+			lineStart = lineEnd + 1;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decodes a line of a log file
+	 *
+	 * @param line
+	 *            The bytes of the line without line break
+	 * @return The line
+	 */
+	private String decode(byte[] line) {
+		int length = line.length;
+		if ((length > 0) && (line[length - 1] == '\r')) {
+			length--;
+		}
+		return new String(line, 0, length, charset);
+	}
+
+	/**
+	 * Interprets a point in time provided by a script
+	 *
+	 * @param time
+	 *            The point in time as "yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm" or "yyyy-MM-dd" - or just the time of
+	 *            today as "HH:mm:ss.SSS", "HH:mm:ss" or "HH:mm"
+	 * @return The point in time in milliseconds or -1 if it could not be interpreted
+	 */
+	static long parseTime(String time) {
+		time = time.trim();
+		for (String format : timeFormats) {
+			Date date = parse(time, format);
+			if (date != null) {
+				return date.getTime();
+			}
+		}
+
+		for (String format : timeOfDayFormats) {
+			Date date = parse(time, format);
+			if (date != null) {
+				// the time refers to today
+				Calendar timeOfDay = Calendar.getInstance();
+				timeOfDay.setTime(date);
+				Calendar today = Calendar.getInstance();
+				today.set(Calendar.HOUR_OF_DAY, timeOfDay.get(Calendar.HOUR_OF_DAY));
+				today.set(Calendar.MINUTE, timeOfDay.get(Calendar.MINUTE));
+				today.set(Calendar.SECOND, timeOfDay.get(Calendar.SECOND));
+				today.set(Calendar.MILLISECOND, timeOfDay.get(Calendar.MILLISECOND));
+				return today.getTimeInMillis();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Parses a date, if it completely matches a format
+	 *
+	 * @param time
+	 *            The date
+	 * @param format
+	 *            The format
+	 * @return The date or null if it does not match the format
+	 */
+	private static Date parse(String time, String format) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+		dateFormat.setLenient(false);
+		ParsePosition position = new ParsePosition(0);
+		Date date = dateFormat.parse(time, position);
+		return (position.getIndex() == time.length()) ? date : null;
+	}
+
+	/**
+	 * Provides random access to a file via a block-wise cache
+	 */
+	static class BlockReader {
+		private final RandomAccessFile file;
+		private final byte[] block = new byte[blockSize];
+		private long blockStart = 0;
+		private int blockLength = 0;
+
+		BlockReader(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		/**
+		 * Provides a byte of the file
+		 *
+		 * @param position
+		 *            The position of the byte
+		 * @param backwards
+		 *            true, if the file is read backwards (so the preceding bytes are cached), false otherwise
+		 * @return The byte or -1 if the position is beyond the end of the file
+		 * @throws IOException
+		 *             If the file could not be read
+		 */
+		int byteAt(long position, boolean backwards) throws IOException {
+			if ((position < blockStart) || (position >= blockStart + blockLength)) {
+				blockStart = backwards ? Math.max(0, position - blockSize + 1) : position;
+				file.seek(blockStart);
+				blockLength = Math.max(0, file.read(block, 0, blockSize));
+				if (position >= blockStart + blockLength) {
+					return -1;
+				}
+			}
+			return block[(int) (position - blockStart)];
+		}
+
+		/**
+		 * Reads a part of the file
+		 *
+		 * @param start
+		 *            The position of the first byte
+		 * @param end
+		 *            The position after the last byte
+		 * @return The bytes
+		 * @throws IOException
+		 *             If the file could not be read
+		 */
+		byte[] read(long start, long end) throws IOException {
+			byte[] bytes = new byte[(int) (end - start)];
+			file.seek(start);
+			file.readFully(bytes);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package lu.hrs.mirth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Samples the log events of chatty channels, e.g. an INFO entry per message at thousands of messages per second. Sampling rules are defined per
+ * channel name pattern and level and keep either one of N events ("1/100") or at most K events per second ("10/s"). The events are counted
+ * separately per channel, optionally also per logger (i.e. the script that has logged the event) or per message template (the message with all
+ * numbers masked).<br/>
+ * <br/>
+ * Each event that is written carries the number of similar events that have been skipped since the previous one, so rates can still be
+ * reconstructed from the log files. The counters are lock-free - each skipped event is accounted to exactly one written event.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class LogSampler {
+
+	static final String keyedByChannel = "channel";
+	static final String keyedByLogger = "logger";
+	static final String keyedByTemplate = "template";
+	private static final Pattern patternRate = Pattern.compile("\\s*(\\d+)\\s*/\\s*(\\d+|s)\\s*", Pattern.CASE_INSENSITIVE);
+	private static final Pattern patternNumbers = Pattern.compile("\\d+");
+	// the number of characters of a message that make up its template
+	private static final int maxTemplateLength = 120;
+	// the number of counters per rule - further loggers or templates share a counter
+	private static final int maxCounters = 10000;
+	private static final Rule[] noRules = new Rule[0];
+	// the rules in the order of their definition, keyed by channel name pattern and level
+	private final LinkedHashMap<String, Rule> rules = new LinkedHashMap<String, Rule>();
+	// the rules that apply to a channel
+	private final ConcurrentHashMap<String, Rule[]> channelRules = new ConcurrentHashMap<String, Rule[]>();
+	private final ChannelSinkManager sinkManager;
+	private volatile boolean enabled = false;
+
+	/**
+	 * Creates a sampler without any rules
+	 *
+	 * @param sinkManager
+	 *            The sink manager keeping the statistics of the channels
+	 */
+	LogSampler(ChannelSinkManager sinkManager) {
+		this.sinkManager = sinkManager;
+	}
+
+	/**
+	 * Defines or removes a sampling rule
+	 *
+	 * @param channelNamePattern
+	 *            The pattern of the names of the channels to which the rule applies
+	 * @param level
+	 *            The level of the events that are sampled
+	 * @param rate
+	 *            Either "1/N" for keeping one of N events or "K/s" for keeping at most K events per second (null removes the rule)
+	 * @param keyedBy
+	 *            "channel", "logger" or "template" for counting the events per channel, per logger or per message template (OPTIONAL)
+	 * @throws IllegalArgumentException
+	 *             If the rate or the key cannot be interpreted
+	 */
+	synchronized void setRule(Pattern channelNamePattern, int level, String rate, String keyedBy) {
+		String ruleName = channelNamePattern.pattern() + "@" + ChannelEvent.getLevelName(level);
+		if (rate == null) {
+			rules.remove(ruleName);
+		} else {
+			Matcher rateMatcher = patternRate.matcher(rate);
+			if (!rateMatcher.matches()) {
+				throw new IllegalArgumentException("Invalid sampling rate: " + rate);
+			}
+			long count = Long.parseLong(rateMatcher.group(1));
+			boolean perSecond = rateMatcher.group(2).equalsIgnoreCase("s");
+			if (!perSecond && (count != 1)) {
+				throw new IllegalArgumentException("Invalid sampling rate: " + rate + " - use 1/N or K/s");
+			}
+			long interval = perSecond ? 0 : Long.parseLong(rateMatcher.group(2));
+			if ((keyedBy == null) || keyedBy.trim().isEmpty()) {
+				keyedBy = keyedByChannel;
+			}
+			keyedBy = keyedBy.trim().toLowerCase();
+			if (!keyedBy.equals(keyedByChannel) && !keyedBy.equals(keyedByLogger) && !keyedBy.equals(keyedByTemplate)) {
+				throw new IllegalArgumentException("Invalid sampling key: " + keyedBy + " - use channel, logger or template");
+			}
+
+			rules.remove(ruleName);
+			rules.put(ruleName, new Rule(channelNamePattern, level, perSecond ? 0 : interval, perSecond ? count : 0, keyedBy));
+		}
+
+		channelRules.clear();
+		enabled = !rules.isEmpty();
+	}
+
+	/**
+	 * Provides a description of all sampling rules
+	 *
+	 * @return The rules, one per line (empty, if there are none)
+	 */
+	synchronized String getDescription() {
+		StringBuilder description = new StringBuilder();
+		for (Rule rule : rules.values()) {
+			description.append((description.length() > 0) ? "\n" : "").append(rule);
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Decides if an event is written
+	 *
+	 * @param channelName
+	 *            The name of the channel that has caused the event (OPTIONAL)
+	 * @param level
+	 *            The level of the event
+	 * @param loggerName
+	 *            The name of the logger of the event
+	 * @param message
+	 *            The message of the event
+	 * @return -1, if the event is skipped, otherwise the number of similar events that have been skipped since the previous written one
+	 */
+	long sample(String channelName, int level, String loggerName, String message) {
+		if (!enabled || (channelName == null)) {
+			return 0;
+		}
+
+		Rule[] applicableRules = channelRules.get(channelName);
+		if (applicableRules == null) {
+			applicableRules = getRules(channelName);
+		}
+		for (Rule rule : applicableRules) {
+			if (rule.level == level) {
+				long skipped = rule.sample(channelName, loggerName, message);
+				if (skipped < 0) {
+					sinkManager.getStatistics(channelName).eventSampledOut();
+				}
+				return skipped;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Determines the rules that apply to a channel. The first rule for a level wins.
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @return The rules
+	 */
+	private synchronized Rule[] getRules(String channelName) {
+		List<Rule> applicableRules = new ArrayList<Rule>();
+		for (Rule rule : rules.values()) {
+			if (rule.channelNamePattern.matcher(channelName).matches()) {
+				applicableRules.add(rule);
+			}
+		}
+		Rule[] result = applicableRules.isEmpty() ? noRules : applicableRules.toArray(new Rule[applicableRules.size()]);
+		channelRules.put(channelName, result);
+		return result;
+	}
+
+	/**
+	 * Masks all numbers of a message, so messages that only differ by ids or counts share a template
+	 *
+	 * @param message
+	 *            The message
+	 * @return The template
+	 */
+	private static String toTemplate(String message) {
+		if (message == null) {
+			return "";
+		}
+		if (message.length() > maxTemplateLength) {
+			message = message.substring(0, maxTemplateLength);
+		}
+		return patternNumbers.matcher(message).replaceAll("#");
+	}
+
+	/**
+	 * A sampling rule and the counters of the events to which it applies
+	 */
+	private static class Rule {
+		private final Pattern channelNamePattern;
+		private final int level;
+		private final long interval;
+		private final long perSecond;
+		private final String keyedBy;
+		private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+		Rule(Pattern channelNamePattern, int level, long interval, long perSecond, String keyedBy) {
+			this.channelNamePattern = channelNamePattern;
+			this.level = level;
+			this.interval = Math.max(1, interval);
+			this.perSecond = perSecond;
+			this.keyedBy = keyedBy;
+		}
+
+		/**
+		 * Counts an event and decides if it is written
+		 *
+		 * @param channelName
+		 *            The name of the channel that has caused the event
+		 * @param loggerName
+		 *            The name of the logger of the event
+		 * @param message
+		 *            The message of the event
+		 * @return -1, if the event is skipped, otherwise the number of similar events that have been skipped since the previous one
+		 */
+		long sample(String channelName, String loggerName, String message) {
+			String key = channelName;
+			if (keyedBy.equals(keyedByLogger)) {
+				key = channelName + "\u0000" + loggerName;
+			} else if (keyedBy.equals(keyedByTemplate)) {
+				key = channelName + "\u0000" + toTemplate(message);
+			}
+
+			Counter counter = counters.get(key);
+			if (counter == null) {
+				// if there are too many distinct loggers or templates, the remaining ones share the counter of the channel
+				if (counters.size() >= maxCounters) {
+					key = channelName;
+				}
+				counters.putIfAbsent(key, new Counter());
+				counter = counters.get(key);
+			}
+
+			boolean keep = (perSecond > 0) ? counter.acquire(perSecond) : (counter.seen.getAndIncrement() % interval == 0);
+			if (!keep) {
+				counter.skipped.incrementAndGet();
+				return -1;
+			}
+			return counter.skipped.getAndSet(0);
+		}
+
+		@Override
+		public String toString() {
+			String rate = (perSecond > 0) ? perSecond + "/s" : "1/" + interval;
+			return channelNamePattern.pattern() + " " + ChannelEvent.getLevelName(level) + ": " + rate + " per " + keyedBy;
+		}
+	}
+
+	/**
+	 * The lock-free counters of events that are sampled together
+	 */
+	private static class Counter {
+		private final AtomicLong seen = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		// the current second and the number of events written in it, packed into a single value (second << 24 | count)
+		private final AtomicLong window = new AtomicLong();
+
+		/**
+		 * Tries to take a slot of the current second
+		 *
+		 * @param perSecond
+		 *            The maximum number of events per second
+		 * @return true, if the event may be written, false otherwise
+		 */
+		boolean acquire(long perSecond) {
+			long second = System.currentTimeMillis() / 1000;
+			while (true) {
+				long current = window.get();
+				long count = ((current >>> 24) == second) ? (current & 0xFFFFFF) : 0;
+				if (count >= Math.min(perSecond, 0xFFFFFF)) {
+					return false;
+				}
+				if (window.compareAndSet(current, (second << 24) | (count + 1))) {
+					return true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A channel sink that appends log entries to a memory-mapped segment of the channel log file. As log entries are just copied into the mapping, no
+ * system call is needed per log entry. This is meant for very high-volume channels.<br/>
+ * <br/>
+ * The segment is as large as the configured maximum log file size. If it is full, the file is truncated to the length of the data it contains and
+ * rolled over. As the data is part of the page cache as soon as it has been copied, a crash of the JVM does not lose any entries. On restart, the
+ * true end of the data is found by skipping the zero-padding of the last segment.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class MappedFileSink implements ChannelSink {
+
+	private static final int recoveryBlockSize = 8192;
+	private final File file;
+	private final int segmentSize;
+	private final LogFileRoller roller;
+	private final long indexInterval;
+	private final boolean messageIndexed;
+	private FileChannel channel = null;
+	private MappedByteBuffer segment = null;
+	private LogIndex index = null;
+	private MessageIndex messageIndex = null;
+	// set by close() - the segment is also released (without this flag) if the file could not be reopened after a rollover
+	private boolean closed = false;
+
+	/**
+	 * Creates a sink that writes to a memory-mapped log file. If the file already exists, new entries are appended to it.
+	 *
+	 * @param roller
+	 *            The roller of the log file
+	 * @param maxFileSize
+	 *            The maximum size of a log file until it is rolled over. It is also the size of the mapped segment (max. 2GB)
+	 * @param indexInterval
+	 *            The number of bytes after which another entry is recorded in the index of the log file (0 for no index)
+	 * @param messageIndexed
+	 *            true, if the log entries should be recorded in a message index
+	 * @throws IOException
+	 *             If the file could not be opened or mapped
+	 */
+	MappedFileSink(LogFileRoller roller, long maxFileSize, long indexInterval, boolean messageIndexed) throws IOException {
+		this.file = roller.getFile();
+		// a single mapping cannot exceed 2GB
+		this.segmentSize = (int) Math.max(1, Math.min(maxFileSize, Integer.MAX_VALUE));
+		this.roller = roller;
+		this.indexInterval = indexInterval;
+		this.messageIndexed = messageIndexed;
+		openSegment();
+	}
+
+	@Override
+	public synchronized void write(ChannelEvent event) throws IOException {
+		if (closed) {
+			throw new IOException("The memory-mapped log file " + file + " has already been closed");
+		}
+		if (segment == null) {
+			// the file could not be reopened after a rollover - try again
+			openSegment();
+		}
+
+		byte[] entry = event.getEncoded();
+
+		// if the entry does not fit into the current segment anymore
+		IOException rollFailure = null;
+		if (entry.length > segment.remaining()) {
+			// start a new one
+			if (segment.position() > 0) {
+				rollFailure = rollSegment();
+			}
+			// some entries are even too large for an empty segment
+			if (entry.length > segment.remaining()) {
+				IOException oversizedRollFailure = writeOversizedEntry(event, entry);
+				rollFailure = (rollFailure != null) ? rollFailure : oversizedRollFailure;
+			} else {
+				writeEntry(event, entry);
+			}
+		} else {
+			writeEntry(event, entry);
+		}
+
+		if (rollFailure != null) {
+			throw new IOException("The log file " + file + " could not be rolled over and is continued", rollFailure);
+		}
+	}
+
+	/**
+	 * Copies an entry to the current segment and records it in the indexes
+	 *
+	 * @param event
+	 *            The event
+	 * @param entry
+	 *            The encoded event
+	 * @throws IOException
+	 *             If the indexes could not be written
+	 */
+	private void writeEntry(ChannelEvent event, byte[] entry) throws IOException {
+		addToIndexes(event, segment.position(), entry.length);
+		// just copy the entry to the mapping
+		segment.put(entry);
+	}
+
+	/**
+	 * Records an entry in the time and message indexes of the active log file
+	 *
+	 * @param event
+	 *            The event
+	 * @param position
+	 *            The position of the entry in the log file
+	 * @param length
+	 *            The length of the entry
+	 * @throws IOException
+	 *             If the indexes could not be written
+	 */
+	private void addToIndexes(ChannelEvent event, long position, int length) throws IOException {
+		if (index != null) {
+			index.add(event.getTimeStamp(), position);
+		}
+		if ((messageIndex != null) && (event.getMessageId() != MessageIndex.noMessage)) {
+			messageIndex.add(event.getMessageId(), event.getChannelName(), position, length);
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (segment != null) {
+			segment.force();
+			if (index != null) {
+				index.flush();
+			}
+			if (messageIndex != null) {
+				messageIndex.flush();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (segment == null) {
+			return;
+		}
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			// nothing that could be done about it anymore
+		}
+	}
+
+	/**
+	 * Maps the segment of the active log file. If the file already contains data, the write position is placed at its end.
+	 *
+	 * @throws IOException
+	 *             If the file could not be opened or mapped
+	 */
+	private void openSegment() throws IOException {
+		openSegment(true);
+	}
+
+	/**
+	 * Maps the segment of the active log file. If the file already contains data, the write position is placed at its end.
+	 *
+	 * @param rollIfFull
+	 *            true, if a full file should be rolled over, false if the segment should be extended beyond it (after a failed rollover)
+	 * @throws IOException
+	 *             If the file could not be opened or mapped
+	 */
+	private void openSegment(boolean rollIfFull) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		// the file might be the remainder of a crash and thus still padded to the full segment size
+		long end = findEndOfData(channel);
+
+		// if the existing file does not leave any space anymore
+		if ((end >= segmentSize) && rollIfFull) {
+			// close it
+			channel.truncate(end);
+			channel.close();
+			// roll it over
+			roller.roll();
+			// and start with a new file
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			end = 0;
+		}
+
+		// mapping the segment grows the file to the segment size (a continued file by another segment size). The gap is filled with zeros.
+		segment = channel.map(MapMode.READ_WRITE, 0, (end < segmentSize) ? segmentSize : Math.min(end + segmentSize, Integer.MAX_VALUE));
+		segment.position((int) end);
+		index = (indexInterval > 0) ? new LogIndex(file, end, indexInterval) : null;
+		messageIndex = messageIndexed ? new MessageIndex(file, end) : null;
+	}
+
+	/**
+	 * Unmaps the segment of the active log file and truncates the file to the length of the data it contains
+	 *
+	 * @throws IOException
+	 *             If the file could not be truncated or closed
+	 */
+	private void closeSegment() throws IOException {
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+		if (messageIndex != null) {
+			messageIndex.close();
+			messageIndex = null;
+		}
+		int length = segment.position();
+		segment.force();
+		// release the mapping explicitly as some operating systems do not allow to truncate a mapped file
+		unmap(segment);
+		segment = null;
+
+		try {
+			// cut off the zero padding
+			channel.truncate(length);
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Closes the current segment, rolls over the log file and maps the segment of a new log file
+	 *
+	 * @return null, if the file has been rolled over, otherwise the reason why the current file is continued
+	 * @throws IOException
+	 *             If neither a new file nor the current one could be mapped
+	 */
+	private IOException rollSegment() throws IOException {
+		closeSegment();
+		return rollOver();
+	}
+
+	/**
+	 * Rolls over the closed log file and maps the segment of a new one. If the rollover fails, the current file is continued (like the log4j
+	 * appenders do) with a segment that is extended by the segment size, so the rollover is retried once that is full.
+	 *
+	 * @return null, if the file has been rolled over, otherwise the reason why the current file is continued
+	 * @throws IOException
+	 *             If neither a new file nor the current one could be mapped
+	 */
+	private IOException rollOver() throws IOException {
+		try {
+			roller.roll();
+		} catch (IOException e) {
+			openSegment(false);
+			return e;
+		}
+		openSegment(true);
+		return null;
+	}
+
+	/**
+	 * Writes an entry that is larger than a whole segment directly to the log file, which is then rolled over. Usually the current segment is
+	 * empty at this point, so the entry gets a log file of its own.
+	 *
+	 * @param event
+	 *            The event
+	 * @param entry
+	 *            The log entry
+	 * @return null, if the file has been rolled over, otherwise the reason why the current file is continued
+	 * @throws IOException
+	 *             If the entry could not be written
+	 */
+	private IOException writeOversizedEntry(ChannelEvent event, byte[] entry) throws IOException {
+		// the entry follows the data of the segment, which is cut off to its length when it is closed
+		addToIndexes(event, segment.position(), entry.length);
+		closeSegment();
+		try (FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer data = ByteBuffer.wrap(entry);
+			while (data.hasRemaining()) {
+				target.write(data);
+			}
+		}
+		return rollOver();
+	}
+
+	/**
+	 * Determines the end of the log data in a file. As segments are zero-padded, the end of the data is the position after the last byte that is
+	 * not 0. The file is scanned backwards in blocks, so the effort only depends on the size of the padding.
+	 *
+	 * @param channel
+	 *            The opened log file
+	 * @return The position after the last data byte
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	static long findEndOfData(FileChannel channel) throws IOException {
+		ByteBuffer block = ByteBuffer.allocate(recoveryBlockSize);
+		long end = channel.size();
+
+		while (end > 0) {
+			long start = Math.max(0, end - recoveryBlockSize);
+			// read the block preceding the current end
+			block.clear();
+			block.limit((int) (end - start));
+			while (block.hasRemaining() && (channel.read(block, start + block.position()) >= 0)) {
+				// read till the block is complete
+			}
+
+			// and look for the last byte that is not padding
+			for (int index = block.position() - 1; index >= 0; index--) {
+				if (block.get(index) != 0) {
+					return start + index + 1;
+				}
+			}
+			end = start;
+		}
+
+		// the file does not contain any data
+		return 0;
+	}
+
+	/**
+	 * Releases a memory mapping without waiting for the garbage collector. The buffer must not be accessed anymore afterwards.
+	 *
+	 * @param buffer
+	 *            The mapping that should be released
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9+ offers an official way via Unsafe
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (NoSuchMethodException e) {
+			try {
+				// Java 8 - use the cleaner of the buffer
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e1) {
+				// leave it to the garbage collector
+			}
+		} catch (Exception e) {
+			// leave it to the garbage collector
+		}
+	}
+}
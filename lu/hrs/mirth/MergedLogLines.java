@@ -0,0 +1,211 @@
+package lu.hrs.mirth;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The chronological merge of the logs of several channels within a time range. Each line is prefixed by the name of the channel (or group) from
+ * whose log it stems:<br/>
+ * <br/>
+ * <code>[Router] INFO 2024-01-31 10:02:00,123 ...</code><br/>
+ * <br/>
+ * The logs are read on demand and merged via a heap that holds the next log entry of each log, so the memory needed does not depend on the size of
+ * the logs. Log entries are filtered by level and content while reading, so only matching entries take part in the merge.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class MergedLogLines implements Iterator<String>, Closeable {
+
+	// the level is expected within the first characters of a log entry
+	private static final int levelSearchLength = 100;
+	private static final Pattern patternLevel = Pattern.compile("\\b(TRACE|DEBUG|INFO|WARN|ERROR|FATAL)\\b");
+	private final List<EntrySource> sources = new ArrayList<EntrySource>();
+	private final PriorityQueue<EntrySource> queue;
+	private Iterator<String> currentEntry = Collections.<String> emptyList().iterator();
+	private boolean started = false;
+
+	/**
+	 * Creates the merge of several logs
+	 *
+	 * @param logs
+	 *            The lines of each log by the name of the log
+	 * @param minLevel
+	 *            The minimum level of the log entries (see {@link ChannelEvent#TRACE} till {@link ChannelEvent#FATAL})
+	 * @param filter
+	 *            A pattern that must be found in a log entry (OPTIONAL)
+	 */
+	MergedLogLines(Map<String, LogLines> logs, int minLevel, Pattern filter) {
+		queue = new PriorityQueue<EntrySource>(Math.max(1, logs.size()), new Comparator<EntrySource>() {
+			@Override
+			public int compare(EntrySource source1, EntrySource source2) {
+				int result = Long.compare(source1.timeStamp, source2.timeStamp);
+				// entries of the same point in time keep the order of the logs
+				return (result != 0) ? result : Integer.compare(source1.order, source2.order);
+			}
+		});
+
+		for (Map.Entry<String, LogLines> log : logs.entrySet()) {
+			EntrySource source = new EntrySource(log.getKey(), sources.size(), log.getValue(), minLevel, filter);
+			sources.add(source);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		// the logs are read when the first line is requested
+		if (!started) {
+			started = true;
+			for (EntrySource source : sources) {
+				if (source.advance()) {
+					queue.add(source);
+				}
+			}
+		}
+
+		while (!currentEntry.hasNext()) {
+			EntrySource source = queue.poll();
+			if (source == null) {
+				return false;
+			}
+
+			currentEntry = source.entry.iterator();
+			// the next entry of the log takes part in the merge
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return currentEntry.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		for (EntrySource source : sources) {
+			source.lines.close();
+		}
+		queue.clear();
+		currentEntry = Collections.<String> emptyList().iterator();
+		started = true;
+	}
+
+	/**
+	 * Provides the log entries of a single log that pass the filters
+	 */
+	private static class EntrySource {
+		private final String prefix;
+		private final int order;
+		private final LogLines lines;
+		private final int minLevel;
+		private final Matcher filter;
+		// the current entry
+		private long timeStamp = 0;
+		private List<String> entry = new ArrayList<String>();
+		// the first line of the next entry that has already been read
+		private String lookahead = null;
+		private long lookaheadTimeStamp = 0;
+
+		EntrySource(String name, int order, LogLines lines, int minLevel, Pattern filter) {
+			this.prefix = "[" + name + "] ";
+			this.order = order;
+			this.lines = lines;
+			this.minLevel = minLevel;
+			this.filter = (filter != null) ? filter.matcher("") : null;
+		}
+
+		/**
+		 * Reads the next log entry that passes the filters
+		 *
+		 * @return true, if there is such an entry, false if the log has been read completely
+		 */
+		boolean advance() {
+			while (true) {
+				List<String> nextEntry = new ArrayList<String>();
+				long nextTimeStamp;
+
+				if (lookahead != null) {
+					nextEntry.add(lookahead);
+					nextTimeStamp = lookaheadTimeStamp;
+					lookahead = null;
+				} else if (lines.hasNext()) {
+					nextEntry.add(lines.next());
+					nextTimeStamp = lines.getTimeStamp();
+				} else {
+					lines.close();
+					return false;
+				}
+
+				// collect the remaining lines of the entry
+				while (lines.hasNext()) {
+					String line = lines.next();
+					if (lines.startsEntry()) {
+						lookahead = line;
+						lookaheadTimeStamp = lines.getTimeStamp();
+						break;
+					}
+					nextEntry.add(line);
+				}
+
+				if (accept(nextEntry)) {
+					timeStamp = nextTimeStamp;
+					entry = new ArrayList<String>(nextEntry.size());
+					for (String line : nextEntry) {
+						entry.add(prefix + line);
+					}
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Checks if a log entry passes the filters
+		 *
+		 * @param candidate
+		 *            The lines of the log entry
+		 * @return true, if the entry should be part of the merge, false otherwise
+		 */
+		private boolean accept(List<String> candidate) {
+			if (minLevel > ChannelEvent.TRACE) {
+				String firstLine = candidate.get(0);
+				Matcher levelMatcher = patternLevel.matcher(firstLine);
+				levelMatcher.region(0, Math.min(firstLine.length(), levelSearchLength));
+				if (levelMatcher.find() && (ChannelEvent.toLevel(levelMatcher.group(1), ChannelEvent.TRACE) < minLevel)) {
+					return false;
+				}
+			}
+
+			if (filter != null) {
+				for (String line : candidate) {
+					if (filter.reset(line).find()) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index of a log file that maps Mirth message ids to the log entries that have been written while processing the message. It is stored next to
+ * the log file (&lt;name&gt;.log.mid) and rolled over together with it - also if the log file is compressed. Each entry consists of the message
+ * id, a hash of the channel name (as channels of a group share a log file), the position and the length of the log entry (24 bytes in total).<br/>
+ * <br/>
+ * The message id of a log event is taken from a script-provided marker at the start of the message (#MID:&lt;message id&gt;:), the "messageId"
+ * value of the MDC/ThreadContext or the thread name - in this order.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class MessageIndex {
+
+	static final String extension = ".mid";
+	static final String contextKey = "messageId";
+	static final long noMessage = -1;
+	static final Pattern patternMarker = Pattern.compile("^#MID:(\\d+):\\s*");
+	private static final Pattern patternThreadMessageId = Pattern.compile("(?i)message\\s*-?\\s*id\\s*[=:#]?\\s*(\\d+)");
+	private static final int entrySize = 24;
+	private DataOutputStream out = null;
+
+	/**
+	 * Opens the message index of a log file for appending. Entries that refer to data beyond the end of the log file (e.g. after a crash) are
+	 * dropped.
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @param dataEnd
+	 *            The end of the data in the log file
+	 * @throws IOException
+	 *             If the index could not be opened
+	 */
+	MessageIndex(File logFile, long dataEnd) throws IOException {
+		File indexFile = getIndexFile(logFile);
+
+		// keep the entries that are still valid
+		long validLength = 0;
+		if (indexFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+				for (long entry = 0; entry < indexFile.length() / entrySize; entry++) {
+					in.readLong();
+					in.readInt();
+					long position = in.readLong();
+					int length = in.readInt();
+					if (position + length > dataEnd) {
+						break;
+					}
+					validLength += entrySize;
+				}
+			} catch (EOFException e) {
+				// the index has been truncated - use what is there
+			}
+		}
+		try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+			index.setLength(validLength);
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+	}
+
+	/**
+	 * Records a log entry of a message
+	 *
+	 * @param messageId
+	 *            The id of the message
+	 * @param channelName
+	 *            The name of the channel that processed the message
+	 * @param position
+	 *            The position of the log entry in the log file
+	 * @param length
+	 *            The length of the log entry
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	void add(long messageId, String channelName, long position, int length) throws IOException {
+		out.writeLong(messageId);
+		out.writeInt(channelName.hashCode());
+		out.writeLong(position);
+		out.writeInt(length);
+	}
+
+	/**
+	 * Writes all recorded entries to the index file
+	 *
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Closes the index file
+	 */
+	void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// entries that have not been written are just not found
+		}
+	}
+
+	/**
+	 * Provides the message index file of a log file
+	 *
+	 * @param logFile
+	 *            The log file (compressed or not)
+	 * @return The index file (which does not necessarily exist)
+	 */
+	static File getIndexFile(File logFile) {
+		String path = logFile.getPath();
+		// the index of a compressed file keeps the name of the uncompressed one
+		if (path.endsWith(LogFileRoller.compressedExtension)) {
+			path = path.substring(0, path.length() - LogFileRoller.compressedExtension.length());
+		}
+		return new File(path + extension);
+	}
+
+	/**
+	 * Looks up the log entries of a message
+	 *
+	 * @param logFile
+	 *            The log file
+	 * @param messageId
+	 *            The id of the message
+	 * @param channelName
+	 *            The name of the channel that processed the message
+	 * @return The position and length of each log entry of the message in the log file
+	 * @throws IOException
+	 *             If the index could not be read
+	 */
+	static List<long[]> find(File logFile, long messageId, String channelName) throws IOException {
+		List<long[]> entries = new ArrayList<long[]>();
+		File indexFile = getIndexFile(logFile);
+		if (!indexFile.exists()) {
+			return entries;
+		}
+
+		int channelHash = channelName.hashCode();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), LogReader.blockSize))) {
+			for (long entry = indexFile.length() / entrySize; entry > 0; entry--) {
+				long entryMessageId = in.readLong();
+				int entryChannelHash = in.readInt();
+				long position = in.readLong();
+				int length = in.readInt();
+				if ((entryMessageId == messageId) && (entryChannelHash == channelHash)) {
+					entries.add(new long[] { position, length });
+				}
+			}
+		} catch (EOFException e) {
+			// the index is being written - use what is there
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Extracts the message id from a script-provided marker at the start of a log message
+	 *
+	 * @param message
+	 *            The log message
+	 * @return The matcher of the marker, if the message starts with a marker, null otherwise
+	 */
+	static Matcher matchMarker(String message) {
+		if ((message == null) || !message.startsWith("#MID:")) {
+			return null;
+		}
+		Matcher matcher = patternMarker.matcher(message);
+		return matcher.lookingAt() ? matcher : null;
+	}
+
+	/**
+	 * Extracts the message id from the MDC/ThreadContext value or the thread name of a log event
+	 *
+	 * @param contextValue
+	 *            The "messageId" value of the MDC/ThreadContext (OPTIONAL)
+	 * @param threadName
+	 *            The name of the thread that created the log event (OPTIONAL)
+	 * @return The message id or {@link #noMessage} if the log event does not refer to a message
+	 */
+	static long extract(Object contextValue, String threadName) {
+		if (contextValue != null) {
+			long messageId = parse(contextValue.toString());
+			if (messageId != noMessage) {
+				return messageId;
+			}
+		}
+
+		if (threadName != null) {
+			Matcher matcher = patternThreadMessageId.matcher(threadName);
+			if (matcher.find()) {
+				return parse(matcher.group(1));
+			}
+		}
+
+		return noMessage;
+	}
+
+	/**
+	 * Interprets a message id
+	 *
+	 * @param messageId
+	 *            The message id as text
+	 * @return The message id or {@link #noMessage} if it is not a valid message id
+	 */
+	static long parse(String messageId) {
+		try {
+			long value = Long.parseLong(messageId.trim());
+			return (value >= 0) ? value : noMessage;
+		} catch (NumberFormatException e) {
+			return noMessage;
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package lu.hrs.mirth;
 
+import java.util.Map;
+
 // should extend
 public class MetaAppender {
 
-	static MetaAppenderBase metaAppender = null;
+	// the implementation for the present log4j version - it is determined by the first call
+	static volatile MetaAppenderBase metaAppender = null;
 
 	/**
 	 * Activates the customization of the mirth logging mechanism (Just has to be called once)
@@ -90,6 +93,517 @@ public class MetaAppender {
 		return getInstance(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
 	}
 
+	/**
+	 * Limits the console and Mirth dashboard log to the output of one specific channel. The output of the log files is not influenced.<br/>
+	 * <br/>
+	 * <i>A channel can be focused even before it has been deployed. However focusing will only become active when channel is actually deployed.</i>
+	 * 
+	 * @param identifier
+	 *            The id or name of the channel that should be focused.
+	 * @return The name of the channel that has been focused
+	 */
+	public static String setFocus(String identifier) {
+		return activate().setFocus(identifier);
+	}
+
+	/**
+	 * Removes the focus onto the output of a specific channel and shows output of all channels on the mirth dashboard and console log.
+	 * 
+	 * @return The name of the channel for which the focus has been removed
+	 */
+	public static String removeFocus() {
+		return activate().removeFocus();
+	}
+
+	/**
+	 * Suppresses the logging of a specific channel at the console and Mirth dashboard. The output of the log files is not influenced.<br/>
+	 * <br/>
+	 * <i>A channel can be filtered even before it has been deployed. However filtering will only become active when channel is actually deployed.</i>
+	 * 
+	 * @param identifier
+	 *            The id or name of the channel that should be filtered.
+	 * @return The name of the channel that has been filtered
+	 */
+	public static String setFilter(String identifier) {
+		return activate().setFilter(identifier);
+	}
+
+	/**
+	 * Removes the filter onto the output of a specific channel and shows output of all channels on the mirth dashboard and console log.
+	 * 
+	 * @return The name of the channel for which the filter has been removed
+	 */
+	public static String removeFilter() {
+		return activate().removeFilter();
+	}
+
+	/**
+	 * Notifies the MetaAppender about the deployment of a channel (to be called from the deploy script of a channel). The log file of the channel
+	 * is opened in advance and a renamed channel continues logging in a file named like its new name.<br/>
+	 * <br/>
+	 * <i>Deployments, undeployments and renamings are also detected in the background, but with a delay.</i>
+	 * 
+	 * @param channelId
+	 *            The id of the deployed channel
+	 * @return The name of the channel or null if the id does not belong to a channel
+	 */
+	public static String onChannelDeploy(String channelId) {
+		return activate().onChannelDeploy(channelId);
+	}
+
+	/**
+	 * Notifies the MetaAppender about the undeployment of a channel (to be called from the undeploy script of a channel). The log file of the
+	 * channel is closed.
+	 * 
+	 * @param channelId
+	 *            The id of the undeployed channel
+	 * @return The name of the channel or null if the channel was not known
+	 */
+	public static String onChannelUndeploy(String channelId) {
+		return activate().onChannelUndeploy(channelId);
+	}
+
+	/**
+	 * Logs the channels matching the provided pattern to memory-mapped log files. This saves system calls on very high-volume channels. The
+	 * segments have the maximum log file size and are truncated to their real length when they are rolled over or closed.
+	 *
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels that should use memory-mapped log files. null or an empty string
+	 *            switches all channels back to regular log files.
+	 * @return The pattern that is now active or null if no channel uses memory-mapped log files
+	 */
+	public static String setMemoryMappedChannels(String channelNamePattern) {
+		return activate().setMemoryMappedChannels(channelNamePattern);
+	}
+
+	/**
+	 * Logs the channels matching the provided pattern to binary log files (&lt;channel&gt;.blog). Only the raw fields of each log entry are stored,
+	 * which saves the formatting effort and disk space for very chatty channels. The files are rolled over like text log files and rendered to text
+	 * on demand:<br/>
+	 * <code>java -cp &lt;MetaAppender jar&gt; lu.hrs.mirth.BinaryLogDecoder &lt;binary log file&gt;</code>
+	 *
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels that should use binary log files. null or an empty string switches all
+	 *            channels back to text log files.
+	 * @return The pattern that is now active or null if no channel uses binary log files
+	 */
+	public static String setBinaryChannels(String channelNamePattern) {
+		return activate().setBinaryChannels(channelNamePattern);
+	}
+
+	/**
+	 * Lets all channels whose name matches the provided pattern log to a single shared log file named like the group. This is meant for the many
+	 * channels that only log a few lines a day, so the number of log files and open file handles scales with the number of groups instead of the
+	 * number of channels. Each log entry still shows the channel name.<br/>
+	 * <br/>
+	 * <i>If a channel matches several groups, the group that was defined first wins.</i>
+	 * 
+	 * @param groupName
+	 *            The name of the group and its log file
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels of the group. null or an empty string dissolves the group.
+	 * @return The name of the group or null if the group has been dissolved
+	 */
+	public static String setChannelGroup(String groupName, String channelNamePattern) {
+		return activate().setChannelGroup(groupName, channelNamePattern);
+	}
+
+	/**
+	 * Compresses rolled channel log files (&lt;channel&gt;.log.N) in the background using gzip. Compression runs on a bounded pool of
+	 * low-priority threads and never on the logging thread.
+	 *
+	 * @param compressRolledFiles
+	 *            true, if rolled log files should be compressed
+	 * @return true, if compression is now active, false otherwise
+	 */
+	public static boolean setCompression(Boolean compressRolledFiles) {
+		return activate().setCompression(compressRolledFiles);
+	}
+
+	/**
+	 * Places the channel log files in a folder per day (&lt;log folder&gt;/&lt;yyyy-MM-dd&gt;/&lt;channel&gt;.log). A new log file is started at
+	 * midnight and within a day, log files are rolled over by size. Logs of a day can then be purged or archived as a whole.
+	 *
+	 * @param partitionByDate
+	 *            true, if the channel log files should be partitioned by date
+	 * @return true, if the channel log files are now partitioned by date, false otherwise
+	 */
+	public static boolean setDatePartitioning(Boolean partitionByDate) {
+		return activate().setDatePartitioning(partitionByDate);
+	}
+
+	/**
+	 * Drops the day folders of all days before the provided one (only applies if the channel log files are partitioned by date)
+	 *
+	 * @param day
+	 *            The first day that should be kept (yyyy-MM-dd)
+	 * @return The number of day folders that have been deleted
+	 */
+	public static int purgeLogsBefore(String day) {
+		return activate().purgeLogsBefore(day);
+	}
+
+	/**
+	 * Limits the disk space used by all log files in the log folder and the age of rolled log files. A background janitor deletes the oldest
+	 * rolled files first, starting with the channel that occupies most space, so a noisy channel cannot push out the history of all others.
+	 * Active log files are never deleted.
+	 *
+	 * @param maxTotalSize
+	 *            The maximum size of all log files together, e.g. "10GB" (null for no limit)
+	 * @param maxAgeDays
+	 *            The maximum age of a rolled log file in days (null for no limit)
+	 * @return A description of the limits that are now active
+	 */
+	public static String setRetention(String maxTotalSize, Integer maxAgeDays) {
+		return activate().setRetention(maxTotalSize, maxAgeDays);
+	}
+
+	/**
+	 * Provides runtime statistics of the channel log files, e.g. the bytes saved by compression and the time it took
+	 *
+	 * @return The statistics per channel name
+	 */
+	public static Map<String, ChannelStatistics> getStatistics() {
+		return activate().getStatistics();
+	}
+
+	/**
+	 * Keeps the most recent events of each channel in memory, so they can be inspected from scripts via {@link #getRecent(String, Integer, String)}
+	 * without reading the log files. The memory used by all channels together is limited - each channel may use an equal share of it and drops its
+	 * oldest events if it exceeds its share.
+	 *
+	 * @param eventsPerChannel
+	 *            The maximum number of events kept per channel (0 or null deactivates the buffer)
+	 * @param maxTotalSize
+	 *            The maximum size of the events of all channels together, e.g. "16MB"
+	 * @return A description of the limits that are now active
+	 */
+	public static String setRecentEvents(Integer eventsPerChannel, String maxTotalSize) {
+		return activate().setRecentEvents(eventsPerChannel, maxTotalSize);
+	}
+
+	/**
+	 * Provides the most recent events of a channel from memory. The events are only kept if activated via
+	 * {@link #setRecentEvents(Integer, String)}.
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param count
+	 *            The maximum number of events
+	 * @param minLevel
+	 *            The minimum level of the events, e.g. "WARN" (null for all events)
+	 * @return The log entries, oldest first
+	 */
+	public static String[] getRecent(String channel, Integer count, String minLevel) {
+		return activate().getRecent(channel, count, minLevel);
+	}
+
+	/**
+	 * Provides the last lines of the log of a channel. The log files are read backwards from the end, so the size of the log does not matter.
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param lineCount
+	 *            The maximum number of lines
+	 * @return The lines, oldest first
+	 */
+	public static String[] tail(String channel, Integer lineCount) {
+		return activate().tail(channel, lineCount);
+	}
+
+	/**
+	 * Provides the lines of the log of a channel that belong to the log entries of a time range. The start of the range is located by a binary
+	 * search over the time stamps of the log entries and the lines are read on demand. The result should be closed if it is not read completely.
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param from
+	 *            The start of the time range, e.g. "2024-01-31 10:02" or "10:02" for today (null for the start of the log)
+	 * @param to
+	 *            The end of the time range (inclusive, null for the end of the log)
+	 * @return The lines or null if the time range could not be interpreted or the log pattern does not contain a date (%d)
+	 */
+	public static LogLines read(String channel, String from, String to) {
+		return activate().read(channel, from, to);
+	}
+
+	/**
+	 * Writes a sparse time index next to each channel log file (&lt;channel&gt;.log.idx), which maps the time stamp of the first log entry after
+	 * every interval of N bytes to its position. The index is rolled over together with its log file, so reading a time range via
+	 * {@link #read(String, String, String)} just needs to search the index instead of the whole file. Missing or corrupt indexes of rolled files
+	 * are rebuilt from the log file when needed.
+	 *
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded in the index, e.g. "64KB" (null deactivates indexing)
+	 * @return The interval in bytes or 0 if indexing is not active
+	 */
+	public static long setIndexing(String interval) {
+		return activate().setIndexing(interval);
+	}
+
+	/**
+	 * Records the log entries of Mirth messages in a message index next to each channel log file (&lt;channel&gt;.log.mid), so all log entries
+	 * of a message can be fetched via {@link #readMessage(String, Long)} without scanning the log files. The message id of a log event is taken
+	 * from a marker at the start of the log message (#MID:&lt;message id&gt;:), the "messageId" value of the MDC/ThreadContext or the thread name.
+	 *
+	 * @param indexMessages
+	 *            true, if the log entries of messages should be indexed
+	 * @return true, if message indexing is now active, false otherwise
+	 */
+	public static boolean setMessageIndexing(Boolean indexMessages) {
+		return activate().setMessageIndexing(indexMessages);
+	}
+
+	/**
+	 * Writes the channel log files and mirthErrors.log as JSON lines instead of rendering the log entries by the log pattern, so log shippers do not
+	 * have to parse the text. Each line contains timestamp, level, channel, channelId, logger, thread, message and - if present - exception.
+	 *
+	 * @param writeJsonLines
+	 *            true, if the log entries should be written as JSON lines
+	 * @return true, if JSON output is now active, false otherwise
+	 */
+	public static boolean setJsonOutput(Boolean writeJsonLines) {
+		return activate().setJsonOutput(writeJsonLines);
+	}
+
+	/**
+	 * Moves log messages above the provided size (e.g. complete HL7 or XML payloads) to side files in the folder "payloads" of the log folder. The
+	 * log files, the dashboard and the console only get the first characters of such a message and the name of the side file. The side files are
+	 * named by the hash of their content, so a payload that is logged repeatedly is only stored once. They are purged with the maximum age defined
+	 * by setRetention().
+	 *
+	 * @param maxMessageSize
+	 *            The maximum number of characters of a log message that is logged as it is (e.g. "64KB"). null or an empty string logs all
+	 *            messages as they are.
+	 * @return The threshold that is now active in characters or 0 if all messages are logged as they are
+	 */
+	public static int setPayloadThreshold(String maxMessageSize) {
+		return activate().setPayloadThreshold(maxMessageSize);
+	}
+
+	/**
+	 * Protects message processing from being slowed down by logging during incident storms. The log events and the time spent on writing them are
+	 * measured each second. If the budget is exceeded, the threshold of the noisiest channel is raised step by step: first DEBUG and TRACE entries
+	 * are dropped, then only 1 of 10 INFO entries is written. WARN, ERROR and FATAL entries are always written. Once the load has stayed below half of
+	 * the budget for 10 seconds, the regular thresholds are restored step by step. Each adjustment is announced in mirth.log and the current step as
+	 * well as the number of dropped entries are provided by getStatistics().
+	 *
+	 * @param maxEventsPerSecond
+	 *            The maximum number of log events per second (0 or null for no limit)
+	 * @param maxAppendMillisPerSecond
+	 *            The maximum time all threads together may spend on writing log events per second, e.g. 200 for 20% of a CPU core (0 or null for
+	 *            no limit)
+	 * @return A description of the budget that is now active
+	 */
+	public static String setLoadShedding(Integer maxEventsPerSecond, Integer maxAppendMillisPerSecond) {
+		return activate().setLoadShedding(maxEventsPerSecond, maxAppendMillisPerSecond);
+	}
+
+	/**
+	 * Samples the log events of a level of chatty channels instead of writing all of them, e.g. for channels that log an INFO entry per message. The
+	 * events are counted per channel and optionally also per logger (i.e. per script) or per message template (the message with all numbers
+	 * masked). Each event that is written carries the number of similar events that have been skipped since the previous one, e.g.
+	 * "Message sent [37 similar skipped]". Thus rates can still be reconstructed from the log files. The first matching rule for a level applies.
+	 *
+	 * @param channelNamePattern
+	 *            The pattern of the names of the channels to which the rule applies, e.g. "HL7_.*"
+	 * @param level
+	 *            The level of the events that are sampled, e.g. "INFO"
+	 * @param rate
+	 *            "1/N" for keeping one of N events or "K/s" for keeping at most K events per second. null removes the rule.
+	 * @param keyedBy
+	 *            "channel", "logger" or "template" for counting the events per channel, per logger or per message template (OPTIONAL - default is
+	 *            "channel")
+	 * @return A description of all sampling rules that are now active, one per line
+	 */
+	public static String setSampling(String channelNamePattern, String level, String rate, String keyedBy) {
+		return activate().setSampling(channelNamePattern, level, rate, keyedBy);
+	}
+
+	/**
+	 * Writes the channel log files in the background instead of on the threads that are logging, so blocking file I/O of a slow channel never
+	 * delays message processing or the logging of other channels. Each channel gets a bounded queue of log events that is drained by at most one
+	 * writer at a time. On Java 21 and later, each channel is drained by a virtual thread of its own. On older runtimes, a small work-stealing pool of
+	 * platform threads drains the queues. If the queue of a channel is full, further events of the channel are dropped. The mode should be set right
+	 * after the activation. The mode, the queue depth and the dropped events of each channel are provided by {@link #getStatistics()}.
+	 *
+	 * @param mode
+	 *            "VIRTUAL" for a virtual thread per channel, "POOL" for the work-stealing pool, "AUTO" for virtual threads if the Java runtime supports
+	 *            them and the pool otherwise, null or "SYNC" for writing on the logging threads (default)
+	 * @return A description of the writer mode that is now active
+	 */
+	public static String setAsyncWriting(String mode) {
+		return activate().setAsyncWriting(mode);
+	}
+
+	/**
+	 * Buffers the output of the channel log files according to the write rate of each channel instead of writing every log entry right away. A
+	 * moving average of the bytes written per second is tracked per log file: busy channels get a buffer of up to 1MB, quiet channels lose their
+	 * buffer, and the buffers of all channels together stay within the memory limit. A buffer is written at the latest after the flush interval of
+	 * its channel (100ms to 1s), so a crash of the server might lose up to a second of log entries. The buffer size, flush interval and write rate
+	 * of each channel are provided by {@link #getStatistics()}.
+	 *
+	 * @param maxTotalSize
+	 *            The maximum memory all buffers may occupy together, e.g. "32MB" (null deactivates the buffering)
+	 * @return A description of the buffering: the memory limit, the memory currently assigned and the number of buffered files
+	 */
+	public static String setAdaptiveBuffering(String maxTotalSize) {
+		return activate().setAdaptiveBuffering(maxTotalSize);
+	}
+
+	/**
+	 * Captures all log events received by the MetaAppender in a compact workload trace, e.g. during a log storm. The trace can be replayed offline
+	 * against other configurations by the WorkloadReplay of the test harness. By default, only the length and the hash of each message are recorded,
+	 * so the trace does not contain any patient data. A running capture is ended by starting a new one. It also ends by itself when the trace
+	 * reaches its maximum size.
+	 *
+	 * @param fileName
+	 *            The trace, relative to the log folder unless absolute, e.g. "storm.wtrace" (null ends the capture)
+	 * @param fullMessages
+	 *            If this flag is set, the full messages are recorded instead of only their length and hash (OPTIONAL - default is false)
+	 * @param maxSize
+	 *            The size of the trace at which the capture ends, e.g. "100MB" (OPTIONAL - default is 256MB)
+	 * @return A description of the capture that is now running (trace, number of events and size) or null if there is none
+	 */
+	public static String setWorkloadCapture(String fileName, Boolean fullMessages, String maxSize) {
+		return activate().setWorkloadCapture(fileName, fullMessages, maxSize);
+	}
+
+	/**
+	 * Forwards the log entries of channels to a local log shipper (e.g. Fluent Bit or Vector) besides writing them to the channel log files, so the
+	 * shipper does not have to tail the files. The entries are sent in batches over a single persistent connection by a background thread. They are
+	 * rendered like in the log files (JSON lines if activated via {@link #setJsonOutput(Boolean)}) and are either separated by line breaks or
+	 * prefixed by their length (4 bytes, big endian). While the shipper is not reachable, the entries are kept in the spool file
+	 * "forwarding.spool" in the log folder (up to 256MB) and the connection is retried every 1 to 30 seconds. The spooled entries are sent first
+	 * after reconnecting. Unix domain sockets require Java 16 or later.
+	 *
+	 * @param address
+	 *            The address of the shipper, e.g. "tcp://localhost:24224" or "unix:/var/run/shipper.sock" (null ends the forwarding)
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the forwarded channels (OPTIONAL - default is all channels)
+	 * @param framing
+	 *            "LINES" for newline-delimited entries or "LENGTH" for length-prefixed entries (OPTIONAL - default is "LINES")
+	 * @return A description of the forwarding that is now running or null if there is none
+	 */
+	public static String setForwarding(String address, String channelNamePattern, String framing) {
+		return activate().setForwarding(address, channelNamePattern, framing);
+	}
+
+	/**
+	 * Describes the running forwarding to a local log shipper (see {@link #setForwarding(String, String, String)})
+	 *
+	 * @return The address, the state of the connection and the number of sent, spooled and dropped entries or null if there is no forwarding
+	 */
+	public static String getForwarding() {
+		return activate().getForwarding();
+	}
+
+	/**
+	 * Masks patient identifiers and other sensitive terms in all log messages, so scripts do not have to redact them before logging. The message of
+	 * each event is redacted once before it is written to the log files, the dashboard, the console, the recent events or a log shipper. All terms
+	 * and labels are found in a single pass over the message, so many terms do not cost more than a few. Masked parts are replaced by "***". The
+	 * stack trace of an exception is not redacted. The number of redacted events per channel is provided by {@link #getStatistics()}.
+	 *
+	 * @param identifiers
+	 *            If this flag is set, the values following the labels MRN and SSN (e.g. "MRN: 00123456") as well as social security numbers
+	 *            (123-45-6789) are masked
+	 * @param terms
+	 *            Literal terms that are masked wherever they occur, separated by comma, e.g. a list of VIP patient names (case-insensitive, OPTIONAL)
+	 * @param pattern
+	 *            A regular expression whose matches are masked, e.g. "\\b\\d{2}/\\d{2}/\\d{4}\\b" for birth dates (OPTIONAL)
+	 * @return A description of the redaction that is now active or null if it is deactivated (all parameters null or false)
+	 */
+	public static String setRedaction(Boolean identifiers, String terms, String pattern) {
+		return activate().setRedaction(identifiers, terms, pattern);
+	}
+
+	/**
+	 * Binds the log events of the current thread to a channel. The channel is usually detected by its id in the thread name or the logger name,
+	 * which code templates, global scripts and threads started by scripts often do not contain - their log entries end up in the main log. A bound
+	 * thread is routed to the log file of its channel without inspecting any names. The binding is kept in the "channelId" value of the
+	 * MDC/ThreadContext, so it is also seen by asynchronous loggers and it can be set by the log4j API directly. It lasts till
+	 * {@link #unbindChannel()} is called - a thread of a pool should be unbound in a finally block.
+	 *
+	 * @param channelId
+	 *            The id of the channel (e.g. the variable channelId of a script)
+	 * @throws IllegalArgumentException
+	 *             If the id is not a channel id
+	 */
+	public static void bindChannel(String channelId) {
+		activate().bindChannel(channelId);
+	}
+
+	/**
+	 * Removes the binding of the current thread to a channel (see {@link #bindChannel(String)})
+	 */
+	public static void unbindChannel() {
+		activate().unbindChannel();
+	}
+
+	/**
+	 * Changes location, size, number of backups, layout and main log behavior of the log files without restarting Mirth. Unlike
+	 * {@link #activate(String, String, Integer, String, Boolean)}, which only takes effect with the very first call, a reconfiguration can be done at
+	 * any time. The new configuration is published at once, so each log event is written entirely according to either the previous or the new one.
+	 * The log files of the channels are reopened with the new configuration by their next event - logging of other channels is not paused. The
+	 * replaced log4j appenders are closed as soon as the events that are still being written to them are done, so none of them is lost.<br/>
+	 * <br/>
+	 * A running workload capture and forwarding keep their files in the previous log folder till they are restarted. With log4j 1.2, the main log
+	 * keeps the configuration of Mirth (as with the activation).
+	 *
+	 * @param customLogPath
+	 *            Defines a new location for the log files (OPTIONAL - null keeps the current one)
+	 * @param customMaxFileSize
+	 *            Defines a new maximal size per log file, e.g. "10MB" (OPTIONAL - null keeps the current one)
+	 * @param customMaxBackupIndex
+	 *            Defines a new maximum number of log files per channel till the oldest is overwritten (OPTIONAL - null keeps the current one)
+	 * @param customLogPattern
+	 *            Defines a new structure for the log file entries (OPTIONAL - null keeps the current one)
+	 * @param logAllToMainLog
+	 *            If this flag is set, all log entries (also channel-specific ones) will also be logged to the main log (OPTIONAL - null keeps the
+	 *            current value)
+	 * @return A description of the configuration that is now active
+	 * @throws IllegalArgumentException
+	 *             If the location could not be created or the size or number of backups is invalid
+	 */
+	public static String reconfigure(String customLogPath, String customMaxFileSize, Integer customMaxBackupIndex, String customLogPattern,
+			Boolean logAllToMainLog) {
+		return activate().reconfigure(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
+	}
+
+	/**
+	 * Provides all log entries of a channel that have been written during the processing of a Mirth message
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param messageId
+	 *            The id of the message
+	 * @return The lines of the log entries, oldest first
+	 */
+	public static String[] readMessage(String channel, Long messageId) {
+		return activate().readMessage(channel, messageId);
+	}
+
+	/**
+	 * Provides the chronological merge of the logs of several channels within a time range, e.g. to follow a message from a router channel to its
+	 * destination channels. Each line is prefixed by the name of the channel from whose log it stems. The logs are read on demand, so the memory
+	 * needed does not depend on the size of the logs. The result should be closed if it is not read completely.
+	 *
+	 * @param channels
+	 *            The names or ids of the channels, separated by comma
+	 * @param from
+	 *            The start of the time range, e.g. "2024-01-31 10:02" or "10:02" for today (null for the start of the logs)
+	 * @param to
+	 *            The end of the time range (inclusive, null for the end of the logs)
+	 * @param minLevel
+	 *            The minimum level of the log entries, e.g. "WARN" (null for all entries)
+	 * @param filter
+	 *            A regular expression that must be found in a log entry (null for all entries)
+	 * @return The merged lines or null if the parameters could not be interpreted or the log pattern does not contain a date (%d)
+	 */
+	public static MergedLogLines readMerged(String channels, String from, String to, String minLevel, String filter) {
+		return activate().readMerged(channels, from, to, minLevel, filter);
+	}
+
 	/**
 	 * Activates the customization of the mirth logging mechanism (Just has to be called once).<br/>
 	 * <br/>
@@ -123,8 +637,10 @@ public class MetaAppender {
 			// nope - so it's still v1.x
 			log4Jv2 = false;
 		}
-		return (MetaAppenderBase) (log4Jv2
-				? MetaAppenderLog4J2.activate(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog)
-				: MetaAppenderLog4J1.activate(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog));
+		// both versions share the same routing core - remember it, so subsequent calls do neither probe the classpath nor go through the appender
+		MetaAppender.metaAppender = log4Jv2
+				? MetaAppenderLog4J2.activate(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog).getRouter()
+				: MetaAppenderLog4J1.activate(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog).getRouter();
+		return MetaAppender.metaAppender;
 	}
 }
@@ -1,5 +1,377 @@
 package lu.hrs.mirth;
 
+import java.util.Map;
+
 public interface MetaAppenderBase {
 
+	/**
+	 * Limits the console and Mirth dashboard log to the output of one specific channel. The output of the log files is not influenced.
+	 *
+	 * @param identifier
+	 *            The id or name of the channel that should be focused
+	 * @return The name of the channel that has been focused
+	 */
+	public String setFocus(String identifier);
+
+	/**
+	 * Removes the focus onto the output of a specific channel and shows output of all channels on the mirth dashboard and console log.
+	 *
+	 * @return The name of the channel for which the focus has been removed
+	 */
+	public String removeFocus();
+
+	/**
+	 * Suppresses the logging of a specific channel at the console and Mirth dashboard. The output of the log files is not influenced.
+	 *
+	 * @param identifier
+	 *            The id or name of the channel that should be filtered
+	 * @return The name of the channel that has been filtered
+	 */
+	public String setFilter(String identifier);
+
+	/**
+	 * Removes the filter onto the output of a specific channel and shows output of all channels on the mirth dashboard and console log.
+	 *
+	 * @return The name of the channel for which the filter has been removed
+	 */
+	public String removeFilter();
+
+	/**
+	 * Notifies the MetaAppender about the deployment of a channel. The log file of the channel is opened in advance. If the channel was known
+	 * under a different name before, logging continues in a log file named like the new channel name.
+	 *
+	 * @param channelId
+	 *            The id of the deployed channel
+	 * @return The name of the channel or null if the id does not belong to a channel
+	 */
+	public String onChannelDeploy(String channelId);
+
+	/**
+	 * Notifies the MetaAppender about the undeployment of a channel. The log file of the channel is closed.
+	 *
+	 * @param channelId
+	 *            The id of the undeployed channel
+	 * @return The name of the channel or null if the channel was not known
+	 */
+	public String onChannelUndeploy(String channelId);
+
+	/**
+	 * Defines the channels whose log entries are written to memory-mapped log files instead of regular ones. This reduces the number of system
+	 * calls for very high-volume channels.
+	 *
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels that should use memory-mapped log files. null or an empty string
+	 *            switches all channels back to regular log files.
+	 * @return The pattern that is now active or null if no channel uses memory-mapped log files
+	 */
+	public String setMemoryMappedChannels(String channelNamePattern);
+
+	/**
+	 * Defines the channels whose log entries are written to binary log files (&lt;channel&gt;.blog) instead of text log files. This saves the
+	 * formatting effort for very chatty channels. The files are rendered to text by the {@link BinaryLogDecoder}.
+	 *
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels that should use binary log files. null or an empty string switches all
+	 *            channels back to text log files.
+	 * @return The pattern that is now active or null if no channel uses binary log files
+	 */
+	public String setBinaryChannels(String channelNamePattern);
+
+	/**
+	 * Defines a group of channels that share a single log file named like the group
+	 *
+	 * @param groupName
+	 *            The name of the group and its log file
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the channels of the group. null or an empty string dissolves the group.
+	 * @return The name of the group or null if the group has been dissolved
+	 */
+	public String setChannelGroup(String groupName, String channelNamePattern);
+
+	/**
+	 * Activates or deactivates the background compression of rolled channel log files. While it is active, the channel log files are rotated by
+	 * the MetaAppender, which is aware of compressed backups.
+	 *
+	 * @param compressRolledFiles
+	 *            true, if rolled log files should be gzip-compressed
+	 * @return true, if compression is now active, false otherwise
+	 */
+	public boolean setCompression(Boolean compressRolledFiles);
+
+	/**
+	 * Activates or deactivates the placement of the channel log files in a folder per day (&lt;log folder&gt;/&lt;yyyy-MM-dd&gt;/&lt;channel&gt;.log)
+	 *
+	 * @param partitionByDate
+	 *            true, if the channel log files should be partitioned by date
+	 * @return true, if the channel log files are now partitioned by date, false otherwise
+	 */
+	public boolean setDatePartitioning(Boolean partitionByDate);
+
+	/**
+	 * Drops the day folders of all days before the provided one
+	 *
+	 * @param day
+	 *            The first day that should be kept (yyyy-MM-dd)
+	 * @return The number of day folders that have been deleted
+	 */
+	public int purgeLogsBefore(String day);
+
+	/**
+	 * Defines a global disk budget and a maximum age for all log files in the log folder. A background janitor deletes rolled files (never active
+	 * ones) till the limits are met.
+	 *
+	 * @param maxTotalSize
+	 *            The maximum size of all log files together, e.g. "10GB" (null for no limit)
+	 * @param maxAgeDays
+	 *            The maximum age of a rolled log file in days (null for no limit)
+	 * @return A description of the limits that are now active
+	 */
+	public String setRetention(String maxTotalSize, Integer maxAgeDays);
+
+	/**
+	 * Provides runtime statistics of the channel log files
+	 *
+	 * @return The statistics per channel name
+	 */
+	public Map<String, ChannelStatistics> getStatistics();
+
+	/**
+	 * Defines how many of the recent events of each channel are kept in memory. The memory used by all channels together is limited and shared
+	 * equally among the channels.
+	 *
+	 * @param eventsPerChannel
+	 *            The maximum number of events kept per channel (0 or null deactivates the buffer)
+	 * @param maxTotalSize
+	 *            The maximum size of the events of all channels together, e.g. "16MB"
+	 * @return A description of the limits that are now active
+	 */
+	public String setRecentEvents(Integer eventsPerChannel, String maxTotalSize);
+
+	/**
+	 * Provides the most recent events of a channel from memory
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param count
+	 *            The maximum number of events
+	 * @param minLevel
+	 *            The minimum level of the events, e.g. "WARN" (null for all events)
+	 * @return The log entries, oldest first
+	 */
+	public String[] getRecent(String channel, Integer count, String minLevel);
+
+	/**
+	 * Provides the last lines of the log file(s) of a channel
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param lineCount
+	 *            The maximum number of lines
+	 * @return The lines, oldest first
+	 */
+	public String[] tail(String channel, Integer lineCount);
+
+	/**
+	 * Provides the lines of the log file(s) of a channel that belong to the log entries of a time range
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param from
+	 *            The start of the time range, e.g. "2024-01-31 10:02" or "10:02" for today (null for the start of the log)
+	 * @param to
+	 *            The end of the time range (inclusive, null for the end of the log)
+	 * @return The lines, which are read on demand, or null if the time range could not be interpreted
+	 */
+	public LogLines read(String channel, String from, String to);
+
+	/**
+	 * Defines if the channel log files get a sparse time index, which allows to find a point in time in large log files without scanning them
+	 *
+	 * @param interval
+	 *            The number of bytes after which another entry is recorded in the index, e.g. "64KB" (null deactivates indexing)
+	 * @return The interval in bytes or 0 if indexing is not active
+	 */
+	public long setIndexing(String interval);
+
+	/**
+	 * Defines if the log entries of Mirth messages are recorded in a message index next to each channel log file
+	 *
+	 * @param indexMessages
+	 *            true, if the log entries of messages should be indexed
+	 * @return true, if message indexing is now active, false otherwise
+	 */
+	public boolean setMessageIndexing(Boolean indexMessages);
+
+	/**
+	 * Defines if the channel log files and the error log are written as JSON lines instead of being rendered by the log pattern
+	 *
+	 * @param writeJsonLines
+	 *            true, if the log entries should be written as JSON lines
+	 * @return true, if JSON output is active, false otherwise
+	 */
+	public boolean setJsonOutput(Boolean writeJsonLines);
+
+	/**
+	 * Defines the size above which log messages are moved to content-addressed side files and only referenced by the log entries
+	 *
+	 * @param maxMessageSize
+	 *            The maximum number of characters of a log message that is logged as it is (e.g. "64KB"). null or an empty string logs all
+	 *            messages as they are.
+	 * @return The threshold that is now active in characters or 0 if all messages are logged as they are
+	 */
+	public int setPayloadThreshold(String maxMessageSize);
+
+	/**
+	 * Defines a budget for logging. If it is exceeded, the thresholds of the noisiest channels are raised till the load is within the budget again.
+	 *
+	 * @param maxEventsPerSecond
+	 *            The maximum number of log events per second (0 or null for no limit)
+	 * @param maxAppendMillisPerSecond
+	 *            The maximum time all threads together may spend on writing log events per second (0 or null for no limit)
+	 * @return A description of the budget that is now active
+	 */
+	public String setLoadShedding(Integer maxEventsPerSecond, Integer maxAppendMillisPerSecond);
+
+	/**
+	 * Defines or removes a sampling rule for the log events of a level of chatty channels
+	 *
+	 * @param channelNamePattern
+	 *            The pattern of the names of the channels to which the rule applies
+	 * @param level
+	 *            The level of the events that are sampled, e.g. "INFO"
+	 * @param rate
+	 *            "1/N" for keeping one of N events or "K/s" for keeping at most K events per second. null removes the rule.
+	 * @param keyedBy
+	 *            "channel", "logger" or "template" for counting the events per channel, per logger or per message template (OPTIONAL)
+	 * @return A description of all sampling rules that are now active, one per line
+	 */
+	public String setSampling(String channelNamePattern, String level, String rate, String keyedBy);
+
+	/**
+	 * Defines if the channel log files are written by background writers instead of the logging threads
+	 *
+	 * @param mode
+	 *            "VIRTUAL" for a virtual thread per channel (Java 21 and later), "POOL" for a small work-stealing pool of threads, "AUTO" for virtual
+	 *            threads if supported and the pool otherwise, null or "SYNC" for writing on the logging threads
+	 * @return A description of the writer mode that is now active
+	 */
+	public String setAsyncWriting(String mode);
+
+	/**
+	 * Sizes the output buffer of each channel log file according to its observed write rate
+	 *
+	 * @param maxTotalSize
+	 *            The maximum memory all buffers may occupy together, e.g. "32MB" (null deactivates the buffering)
+	 * @return A description of the buffering
+	 */
+	public String setAdaptiveBuffering(String maxTotalSize);
+
+	/**
+	 * Starts or ends the capture of all received log events in a workload trace that can be replayed offline
+	 *
+	 * @param fileName
+	 *            The trace, relative to the log folder unless absolute (null ends the capture)
+	 * @param fullMessages
+	 *            If this flag is set, the full messages are recorded instead of only their length and hash (OPTIONAL)
+	 * @param maxSize
+	 *            The size of the trace at which the capture ends, e.g. "100MB" (OPTIONAL - default is 256MB)
+	 * @return A description of the capture that is now running or null if there is none
+	 */
+	public String setWorkloadCapture(String fileName, Boolean fullMessages, String maxSize);
+
+	/**
+	 * Starts or ends the forwarding of the channel log entries to a local log shipper
+	 *
+	 * @param address
+	 *            The address of the shipper, e.g. "tcp://localhost:24224" or "unix:/var/run/shipper.sock" (null ends the forwarding)
+	 * @param channelNamePattern
+	 *            A regular expression matching the names of the forwarded channels (OPTIONAL - default is all channels)
+	 * @param framing
+	 *            "LINES" for newline-delimited entries or "LENGTH" for length-prefixed entries (OPTIONAL - default is "LINES")
+	 * @return A description of the forwarding that is now running or null if there is none
+	 */
+	public String setForwarding(String address, String channelNamePattern, String framing);
+
+	/**
+	 * Describes the running forwarding to a local log shipper
+	 *
+	 * @return The address, the state of the connection and the number of sent, spooled and dropped entries or null if there is no forwarding
+	 */
+	public String getForwarding();
+
+	/**
+	 * Defines the masking of patient identifiers and sensitive terms in all log messages
+	 *
+	 * @param identifiers
+	 *            If this flag is set, the values following the labels MRN and SSN as well as social security numbers (123-45-6789) are masked
+	 * @param terms
+	 *            Literal terms that are masked wherever they occur, separated by comma (case-insensitive, OPTIONAL)
+	 * @param pattern
+	 *            A regular expression whose matches are masked (OPTIONAL)
+	 * @return A description of the redaction that is now active or null if it is deactivated
+	 */
+	public String setRedaction(Boolean identifiers, String terms, String pattern);
+
+	/**
+	 * Binds the log events of the current thread to a channel, regardless of thread and logger name
+	 *
+	 * @param channelId
+	 *            The id of the channel
+	 * @throws IllegalArgumentException
+	 *             If the id is not a channel id
+	 */
+	public void bindChannel(String channelId);
+
+	/**
+	 * Removes the binding of the current thread to a channel
+	 */
+	public void unbindChannel();
+
+	/**
+	 * Changes the configuration of the log files without a restart. Log files are reopened with the new configuration by their next event.
+	 *
+	 * @param customLogPath
+	 *            The location of the log files (null keeps the current one)
+	 * @param customMaxFileSize
+	 *            The maximal size per log file (null keeps the current one)
+	 * @param customMaxBackupIndex
+	 *            The maximum number of rolled log files per channel (null keeps the current one)
+	 * @param customLogPattern
+	 *            The structure of the log file entries (null keeps the current one)
+	 * @param logAllToMainLog
+	 *            If channel-specific log entries are also logged to the main log (null keeps the current value)
+	 * @return A description of the configuration that is now active
+	 * @throws IllegalArgumentException
+	 *             If the location could not be created or the size or number of backups is invalid
+	 */
+	public String reconfigure(String customLogPath, String customMaxFileSize, Integer customMaxBackupIndex, String customLogPattern,
+			Boolean logAllToMainLog);
+
+	/**
+	 * Provides all log entries of a channel that have been written during the processing of a Mirth message
+	 *
+	 * @param channel
+	 *            The name or id of the channel
+	 * @param messageId
+	 *            The id of the message
+	 * @return The lines of the log entries, oldest first
+	 */
+	public String[] readMessage(String channel, Long messageId);
+
+	/**
+	 * Provides the chronological merge of the logs of several channels within a time range
+	 *
+	 * @param channels
+	 *            The names or ids of the channels, separated by comma
+	 * @param from
+	 *            The start of the time range (null for the start of the logs)
+	 * @param to
+	 *            The end of the time range (inclusive, null for the end of the logs)
+	 * @param minLevel
+	 *            The minimum level of the log entries, e.g. "WARN" (null for all entries)
+	 * @param filter
+	 *            A regular expression that must be found in a log entry (null for all entries)
+	 * @return The merged lines, each prefixed by the name of its channel, or null if the parameters could not be interpreted
+	 */
+	public MergedLogLines readMerged(String channels, String from, String to, String minLevel, String filter);
 }
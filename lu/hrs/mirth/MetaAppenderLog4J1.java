@@ -3,13 +3,16 @@ package lu.hrs.mirth;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.log4j.Appender;
@@ -17,17 +20,20 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Layout;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.Priority;
 import org.apache.log4j.RollingFileAppender;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
-import com.mirth.connect.server.userutil.ChannelUtil;
-
 /**
  * This custom appender hijacks the Mirth logging mechanism and reroutes channel-specific logging to a log file named like the channel causing the log
  * event. None channel-specific log messages are still routed to the main log file. Further, the channel name is added to all channel specific log
- * entries for the main log and all logs to the console or dashboard.
+ * entries for the main log and all logs to the console or dashboard.<br/>
+ * <br/>
+ * The routing itself is done by the version-neutral {@link ChannelRouter} - this class adapts it to log4j 1.x.
  * 
  * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
  * can obtain one at https://mozilla.org/MPL/2.0/.
@@ -35,23 +41,24 @@ import com.mirth.connect.server.userutil.ChannelUtil;
  * @author ortwin.donak
  * 
  */
-public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppenderBase {
+public class MetaAppenderLog4J1 extends RollingFileAppender implements ChannelRouter.Output {
 
-	private static final Pattern patternUuid = Pattern.compile("([a-f0-9]{8}(-[a-f0-9]{4}){4}[a-f0-9]{8})");
-	private static final String mainLogAppenderName = "mirth";
-	private static final String errorAppenderName = "mirthErrors";
-	private static final String consoleAppenderName = "console";
-	private static final String mirthArrayAppenderName = "mirthDashboard";
 	private static MetaAppenderLog4J1 metaAppender = null;
 	private final HashMap<String, Appender> appenders = new HashMap<String, Appender>();
+	// closes appenders replaced by a reconfiguration once the events that are still being written to them are done
+	private final AppenderTracker<Appender> appenderTracker = new AppenderTracker<Appender>() {
+		@Override
+		void close(Appender appender) {
+			appender.close();
+		}
+	};
 	private Long configMaxFileSize = null;
 	private Integer configMaxBackupIndex = null;
-	private Layout configLayout = null;
+	private volatile Layout configLayout = null;
 	private String configLogLocation = null;
 	private Priority configThreshold = null;
 	private boolean logAllToMainLog = false;
-	private String focusedChannelName = null;
-	private String filteredChannelName = null;
+	private ChannelRouter router = null;
 
 	/**
 	 * Limits the console and Mirth dashboard log to the output of one specific channel. The output of the log files is not influenced.<br/>
@@ -63,27 +70,8 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 	 * @return The name of the channel that has been focused
 	 */
 	public static String setFocus(String identifier) {
-		// check parameter
-		if ((identifier == null) || identifier.isEmpty()) {
-			return null;
-		}
-
-		// normalize
-		identifier = identifier.trim();
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J1 appender = getInstance(null, null, null, null, null);
-		// resolve the channel id to the channel name, if the provided identifier is a channel name
-		String channelName = ChannelUtil.getChannelName(identifier);
-		// determine the name of the channel that should be focused and set it as focused channel.
-		appender.focusedChannelName = (channelName != null) ? channelName : identifier;
-
-		// assure that a channel is not focused and filtered at the same time
-		if (appender.focusedChannelName.equals(appender.filteredChannelName)) {
-			appender.filteredChannelName = null;
-		}
-
-		// indicate the name of the focused channel to the user
-		return appender.focusedChannelName;
+		return getInstance(null, null, null, null, null).router.setFocus(identifier);
 	}
 
 	/**
@@ -93,14 +81,7 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 	 */
 	public static String removeFocus() {
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J1 appender = getInstance(null, null, null, null, null);
-		// read the name of the currently focused channel
-		String focusedChannel = appender.focusedChannelName;
-		// remove focus
-		appender.focusedChannelName = null;
-
-		// and indicate the name of the channel from which the focus has been removed to the user
-		return focusedChannel;
+		return getInstance(null, null, null, null, null).router.removeFocus();
 	}
 
 	/**
@@ -113,27 +94,8 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 	 * @return The name of the channel that has been filtered
 	 */
 	public static String setFilter(String identifier) {
-		// check parameter
-		if ((identifier == null) || identifier.isEmpty()) {
-			return null;
-		}
-
-		// normalize
-		identifier = identifier.trim();
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J1 appender = getInstance(null, null, null, null, null);
-		// resolve the channel id to the channel name, if the provided identifier is a channel name
-		String channelName = ChannelUtil.getChannelName(identifier);
-		// determine the name of the channel that should be filtered and set it as filtered channel.
-		appender.filteredChannelName = (channelName != null) ? channelName : identifier;
-
-		// assure that a channel is not focused and filtered at the same time
-		if (appender.filteredChannelName.equals(appender.focusedChannelName)) {
-			appender.focusedChannelName = null;
-		}
-
-		// indicate the name of the filtered channel to the user
-		return appender.filteredChannelName;
+		return getInstance(null, null, null, null, null).router.setFilter(identifier);
 	}
 
 	/**
@@ -143,14 +105,7 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 	 */
 	public static String removeFilter() {
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J1 appender = getInstance(null, null, null, null, null);
-		// read the name of the currently filtered channel
-		String filteredChannel = appender.filteredChannelName;
-		// remove filter
-		appender.filteredChannelName = null;
-
-		// and indicate the name of the channel from which the filter has been removed to the user
-		return filteredChannel;
+		return getInstance(null, null, null, null, null).router.removeFilter();
 	}
 
 	/**
@@ -256,8 +211,11 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 	private static MetaAppenderLog4J1 getInstance(String customLogPath, String customMaxFileSize, Integer customMaxBackupIndex,
 			String customLogPattern, Boolean logAllToMainLog) {
 
-		return (MetaAppenderLog4J1.metaAppender != null) ? MetaAppenderLog4J1.metaAppender
-				: new MetaAppenderLog4J1(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
+		if (MetaAppenderLog4J1.metaAppender == null) {
+			// the constructor registers the new instance - or the one that is already attached to the root logger
+			new MetaAppenderLog4J1(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
+		}
+		return MetaAppenderLog4J1.metaAppender;
 	}
 
 	private MetaAppenderLog4J1() {
@@ -334,7 +292,7 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 				// remove the current file appender from the root logger
 				root.removeAppender(mainLogAppender);
 				// change its name
-				mainLogAppender.setName(mainLogAppenderName);
+				mainLogAppender.setName(ChannelRouter.mainLogAppenderName);
 				// and add it instead to the appender list
 				addAppender(mainLogAppender);
 			} else if (appender instanceof ConsoleAppender) {
@@ -343,13 +301,13 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 				// remove it from the root logger
 				root.removeAppender(console);
 				// change its name
-				console.setName(consoleAppenderName);
+				console.setName(ChannelRouter.consoleAppenderName);
 				// and add it instead to the appender list
 				addAppender(console);
 			} else {
 				// mirth uses a custom appender plugin (ArrayAppender) for displaying messages at its dashboard.
 				// Unfortunately w/o a name - adjust that
-				appender.setName(mirthArrayAppenderName);
+				appender.setName(ChannelRouter.dashboardAppenderName);
 				// and add it to the appender list
 				addAppender(appender);
 				// and withdraw the root logger the control about this appender
@@ -357,6 +315,11 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 			}
 		}
 
+		// the version-neutral core that decides where the events are written
+		this.router = new ChannelRouter(this, this.configLogLocation, this.configMaxFileSize, this.configMaxBackupIndex,
+				(this.configLayout instanceof PatternLayout) ? ((PatternLayout) this.configLayout).getConversionPattern() : null, Charset.defaultCharset(),
+				this.logAllToMainLog);
+
 		// finally attach the meta appender to the root logger
 		root.addAppender(this);
 
@@ -393,7 +356,7 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 			// no channel name
 			if (channelName == null) {
 				// means main appender
-				channelName = mainLogAppenderName;
+				channelName = ChannelRouter.mainLogAppenderName;
 
 				// if there is not yet an appender for the channel
 			} else if (!appenders.containsKey(channelName)) {
@@ -423,6 +386,123 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 		return appenders.get(channelName);
 	}
 
+	/**
+	 * Provides the version-neutral core that routes the events and implements the functions provided to the scripts
+	 *
+	 * @return The router
+	 */
+	ChannelRouter getRouter() {
+		return this.router;
+	}
+
+	@Override
+	public void append(String appenderName, ChannelEvent event) {
+		Appender appender;
+		synchronized (appenders) {
+			appender = appenderTracker.enter(getAppender(appenderName));
+		}
+		try {
+			appender.doAppend(((Log4J1ChannelEvent) event).event);
+		} finally {
+			appenderTracker.leave(appender);
+		}
+	}
+
+	@Override
+	public void open(String appenderName) {
+		getAppender(appenderName);
+	}
+
+	@Override
+	public void release(String appenderName) {
+		Appender appender;
+		synchronized (appenders) {
+			appender = appenders.remove(appenderName);
+		}
+		if (appender != null) {
+			appenderTracker.retire(Collections.singletonList(appender));
+		}
+	}
+
+	@Override
+	public boolean hasAppender(String appenderName) {
+		synchronized (appenders) {
+			return appenders.containsKey(appenderName);
+		}
+	}
+
+	@Override
+	public List<String> getAppenderNames() {
+		List<String> appenderNames = new ArrayList<String>();
+		synchronized (appenders) {
+			for (String appenderName : appenders.keySet()) {
+				if (!ChannelRouter.isReservedAppender(appenderName)) {
+					appenderNames.add(appenderName);
+				}
+			}
+		}
+		return appenderNames;
+	}
+
+	@Override
+	public ChannelEvent createEvent(String loggerName, int level, String message) {
+		return new Log4J1ChannelEvent(
+				new LoggingEvent(getClass().getName(), Logger.getLogger(loggerName), Log4J1ChannelEvent.toLogLevel(level), message, null),
+				this.configLayout);
+	}
+
+	@Override
+	public long toFileSize(String size) {
+		return OptionConverter.toFileSize(size, 0);
+	}
+
+	@Override
+	public void setContextValue(String key, String value) {
+		if (value != null) {
+			MDC.put(key, value);
+		} else {
+			MDC.remove(key);
+		}
+	}
+
+	@Override
+	public void reconfigure(LogConfiguration configuration) {
+		List<Appender> retired = new ArrayList<Appender>();
+		synchronized (appenders) {
+			this.configLogLocation = configuration.getLogLocation();
+			this.configMaxFileSize = configuration.getMaxFileSize();
+			this.configMaxBackupIndex = configuration.getMaxBackupIndex();
+			this.logAllToMainLog = configuration.isLogAllToMainLog();
+			if ((configuration.getConversionPattern() != null) && !((this.configLayout instanceof PatternLayout)
+					&& configuration.getConversionPattern().equals(((PatternLayout) this.configLayout).getConversionPattern()))) {
+				this.configLayout = new PatternLayout(configuration.getConversionPattern());
+			}
+
+			// the file appenders are recreated by their next event - the main log keeps the configuration of Mirth like with the activation
+			Iterator<Map.Entry<String, Appender>> iterator = appenders.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Appender> entry = iterator.next();
+				if (!ChannelRouter.isReservedAppender(entry.getKey()) || entry.getKey().equals(ChannelRouter.errorAppenderName)) {
+					retired.add(entry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+
+		// events that are still being written to the retired appenders are completed first
+		appenderTracker.retire(retired);
+	}
+
+	@Override
+	public void error(String message, ChannelEvent event, Exception e) {
+		if (event != null) {
+			errorHandler.error(message, e, ErrorCode.WRITE_FAILURE, ((Log4J1ChannelEvent) event).event);
+		} else {
+			// problems without an event occur when opening or reading log files
+			errorHandler.error(message, e, ErrorCode.GENERIC_FAILURE);
+		}
+	}
+
 	/**
 	 * Close all appenders
 	 */
@@ -432,140 +512,151 @@ public class MetaAppenderLog4J1 extends RollingFileAppender implements MetaAppen
 				appender.close();
 			}
 		}
+		this.router.close();
 
 		MetaAppenderLog4J1.metaAppender = null;
+		MetaAppender.metaAppender = null;
 	}
 
 	@Override
 	public void append(LoggingEvent event) {
-		Appender appender = null;
-
-		/** Check if the log message is only determined for a specific log location */
-
-		// get the log message
-		String message = (String) event.getMessage();
-
-		boolean fileOnly, dashboardOnly, consoleOnly;
-		fileOnly = dashboardOnly = consoleOnly = false;
-
-		// check log message for special instructions
-		if (message.length() > 3) {
-			switch (message.substring(0, 4).toUpperCase()) {
-			case "#FO:":
-				// log only to log file
-				fileOnly = true;
-				break;
-			case "#DO:":
-				// log only to the mirth administrator dashboard
-				dashboardOnly = true;
-				break;
-			case "#CO:":
-				// log only to the console
-				consoleOnly = true;
-				break;
-			default:
-				break;
-			}
+		this.router.route(new Log4J1ChannelEvent(event, this.configLayout));
+	}
 
-			if (fileOnly || dashboardOnly || consoleOnly) {
-				// flag was understood & set - remove the instruction from the log message
-				message = message.replaceFirst("^#\\w{2}\\:\\s*", "");
-			}
+	/**
+	 * Provides a log4j event to the channel sinks
+	 */
+	private static class Log4J1ChannelEvent extends ChannelEvent {
+
+		private final LoggingEvent event;
+		private final Layout layout;
+
+		/**
+		 * Wraps a log4j event
+		 * 
+		 * @param event
+		 *            The event
+		 * @param layout
+		 *            The layout of the channel log files
+		 */
+		Log4J1ChannelEvent(LoggingEvent event, Layout layout) {
+			this.event = event;
+			this.layout = layout;
 		}
 
-		/** Try to determine channel name */
+		@Override
+		long getTimeStamp() {
+			return event.getTimeStamp();
+		}
 
-		String channelName = null;
-		// get logger name
-		String loggerName = event.getLoggerName();
+		@Override
+		int getLevel() {
+			return toLevel(event.getLevel());
+		}
 
-		// try to identify the channel from which the appender was called
-		Matcher uuidMatcher = patternUuid.matcher(event.getThreadName());
+		/**
+		 * Maps a log4j level to the level of channel events
+		 * 
+		 * @param logLevel
+		 *            The log4j level
+		 * @return The level of channel events
+		 */
+		static int toLevel(Level logLevel) {
+			int level = logLevel.toInt();
+			if (level >= Level.FATAL_INT) {
+				return FATAL;
+			} else if (level >= Level.ERROR_INT) {
+				return ERROR;
+			} else if (level >= Level.WARN_INT) {
+				return WARN;
+			} else if (level >= Level.INFO_INT) {
+				return INFO;
+			} else if (level >= Level.DEBUG_INT) {
+				return DEBUG;
+			}
+			return TRACE;
+		}
 
-		// check if the thread name contains a channel reference
-		if (!uuidMatcher.find()) {
-			// There is no trace in the thread name. So try to determine the channel via the logger name.
-			uuidMatcher = patternUuid.matcher(loggerName);
+		/**
+		 * Maps a level of channel events to the log4j level
+		 * 
+		 * @param level
+		 *            The level of channel events
+		 * @return The log4j level
+		 */
+		static Level toLogLevel(int level) {
+			switch (level) {
+			case FATAL:
+				return Level.FATAL;
+			case ERROR:
+				return Level.ERROR;
+			case WARN:
+				return Level.WARN;
+			case INFO:
+				return Level.INFO;
+			case DEBUG:
+				return Level.DEBUG;
+			default:
+				return Level.TRACE;
+			}
 		}
 
-		// if there is a trace of the channel causing the log entry
-		if (uuidMatcher.find(0)) {
-			// use it to determine the channel name
-			channelName = ChannelUtil.getChannelName(uuidMatcher.group());
-			// and also adapt the logger name to reflect the channel name as well
-			loggerName = channelName + "-" + loggerName.replaceFirst(uuidMatcher.group() + "-?", "");
+		@Override
+		byte[] encode() {
+			StringBuilder entry = new StringBuilder(layout.format(event));
+			// like the file appenders, add the stack trace if the layout does not render it
+			String[] throwable = layout.ignoresThrowable() ? event.getThrowableStrRep() : null;
+			if (throwable != null) {
+				for (String line : throwable) {
+					entry.append(line).append(Layout.LINE_SEP);
+				}
+			}
+			return entry.toString().getBytes();
 		}
 
-		/** Log to the channel-specific log file */
-		
-		event = new LoggingEvent(event.getFQNOfLoggerClass(), Logger.getLogger(loggerName), event.getTimeStamp(), event.getLevel(), message,
-				event.getThreadName(), event.getThrowableInformation(), event.getNDC(), event.getLocationInformation(), event.getProperties());
-		
-		// if a channel was identified
-		if ((channelName != null) && !dashboardOnly && !consoleOnly) {
-			// call the right appender dependent on the channel
-			appender = getAppender(channelName);
-
-			// write the message to the appender.
-			appender.doAppend(event);
+		@Override
+		String getLoggerName() {
+			return event.getLoggerName();
 		}
 
-		// if the log message is not channel-specific or if user configured to log all messages also to the main log file
-		if ((logAllToMainLog || (channelName == null)) && (!dashboardOnly && !consoleOnly)) {
-			// log event also to the main log file
-			getAppender(mainLogAppenderName).doAppend(event);
+		@Override
+		String getThreadName() {
+			return event.getThreadName();
 		}
 
-		// all events that are logged as error
-		if (event.getLevel() == Level.ERROR) {
-			// are also accumulated in a specific log
-			getAppender(errorAppenderName).doAppend(event);
+		@Override
+		String getRenderedMessage() {
+			return event.getRenderedMessage();
 		}
 
-		// if a special mode has been activated to focus on a channel in the dashboard and/or to omit logging of a channel from the dashboard
-		// add a special prefix to all dashboard log messages to indicate this situation
-		if ((this.focusedChannelName != null) || (this.filteredChannelName != null)) {
-			String loggerPrefix = "";
-
-			// if the both, focusing and filtering, are activated, indicate it to the user
-			if ((this.focusedChannelName != null) && (this.filteredChannelName != null)) {
-				// set the logger prefix to focused and filtered
-				loggerPrefix = "FOCUSED & FILTERED: ";
-			} else if ((this.focusedChannelName != null) && appenders.containsKey(channelName)) {
-				// if a channel is focused and actually deployed (or was at least deployed once)
-
-				// but the current event was caused by a different channel
-				if (!this.focusedChannelName.equals(channelName)) {
-					// omit logging to dashboard and console for this event
-					return;
-				}
-				// set the logger prefix to focused
-				loggerPrefix = "FOCUSED: ";
-			} else if ((this.filteredChannelName != null) && appenders.containsKey(channelName)) {
-				// if a channel is filtered and actually deployed (or was at least deployed once)
-
-				// and the current event was caused by the filtered channel
-				if (this.filteredChannelName.equals(channelName)) {
-					// omit logging to dashboard and console for this event
-					return;
-				}
-				// set the logger prefix to filtered
-				loggerPrefix = "FILTERED: ";
+		@Override
+		String getThrowableText() {
+			String[] throwable = event.getThrowableStrRep();
+			if (throwable == null) {
+				return null;
+			}
+			StringBuilder stackTrace = new StringBuilder();
+			for (String line : throwable) {
+				stackTrace.append(line).append(Layout.LINE_SEP);
 			}
+			return stackTrace.toString();
+		}
 
-			// adapt the logging event in order to include channel name in component description
-			event = new LoggingEvent(event.getFQNOfLoggerClass(), Logger.getLogger(loggerPrefix + "-" + event.getLoggerName()), event.getTimeStamp(),
-					event.getLevel(), event.getMessage(), event.getThreadName(), event.getThrowableInformation(), event.getNDC(),
-					event.getLocationInformation(), event.getProperties());
+		@Override
+		boolean hasThrowable() {
+			return event.getThrowableInformation() != null;
 		}
 
-		if (!fileOnly && !dashboardOnly) {
-			// and write the event to the console
-			getAppender(consoleAppenderName).doAppend(event);
+		@Override
+		Object getContextValue(String key) {
+			return event.getMDC(key);
 		}
-		if (!fileOnly && !consoleOnly) {
-			// and also to the dashboard
-			getAppender(mirthArrayAppenderName).doAppend(event);
+
+		@Override
+		ChannelEvent derive(String loggerName, String message) {
+			return new Log4J1ChannelEvent(new LoggingEvent(event.getFQNOfLoggerClass(), Logger.getLogger(loggerName), event.getTimeStamp(),
+					event.getLevel(), message, event.getThreadName(), event.getThrowableInformation(), event.getNDC(), event.getLocationInformation(),
+					event.getProperties()), layout);
 		}
 	}
-}
\ No newline at end of file
+}
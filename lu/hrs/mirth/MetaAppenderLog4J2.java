@@ -7,14 +7,17 @@ import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.Logger;
@@ -24,6 +27,7 @@ import org.apache.logging.log4j.core.appender.ConsoleAppender;
 import org.apache.logging.log4j.core.appender.RollingFileAppender;
 import org.apache.logging.log4j.core.appender.rolling.CompositeTriggeringPolicy;
 import org.apache.logging.log4j.core.appender.rolling.DefaultRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
 import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
@@ -31,16 +35,18 @@ import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
 import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
 import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
-import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
 
 import com.mirth.connect.plugins.serverlog.ArrayAppender;
-import com.mirth.connect.server.userutil.ChannelUtil;
 
 /**
  * This custom appender hijacks the Mirth logging mechanism and reroutes channel-specific logging to a log file named like the channel causing the log
  * event. None channel-specific log messages are still routed to the main log file. Further, the channel name is added to all channel specific log
- * entries for the main log and all logs to the console or dashboard.
+ * entries for the main log and all logs to the console or dashboard.<br/>
+ * <br/>
+ * The routing itself is done by the version-neutral {@link ChannelRouter} - this class adapts it to log4j2.
  * 
  * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
  * can obtain one at https://mozilla.org/MPL/2.0/.
@@ -48,22 +54,24 @@ import com.mirth.connect.server.userutil.ChannelUtil;
  * @author ortwin.donak
  * 
  */
-public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppenderBase {
+public class MetaAppenderLog4J2 extends AbstractAppender implements ChannelRouter.Output {
 
-	private static final Pattern patternUuid = Pattern.compile("([a-f0-9]{8}(-[a-f0-9]{4}){4}[a-f0-9]{8})");
-	private static final String mainLogAppenderName = "mirth";
-	private static final String errorAppenderName = "mirthErrors";
-	private static final String consoleAppenderName = "console";
-	private static String mirthArrayAppenderName = "mirthDashboard";
 	private static MetaAppenderLog4J2 metaAppender = null;
 	private final HashMap<String, Appender> appenders = new HashMap<String, Appender>();
+	// closes appenders replaced by a reconfiguration once the events that are still being written to them are done
+	private final AppenderTracker<Appender> appenderTracker = new AppenderTracker<Appender>() {
+		@Override
+		void close(Appender appender) {
+			appender.stop();
+		}
+	};
 	private Long configMaxFileSize = null;
 	private Integer configMaxBackupIndex = null;
 	private String configLayout = null;
 	private String configLogLocation = null;
 	private boolean logAllToMainLog = false;
-	private String focusedChannelName = null;
-	private String filteredChannelName = null;
+	private volatile PatternLayout channelLayout = null;
+	private ChannelRouter router = null;
 
 	/**
 	 * Limits the console and Mirth dashboard log to the output of one specific channel. The output of the log files is not influenced.<br/>
@@ -75,27 +83,8 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	 * @return The name of the channel that has been focused
 	 */
 	public static String setFocus(String identifier) {
-		// check parameter
-		if ((identifier == null) || identifier.isEmpty()) {
-			return null;
-		}
-
-		// normalize
-		identifier = identifier.trim();
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J2 appender = getInstance(null, null, null, null, null);
-		// resolve the channel id to the channel name, if the provided identifier is a channel name
-		String channelName = ChannelUtil.getChannelName(identifier);
-		// determine the name of the channel that should be focused and set it as focused channel.
-		appender.focusedChannelName = (channelName != null) ? channelName : identifier;
-
-		// assure that a channel is not focused and filtered at the same time
-		if (appender.focusedChannelName.equals(appender.filteredChannelName)) {
-			appender.filteredChannelName = null;
-		}
-
-		// indicate the name of the focused channel to the user
-		return appender.focusedChannelName;
+		return getInstance(null, null, null, null, null).router.setFocus(identifier);
 	}
 
 	/**
@@ -105,14 +94,7 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	 */
 	public static String removeFocus() {
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J2 appender = getInstance(null, null, null, null, null);
-		// read the name of the currently focused channel
-		String focusedChannel = appender.focusedChannelName;
-		// remove focus
-		appender.focusedChannelName = null;
-
-		// and indicate the name of the channel from which the focus has been removed to the user
-		return focusedChannel;
+		return getInstance(null, null, null, null, null).router.removeFocus();
 	}
 
 	/**
@@ -125,27 +107,8 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	 * @return The name of the channel that has been filtered
 	 */
 	public static String setFilter(String identifier) {
-		// check parameter
-		if ((identifier == null) || identifier.isEmpty()) {
-			return null;
-		}
-
-		// normalize
-		identifier = identifier.trim();
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J2 appender = getInstance(null, null, null, null, null);
-		// resolve the channel id to the channel name, if the provided identifier is a channel name
-		String channelName = ChannelUtil.getChannelName(identifier);
-		// determine the name of the channel that should be filtered and set it as filtered channel.
-		appender.filteredChannelName = (channelName != null) ? channelName : identifier;
-
-		// assure that a channel is not focused and filtered at the same time
-		if (appender.filteredChannelName.equals(appender.focusedChannelName)) {
-			appender.focusedChannelName = null;
-		}
-
-		// indicate the name of the filtered channel to the user
-		return appender.filteredChannelName;
+		return getInstance(null, null, null, null, null).router.setFilter(identifier);
 	}
 
 	/**
@@ -155,14 +118,7 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	 */
 	public static String removeFilter() {
 		// get the current instance of the appender or create it if not yet existing
-		MetaAppenderLog4J2 appender = getInstance(null, null, null, null, null);
-		// read the name of the currently filtered channel
-		String filteredChannel = appender.filteredChannelName;
-		// remove filter
-		appender.filteredChannelName = null;
-
-		// and indicate the name of the channel from which the filter has been removed to the user
-		return filteredChannel;
+		return getInstance(null, null, null, null, null).router.removeFilter();
 	}
 
 	/**
@@ -268,8 +224,11 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	private static MetaAppenderLog4J2 getInstance(String customLogPath, String customMaxFileSize, Integer customMaxBackupIndex,
 			String customLogPattern, Boolean logAllToMainLog) {
 
-		return (MetaAppenderLog4J2.metaAppender != null) ? MetaAppenderLog4J2.metaAppender
-				: new MetaAppenderLog4J2(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
+		if (MetaAppenderLog4J2.metaAppender == null) {
+			// the constructor registers the new instance - or the one that is already attached to the root logger
+			new MetaAppenderLog4J2(customLogPath, customMaxFileSize, customMaxBackupIndex, customLogPattern, logAllToMainLog);
+		}
+		return MetaAppenderLog4J2.metaAppender;
 	}
 
 	/**
@@ -370,7 +329,7 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 				this.logAllToMainLog = (logAllToMainLog != null) && logAllToMainLog;
 
 				// Create a new appender with the new name and the same configuration
-				Appender fileAppender = createRollingFileAppender(mainLogAppenderName, this.configLogLocation, this.configMaxFileSize,
+				Appender fileAppender = createRollingFileAppender(ChannelRouter.mainLogAppenderName, this.configLogLocation, this.configMaxFileSize,
 						this.configMaxBackupIndex, this.configLayout.toString());
 
 				// and add the new one to the appender list
@@ -390,23 +349,28 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 				// Create a new appender with the new name and the same configuration
 				org.apache.logging.log4j.core.appender.ConsoleAppender.Builder newAppenderBuilder = ConsoleAppender.newBuilder();
 				// set it's name
-				newAppenderBuilder.setName(consoleAppenderName);
+				newAppenderBuilder.setName(ChannelRouter.consoleAppenderName);
 
 				// and add it instead to the appender list
 				addAppender(newAppenderBuilder.build());
 			} else {
 				rootLoggerConfiguration.removeAppender(appenderName);
 				ArrayAppender dashboard = (ArrayAppender) appender;
-				// ToDo: Change appender name - only if really bored as this is a pain in the neck w/ log4j2...
-				mirthArrayAppenderName = dashboard.getName();
-				// and add it to the appender list
-				addAppender(appender);
+				// renaming an appender is a pain in the neck w/ log4j2 - so it is just cached under the name known to the router
+				synchronized (this.appenders) {
+					this.appenders.put(ChannelRouter.dashboardAppenderName, dashboard);
+				}
 
 				// and withdraw the root logger the control about this appender
-				rootLoggerConfiguration.removeAppender(mirthArrayAppenderName);
+				rootLoggerConfiguration.removeAppender(dashboard.getName());
 			}
 		}
 
+		// the layout for the channel sinks and the version-neutral core that decides where the events are written
+		this.channelLayout = PatternLayout.newBuilder().withPattern(this.configLayout).build();
+		this.router = new ChannelRouter(this, this.configLogLocation, this.configMaxFileSize, this.configMaxBackupIndex, this.configLayout,
+				this.channelLayout.getCharset(), this.logAllToMainLog);
+
 		// there shall only be one - me!
 		loggerContext.getConfiguration().addLoggerAppender(root, this);
 		this.start();
@@ -493,7 +457,7 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 			// no channel name
 			if (channelName == null) {
 				// means main appender
-				channelName = mainLogAppenderName;
+				channelName = ChannelRouter.mainLogAppenderName;
 
 				// if there is not yet an appender for the channel
 			} else if (!appenders.containsKey(channelName)) {
@@ -511,148 +475,261 @@ public class MetaAppenderLog4J2 extends AbstractAppender implements MetaAppender
 	}
 
 	/**
-	 * Close all appenders
+	 * Provides the version-neutral core that routes the events and implements the functions provided to the scripts
+	 *
+	 * @return The router
 	 */
-	public void close() {
+	ChannelRouter getRouter() {
+		return this.router;
+	}
+
+	@Override
+	public void append(String appenderName, ChannelEvent event) {
+		Appender appender;
 		synchronized (appenders) {
-			for (Appender appender : appenders.values()) {
-				appender.stop();
+			appender = appenderTracker.enter(getAppender(appenderName));
+		}
+		try {
+			appender.append(((Log4J2ChannelEvent) event).event);
+		} finally {
+			appenderTracker.leave(appender);
+		}
+	}
+
+	@Override
+	public void open(String appenderName) {
+		getAppender(appenderName);
+	}
+
+	@Override
+	public void release(String appenderName) {
+		Appender appender;
+		synchronized (appenders) {
+			appender = appenders.remove(appenderName);
+		}
+		if (appender != null) {
+			appenderTracker.retire(Collections.singletonList(appender));
+		}
+	}
+
+	@Override
+	public boolean hasAppender(String appenderName) {
+		synchronized (appenders) {
+			return appenders.containsKey(appenderName);
+		}
+	}
+
+	@Override
+	public List<String> getAppenderNames() {
+		List<String> appenderNames = new ArrayList<String>();
+		synchronized (appenders) {
+			for (String appenderName : appenders.keySet()) {
+				if (!ChannelRouter.isReservedAppender(appenderName)) {
+					appenderNames.add(appenderName);
+				}
 			}
 		}
+		return appenderNames;
+	}
 
-		MetaAppenderLog4J2.metaAppender = null;
+	@Override
+	public ChannelEvent createEvent(String loggerName, int level, String message) {
+		return new Log4J2ChannelEvent(new Log4jLogEvent(loggerName, null, getClass().getName(), Log4J2ChannelEvent.toLogLevel(level),
+				new SimpleMessage(message), null, null), this.channelLayout);
 	}
 
 	@Override
-	public void append(LogEvent event) {
+	public long toFileSize(String size) {
+		return FileSize.parse(size, 0);
+	}
 
-		Appender appender = null;
-
-		/** Check if the log message is only determined for a specific log location */
-
-		// get the log message
-		Message message = event.getMessage();
-		String content = message.getFormattedMessage();
-
-		boolean fileOnly, dashboardOnly, consoleOnly;
-		fileOnly = dashboardOnly = consoleOnly = false;
-
-		// check log message for special instructions
-		if (content.length() > 3) {
-			switch (content.substring(0, 4).toUpperCase()) {
-			case "#FO:":
-				// log only to log file
-				fileOnly = true;
-				break;
-			case "#DO:":
-				// log only to the mirth administrator dashboard
-				dashboardOnly = true;
-				break;
-			case "#CO:":
-				// log only to the console
-				consoleOnly = true;
-				break;
-			default:
-				break;
+	@Override
+	public void setContextValue(String key, String value) {
+		if (value != null) {
+			ThreadContext.put(key, value);
+		} else {
+			ThreadContext.remove(key);
+		}
+	}
+
+	@Override
+	public void reconfigure(LogConfiguration configuration) {
+		List<Appender> retired = new ArrayList<Appender>();
+		synchronized (appenders) {
+			this.configLogLocation = configuration.getLogLocation();
+			this.configMaxFileSize = configuration.getMaxFileSize();
+			this.configMaxBackupIndex = configuration.getMaxBackupIndex();
+			this.logAllToMainLog = configuration.isLogAllToMainLog();
+			if (!this.configLayout.equals(configuration.getConversionPattern())) {
+				this.configLayout = configuration.getConversionPattern();
+				this.channelLayout = PatternLayout.newBuilder().withPattern(this.configLayout).build();
 			}
 
-			if (fileOnly || dashboardOnly || consoleOnly) {
-				// flag was understood & set - remove the instruction from the log message
-				message = new SimpleMessage(content.substring(4));
+			// all file appenders (including the main log) are recreated by their next event - console and dashboard are kept
+			Iterator<Map.Entry<String, Appender>> iterator = appenders.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Appender> entry = iterator.next();
+				if (!entry.getKey().equals(ChannelRouter.consoleAppenderName) && !entry.getKey().equals(ChannelRouter.dashboardAppenderName)) {
+					retired.add(entry.getValue());
+					iterator.remove();
+				}
 			}
 		}
 
-		/** Try to determine channel name */
+		// events that are still being written to the retired appenders are completed first
+		appenderTracker.retire(retired);
+	}
 
-		String channelName = null;
-		// get logger name
-		String loggerName = event.getLoggerName();
+	@Override
+	public void error(String message, ChannelEvent event, Exception e) {
+		error(message, (event != null) ? ((Log4J2ChannelEvent) event).event : null, e);
+	}
 
-		// try to identify the channel from which the appender was called
-		Matcher uuidMatcher = patternUuid.matcher(event.getThreadName());
+	/**
+	 * Close all appenders
+	 */
+	public void close() {
+		synchronized (appenders) {
+			for (Appender appender : appenders.values()) {
+				appender.stop();
+			}
+		}
+		this.router.close();
 
-		// check if the thread name contains a channel reference
-		if (!uuidMatcher.find()) {
-			// There is no trace in the thread name. So try to determine the channel via the logger name.
-			uuidMatcher = patternUuid.matcher(loggerName);
+		MetaAppenderLog4J2.metaAppender = null;
+		MetaAppender.metaAppender = null;
+	}
+
+	@Override
+	public void append(LogEvent event) {
+		this.router.route(new Log4J2ChannelEvent(event, this.channelLayout));
+	}
+
+	/**
+	 * Provides a log4j2 event to the channel sinks
+	 */
+	private static class Log4J2ChannelEvent extends ChannelEvent {
+
+		private final LogEvent event;
+		private final PatternLayout layout;
+
+		/**
+		 * Wraps a log4j2 event
+		 * 
+		 * @param event
+		 *            The event
+		 * @param layout
+		 *            The layout of the channel log files
+		 */
+		Log4J2ChannelEvent(LogEvent event, PatternLayout layout) {
+			this.event = event;
+			this.layout = layout;
 		}
 
-		// if there is a trace of the channel causing the log entry
-		if (uuidMatcher.find(0)) {
-			// use it to determine the channel name
-			channelName = ChannelUtil.getChannelName(uuidMatcher.group());
-			// and also adapt the logger name to reflect the channel name as well
-			loggerName = channelName + "-" + loggerName.replaceFirst(uuidMatcher.group() + "-?", "");
+		@Override
+		long getTimeStamp() {
+			return event.getTimeMillis();
 		}
 
-		/** Log to the channel-specific log file */
+		@Override
+		int getLevel() {
+			return toLevel(event.getLevel());
+		}
 
-		event = new Log4jLogEvent(loggerName, event.getMarker(), event.getLoggerFqcn(), event.getLevel(), message, null, event.getThrown());
+		/**
+		 * Maps a log4j2 level to the level of channel events
+		 * 
+		 * @param logLevel
+		 *            The log4j2 level
+		 * @return The level of channel events
+		 */
+		static int toLevel(Level logLevel) {
+			int level = logLevel.intLevel();
+			// the more severe a log4j2 level, the lower its value
+			if (level <= Level.FATAL.intLevel()) {
+				return FATAL;
+			} else if (level <= Level.ERROR.intLevel()) {
+				return ERROR;
+			} else if (level <= Level.WARN.intLevel()) {
+				return WARN;
+			} else if (level <= Level.INFO.intLevel()) {
+				return INFO;
+			} else if (level <= Level.DEBUG.intLevel()) {
+				return DEBUG;
+			}
+			return TRACE;
+		}
 
-		// if a channel was identified
-		if ((channelName != null) && !dashboardOnly && !consoleOnly) {
-			// call the right appender dependent on the channel
-			appender = getAppender(channelName);
+		/**
+		 * Maps a level of channel events to the log4j2 level
+		 * 
+		 * @param level
+		 *            The level of channel events
+		 * @return The log4j2 level
+		 */
+		static Level toLogLevel(int level) {
+			switch (level) {
+			case FATAL:
+				return Level.FATAL;
+			case ERROR:
+				return Level.ERROR;
+			case WARN:
+				return Level.WARN;
+			case INFO:
+				return Level.INFO;
+			case DEBUG:
+				return Level.DEBUG;
+			default:
+				return Level.TRACE;
+			}
+		}
 
-			// write the message to the appender.
-			appender.append(event);
+		@Override
+		byte[] encode() {
+			return layout.toByteArray(event);
 		}
 
-		// if the log message is not channel-specific or if user configured to log all messages also to the main log file
-		if ((logAllToMainLog || (channelName == null)) && (!dashboardOnly && !consoleOnly)) {
-			// log event also to the main log file
-			getAppender(mainLogAppenderName).append(event);
+		@Override
+		String getLoggerName() {
+			return event.getLoggerName();
 		}
 
-		// all events that are logged as error
-		if (event.getLevel() == Level.ERROR) {
-			// are also accumulated in a specific log
-			getAppender(errorAppenderName).append(event);
+		@Override
+		String getThreadName() {
+			return event.getThreadName();
 		}
 
-		// if a special mode has been activated to focus on a channel in the dashboard and/or to omit logging of a channel from the dashboard
-		// add a special prefix to all dashboard log messages to indicate this situation
-		if ((this.focusedChannelName != null) || (this.filteredChannelName != null)) {
-			String loggerPrefix = "";
-
-			// if the both, focusing and filtering, are activated, indicate it to the user
-			if ((this.focusedChannelName != null) && (this.filteredChannelName != null)) {
-				// set the logger prefix to focused and filtered
-				loggerPrefix = "FOCUSED & FILTERED: ";
-			} else if ((this.focusedChannelName != null) && appenders.containsKey(channelName)) {
-				// if a channel is focused and actually deployed (or was at least deployed once)
-
-				// but the current event was caused by a different channel
-				if (!this.focusedChannelName.equals(channelName)) {
-					// omit logging to dashboard and console for this event
-					return;
-				}
-				// set the logger prefix to focused
-				loggerPrefix = "FOCUSED: ";
-			} else if ((this.filteredChannelName != null) && appenders.containsKey(channelName)) {
-				// if a channel is filtered and actually deployed (or was at least deployed once)
-
-				// and the current event was caused by the filtered channel
-				if (this.filteredChannelName.equals(channelName)) {
-					// omit logging to dashboard and console for this event
-					return;
-				}
-				// set the logger prefix to filtered
-				loggerPrefix = "FILTERED: ";
+		@Override
+		String getRenderedMessage() {
+			return event.getMessage().getFormattedMessage();
+		}
+
+		@Override
+		String getThrowableText() {
+			if (event.getThrown() == null) {
+				return null;
 			}
+			StringWriter stackTrace = new StringWriter();
+			event.getThrown().printStackTrace(new PrintWriter(stackTrace));
+			return stackTrace.toString();
+		}
 
-			// adapt the logging event in order to include channel name in component description
-			event = new Log4jLogEvent(loggerPrefix + event.getLoggerName(), event.getMarker(), event.getLoggerFqcn(), event.getLevel(),
-					event.getMessage(), null, event.getThrown());
+		@Override
+		boolean hasThrowable() {
+			return event.getThrown() != null;
 		}
 
-		if (!fileOnly && !dashboardOnly) {
-			// and write the event to the console
-			getAppender(consoleAppenderName).append(event);
+		@Override
+		Object getContextValue(String key) {
+			return event.getContextData().getValue(key);
 		}
-		if (!fileOnly && !consoleOnly) {
-			// and also to the dashboard
-			getAppender(mirthArrayAppenderName).append(event);
+
+		@Override
+		ChannelEvent derive(String loggerName, String message) {
+			// unlike a new event, the copy keeps time stamp, thread and context of the original event - log4j reuses its events and their context
+			// map, so the context has to be copied for background writers
+			return new Log4J2ChannelEvent(new Log4jLogEvent.Builder(event).setLoggerName(loggerName).setMessage(new SimpleMessage(message))
+					.setContextData(new SortedArrayStringMap(event.getContextData())).build(), layout);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,330 @@
+package lu.hrs.mirth;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Renders log entries like a log4j pattern layout without depending on a specific log4j version. It is used to turn the log events of binary log
+ * files back into text. The conversions of the fields stored in binary log files are supported (date, level, logger, thread, message, line
+ * separator and stack trace) together with the usual format modifiers (e.g. %-5p or %.30c). Conversions that refer to information which is not
+ * stored (e.g. location or MDC) render as empty text. If the pattern does not render the stack trace, it is appended to the entry - just like the
+ * log4j file appenders do.<br/>
+ * <br/>
+ * An instance must not be shared between threads.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class PatternRenderer {
+
+	private static final int literal = 0;
+	private static final int date = 1;
+	private static final int level = 2;
+	private static final int logger = 3;
+	private static final int thread = 4;
+	private static final int message = 5;
+	private static final int throwable = 6;
+	private static final int lineSeparator = 7;
+	private static final int nested = 8;
+	private static final int unsupported = 9;
+	// the conversion words in the order in which they are tried (longest first, so e.g. "msg" is not taken for "m")
+	private static final String[] words = { "xThrowable", "rThrowable", "xException", "rException", "threadName", "throwable", "exception",
+			"highlight", "message", "logger", "thread", "level", "style", "date", "msg", "xEx", "rEx", "wEx", "ex", "tn", "d", "p", "c", "t", "m",
+			"n" };
+	private static final int[] wordTypes = { throwable, throwable, throwable, throwable, thread, throwable, throwable, nested, message, logger,
+			thread, level, nested, date, message, throwable, throwable, throwable, throwable, thread, date, level, logger, thread, message,
+			lineSeparator };
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private boolean rendersThrowable = false;
+
+	/**
+	 * Creates a renderer for a conversion pattern
+	 *
+	 * @param conversionPattern
+	 *            The conversion pattern of the layout (e.g. "%d %-5p [%t] %c: %m%n")
+	 */
+	PatternRenderer(String conversionPattern) {
+		int index = 0;
+		StringBuilder text = new StringBuilder();
+
+		while (index < conversionPattern.length()) {
+			char character = conversionPattern.charAt(index++);
+			if ((character != '%') || (index >= conversionPattern.length())) {
+				text.append(character);
+				continue;
+			}
+			if (conversionPattern.charAt(index) == '%') {
+				text.append('%');
+				index++;
+				continue;
+			}
+
+			// the literal text before the conversion
+			if (text.length() > 0) {
+				segments.add(new Segment(literal, text.toString()));
+				text.setLength(0);
+			}
+			Segment segment = new Segment(unsupported, null);
+
+			// format modifiers
+			if ((index < conversionPattern.length()) && (conversionPattern.charAt(index) == '-')) {
+				segment.leftAligned = true;
+				index++;
+			}
+			int start = index;
+			while ((index < conversionPattern.length()) && Character.isDigit(conversionPattern.charAt(index))) {
+				index++;
+			}
+			segment.minLength = (index > start) ? Integer.parseInt(conversionPattern.substring(start, index)) : 0;
+			if ((index < conversionPattern.length()) && (conversionPattern.charAt(index) == '.')) {
+				index++;
+				if ((index < conversionPattern.length()) && (conversionPattern.charAt(index) == '-')) {
+					segment.truncateEnd = true;
+					index++;
+				}
+				start = index;
+				while ((index < conversionPattern.length()) && Character.isDigit(conversionPattern.charAt(index))) {
+					index++;
+				}
+				segment.maxLength = (index > start) ? Integer.parseInt(conversionPattern.substring(start, index)) : 0;
+			}
+
+			// the conversion
+			int wordLength = 0;
+			for (int word = 0; word < words.length; word++) {
+				if (conversionPattern.startsWith(words[word], index)) {
+					segment.type = wordTypes[word];
+					wordLength = words[word].length();
+					break;
+				}
+			}
+			if (wordLength == 0) {
+				// an unsupported conversion - skip its name
+				while ((index + wordLength < conversionPattern.length()) && Character.isLetter(conversionPattern.charAt(index + wordLength))) {
+					wordLength++;
+				}
+			}
+			index += wordLength;
+
+			// options (only the first one is used)
+			while ((index < conversionPattern.length()) && (conversionPattern.charAt(index) == '{')) {
+				int depth = 0;
+				start = index + 1;
+				do {
+					char optionCharacter = conversionPattern.charAt(index++);
+					depth += (optionCharacter == '{') ? 1 : ((optionCharacter == '}') ? -1 : 0);
+				} while ((depth > 0) && (index < conversionPattern.length()));
+				if (segment.option == null) {
+					segment.option = conversionPattern.substring(start, Math.max(start, index - 1));
+				}
+			}
+
+			segment.prepare();
+			rendersThrowable |= (segment.type == throwable) || ((segment.nestedRenderer != null) && segment.nestedRenderer.rendersThrowable);
+			segments.add(segment);
+		}
+
+		if (text.length() > 0) {
+			segments.add(new Segment(literal, text.toString()));
+		}
+	}
+
+	/**
+	 * Renders a log entry
+	 *
+	 * @param timeStamp
+	 *            The time stamp of the log event
+	 * @param levelName
+	 *            The name of the level
+	 * @param loggerName
+	 *            The name of the logger
+	 * @param threadName
+	 *            The name of the thread
+	 * @param text
+	 *            The log message
+	 * @param stackTrace
+	 *            The stack trace including line separators (empty if there is none)
+	 * @return The log entry
+	 */
+	String render(long timeStamp, String levelName, String loggerName, String threadName, String text, String stackTrace) {
+		StringBuilder entry = new StringBuilder(128 + ((text != null) ? text.length() : 0));
+		render(entry, timeStamp, levelName, loggerName, threadName, text, stackTrace);
+
+		// like the log4j file appenders, add the stack trace if the layout does not render it
+		if (!rendersThrowable && (stackTrace != null)) {
+			entry.append(stackTrace);
+		}
+		return entry.toString();
+	}
+
+	/**
+	 * Renders the segments of the pattern
+	 *
+	 * @param entry
+	 *            The destination of the rendered text
+	 * @param timeStamp
+	 *            The time stamp of the log event
+	 * @param levelName
+	 *            The name of the level
+	 * @param loggerName
+	 *            The name of the logger
+	 * @param threadName
+	 *            The name of the thread
+	 * @param text
+	 *            The log message
+	 * @param stackTrace
+	 *            The stack trace including line separators (empty if there is none)
+	 */
+	private void render(StringBuilder entry, long timeStamp, String levelName, String loggerName, String threadName, String text,
+			String stackTrace) {
+		for (Segment segment : segments) {
+			String value;
+			switch (segment.type) {
+			case literal:
+				entry.append(segment.option);
+				continue;
+			case lineSeparator:
+				entry.append(System.lineSeparator());
+				continue;
+			case date:
+				value = segment.dateFormat.format(new Date(timeStamp));
+				break;
+			case level:
+				value = levelName;
+				break;
+			case logger:
+				value = abbreviate(loggerName, segment.precision);
+				break;
+			case thread:
+				value = threadName;
+				break;
+			case message:
+				value = text;
+				break;
+			case throwable:
+				value = stackTrace;
+				break;
+			case nested:
+				StringBuilder nestedEntry = new StringBuilder();
+				segment.nestedRenderer.render(nestedEntry, timeStamp, levelName, loggerName, threadName, text, stackTrace);
+				value = nestedEntry.toString();
+				break;
+			default:
+				value = "";
+				break;
+			}
+			segment.format(entry, (value != null) ? value : "");
+		}
+	}
+
+	/**
+	 * Shortens a logger name to its last components
+	 *
+	 * @param loggerName
+	 *            The name of the logger
+	 * @param precision
+	 *            The number of components that are kept (0 for all)
+	 * @return The shortened name
+	 */
+	private static String abbreviate(String loggerName, int precision) {
+		if ((loggerName == null) || (precision <= 0)) {
+			return loggerName;
+		}
+
+		int start = loggerName.length();
+		for (int component = 0; component < precision; component++) {
+			start = loggerName.lastIndexOf('.', start - 1);
+			if (start < 0) {
+				return loggerName;
+			}
+		}
+		return loggerName.substring(start + 1);
+	}
+
+	/**
+	 * A literal text or a conversion of the pattern
+	 */
+	private static class Segment {
+		private int type;
+		private String option;
+		private boolean leftAligned = false;
+		private boolean truncateEnd = false;
+		private int minLength = 0;
+		private int maxLength = 0;
+		private int precision = 0;
+		private SimpleDateFormat dateFormat = null;
+		private PatternRenderer nestedRenderer = null;
+
+		Segment(int type, String option) {
+			this.type = type;
+			this.option = option;
+		}
+
+		/**
+		 * Interprets the option of the conversion
+		 */
+		void prepare() {
+			switch (type) {
+			case date:
+				try {
+					dateFormat = new SimpleDateFormat(TimeStampParser.toDateFormat(option));
+				} catch (IllegalArgumentException e) {
+					// date formats that are only known to log4j
+					dateFormat = new SimpleDateFormat(TimeStampParser.toDateFormat(null));
+				}
+				break;
+			case logger:
+				if ((option != null) && option.trim().matches("\\d+")) {
+					precision = Integer.parseInt(option.trim());
+				}
+				break;
+			case nested:
+				// e.g. %highlight{%-5p} - the decoration is dropped, the content is kept
+				nestedRenderer = new PatternRenderer((option != null) ? option : "");
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Adds the value of the conversion according to the format modifiers
+		 *
+		 * @param entry
+		 *            The destination of the rendered text
+		 * @param value
+		 *            The value of the conversion
+		 */
+		void format(StringBuilder entry, String value) {
+			if ((maxLength > 0) && (value.length() > maxLength)) {
+				// like log4j, truncate from the beginning unless requested otherwise
+				value = truncateEnd ? value.substring(0, maxLength) : value.substring(value.length() - maxLength);
+			}
+
+			if (!leftAligned) {
+				padding(entry, minLength - value.length());
+			}
+			entry.append(value);
+			if (leftAligned) {
+				padding(entry, minLength - value.length());
+			}
+		}
+
+		/**
+		 * Adds blanks
+		 *
+		 * @param entry
+		 *            The destination of the rendered text
+		 * @param count
+		 *            The number of blanks
+		 */
+		private static void padding(StringBuilder entry, int count) {
+			for (int index = 0; index < count; index++) {
+				entry.append(' ');
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package lu.hrs.mirth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Moves oversized log messages (e.g. complete HL7 or XML payloads) to side files, so the log files, the dashboard and the console only carry a
+ * short preview and a reference:<br/>
+ * <br/>
+ * <code>MSH|^~\&amp;|LAB|... [payload of 348211 characters: payloads/3f2a...e1.txt]</code><br/>
+ * <br/>
+ * The side files are named by the SHA-256 hash of their content and placed in the folder "payloads" of the log folder. Thus a payload that is
+ * logged repeatedly is only written once. The modification time of a side file is updated whenever it is referenced again, so purging side files
+ * by age does not remove a payload that is still referenced by recent log entries.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class PayloadSpiller {
+
+	static final String folderName = "payloads";
+	private static final String extension = ".txt";
+	private static final int previewLength = 200;
+	// the modification time of a side file is refreshed at most once per interval
+	private static final long touchIntervalMillis = 60 * 60 * 1000L;
+	private static final int maxKnownPayloads = 10000;
+	private final File folder;
+	private final int threshold;
+	// the recently written payloads and the last time their side file has been touched
+	private final Map<String, Long> knownPayloads = Collections.synchronizedMap(new LinkedHashMap<String, Long>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxKnownPayloads;
+		}
+	});
+
+	/**
+	 * Creates a spiller for a log folder
+	 *
+	 * @param logLocation
+	 *            The log folder
+	 * @param threshold
+	 *            The number of characters above which a message is moved to a side file
+	 */
+	PayloadSpiller(File logLocation, int threshold) {
+		this.folder = new File(logLocation, folderName);
+		this.threshold = Math.max(previewLength, threshold);
+	}
+
+	/**
+	 * Provides the number of characters above which a message is moved to a side file
+	 *
+	 * @return The threshold
+	 */
+	int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Moves a message to a side file, if it exceeds the threshold
+	 *
+	 * @param message
+	 *            The log message
+	 * @return The preview of the message with the reference to the side file or null if the message is short enough to be logged as it is
+	 * @throws IOException
+	 *             If the side file could not be written
+	 */
+	String spill(String message) throws IOException {
+		if ((message == null) || (message.length() <= threshold)) {
+			return null;
+		}
+
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+		String hash = toHex(getDigest().digest(payload));
+		String name = hash + extension;
+		File file = new File(folder, name);
+
+		Long lastTouched = knownPayloads.get(hash);
+		long now = System.currentTimeMillis();
+		if ((lastTouched == null) && !file.exists()) {
+			write(file, payload);
+			knownPayloads.put(hash, now);
+		} else if ((lastTouched == null) || (now - lastTouched > touchIntervalMillis)) {
+			// the payload is still in use
+			file.setLastModified(now);
+			knownPayloads.put(hash, now);
+		}
+
+		StringBuilder reference = new StringBuilder(previewLength + 120);
+		reference.append(message, 0, previewLength);
+		reference.append(" ... [payload of ").append(message.length()).append(" characters: ").append(folderName).append('/').append(name)
+				.append(']');
+		return reference.toString();
+	}
+
+	/**
+	 * Deletes side files that have not been referenced for a while
+	 *
+	 * @param oldestAllowed
+	 *            The point in time before which a side file must have been referenced the last time to be deleted
+	 * @return The number of side files that have been deleted
+	 */
+	int purgeOlderThan(long oldestAllowed) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return 0;
+		}
+
+		int deleted = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(extension) && (file.lastModified() < oldestAllowed)) {
+				knownPayloads.remove(file.getName().substring(0, file.getName().length() - extension.length()));
+				if (file.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Writes a side file. It is written under a temporary name first, so a side file is never seen partially.
+	 *
+	 * @param file
+	 *            The side file
+	 * @param payload
+	 *            The content
+	 * @throws IOException
+	 *             If the file could not be written
+	 */
+	private void write(File file, byte[] payload) throws IOException {
+		Files.createDirectories(folder.toPath());
+		File temporaryFile = new File(folder, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+				out.write(payload);
+			}
+			// another thread might have written the same payload in the meantime - the content is the same anyway
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * Provides a new message digest for hashing the payloads
+	 *
+	 * @return The SHA-256 digest
+	 */
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Renders bytes as hexadecimal text
+	 *
+	 * @param bytes
+	 *            The bytes
+	 * @return The text
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte value : bytes) {
+			hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
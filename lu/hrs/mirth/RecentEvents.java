@@ -0,0 +1,224 @@
+package lu.hrs.mirth;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent log events of each channel in memory, so they can be inspected from scripts without accessing the log files. The events
+ * are kept as encoded log entries in a ring per channel.<br/>
+ * <br/>
+ * The memory used by all rings is limited globally. Each channel may use an equal share of it - if a channel exceeds its share, its oldest events
+ * are dropped.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class RecentEvents {
+
+	private final ConcurrentHashMap<String, EventRing> rings = new ConcurrentHashMap<String, EventRing>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final Charset charset;
+	private volatile int eventsPerChannel = 0;
+	private volatile long maxTotalBytes = 0;
+
+	/**
+	 * Creates an empty buffer. It does not keep any events before it has been configured.
+	 *
+	 * @param charset
+	 *            The character set of the encoded log entries
+	 */
+	RecentEvents(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Defines how many events are kept. Changing the configuration drops all events kept so far.
+	 *
+	 * @param eventsPerChannel
+	 *            The maximum number of events per channel (0 deactivates the buffer)
+	 * @param maxTotalBytes
+	 *            The maximum size of the encoded events of all channels together
+	 */
+	synchronized void configure(int eventsPerChannel, long maxTotalBytes) {
+		this.eventsPerChannel = Math.max(0, eventsPerChannel);
+		this.maxTotalBytes = Math.max(0, maxTotalBytes);
+		rings.clear();
+		totalBytes.set(0);
+	}
+
+	/**
+	 * Checks if events are kept
+	 *
+	 * @return true, if the buffer is active, false otherwise
+	 */
+	boolean isEnabled() {
+		return (eventsPerChannel > 0) && (maxTotalBytes > 0);
+	}
+
+	/**
+	 * Adds an event to the ring of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @param event
+	 *            The event
+	 */
+	void add(String channelName, ChannelEvent event) {
+		EventRing ring = rings.get(channelName);
+		if (ring == null) {
+			synchronized (this) {
+				if (!isEnabled()) {
+					return;
+				}
+				ring = rings.get(channelName);
+				if (ring == null) {
+					ring = new EventRing(eventsPerChannel);
+					rings.put(channelName, ring);
+					// the share of all other channels has just been reduced
+					long share = getShare();
+					for (EventRing otherRing : rings.values()) {
+						otherRing.trim(share);
+					}
+				}
+			}
+		}
+
+		ring.add(event.getTimeStamp(), event.getLevel(), event.getEncoded(), getShare());
+	}
+
+	/**
+	 * Provides the most recent events of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 * @param count
+	 *            The maximum number of events that should be provided
+	 * @param minLevel
+	 *            The minimum level of the events that should be provided
+	 * @return The log entries, oldest first
+	 */
+	String[] getRecent(String channelName, int count, int minLevel) {
+		EventRing ring = (channelName != null) ? rings.get(channelName) : null;
+		if ((ring == null) || (count < 1)) {
+			return new String[0];
+		}
+
+		List<byte[]> entries = ring.getRecent(count, minLevel);
+		String[] result = new String[entries.size()];
+		for (int index = 0; index < result.length; index++) {
+			result[index] = new String(entries.get(index), charset);
+		}
+		return result;
+	}
+
+	/**
+	 * Drops the events of a channel
+	 *
+	 * @param channelName
+	 *            The name of the channel
+	 */
+	void remove(String channelName) {
+		EventRing ring = rings.remove(channelName);
+		if (ring != null) {
+			ring.trim(0);
+		}
+	}
+
+	/**
+	 * Keeps the events of a renamed channel under its new name
+	 *
+	 * @param oldName
+	 *            The previous name of the channel
+	 * @param newName
+	 *            The new name of the channel
+	 */
+	void rename(String oldName, String newName) {
+		EventRing ring = rings.remove(oldName);
+		if ((ring != null) && (rings.putIfAbsent(newName, ring) != null)) {
+			// the new name is already in use - the events of the old name are dropped
+			ring.trim(0);
+		}
+	}
+
+	/**
+	 * Determines the fair share of each channel
+	 *
+	 * @return The maximum number of bytes a channel may use
+	 */
+	private long getShare() {
+		return maxTotalBytes / Math.max(1, rings.size());
+	}
+
+	/**
+	 * The recent events of a single channel in a circular buffer
+	 */
+	private class EventRing {
+		private final byte[][] entries;
+		private final long[] timeStamps;
+		private final byte[] levels;
+		// position of the oldest event
+		private int head = 0;
+		private int count = 0;
+		private long bytes = 0;
+
+		EventRing(int capacity) {
+			entries = new byte[capacity][];
+			timeStamps = new long[capacity];
+			levels = new byte[capacity];
+		}
+
+		synchronized void add(long timeStamp, int level, byte[] entry, long share) {
+			// a single event that exceeds the share is not kept at all
+			if (entry.length > share) {
+				return;
+			}
+
+			// make room for the new event
+			while ((count == entries.length) || ((count > 0) && (bytes + entry.length > share))) {
+				removeOldest();
+			}
+
+			int position = (head + count) % entries.length;
+			entries[position] = entry;
+			timeStamps[position] = timeStamp;
+			levels[position] = (byte) level;
+			count++;
+			bytes += entry.length;
+			totalBytes.addAndGet(entry.length);
+		}
+
+		synchronized void trim(long share) {
+			while ((count > 0) && (bytes > share)) {
+				removeOldest();
+			}
+		}
+
+		synchronized List<byte[]> getRecent(int maxCount, int minLevel) {
+			List<byte[]> result = new ArrayList<byte[]>();
+			// collect newest first
+			for (int index = count - 1; (index >= 0) && (result.size() < maxCount); index--) {
+				int position = (head + index) % entries.length;
+				if (levels[position] >= minLevel) {
+					result.add(entries[position]);
+				}
+			}
+			// but provide oldest first
+			Collections.reverse(result);
+			return result;
+		}
+
+		private void removeOldest() {
+			byte[] entry = entries[head];
+			entries[head] = null;
+			head = (head + 1) % entries.length;
+			count--;
+			bytes -= entry.length;
+			totalBytes.addAndGet(-entry.length);
+		}
+	}
+}
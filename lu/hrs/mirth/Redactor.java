@@ -0,0 +1,353 @@
+package lu.hrs.mirth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Masks patient identifiers and other sensitive terms in log messages before they reach any log file, the dashboard or a log shipper. All literal
+ * terms and the labels of identifiers are found in a single pass over the message by an Aho-Corasick automaton (case-insensitive), so the cost
+ * does not grow with the number of terms. The following is masked:
+ * <ul>
+ * <li>each occurrence of a configured term</li>
+ * <li>the value following an identifier label (e.g. "MRN: 00123456" becomes "MRN: ***") - a value has to contain at least one digit</li>
+ * <li>social security numbers in the format 123-45-6789</li>
+ * <li>the matches of an optional regular expression</li>
+ * </ul>
+ * The exception attached to an event is not redacted.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class Redactor {
+
+	static final String mask = "***";
+	// the labels of the identifiers that are masked if the identifiers are redacted
+	private static final String[] identifierLabels = { "MRN", "SSN" };
+	// the characters that might separate a label from its value
+	private static final String labelSeparators = " :#=\t";
+	private static final int[] noRanges = new int[0];
+	private final boolean identifiers;
+	private final int termCount;
+	private final Pattern pattern;
+	// the automaton: character classes, transitions (from the offset of a state plus the class to the offset of the next state), the states
+	// ending a literal (by offset) and the longest term and label ending in each state
+	private final int[] asciiClasses = new int[128];
+	private final Map<Character, Integer> otherClasses = new HashMap<Character, Integer>();
+	private final int classCount;
+	private final int[] transitions;
+	private final int[] outputs;
+	private final int[] termLengths;
+	private final int[] labelLengths;
+
+	/**
+	 * Creates a redactor
+	 *
+	 * @param identifiers
+	 *            If this flag is set, medical record numbers and social security numbers are masked
+	 * @param terms
+	 *            The literal terms that are masked wherever they occur (case-insensitive)
+	 * @param pattern
+	 *            A regular expression whose matches are masked (null if there is none)
+	 */
+	Redactor(boolean identifiers, List<String> terms, Pattern pattern) {
+		this.identifiers = identifiers;
+		this.pattern = pattern;
+
+		List<String> literals = new ArrayList<String>();
+		for (String term : terms) {
+			if (!term.isEmpty()) {
+				literals.add(term);
+			}
+		}
+		this.termCount = literals.size();
+		// the labels are added after the terms
+		if (identifiers) {
+			literals.addAll(Arrays.asList(identifierLabels));
+		}
+
+		// each distinct (upper case) character of the literals gets a class, class 0 stands for all others
+		int classes = 1;
+		int trieSize = 1;
+		for (String literal : literals) {
+			for (int index = 0; index < literal.length(); index++) {
+				char upper = Character.toUpperCase(literal.charAt(index));
+				if (getClass(upper) == 0) {
+					if (upper < 128) {
+						asciiClasses[upper] = classes;
+						asciiClasses[Character.toLowerCase(upper)] = classes;
+					} else {
+						otherClasses.put(upper, classes);
+					}
+					classes++;
+				}
+			}
+			trieSize += literal.length();
+		}
+		this.classCount = classes;
+
+		// the trie of the literals
+		int[] trie = new int[trieSize * classes];
+		int[] trieTerms = new int[trieSize];
+		int[] trieLabels = new int[trieSize];
+		int states = 1;
+		for (int literal = 0; literal < literals.size(); literal++) {
+			String text = literals.get(literal);
+			int state = 0;
+			for (int index = 0; index < text.length(); index++) {
+				int position = (state * classes) + getClass(Character.toUpperCase(text.charAt(index)));
+				if (trie[position] == 0) {
+					trie[position] = states++;
+				}
+				state = trie[position];
+			}
+			if (literal < termCount) {
+				trieTerms[state] = text.length();
+			} else {
+				trieLabels[state] = text.length();
+			}
+		}
+
+		// the failure links turn the trie into a complete automaton (breadth first, so the links of shorter prefixes are known)
+		this.transitions = Arrays.copyOf(trie, states * classes);
+		this.termLengths = Arrays.copyOf(trieTerms, states);
+		this.labelLengths = Arrays.copyOf(trieLabels, states);
+		int[] failures = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int characterClass = 1; characterClass < classes; characterClass++) {
+			int child = transitions[characterClass];
+			if (child != 0) {
+				queue[tail++] = child;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			// a state also ends all literals that end in its failure state
+			termLengths[state] = Math.max(termLengths[state], termLengths[failures[state]]);
+			labelLengths[state] = Math.max(labelLengths[state], labelLengths[failures[state]]);
+			for (int characterClass = 1; characterClass < classes; characterClass++) {
+				int position = (state * classes) + characterClass;
+				int child = transitions[position];
+				int fallback = transitions[(failures[state] * classes) + characterClass];
+				if (child != 0) {
+					failures[child] = fallback;
+					queue[tail++] = child;
+				} else {
+					transitions[position] = fallback;
+				}
+			}
+		}
+
+		// the scan works with offsets, so it does not have to multiply for each character
+		this.outputs = new int[transitions.length];
+		for (int state = 0; state < states; state++) {
+			for (int characterClass = 0; characterClass < classes; characterClass++) {
+				transitions[(state * classes) + characterClass] *= classes;
+			}
+			if ((termLengths[state] > 0) || (labelLengths[state] > 0)) {
+				outputs[state * classes] = state + 1;
+			}
+		}
+	}
+
+	/**
+	 * Masks the sensitive parts of a message
+	 *
+	 * @param message
+	 *            The message
+	 * @return The redacted message or the message itself if it does not contain anything sensitive
+	 */
+	String redact(String message) {
+		if ((message == null) || message.isEmpty()) {
+			return message;
+		}
+
+		Ranges ranges = new Ranges();
+		if (transitions.length > classCount) {
+			findLiterals(message, ranges);
+		}
+		if (identifiers) {
+			findSocialSecurityNumbers(message, ranges);
+		}
+		if (pattern != null) {
+			Matcher matcher = pattern.matcher(message);
+			while (matcher.find()) {
+				if (matcher.end() > matcher.start()) {
+					ranges.add(matcher.start(), matcher.end());
+				}
+			}
+		}
+
+		return ranges.isEmpty() ? message : ranges.mask(message);
+	}
+
+	/**
+	 * Finds the terms and the values of the identifier labels in a single pass
+	 *
+	 * @param message
+	 *            The message
+	 * @param ranges
+	 *            The ranges to mask
+	 */
+	private void findLiterals(String message, Ranges ranges) {
+		int length = message.length();
+		int offset = 0;
+		for (int index = 0; index < length; index++) {
+			char character = message.charAt(index);
+			int characterClass = (character < 128) ? asciiClasses[character]
+					: (otherClasses.isEmpty() ? 0 : getClass(Character.toUpperCase(character)));
+			offset = transitions[offset + characterClass];
+			int output = outputs[offset];
+			if (output == 0) {
+				continue;
+			}
+			int state = output - 1;
+
+			int end = index + 1;
+			if (termLengths[state] > 0) {
+				ranges.add(end - termLengths[state], end);
+			}
+			if ((labelLengths[state] > 0) && isWord(message, end - labelLengths[state], end)) {
+				// the label is kept, the following value is masked
+				int valueStart = end;
+				while ((valueStart < length) && (labelSeparators.indexOf(message.charAt(valueStart)) >= 0)) {
+					valueStart++;
+				}
+				int valueEnd = valueStart;
+				boolean digits = false;
+				while ((valueEnd < length) && (Character.isLetterOrDigit(message.charAt(valueEnd)) || (message.charAt(valueEnd) == '-'))) {
+					digits |= Character.isDigit(message.charAt(valueEnd));
+					valueEnd++;
+				}
+				if (digits) {
+					ranges.add(valueStart, valueEnd);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds social security numbers (123-45-6789) that are not part of a longer number. Only the dashes of the message are inspected.
+	 *
+	 * @param message
+	 *            The message
+	 * @param ranges
+	 *            The ranges to mask
+	 */
+	private static void findSocialSecurityNumbers(String message, Ranges ranges) {
+		int length = message.length();
+		int dash = message.indexOf('-', 3);
+		while ((dash >= 0) && (dash + 8 <= length)) {
+			int start = dash - 3;
+			if ((message.charAt(dash + 3) == '-') && areDigits(message, start, dash) && areDigits(message, dash + 1, dash + 3)
+					&& areDigits(message, dash + 4, dash + 8) && ((start == 0) || !Character.isDigit(message.charAt(start - 1)))
+					&& ((dash + 8 == length) || !Character.isDigit(message.charAt(dash + 8)))) {
+				ranges.add(start, dash + 8);
+				dash = message.indexOf('-', dash + 8);
+			} else {
+				dash = message.indexOf('-', dash + 1);
+			}
+		}
+	}
+
+	private static boolean areDigits(String message, int start, int end) {
+		for (int index = start; index < end; index++) {
+			char character = message.charAt(index);
+			if ((character < '0') || (character > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a label is a word of its own and not part of a longer word
+	 */
+	private static boolean isWord(String message, int start, int end) {
+		return ((start == 0) || !Character.isLetterOrDigit(message.charAt(start - 1)))
+				&& ((end == message.length()) || !Character.isLetter(message.charAt(end)));
+	}
+
+	private int getClass(char upperCaseCharacter) {
+		if (upperCaseCharacter < 128) {
+			return asciiClasses[upperCaseCharacter];
+		}
+		Integer characterClass = otherClasses.get(upperCaseCharacter);
+		return (characterClass != null) ? characterClass : 0;
+	}
+
+	/**
+	 * Describes the redaction
+	 *
+	 * @return What is masked
+	 */
+	String getDescription() {
+		return "identifiers=" + identifiers + ", terms=" + termCount + ", pattern=" + ((pattern != null) ? pattern.pattern() : "none");
+	}
+
+	/**
+	 * The ranges of a message that are masked, as pairs of start (inclusive) and end (exclusive)
+	 */
+	private static class Ranges {
+
+		private int[] bounds = noRanges;
+		private int count = 0;
+
+		void add(int start, int end) {
+			if (count == bounds.length) {
+				bounds = Arrays.copyOf(bounds, Math.max(8, bounds.length * 2));
+			}
+			bounds[count++] = start;
+			bounds[count++] = end;
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * Replaces the ranges by the mask, overlapping ranges are merged
+		 *
+		 * @param message
+		 *            The message
+		 * @return The masked message
+		 */
+		String mask(String message) {
+			// the ranges are found in ascending order per kind - a few of them have to be sorted at most
+			for (int pair = 2; pair < count; pair += 2) {
+				int start = bounds[pair];
+				int end = bounds[pair + 1];
+				int position = pair;
+				while ((position > 0) && (bounds[position - 2] > start)) {
+					bounds[position] = bounds[position - 2];
+					bounds[position + 1] = bounds[position - 1];
+					position -= 2;
+				}
+				bounds[position] = start;
+				bounds[position + 1] = end;
+			}
+
+			StringBuilder masked = new StringBuilder(message.length());
+			int copied = 0;
+			for (int pair = 0; pair < count; pair += 2) {
+				int start = bounds[pair];
+				int end = bounds[pair + 1];
+				if (end <= copied) {
+					continue;
+				}
+				if (start >= copied) {
+					masked.append(message, copied, start).append(Redactor.mask);
+				}
+				copied = end;
+			}
+			return masked.append(message, copied, message.length()).toString();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package lu.hrs.mirth;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the background writers of the channel sinks if asynchronous writing is active (see {@link AsyncChannelSink}). On Java 21 and later, each
+ * channel is drained by a virtual thread of its own, so blocking file I/O of a slow channel never occupies a platform thread. On older runtimes, a
+ * small work-stealing pool of platform threads drains the channel queues instead: an idle thread takes over the pending channels of a busy one.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class SinkExecutor {
+
+	static final String modeVirtual = "VIRTUAL";
+	static final String modePool = "POOL";
+	static final String modeAuto = "AUTO";
+	// the log files are written by a few threads at most - the disk is the limit
+	private static final int maxPoolThreads = 4;
+	private final ExecutorService executor;
+	private final String mode;
+	private final String description;
+
+	/**
+	 * Creates the executor of a writer mode
+	 *
+	 * @param executor
+	 *            The executor that runs the writers
+	 * @param mode
+	 *            The writer mode ({@link #modeVirtual} or {@link #modePool})
+	 * @param description
+	 *            A description of the executor
+	 */
+	private SinkExecutor(ExecutorService executor, String mode, String description) {
+		this.executor = executor;
+		this.mode = mode;
+		this.description = description;
+	}
+
+	/**
+	 * Creates the executor for a writer mode. Virtual threads are used if requested (or if the mode is {@link #modeAuto}) and the runtime supports
+	 * them, the work-stealing pool otherwise.
+	 *
+	 * @param requestedMode
+	 *            {@link #modeVirtual}, {@link #modePool} or {@link #modeAuto}
+	 * @return The executor
+	 */
+	static SinkExecutor create(String requestedMode) {
+		if (!modePool.equals(requestedMode)) {
+			try {
+				// only available since Java 21 - the MetaAppender has to run on Java 8 as well
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return new SinkExecutor((ExecutorService) factory.invoke(null), modeVirtual, "a virtual thread per channel");
+			} catch (Exception e) {
+				// virtual threads are not supported by this runtime
+			}
+		}
+
+		int threads = Math.max(1, Math.min(maxPoolThreads, Runtime.getRuntime().availableProcessors() / 2));
+		return new SinkExecutor(Executors.newWorkStealingPool(threads), modePool,
+				"a work-stealing pool of " + threads + " thread" + ((threads > 1) ? "s" : "")
+						+ (modeVirtual.equals(requestedMode) ? " (virtual threads are not supported by this Java runtime)" : ""));
+	}
+
+	/**
+	 * Starts a writer
+	 *
+	 * @param writer
+	 *            The task that drains the queue of a channel
+	 * @return true, if the writer has been started, false if the executor has already been shut down
+	 */
+	boolean execute(Runnable writer) {
+		try {
+			executor.execute(writer);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Provides the writer mode
+	 *
+	 * @return {@link #modeVirtual} or {@link #modePool}
+	 */
+	String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Describes the threads that run the writers
+	 *
+	 * @return The description
+	 */
+	String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Stops accepting writers. Running writers finish their work.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,221 @@
+package lu.hrs.mirth;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the time stamps of log entries from the lines of a log file. The date format is derived from the date conversion (%d) of the log layout,
+ * so the time stamp can be found anywhere at the start of a line. Only the numeric fields and month names are interpreted - the time stamps are
+ * assumed to be in the local time zone.<br/>
+ * <br/>
+ * An instance must not be shared between threads.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class TimeStampParser {
+
+	// the time stamp is expected within the first characters of a line
+	private static final int searchLength = 200;
+	private static final Pattern patternDateConversion = Pattern.compile("%d(?:ate)?(?:\\{([^}]*)\\})?");
+	private static final String defaultDateFormat = "yyyy-MM-dd HH:mm:ss,SSS";
+	private static final String[] monthNames = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+	private final Pattern pattern;
+	private final List<Character> fields = new ArrayList<Character>();
+	private final Calendar calendar = Calendar.getInstance();
+	private Matcher matcher = null;
+
+	/**
+	 * Creates a parser for the time stamps rendered by a log layout
+	 *
+	 * @param conversionPattern
+	 *            The conversion pattern of the log layout
+	 * @return The parser or null if the layout does not render a complete date
+	 */
+	static TimeStampParser forLayout(String conversionPattern) {
+		Matcher matcher = (conversionPattern != null) ? patternDateConversion.matcher(conversionPattern) : null;
+		if ((matcher == null) || !matcher.find()) {
+			return null;
+		}
+
+		TimeStampParser parser = new TimeStampParser(toDateFormat(matcher.group(1)));
+		return parser.hasDate() ? parser : null;
+	}
+
+	/**
+	 * Resolves the option of a date conversion to a date format
+	 *
+	 * @param option
+	 *            The option of the date conversion (e.g. "ISO8601" or "yyyy-MM-dd HH:mm:ss")
+	 * @return The date format
+	 */
+	static String toDateFormat(String option) {
+		if ((option == null) || option.trim().isEmpty()) {
+			return defaultDateFormat;
+		}
+
+		switch (option.trim().toUpperCase()) {
+		case "DEFAULT":
+		case "ISO8601":
+			// the separator of date and time is handled leniently, so this also covers the ISO8601 format of log4j2
+			return defaultDateFormat;
+		case "ISO8601_BASIC":
+			return "yyyyMMdd'T'HHmmss,SSS";
+		case "ABSOLUTE":
+			return "HH:mm:ss,SSS";
+		case "DATE":
+			return "dd MMM yyyy HH:mm:ss,SSS";
+		case "COMPACT":
+			return "yyyyMMddHHmmssSSS";
+		default:
+			return option.trim();
+		}
+	}
+
+	/**
+	 * Creates a parser for a date format
+	 *
+	 * @param dateFormat
+	 *            The date format in the notation of SimpleDateFormat
+	 */
+	TimeStampParser(String dateFormat) {
+		StringBuilder regex = new StringBuilder();
+		boolean quoted = false;
+
+		for (int index = 0; index < dateFormat.length(); index++) {
+			char character = dateFormat.charAt(index);
+			if (character == '\'') {
+				// quotes enclose literal text
+				quoted = !quoted;
+			} else if (quoted || !Character.isLetter(character)) {
+				// date and time might be separated by a blank or a 'T'
+				regex.append(((character == ' ') || (character == 'T')) ? "[ T]" : Pattern.quote(String.valueOf(character)));
+			} else {
+				// determine the length of the field
+				int length = 1;
+				while ((index + 1 < dateFormat.length()) && (dateFormat.charAt(index + 1) == character)) {
+					length++;
+					index++;
+				}
+
+				switch (character) {
+				case 'y':
+					regex.append((length == 2) ? "(\\d{2})" : "(\\d{4})");
+					fields.add(character);
+					break;
+				case 'M':
+					regex.append((length > 2) ? "([A-Za-z]{3,})" : ((length == 2) ? "(\\d{2})" : "(\\d{1,2})"));
+					fields.add(character);
+					break;
+				case 'd':
+				case 'H':
+				case 'k':
+				case 'm':
+				case 's':
+					regex.append((length == 2) ? "(\\d{2})" : "(\\d{1,2})");
+					fields.add(character);
+					break;
+				case 'S':
+					regex.append("(\\d{").append(length).append("})");
+					fields.add(character);
+					break;
+				default:
+					// fields that are not needed to determine the point in time
+					regex.append("\\S+?");
+					break;
+				}
+			}
+		}
+
+		this.pattern = Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Checks if the date format contains a complete date
+	 *
+	 * @return true, if year, month and day are present, false otherwise
+	 */
+	boolean hasDate() {
+		return fields.contains('y') && fields.contains('M') && fields.contains('d');
+	}
+
+	/**
+	 * Extracts the time stamp of a log entry
+	 *
+	 * @param line
+	 *            A line of a log file
+	 * @return The time stamp in milliseconds or -1 if the line does not start a log entry (e.g. a line of a stack trace)
+	 */
+	long getTimeStamp(CharSequence line) {
+		if (matcher == null) {
+			matcher = pattern.matcher(line);
+		} else {
+			matcher.reset(line);
+		}
+		matcher.region(0, Math.min(line.length(), searchLength));
+		if (!matcher.find()) {
+			return -1;
+		}
+
+		calendar.clear();
+		for (int index = 0; index < fields.size(); index++) {
+			String value = matcher.group(index + 1);
+			switch (fields.get(index)) {
+			case 'y':
+				int year = Integer.parseInt(value);
+				calendar.set(Calendar.YEAR, (value.length() == 2) ? 2000 + year : year);
+				break;
+			case 'M':
+				int month = Character.isDigit(value.charAt(0)) ? Integer.parseInt(value) - 1 : getMonth(value);
+				if (month < 0) {
+					return -1;
+				}
+				calendar.set(Calendar.MONTH, month);
+				break;
+			case 'd':
+				calendar.set(Calendar.DAY_OF_MONTH, Integer.parseInt(value));
+				break;
+			case 'H':
+			case 'k':
+				calendar.set(Calendar.HOUR_OF_DAY, Integer.parseInt(value) % 24);
+				break;
+			case 'm':
+				calendar.set(Calendar.MINUTE, Integer.parseInt(value));
+				break;
+			case 's':
+				calendar.set(Calendar.SECOND, Integer.parseInt(value));
+				break;
+			case 'S':
+				// only the milliseconds are relevant
+				calendar.set(Calendar.MILLISECOND, Integer.parseInt((value + "00").substring(0, 3)));
+				break;
+			default:
+				break;
+			}
+		}
+
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Resolves an English month name
+	 *
+	 * @param name
+	 *            The name or abbreviation of the month
+	 * @return The month (0 for January) or -1 if the name is unknown
+	 */
+	private static int getMonth(String name) {
+		String abbreviation = name.substring(0, 3).toUpperCase(Locale.ENGLISH);
+		for (int month = 0; month < monthNames.length; month++) {
+			if (monthNames[month].equals(abbreviation)) {
+				return month;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,211 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Captures the log events received by the MetaAppender in a compact workload trace (see {@link WorkloadTrace}), so a production log storm can be
+ * replayed offline against other configurations. By default, only the length and the hash of each message are recorded, which keeps the trace
+ * small and free of patient data. The capture ends by itself when the trace reaches its maximum size.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+class WorkloadRecorder {
+
+	// the maximum size of a trace if none has been configured
+	static final long defaultMaxSize = 256L * 1024 * 1024;
+	private final File file;
+	private final boolean fullMessages;
+	private final long maxSize;
+	// the records of an event are collected, so the size limit is never exceeded by a partial event
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+	private final Map<String, Integer> names = new HashMap<String, Integer>();
+	private final Set<String> channelIds = new HashSet<String>();
+	private OutputStream out;
+	private long size = 0;
+	private long lastTimeStamp;
+	private long eventCount = 0;
+
+	/**
+	 * Starts a capture. An existing trace is overwritten.
+	 *
+	 * @param file
+	 *            The trace
+	 * @param fullMessages
+	 *            If this flag is set, the full messages are recorded instead of only their length and hash
+	 * @param maxSize
+	 *            The size of the trace at which the capture ends
+	 * @throws IOException
+	 *             If the trace could not be created
+	 */
+	WorkloadRecorder(File file, boolean fullMessages, long maxSize) throws IOException {
+		this.file = file;
+		this.fullMessages = fullMessages;
+		this.maxSize = maxSize;
+		this.lastTimeStamp = System.currentTimeMillis();
+
+		this.out = new BufferedOutputStream(new FileOutputStream(file), LogReader.blockSize);
+		record.write(WorkloadTrace.magic);
+		record.write(WorkloadTrace.version);
+		record.write(fullMessages ? WorkloadTrace.headerFullMessages : 0);
+		BinaryLogFormat.writeNumber(record, lastTimeStamp);
+		record.writeTo(out);
+		size = record.size();
+	}
+
+	/**
+	 * Records an event as it has been received by the appender
+	 *
+	 * @param event
+	 *            The event
+	 * @param channelId
+	 *            The id of the channel that logged the event (null if it does not belong to a channel)
+	 * @param channelName
+	 *            The name of the channel
+	 * @param redactor
+	 *            The redaction that masks the full messages (null if there is none)
+	 * @return true, if the capture is still running, false if it has ended as the trace has reached its maximum size
+	 * @throws IOException
+	 *             If the event could not be written (the capture has ended)
+	 */
+	synchronized boolean record(ChannelEvent event, String channelId, String channelName, Redactor redactor) throws IOException {
+		if (out == null) {
+			return false;
+		}
+
+		record.reset();
+		// the replay has to deploy the channel before its first event
+		boolean newChannel = (channelId != null) && !channelIds.contains(channelId);
+		if (newChannel) {
+			record.write(WorkloadTrace.recordChannel);
+			BinaryLogFormat.writeText(record, channelId);
+			BinaryLogFormat.writeText(record, channelName);
+		}
+
+		String loggerName = event.getLoggerName();
+		String threadName = event.getThreadName();
+		int loggerReference = getReference(loggerName);
+		int threadReference = getReference(threadName);
+		// the binding of the thread to a channel is replayed as well, as the names might not reveal the channel
+		boolean bound = (channelId != null) && (event.getContextValue(ChannelRouter.contextKeyChannelId) != null);
+		int channelReference = bound ? getReference(channelId) : 0;
+		String message = event.getRenderedMessage();
+		if (message == null) {
+			message = "";
+		}
+
+		record.write(WorkloadTrace.recordEvent);
+		// concurrently logged events might arrive slightly out of order
+		BinaryLogFormat.writeNumber(record, BinaryLogFormat.toZigZag(event.getTimeStamp() - lastTimeStamp));
+		record.write(event.getLevel());
+		BinaryLogFormat.writeNumber(record, loggerReference);
+		if (loggerReference == 0) {
+			BinaryLogFormat.writeText(record, loggerName);
+		}
+		BinaryLogFormat.writeNumber(record, threadReference);
+		if (threadReference == 0) {
+			BinaryLogFormat.writeText(record, threadName);
+		}
+		record.write((event.hasThrowable() ? WorkloadTrace.eventThrowable : 0) | (fullMessages ? WorkloadTrace.eventFullMessage : 0)
+				| (bound ? WorkloadTrace.eventBoundChannel : 0));
+		if (bound) {
+			BinaryLogFormat.writeNumber(record, channelReference);
+			if (channelReference == 0) {
+				BinaryLogFormat.writeText(record, channelId);
+			}
+		}
+		if (fullMessages) {
+			// the trace must not reveal what the log files do not show
+			BinaryLogFormat.writeText(record, (redactor != null) ? redactor.redact(message) : message);
+		} else {
+			BinaryLogFormat.writeNumber(record, message.length());
+			BinaryLogFormat.writeNumber(record, message.hashCode() & 0xFFFFFFFFL);
+			// a special instruction changes the routing of the event - it is kept
+			boolean instruction = (message.length() > 3) && (message.charAt(0) == '#') && (message.charAt(3) == ':');
+			BinaryLogFormat.writeText(record, instruction ? message.substring(0, 4) : null);
+		}
+
+		if (size + record.size() > maxSize) {
+			// the dictionary entries of this event are not written - but nothing follows anyway
+			close();
+			return false;
+		}
+
+		try {
+			record.writeTo(out);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		size += record.size();
+		lastTimeStamp = event.getTimeStamp();
+		eventCount++;
+		if (newChannel) {
+			channelIds.add(channelId);
+		}
+		return true;
+	}
+
+	/**
+	 * Provides the dictionary reference of a name. Unknown names are added to the dictionary as long as it is not full.
+	 *
+	 * @param name
+	 *            The logger or thread name
+	 * @return The reference or 0 if the name has to be written inline
+	 * @throws IOException
+	 *             If the dictionary entry could not be encoded
+	 */
+	private int getReference(String name) throws IOException {
+		if (name == null) {
+			name = "";
+		}
+		Integer reference = names.get(name);
+		if (reference != null) {
+			return reference;
+		}
+		if (names.size() >= BinaryLogFormat.maxDictionarySize) {
+			return 0;
+		}
+
+		record.write(WorkloadTrace.recordName);
+		BinaryLogFormat.writeText(record, name);
+		reference = names.size() + 1;
+		names.put(name, reference);
+		return reference;
+	}
+
+	/**
+	 * Describes the capture
+	 *
+	 * @return The trace, the number of recorded events and its size
+	 */
+	synchronized String getDescription() {
+		return file.getPath() + ": " + eventCount + " events, " + size + " bytes" + ((out == null) ? " (ended)" : "");
+	}
+
+	/**
+	 * Ends the capture
+	 */
+	synchronized void close() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			// nothing that could be done about it anymore
+		} finally {
+			out = null;
+		}
+	}
+}
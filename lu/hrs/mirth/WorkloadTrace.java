@@ -0,0 +1,283 @@
+package lu.hrs.mirth;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reads a workload trace written by the {@link WorkloadRecorder}, e.g. for replaying a production log storm against another configuration of the
+ * MetaAppender.<br/>
+ * <br/>
+ * A trace starts with a header: the magic bytes "MAWL", a format version, a flag byte (bit 0 = full messages) and the time at which the capture
+ * started. It is followed by a sequence of records, each starting with a record type:
+ * <ul>
+ * <li>Name: The next entry of the name dictionary (logger and thread names), as in the binary log files (see {@link BinaryLogFormat}).</li>
+ * <li>Channel: The id and the name of a channel. It precedes the first event of the channel.</li>
+ * <li>Event: The difference to the time stamp of the previous event, the level, the dictionary references of logger and thread name (0 = the name
+ * follows inline), a flag byte (bit 0 = exception attached, bit 1 = full message) and the message. Without the full message, only its length, its
+ * hash code and a special instruction it starts with (e.g. "#FO:") are stored.</li>
+ * </ul>
+ * The message and the logger name are those received by the appender, i.e. before the channel name or any other adaptation was applied.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of the MPL was not distributed with this file, You
+ * can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ */
+public class WorkloadTrace implements Closeable {
+
+	static final String extension = ".wtrace";
+	static final byte[] magic = { 'M', 'A', 'W', 'L' };
+	static final int version = 1;
+	static final int recordName = 1;
+	static final int recordEvent = 2;
+	static final int recordChannel = 3;
+	static final int headerFullMessages = 0x01;
+	static final int eventThrowable = 0x01;
+	static final int eventFullMessage = 0x02;
+	static final int eventBoundChannel = 0x04;
+	// protects against allocating huge arrays for a corrupted length
+	private static final long maxTextLength = 256L * 1024 * 1024;
+	// the characters of which synthesized messages are made of
+	private static final char[] fillCharacters = "abcdefghijklmnopqrstuvwxyz0123456789 |^~".toCharArray();
+	private final InputStream in;
+	private final boolean fullMessages;
+	private final long startTime;
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, String> channels = new LinkedHashMap<String, String>();
+	// the current event
+	private long timeStamp = 0;
+	private int level = ChannelEvent.TRACE;
+	private String loggerName = null;
+	private String threadName = null;
+	private boolean throwable = false;
+	private String boundChannelId = null;
+	private String message = null;
+	private int messageLength = 0;
+	private int messageHash = 0;
+
+	/**
+	 * Opens a workload trace and reads its header
+	 *
+	 * @param file
+	 *            The trace
+	 * @throws IOException
+	 *             If the file could not be read or is not a workload trace
+	 */
+	public WorkloadTrace(File file) throws IOException {
+		this.in = new BufferedInputStream(new FileInputStream(file), LogReader.blockSize);
+		try {
+			byte[] header = new byte[magic.length];
+			for (int index = 0; index < header.length; index++) {
+				header[index] = (byte) BinaryLogFormat.readByte(in);
+			}
+			if (!Arrays.equals(header, magic)) {
+				throw new IOException(file + " is not a workload trace");
+			}
+			int traceVersion = BinaryLogFormat.readByte(in);
+			if (traceVersion != version) {
+				throw new IOException(file + " has the unsupported workload trace version " + traceVersion);
+			}
+			this.fullMessages = (BinaryLogFormat.readByte(in) & headerFullMessages) != 0;
+			this.startTime = BinaryLogFormat.readNumber(in);
+			this.timeStamp = this.startTime;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next event. The channels that are referenced by the event have been read before (see {@link #getChannels()}).
+	 *
+	 * @return true, if there was another complete event, false if the end of the trace has been reached
+	 * @throws IOException
+	 *             If the trace could not be read or is corrupted
+	 */
+	public boolean next() throws IOException {
+		try {
+			while (true) {
+				int recordType = in.read();
+				if (recordType < 0) {
+					return false;
+				}
+
+				switch (recordType) {
+				case recordName:
+					names.add(BinaryLogFormat.readText(in, maxTextLength));
+					break;
+				case recordChannel:
+					String channelId = BinaryLogFormat.readText(in, maxTextLength);
+					channels.put(channelId, BinaryLogFormat.readText(in, maxTextLength));
+					break;
+				case recordEvent:
+					timeStamp += BinaryLogFormat.fromZigZag(BinaryLogFormat.readNumber(in));
+					level = BinaryLogFormat.readByte(in);
+					loggerName = readName();
+					threadName = readName();
+					int flags = BinaryLogFormat.readByte(in);
+					throwable = (flags & eventThrowable) != 0;
+					boundChannelId = ((flags & eventBoundChannel) != 0) ? readName() : null;
+					if ((flags & eventFullMessage) != 0) {
+						message = BinaryLogFormat.readText(in, maxTextLength);
+						messageLength = message.length();
+						messageHash = message.hashCode();
+					} else {
+						messageLength = (int) Math.min(BinaryLogFormat.readNumber(in), maxTextLength);
+						messageHash = (int) BinaryLogFormat.readNumber(in);
+						// only the special instruction is kept, so the replayed event is routed like the original one
+						message = BinaryLogFormat.readText(in, maxTextLength);
+					}
+					return true;
+				default:
+					throw new IOException("Unknown record type " + recordType + " in workload trace");
+				}
+			}
+		} catch (EOFException e) {
+			// the last record is incomplete (the capture is still running or the server crashed)
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a name that is either a dictionary reference or inline
+	 *
+	 * @return The name
+	 * @throws IOException
+	 *             If the name could not be read or the reference is invalid
+	 */
+	private String readName() throws IOException {
+		int reference = (int) BinaryLogFormat.readNumber(in);
+		if (reference == 0) {
+			return BinaryLogFormat.readText(in, maxTextLength);
+		}
+		if (reference > names.size()) {
+			throw new IOException("Invalid name reference " + reference + " in workload trace");
+		}
+		return names.get(reference - 1);
+	}
+
+	/**
+	 * Checks if the trace contains the full log messages
+	 *
+	 * @return true, if the messages are contained, false if only their length and hash are known
+	 */
+	public boolean hasFullMessages() {
+		return fullMessages;
+	}
+
+	/**
+	 * Provides the time at which the capture started
+	 *
+	 * @return The time in milliseconds since epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Provides all channels that have been read so far
+	 *
+	 * @return The names of the channels by their ids, in the order of their appearance
+	 */
+	public Map<String, String> getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Provides the time stamp of the current event
+	 *
+	 * @return The time stamp in milliseconds since epoch
+	 */
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	/**
+	 * Provides the level of the current event
+	 *
+	 * @return The name of the level, e.g. "INFO"
+	 */
+	public String getLevel() {
+		return ChannelEvent.getLevelName(level);
+	}
+
+	/**
+	 * Provides the name of the logger of the current event
+	 *
+	 * @return The logger name as received by the appender
+	 */
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	/**
+	 * Provides the name of the thread of the current event
+	 *
+	 * @return The thread name
+	 */
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * Provides the channel to which the thread of the current event was bound via MetaAppender.bindChannel()
+	 *
+	 * @return The id of the channel or null if the thread was not bound
+	 */
+	public String getBoundChannelId() {
+		return boundChannelId;
+	}
+
+	/**
+	 * Checks if an exception was attached to the current event
+	 *
+	 * @return true, if there was an exception, false otherwise
+	 */
+	public boolean hasThrowable() {
+		return throwable;
+	}
+
+	/**
+	 * Provides the length of the message of the current event
+	 *
+	 * @return The number of characters
+	 */
+	public int getMessageLength() {
+		return messageLength;
+	}
+
+	/**
+	 * Provides the message of the current event. If the trace does not contain the full messages, a message of the original length is synthesized.
+	 * It starts with the original special instruction (if any) and its content is derived from the hash of the original, so recurring messages are
+	 * also recurring in the replay.
+	 *
+	 * @return The message
+	 */
+	public String getMessage() {
+		if (message.length() >= messageLength) {
+			return message;
+		}
+
+		StringBuilder synthesized = new StringBuilder(messageLength).append(message);
+		Random random = new Random(messageHash);
+		while (synthesized.length() < messageLength) {
+			synthesized.append(fillCharacters[random.nextInt(fillCharacters.length)]);
+		}
+		return synthesized.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}